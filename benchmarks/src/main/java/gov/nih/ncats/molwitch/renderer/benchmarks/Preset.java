@@ -0,0 +1,52 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package gov.nih.ncats.molwitch.renderer.benchmarks;
+
+import gov.nih.ncats.molwitch.renderer.RendererOptions;
+
+/**
+ * The option presets {@link RendererOptions} comes with.
+ */
+public enum Preset {
+	DEFAULT {
+		@Override
+		RendererOptions create() {
+			return RendererOptions.createDefault();
+		}
+	},
+	USP {
+		@Override
+		RendererOptions create() {
+			return RendererOptions.createUSPLike();
+		}
+	},
+	INN {
+		@Override
+		RendererOptions create() {
+			return RendererOptions.createINNLike();
+		}
+	},
+	BALL_AND_STICK {
+		@Override
+		RendererOptions create() {
+			return RendererOptions.createBallAndStick();
+		}
+	};
+
+	abstract RendererOptions create();
+}
@@ -0,0 +1,70 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package gov.nih.ncats.molwitch.renderer.benchmarks;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.renderer.ChemicalRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of rendering each structure of the corpus
+ * with the default options at a small, medium and large size.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class RenderSizeBenchmark {
+
+	@Param({"sodium_acetate.mol", "potassium_acetate_hydrate.mol", "polymer.mol", "NG5NG5733T_sru.mol",
+			"aminoAcidAsSUP.mol", "Structure2D_CID_118984375.mol"})
+	public String structure;
+
+	@Param({"150", "500", "2000"})
+	public int size;
+
+	private Chemical chemical;
+	private ChemicalRenderer renderer;
+
+	@Setup
+	public void setup() throws IOException {
+		chemical = Structures.load(structure);
+		renderer = new ChemicalRenderer();
+	}
+
+	@Benchmark
+	public BufferedImage createImage() {
+		return renderer.createImage(chemical, size);
+	}
+}
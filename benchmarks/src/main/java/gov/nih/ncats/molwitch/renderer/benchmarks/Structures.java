@@ -0,0 +1,44 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package gov.nih.ncats.molwitch.renderer.benchmarks;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The structures the renderer is tested with, packaged into the
+ * benchmarks under /structures.
+ */
+final class Structures {
+
+	private Structures(){
+		//can not instantiate
+	}
+
+	static Chemical load(String name) throws IOException {
+		try(InputStream in = Structures.class.getResourceAsStream("/structures/" + name)){
+			if(in == null){
+				throw new FileNotFoundException("no structure named " + name);
+			}
+			return Chemical.parseMol(in);
+		}
+	}
+}
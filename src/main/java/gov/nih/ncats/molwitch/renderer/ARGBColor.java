@@ -23,7 +23,6 @@ import com.fasterxml.jackson.annotation.JsonValue;
 
 import java.awt.*;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
 public final class ARGBColor {
@@ -31,6 +30,7 @@ public final class ARGBColor {
     private static Map<Integer, Color> COLOR_CACHE = new ConcurrentHashMap<>();
 
     private final int argb;
+    private transient Color color;
     public ARGBColor(int r, int g, int b){
         this(r,g,b,255);
     }
@@ -56,7 +56,13 @@ public final class ARGBColor {
     }
 
     public Color asColor(){
-        return COLOR_CACHE.computeIfAbsent(argb, v-> new Color(v,true));
+        //a benign race; every thread gets the same shared Color
+        Color c = color;
+        if(c == null){
+            c = COLOR_CACHE.computeIfAbsent(argb, v-> new Color(v,true));
+            color = c;
+        }
+        return c;
     }
 
     @Override
@@ -69,7 +75,8 @@ public final class ARGBColor {
 
     @Override
     public int hashCode() {
-        return Objects.hash(argb);
+        //Objects.hash(argb), without boxing; split bonds are ordered by it
+        return 31 + argb;
     }
 
     public ARGBColor withAlpha(int alpha) {
@@ -18,28 +18,24 @@
 
 package gov.nih.ncats.molwitch.renderer;
 
-import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Shape;
-import java.awt.color.ColorSpace;
+import java.awt.Stroke;
 import java.awt.geom.RoundRectangle2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
-import java.awt.image.ColorConvertOp;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.awt.image.DataBufferInt;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import gov.nih.ncats.molwitch.Chemical;
 
@@ -56,23 +52,41 @@ import gov.nih.ncats.molwitch.Chemical;
 	
 	
 	
-	 static final ConcurrentMap<Integer, BufferedImageOp> OperCache = 
-		        new ConcurrentHashMap<Integer, BufferedImageOp>();
-	 static final ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-	 static final ColorConvertOp GREYOP = new ColorConvertOp(cs, null);  
+	 //sRGB levels as linear light, out of 65535
+	 private static final int[] LINEAR = new int[256];
+	 //8 bit linear grey levels as sRGB levels
+	 private static final int[] SRGB = new int[256];
+	 static {
+		 for(int i=0; i< 256; i++){
+			 double v = i / 255.0;
+			 LINEAR[i] = (int) Math.round(65535 * (v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4)));
+			 SRGB[i] = (int) Math.round(255 * (v <= 0.0031308 ? v * 12.92 : 1.055 * Math.pow(v, 1 / 2.4) - 0.055));
+		 }
+	 }
 	 
-	 boolean shadowViz=true;	 
-	 float shadowRad=0.01f;
-	 float shadowTrans=0.25f;
-	 int shadowOff=5;
-	 boolean borderViz=false;
-     ARGBColor backgroundColor = new ARGBColor(0,0,0,0);
-     ARGBColor borderColor=new ARGBColor(Color.black);
-	 Set<String> _displayProperties = new LinkedHashSet<String>();
+	 //settings are volatile so a change is seen by renders on other threads
+	 volatile boolean shadowViz=true;	 
+	 volatile float shadowRad=0.01f;
+	 volatile float shadowTrans=0.25f;
+	 volatile int shadowOff=5;
+	 volatile float shadowRes=1f;
+	 volatile boolean borderViz=false;
+     volatile ARGBColor backgroundColor = new ARGBColor(0,0,0,0);
+     volatile ARGBColor borderColor=new ARGBColor(Color.black);
+	 volatile Set<String> _displayProperties = new CopyOnWriteArraySet<String>();
+	 volatile RenderMetricsListener metricsListener;
 
 		
 	  
 	public abstract void renderChem (Graphics2D g2, Chemical c, int x, int y,int width, int height);
+
+	/**
+	 * A fingerprint of the options that change how structures are laid
+	 * out, reported with each render that is measured.
+	 */
+	long optionsFingerprint(){
+		return 0;
+	}
 	
 	
 	public ARGBColor getBackgroundColor() {		return backgroundColor;	}
@@ -81,13 +95,27 @@ import gov.nih.ncats.molwitch.Chemical;
 	public float getShadowRadius() {return shadowRad;}
 	public float getShadowTranslucency() {return shadowTrans;}
 	public int getShadowOffset() {return shadowOff;}
+	public float getShadowResolution() {return shadowRes;}
 	public boolean getNameVisible() {return _displayProperties.contains(PROPERTY_NAME);}
 	public boolean getBorderVisible(){return borderViz;}
 	public void setShadowVisible(boolean b) {shadowViz=b;}
 	public void SetShadowRadius(float r) {shadowRad=r;}
 	public void setShadowTranslucency(float t) {shadowTrans=t;}
 	public void setShadowOffset(int o) {shadowOff=o;}
+	/**
+	 * @param r the fraction of the image's resolution the shadow is drawn
+	 *          and blurred at before being scaled up, from 1, the
+	 *          default, down to any positive fraction.
+	 */
+	public void setShadowResolution(float r) {
+		if(!(r > 0 && r <= 1)){
+			throw new IllegalArgumentException("shadow resolution must be in (0, 1]");
+		}
+		shadowRes=r;
+	}
 	
+	public RenderMetricsListener getRenderMetricsListener() {return metricsListener;}
+	public void setRenderMetricsListener(RenderMetricsListener listener) {metricsListener=listener;}
 	public void setBorderVisible(boolean v){borderViz=v;}
 	public void setBorderColor(ARGBColor c){borderColor = c;}
 	public void setBackgroundColor(ARGBColor color){this.backgroundColor=color;}
@@ -97,9 +125,13 @@ import gov.nih.ncats.molwitch.Chemical;
 		else
 			_displayProperties.remove(PROPERTY_NAME);
 	}
+	/**
+	 * Replace the displayed properties with a copy of the given ones, in
+	 * their iteration order.
+	 */
 	public void setDisplayProperties(Set<String> properties) {
-		_displayProperties=properties;
-		
+		_displayProperties=properties==null? new CopyOnWriteArraySet<String>()
+				: new CopyOnWriteArraySet<String>(properties);
 	}
 	public void addDisplayProperty(String prop){
 		_displayProperties.add(prop);
@@ -109,6 +141,30 @@ import gov.nih.ncats.molwitch.Chemical;
 	}
 	
 	
+	/**
+	 * Write everything besides the structure and its layout that shows up
+	 * in a finished image of the given chemical: shadow, border,
+	 * background and the displayed property values.
+	 */
+	void writeStyle(DataOutput out, Chemical c) throws IOException {
+		out.writeBoolean(shadowViz);
+		out.writeFloat(shadowRad);
+		out.writeFloat(shadowTrans);
+		out.writeInt(shadowOff);
+		out.writeFloat(shadowRes);
+		out.writeBoolean(borderViz);
+		out.writeUTF(backgroundColor.asHex());
+		out.writeUTF(borderColor.asHex());
+		for(String s : _displayProperties){
+			out.writeUTF(s);
+			//the name and smiles come with the structure itself
+			if(!s.equals(PROPERTY_NAME) && !s.equals(PROPERTY_SMILES)){
+				String prop = c.getProperty(s);
+				out.writeUTF(prop==null? "" : prop);
+			}
+		}
+	}
+
 	public void renderChem (Graphics2D g2, Chemical c, 
 			   int width, int height, boolean round) {
 	renderChem (g2, c, 0, 0, width, height, round);
@@ -116,36 +172,71 @@ import gov.nih.ncats.molwitch.Chemical;
 	public void renderChem (Graphics2D g2, Chemical c, int x, int y,int width, int height, boolean round){
 		/*System.out.printf("starting renderChem total atoms: %d; x: %d; y: %d, width: %d; height: %d; round: %b\n",
 				c.getAtomCount(), x, y, width, height, round);*/
-		renderBackground(g2,x,y,width,height,round);
-		if(getShadowVisible())
-			renderChemicalShadow(g2,c,x,y,width,height);
-		renderChem(g2,c,x,y,width,height);
+		RenderMetrics metrics = RenderMetrics.begin(this, c, width, height);
+		try{
+			long start = RenderMetrics.start(metrics);
+			renderBackground(g2,x,y,width,height,round);
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.BACKGROUND, start);
+			renderStructure(g2,c,x,y,width,height,getShadowVisible());
+			start = RenderMetrics.start(metrics);
+			renderProperties(g2,c,x,y,width,height);
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.CAPTIONS, start);
+		}finally{
+			if(metrics != null){
+				metrics.finish();
+			}
+		}
+	}
+
+	private void renderProperties(Graphics2D g2, Chemical c, int x, int y, int width, int height){
+		for(TextPlacement placed : placeProperties(g2, c, x, y, width, height)){
+			g2.setColor(Color.black);
+			g2.setFont(placed.font);
+			g2.drawString(placed.text, (int)placed.x, (int)placed.y);
+		}
+	}
+
+	/**
+	 * Work out where the displayed properties of the given structure go:
+	 * the first at the top of the box and the second at the bottom.  The
+	 * font of the graphics is left as drawing them would leave it.
+	 */
+	List<TextPlacement> placeProperties(Graphics2D g2, Chemical c, int x, int y, int width, int height){
+		List<TextPlacement> placed = new ArrayList<>(2);
 		int i=0;
 		if(_displayProperties!=null){
 			for(String s : _displayProperties){
-				String prop = "";
-				if(s.equals(this.PROPERTY_NAME)){
-					prop = c.getName();
-				}else if(s.equals(this.PROPERTY_SMILES)){
-					try{
-						prop = c.toSmiles();
-					}catch(Exception e){
-						e.printStackTrace();
-					}
-				}else{
-					prop = c.getProperty(s);
-				}
-				if(prop !=null){
-					prop=prop.trim();
-					if(i==0)
-						drawText(g2,x,y,width,height,prop,this.POSITION_TOP);
-					if(i==1)
-						drawText(g2,x,y,width,height,prop,this.POSITION_BOTTOM);
+				String prop = displayedProperty(c, s);
+				if(prop !=null && i < 2){
+					TextPlacement p = placeText(g2, x, y, width, height, prop.trim(), i==0? POSITION_TOP : POSITION_BOTTOM);
+					g2.setFont(p.font);
+					placed.add(p);
 				}
 				i++;
 			}
 		}
+		return placed;
+	}
+
+	/**
+	 * The text shown for the given displayed property of a structure: its
+	 * name, its SMILES or one of its properties, which may be null.
+	 */
+	private static String displayedProperty(Chemical c, String s){
+		if(s.equals(PROPERTY_NAME)){
+			return c.getName();
+		}
+		if(s.equals(PROPERTY_SMILES)){
+			try{
+				return c.toSmiles();
+			}catch(Exception e){
+				e.printStackTrace();
+				return "";
+			}
+		}
+		return c.getProperty(s);
 	}
+
         /**
 	*
 	*  Draw the supplied string to the graphics object at either the top or bottom 
@@ -169,11 +260,26 @@ import gov.nih.ncats.molwitch.Chemical;
 	*/
 	public Rectangle2D.Double drawText(Graphics2D g2, int x, int y, int width, int height,
 			String text, int position, boolean boundsOnly) {
+		TextPlacement placed = placeText(g2, x, y, width, height, text, position);
 		g2.setColor(Color.black);
-		g2.setFont(g2.getFont().deriveFont(Font.PLAIN, width / 15));
-		FontMetrics fm = g2.getFontMetrics();
-		float swidth = (float) fm.getStringBounds(text, g2).getWidth();
-		float sheight = (float) fm.getStringBounds(text, g2).getHeight();
+		g2.setFont(placed.font);
+		if(!boundsOnly){
+			g2.drawString(placed.text, (int)placed.x, (int)placed.y);
+		}
+		return placed.bounds;
+	}
+
+	/**
+	 * Work out where {@link #drawText(Graphics2D, int, int, int, int, String, int, boolean)}
+	 * would draw the supplied string, without drawing it.
+	 */
+	TextPlacement placeText(Graphics2D g2, int x, int y, int width, int height,
+			String text, int position) {
+		Font font = FontCache.derive(g2.getFont(), Font.PLAIN, width / 15);
+		FontCache.Metrics fm = FontCache.metrics(g2, font);
+		Rectangle2D sbounds = fm.stringBounds(text);
+		float swidth = (float) sbounds.getWidth();
+		float sheight = (float) sbounds.getHeight();
 		if (swidth > width){
 			text = text.substring(0,(int)((text.length()*width)/swidth)-3) + "...";
 			swidth = fm.stringWidth(text);
@@ -200,28 +306,90 @@ import gov.nih.ncats.molwitch.Chemical;
 			default:
 				break;
 		}
-		if(!boundsOnly){
-			g2.drawString(text, (int)startingX, (int)startingY);
+		return new TextPlacement(text, font, startingX, startingY,
+				new Rectangle2D.Double(startingX, startingY-sheight, swidth, sheight));
+	}
+
+	/**
+	 * A string fitted to a box: the text, possibly shortened, the font and
+	 * baseline origin it is drawn with, and the bounds it takes up.
+	 */
+	static final class TextPlacement{
+		final String text;
+		final Font font;
+		final double x;
+		final double y;
+		final Rectangle2D.Double bounds;
+
+		TextPlacement(String text, Font font, double x, double y, Rectangle2D.Double bounds){
+			this.text = text;
+			this.font = font;
+			this.x = x;
+			this.y = y;
+			this.bounds = bounds;
 		}
-                return new Rectangle2D.Double(startingX, startingY-sheight, swidth, sheight);
 	}
 	 
 	 
+	/**
+	 * Draw the structure, and its shadow first if asked for.  Here the
+	 * shadow is a rendering of its own; a renderer that can paint the
+	 * structure again without laying it out again should override this.
+	 */
+	void renderStructure(Graphics2D g2, Chemical c, int x, int y, int width, int height, boolean shadow){
+		if(shadow)
+			renderChemicalShadow(g2,c,x,y,width,height);
+		renderChem(g2,c,x,y,width,height);
+	}
+
 	public void renderChemicalShadow(Graphics2D g2, Chemical c, int x, int y, int width, int height){
         BufferedImage tmpCanvas = new BufferedImage 
 	    (width, height, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = tmpCanvas.createGraphics();
         g.setBackground(new Color(0,0,0,0));
         g.setColor(Color.black);
-        renderChem (g, c,x,y, width, height);
-        int radius = (int)(getShadowRadius()*width + .5f);
-        BufferedImage blur = createBlur (tmpCanvas, radius, getShadowTranslucency());
-        g2.drawImage(blur, GREYOP, getShadowOffset(), getShadowOffset());
+        renderChem (g, c,0,0, width, height);
+        g.dispose();
+        drawShadow(g2, tmpCanvas, x, y, width, height);
+	}
+
+	/**
+	 * Blur the given painting of a structure into a grey shadow and draw
+	 * it offset into the given box, scaled up to fill it if the painting
+	 * is smaller.
+	 */
+	void drawShadow(Graphics2D g2, BufferedImage painted, int x, int y, int width, int height){
+		int w = painted.getWidth();
+		int h = painted.getHeight();
+		drawShadow(g2, painted, new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB), new int[w * h], x, y, width, height);
+	}
+
+	/**
+	 * Draw the shadow of the painting in the given buffers, blurring it
+	 * in them rather than in new images.
+	 */
+	void drawShadow(Graphics2D g2, ShadowBuffers buffers, int x, int y, int width, int height){
+		drawShadow(g2, buffers.mask, buffers.blur, buffers.scratch, x, y, width, height);
+	}
+
+	private void drawShadow(Graphics2D g2, BufferedImage painted, BufferedImage blur, int[] scratch, int x, int y, int width, int height){
+        int radius = (int)(getShadowRadius()*painted.getWidth() + .5f);
+        BoxBlur.blur(painted, blur, scratch, radius, 3, getShadowTranslucency());
+        greyscale(blur);
+        if(painted.getWidth() == width && painted.getHeight() == height){
+        	g2.drawImage(blur, x+getShadowOffset(), y+getShadowOffset(), null);
+        }else{
+        	//bicubic would cost more than the blur saved, on something this soft
+        	Object interpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        	g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        	g2.drawImage(blur, x+getShadowOffset(), y+getShadowOffset(), width, height, null);
+        	if(interpolation != null){
+        		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        	}
+        }
 	}
 	public void renderBackground(Graphics2D g,int x, int y,int wid,int hit,boolean round){            
        if(round){
-    	   Shape shape = new RoundRectangle2D.Double
-    	            (x, y, (double)wid, (double)hit, wid/4., hit/4.);
     	        //g.setComposite(AlphaComposite.Clear);
     	        //g.setPaint(new Color(0,0,0,0));
     	        //g.fillRect(x, y, wid, hit);
@@ -234,20 +402,43 @@ import gov.nih.ncats.molwitch.Chemical;
             //g.fill(shape);
             g.setPaint(getBackgroundColor().asColor());
             //g.setComposite(AlphaComposite.SrcAtop);
-            g.fill(shape);
+            g.fill(backgroundShape(x, y, wid, hit, true));
 	        if (this.getBorderVisible()) {
 	            g.setPaint(this.getBorderColor().asColor());
-	            g.setStroke(new BasicStroke ((float)wid/100,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND));
-	            double arc = ((float)wid)/4. - (float)wid/50;
-	            shape = new RoundRectangle2D.Double
-	                ((float)wid/100, (float)wid/100, (double)wid-(float)wid/50, (double)hit-(float)wid/50, arc, arc);
-	            g.draw(shape);
+	            g.setStroke(borderStroke(wid));
+	            g.draw(borderShape(x, y, wid, hit));
 	        }
         }else {
         		g.setPaint(getBackgroundColor().asColor());
         		g.fillRect(x, y, wid, hit);
         }
 	}
+
+	/**
+	 * The shape the background of a box fills, with rounded corners or
+	 * without.
+	 */
+	static Shape backgroundShape(int x, int y, int wid, int hit, boolean round){
+		if(!round){
+			return new Rectangle2D.Double(x, y, wid, hit);
+		}
+		return new RoundRectangle2D.Double(x, y, (double)wid, (double)hit, wid/4., hit/4.);
+	}
+
+	/**
+	 * The rounded rectangle the border of a box is drawn along, just
+	 * inside the background so the stroke isn't clipped.
+	 */
+	static Shape borderShape(int x, int y, int wid, int hit){
+		double arc = ((float)wid)/4. - (float)wid/50;
+		return new RoundRectangle2D.Double(x + (float)wid/100, y + (float)wid/100,
+				(double)wid-(float)wid/50, (double)hit-(float)wid/50, arc, arc);
+	}
+
+	static Stroke borderStroke(int wid){
+		return new BasicStroke((float)wid/100,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
+	}
+
 	public BufferedImage createImage (Chemical c, int size) {
     	return createImage (c, size, true);
     }    
@@ -264,51 +455,20 @@ import gov.nih.ncats.molwitch.Chemical;
          return img;
     }
 	
-	static private BufferedImage createBlur(BufferedImage src, int rad, float opac){
-		
-		
-    BufferedImage img = new BufferedImage
-        (src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
-    Graphics2D gf =  img.createGraphics();
-
-    BufferedImageOp blur = OperCache.get(rad);
-    if (blur == null) {
-        int fsize=(rad*2+1)*(rad*2+1);
-        int fwid=(rad*2+1);
-        float[] blurKernel= new float[fsize];
-        float dist=1/(float)fsize;
-        for(int i=0;i<fsize;i++){
-            blurKernel[i]=dist;
-        }
-
-        blur = new ConvolveOp
-            (new Kernel(fwid, fwid, blurKernel), 
-             ConvolveOp.EDGE_NO_OP, gf.getRenderingHints());
-
-        OperCache.putIfAbsent(rad, blur);
-    }
-			
-  
-    //theoretically, three box blurs are approximately
-    //one gaussian.
-    BufferedImage dst =blur.filter(
-    			blur.filter(
-    			blur.filter(src, null),
-    			null), 
-    			null);
-    
-    /* This makes the image greyscale.
-     * Very slow right now
-     * 
-     */
-
-    gf.setComposite(AlphaComposite.getInstance
-                    (AlphaComposite.SRC_OVER, opac));
-
-    gf.drawImage(dst, 0, 0, null);
-    gf.dispose();
-
-    return img;
-}
+	/**
+	 * Make an ARGB image grey in place, keeping its alpha.  Each pixel
+	 * gets the luminance of its color in linear light, stored to 8 bits
+	 * and turned back to sRGB, as converting to the linear grey color
+	 * space would give, by table lookups rather than a color conversion.
+	 */
+	static void greyscale(BufferedImage img){
+		int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		for(int i=0; i< pixels.length; i++){
+			int p = pixels[i];
+			//D50 luminance weights out of 2^14
+			int y = (3645 * LINEAR[(p >> 16) & 0xff] + 11746 * LINEAR[(p >> 8) & 0xff] + 993 * LINEAR[p & 0xff] + 8192) >>> 14;
+			pixels[i] = (p & 0xff000000) | SRGB[(y * 255 + 32767) / 65535] * 0x10101;
+		}
+	}
 	
 }
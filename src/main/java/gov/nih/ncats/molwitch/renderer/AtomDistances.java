@@ -0,0 +1,199 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.OptionalDouble;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import gov.nih.ncats.molwitch.AtomCoordinates;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Statistics of the distances between every pair of atoms, worked out
+ * from the atoms' x and y coordinates copied once into arrays.
+ */
+final class AtomDistances {
+
+	//below this many atoms the pairs are summed faster than tasks are handed out
+	private static final int PARALLEL_ATOMS = 2048;
+
+	//how sure an estimate is to be within its tolerance
+	private static final double CONFIDENCE = 0.99;
+
+	private final double[] xs;
+	private final double[] ys;
+
+	/**
+	 * The distances between the atoms of the given structure that have
+	 * coordinates.
+	 */
+	AtomDistances(Chemical c){
+		int count = c.getAtomCount();
+		double[] x = new double[count];
+		double[] y = new double[count];
+		int n = 0;
+		for(int i=0; i< count; i++){
+			AtomCoordinates coords = c.getAtom(i).getAtomCoordinates();
+			if(coords != null){
+				x[n] = coords.getX();
+				y[n] = coords.getY();
+				n++;
+			}
+		}
+		xs = n == count ? x : Arrays.copyOf(x, n);
+		ys = n == count ? y : Arrays.copyOf(y, n);
+	}
+
+	AtomDistances(double[] xs, double[] ys){
+		this.xs = xs;
+		this.ys = ys;
+	}
+
+	int size(){
+		return xs.length;
+	}
+
+	/**
+	 * The mean distance over every pair of atoms, NaN if there are fewer
+	 * than two.
+	 */
+	double average(){
+		int n = xs.length;
+		if(n < 2){
+			return Double.NaN;
+		}
+		IntStream rows = IntStream.range(0, n - 1);
+		if(n >= PARALLEL_ATOMS && Runtime.getRuntime().availableProcessors() > 1){
+			rows = rows.parallel();
+		}
+		double total = rows.mapToDouble(this::rowSum).sum();
+		return total / ((long) n * (n - 1) / 2);
+	}
+
+	//the distances from atom i to every atom after it
+	private double rowSum(int i){
+		double x = xs[i];
+		double y = ys[i];
+		double sum = 0;
+		for(int j = i + 1; j < xs.length; j++){
+			double dx = xs[j] - x;
+			double dy = ys[j] - y;
+			sum += Math.sqrt(dx * dx + dy * dy);
+		}
+		return sum;
+	}
+
+	/**
+	 * An estimate of {@link #average()} from pairs of atoms drawn at
+	 * random, enough of them that the estimate is within
+	 * {@code tolerance} times the diagonal of the atoms' bounding box of
+	 * the exact mean, 99 times in 100.
+	 *
+	 * Every distance lies between zero and that diagonal, so by
+	 * Hoeffding's inequality m samples are that close with probability at
+	 * least 1 - 2exp(-2m tolerance<sup>2</sup>); if that is as many
+	 * samples as there are pairs the exact mean is returned instead.
+	 * The pairs are drawn from a fixed seed, so the same atoms always
+	 * give the same estimate.
+	 */
+	double estimateAverage(double tolerance){
+		if(!(tolerance > 0)){
+			throw new IllegalArgumentException("tolerance must be positive");
+		}
+		int n = xs.length;
+		long pairs = (long) n * (n - 1) / 2;
+		double samples = Math.ceil(Math.log(2 / (1 - CONFIDENCE)) / (2 * tolerance * tolerance));
+		if(n < 2 || samples >= pairs){
+			return average();
+		}
+		SplittableRandom random = new SplittableRandom(n);
+		long m = (long) samples;
+		double sum = 0;
+		for(long k=0; k< m; k++){
+			int i = random.nextInt(n);
+			//a second atom drawn from the other n-1, so every pair is equally likely
+			int j = random.nextInt(n - 1);
+			if(j >= i){
+				j++;
+			}
+			double dx = xs[j] - xs[i];
+			double dy = ys[j] - ys[i];
+			sum += Math.sqrt(dx * dx + dy * dy);
+		}
+		return sum / m;
+	}
+
+	/**
+	 * The smallest distance between two atoms that are not in the same
+	 * place, if there is one.
+	 *
+	 * The atoms are swept in order along the wider side of their bounding
+	 * box, each compared only with the atoms behind it that are nearer
+	 * along that side than the closest pair so far, so a two dimensional
+	 * layout costs about n<sup>1.5</sup> comparisons rather than n<sup>2</sup>.
+	 */
+	OptionalDouble lowest(){
+		int n = xs.length;
+		double[] along = spread(xs) >= spread(ys) ? xs : ys;
+		double[] across = along == xs ? ys : xs;
+		Integer[] order = new Integer[n];
+		for(int i=0; i< n; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingDouble(i -> along[i]));
+		double[] a = new double[n];
+		double[] b = new double[n];
+		for(int i=0; i< n; i++){
+			a[i] = along[order[i]];
+			b[i] = across[order[i]];
+		}
+		double best = Double.POSITIVE_INFINITY;
+		double bestSquared = Double.POSITIVE_INFINITY;
+		for(int i=1; i< n; i++){
+			//a pair further apart than the best along either side is further
+			//apart overall, even once rounded, so the result is exact
+			for(int j = i - 1; j >= 0 && a[i] - a[j] <= best; j--){
+				double db = b[i] - b[j];
+				if(Math.abs(db) > best){
+					continue;
+				}
+				double da = a[i] - a[j];
+				double squared = da * da + db * db;
+				if(squared > 0 && squared < bestSquared){
+					bestSquared = squared;
+					best = Math.sqrt(squared);
+				}
+			}
+		}
+		return best < Double.POSITIVE_INFINITY ? OptionalDouble.of(best) : OptionalDouble.empty();
+	}
+
+	private static double spread(double[] values){
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for(double v : values){
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		return max - min;
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.image.BufferedImage;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Renders many chemicals across the threads of an executor, all with the
+ * same renderer and size.  Made by {@link ChemicalRenderer#renderAll(Iterable, int, int)}:
+ * <pre>
+ * renderer.renderAll(chemicals, 300, 300)
+ *         .setExecutor(pool)
+ *         .setMaximumLivePixels(100_000_000)
+ *         .forEach(result -&gt; write(result.getIndex(), result.getImage()));
+ * </pre>
+ *
+ * Chemicals are read lazily, a window of them at a time.  Within the
+ * window the most expensive ones, as estimated from their atom, bond and
+ * SGroup counts, are rendered first, so a large structure picked up last
+ * does not hold up the end of the batch.
+ *
+ * The images that are rendering or rendered but not yet handed to the
+ * consumer are limited to a total number of pixels.  A render that would
+ * go over waits for others to be consumed; one image larger than the
+ * whole budget still renders, alone.
+ */
+public final class BatchRender {
+
+	private final ChemicalRenderer renderer;
+	private final Iterable<Chemical> chemicals;
+	private final int width;
+	private final int height;
+
+	private boolean round;
+	private Executor executor;
+	private boolean ordered = true;
+	private long maximumLivePixels = Long.MAX_VALUE;
+	private int lookAhead = 256;
+
+	BatchRender(ChemicalRenderer renderer, Iterable<Chemical> chemicals, int width, int height) {
+		if(width <=0 || height <=0){
+			throw new IllegalArgumentException("size must be positive");
+		}
+		this.renderer = Objects.requireNonNull(renderer);
+		this.chemicals = Objects.requireNonNull(chemicals);
+		this.width = width;
+		this.height = height;
+	}
+
+	public BatchRender setRound(boolean round) {
+		this.round = round;
+		return this;
+	}
+
+	/**
+	 * @param executor the executor to render on, or null, the default, for
+	 *                 a pool with a thread per processor that lasts as long
+	 *                 as the batch.
+	 */
+	public BatchRender setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * @param ordered true, the default, to hand results to the consumer in
+	 *                the order of the chemicals; false to hand each over as
+	 *                soon as it is done.
+	 */
+	public BatchRender setOrdered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * @param pixels the most pixels of images, in flight or waiting for
+	 *               the consumer, to hold at once.  An image with a shadow
+	 *               counts three times over, for the scratch images the
+	 *               shadow is made with.
+	 */
+	public BatchRender setMaximumLivePixels(long pixels) {
+		if(pixels <=0){
+			throw new IllegalArgumentException("pixel budget must be positive");
+		}
+		this.maximumLivePixels = pixels;
+		return this;
+	}
+
+	/**
+	 * @param count the most chemicals to have read but not yet handed to
+	 *              the consumer; the window the most expensive are picked
+	 *              from.
+	 */
+	public BatchRender setLookAhead(int count) {
+		if(count <=0){
+			throw new IllegalArgumentException("look ahead must be positive");
+		}
+		this.lookAhead = count;
+		return this;
+	}
+
+	/**
+	 * Render every chemical, handing each result to the given consumer on
+	 * the calling thread.  An image counts against the pixel budget until
+	 * the consumer returns.  A chemical that fails to render is handed over
+	 * with its error and does not stop the batch.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for a
+	 *                              render; renders in flight are left to
+	 *                              finish unless the executor is the
+	 *                              batch's own.
+	 */
+	public void forEach(Consumer<? super Result> consumer) throws InterruptedException {
+		Objects.requireNonNull(consumer);
+		ExecutorService ownExecutor = null;
+		Executor exec = executor;
+		if(exec == null){
+			ownExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread t = new Thread(r, "molwitch-render");
+				t.setDaemon(true);
+				return t;
+			});
+			exec = ownExecutor;
+		}
+		try{
+			run(exec, consumer);
+		}finally{
+			if(ownExecutor != null){
+				ownExecutor.shutdownNow();
+			}
+		}
+	}
+
+	private void run(Executor exec, Consumer<? super Result> consumer) throws InterruptedException {
+		long pixelsPerImage = (long) width * height * (renderer.isShadowVisible()? 3 : 1);
+		Iterator<Chemical> source = chemicals.iterator();
+		PriorityQueue<Job> pending = new PriorityQueue<>(Job.MOST_EXPENSIVE_FIRST);
+		BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+		Map<Integer, Result> waiting = new HashMap<>();
+
+		int read = 0;
+		int nextToDeliver = 0;
+		int inFlight = 0;
+		long livePixels = 0;
+
+		while(true){
+			while(read - nextToDeliver < lookAhead && source.hasNext()){
+				Chemical c = source.next();
+				pending.add(new Job(read++, c, estimateCost(c)));
+			}
+			while(!pending.isEmpty()){
+				boolean fits = livePixels + pixelsPerImage <= maximumLivePixels;
+				Job job;
+				if(fits){
+					job = pending.poll();
+				}else if(inFlight == 0){
+					//nothing will free up pixels, so go over rather than stall,
+					//with the one the consumer waits for if results are in order
+					job = ordered ? removeIndex(pending, nextToDeliver) : pending.poll();
+				}else{
+					break;
+				}
+				livePixels += pixelsPerImage;
+				inFlight++;
+				exec.execute(() -> completed.add(job.render(renderer, width, height, round)));
+			}
+			if(inFlight == 0){
+				//everything read has been handed over
+				return;
+			}
+			Result r = completed.take();
+			inFlight--;
+			if(!ordered){
+				consumer.accept(r);
+				nextToDeliver++;
+				livePixels -= pixelsPerImage;
+				continue;
+			}
+			waiting.put(r.index, r);
+			for(Result next; (next = waiting.remove(nextToDeliver)) != null; ){
+				consumer.accept(next);
+				nextToDeliver++;
+				livePixels -= pixelsPerImage;
+			}
+		}
+	}
+
+	private static Job removeIndex(PriorityQueue<Job> pending, int index){
+		for(Iterator<Job> iter = pending.iterator(); iter.hasNext(); ){
+			Job job = iter.next();
+			if(job.index == index){
+				iter.remove();
+				return job;
+			}
+		}
+		return pending.poll();
+	}
+
+	/**
+	 * A rough relative cost of laying out and drawing a chemical.  SGroups
+	 * weigh more than atoms and bonds for the brackets and labels placed
+	 * around them.
+	 */
+	static long estimateCost(Chemical c){
+		return c.getAtomCount() + (long) c.getBondCount() + 8L * c.getSGroupCount();
+	}
+
+	private static final class Job{
+		static final Comparator<Job> MOST_EXPENSIVE_FIRST = Comparator.comparingLong((Job j) -> -j.cost)
+				.thenComparingInt(j -> j.index);
+
+		final int index;
+		final Chemical chemical;
+		final long cost;
+
+		Job(int index, Chemical chemical, long cost){
+			this.index = index;
+			this.chemical = chemical;
+			this.cost = cost;
+		}
+
+		Result render(ChemicalRenderer renderer, int width, int height, boolean round){
+			try{
+				return new Result(index, chemical, renderer.createImage(chemical, width, height, round), null);
+			}catch(Throwable t){
+				return new Result(index, chemical, null, t);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of rendering one chemical of a batch.
+	 */
+	public static final class Result{
+		private final int index;
+		private final Chemical chemical;
+		private final BufferedImage image;
+		private final Throwable error;
+
+		Result(int index, Chemical chemical, BufferedImage image, Throwable error){
+			this.index = index;
+			this.chemical = chemical;
+			this.image = image;
+			this.error = error;
+		}
+
+		/**
+		 * The position of the chemical in the batch, from 0.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public Chemical getChemical() {
+			return chemical;
+		}
+
+		/**
+		 * @return the image, or null if rendering failed.
+		 */
+		public BufferedImage getImage() {
+			return image;
+		}
+
+		/**
+		 * @return what rendering failed with, or null if it succeeded.
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.renderer.Graphics2DParent.Point2DParent;
+
+import java.util.Arrays;
+
+/**
+ * The bonds of a structure as laid out for drawing, and what drawing
+ * them needs to know of each atom, kept in parallel primitive arrays
+ * rather than as an array per bond and maps keyed by atoms and bonds.
+ *
+ * Bonds are numbered in the order they are added, and each knows the
+ * index of its bond and atoms in the structure; the atom properties are
+ * indexed by the atom's index in the structure.
+ *
+ * A thread keeps the layout it last released and gets it back from the
+ * next {@link #acquire(int, int)}, so the arrays are only grown, never
+ * allocated again, once the thread has drawn its largest structure.
+ * Layouts with room for more than {@link #MAXIMUM_SPARE_SIZE} atoms or
+ * bonds are not kept, so a pooled thread never holds on to the arrays of
+ * one huge structure.
+ */
+final class BondLayout {
+
+	/**
+	 * A double bond whose geometry is unknown, drawn crossed.
+	 */
+	static final int EITHER_DOUBLE = 1;
+	/**
+	 * A single bond with no stereo.
+	 */
+	static final int PLAIN_SINGLE = 2;
+
+	static final int MAXIMUM_SPARE_SIZE = 1024;
+
+	private static final ThreadLocal<BondLayout> SPARE = new ThreadLocal<>();
+
+	int size;
+	/**
+	 * The ends of each bond, x1, y1, x2, y2.
+	 */
+	double[] ends = new double[0];
+	/**
+	 * The point each bond's second line leans towards, x and y.
+	 */
+	double[] centers = new double[0];
+	/**
+	 * How each bond is drawn, the bond order, -1 for a centred double
+	 * bond or 5 and 6 for down and up wedges; drawing may change it.
+	 */
+	int[] type = new int[0];
+	int[] flags = new int[0];
+	double[] length = new double[0];
+	int[] bond = new int[0];
+	int[] atom1 = new int[0];
+	int[] atom2 = new int[0];
+
+	/**
+	 * Whether each atom has been given drawing properties.
+	 */
+	boolean[] placed = new boolean[0];
+	float[] radius = new float[0];
+	ARGBColor[] color = new ARGBColor[0];
+	ARGBColor[] highlightColor = new ARGBColor[0];
+	boolean[] highlight = new boolean[0];
+
+	/**
+	 * The wedge drawn for each bond of the structure, if any, by bond
+	 * index.
+	 */
+	Point2DParent[][] traps = new Point2DParent[0][];
+
+	/**
+	 * An empty layout with room for a structure of the given size,
+	 * reusing the one this thread last released if there is one.
+	 */
+	static BondLayout acquire(int atomCount, int bondCount){
+		BondLayout layout = SPARE.get();
+		if(layout == null){
+			layout = new BondLayout();
+		}else{
+			//anything laid out while this one is in use gets its own
+			SPARE.remove();
+		}
+		layout.reset(atomCount, bondCount);
+		return layout;
+	}
+
+	/**
+	 * Hand this layout back to be reused by the next structure this
+	 * thread lays out, unless it has grown too large to keep; it must
+	 * not be used after.
+	 */
+	void release(){
+		if(bond.length <= MAXIMUM_SPARE_SIZE && placed.length <= MAXIMUM_SPARE_SIZE){
+			SPARE.set(this);
+		}
+	}
+
+	private void reset(int atomCount, int bondCount){
+		size = 0;
+		if(ends.length < 4 * bondCount){
+			ends = new double[4 * bondCount];
+			centers = new double[2 * bondCount];
+			type = new int[bondCount];
+			flags = new int[bondCount];
+			length = new double[bondCount];
+			bond = new int[bondCount];
+			atom1 = new int[bondCount];
+			atom2 = new int[bondCount];
+			traps = new Point2DParent[bondCount][];
+		}else{
+			Arrays.fill(traps, 0, bondCount, null);
+		}
+		if(placed.length < atomCount){
+			placed = new boolean[atomCount];
+			radius = new float[atomCount];
+			color = new ARGBColor[atomCount];
+			highlightColor = new ARGBColor[atomCount];
+			highlight = new boolean[atomCount];
+		}else{
+			Arrays.fill(placed, 0, atomCount, false);
+		}
+	}
+
+	void addBond(int bondIndex, int atom1Index, int atom2Index, double x1, double y1, double x2, double y2,
+			int bondType, double centerX, double centerY, double bondLength, int bondFlags){
+		int k = size++;
+		ends[4 * k] = x1;
+		ends[4 * k + 1] = y1;
+		ends[4 * k + 2] = x2;
+		ends[4 * k + 3] = y2;
+		centers[2 * k] = centerX;
+		centers[2 * k + 1] = centerY;
+		type[k] = bondType;
+		flags[k] = bondFlags;
+		length[k] = bondLength;
+		bond[k] = bondIndex;
+		atom1[k] = atom1Index;
+		atom2[k] = atom2Index;
+	}
+
+	void placeAtom(int atomIndex, float atomRadius, ARGBColor atomColor, ARGBColor atomHighlightColor,
+			boolean highlighted){
+		placed[atomIndex] = true;
+		radius[atomIndex] = atomRadius;
+		color[atomIndex] = atomColor;
+		highlightColor[atomIndex] = atomHighlightColor;
+		highlight[atomIndex] = highlighted;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Repeated box blurs of an ARGB image, three of which approximate a
+ * gaussian, as the shadow is drawn with.
+ *
+ * Each blur is the same as a {@link java.awt.image.ConvolveOp} with a
+ * square (2r+1)x(2r+1) kernel of equal weights and
+ * {@link java.awt.image.ConvolveOp#EDGE_NO_OP} edges, each channel blurred
+ * on its own, but works out the average with running sums along the rows
+ * and then down the columns, so costs the same per pixel whatever the
+ * radius.  Large images are blurred a band of rows per task in parallel.
+ */
+final class BoxBlur {
+
+	//below this many pixels a blur takes less time than handing out tasks
+	private static final int PARALLEL_PIXELS = 256 * 256;
+	private static final int BAND_ROWS = 64;
+
+	private BoxBlur(){
+		//can not instantiate
+	}
+
+	/**
+	 * Blur the given image the given number of times.
+	 *
+	 * @param opacity what to multiply the blurred alpha by.
+	 *
+	 * @return a new image of the same size.
+	 */
+	static BufferedImage blur(BufferedImage src, int radius, int passes, float opacity){
+		int w = src.getWidth();
+		int h = src.getHeight();
+		BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		blur(src, dst, new int[w * h], radius, passes, opacity);
+		return dst;
+	}
+
+	/**
+	 * Blur the given image the given number of times into another.
+	 *
+	 * @param dst an ARGB image of the same size, every pixel of which is
+	 *            written.
+	 * @param scratch room for a pass over every pixel, which is written.
+	 */
+	static void blur(BufferedImage src, BufferedImage dst, int[] scratch, int radius, int passes, float opacity){
+		int w = src.getWidth();
+		int h = src.getHeight();
+		int[] out = pixels(dst);
+		int[] in;
+		if(src.getType() == BufferedImage.TYPE_INT_ARGB){
+			in = pixels(src);
+		}else{
+			Graphics2D g = dst.createGraphics();
+			g.drawImage(src, 0, 0, null);
+			g.dispose();
+			in = out.clone();
+		}
+		boolean parallel = (long) w * h >= PARALLEL_PIXELS && Runtime.getRuntime().availableProcessors() > 1;
+		//ping-pong between the output and the scratch array, ending in the output
+		int[] from = in;
+		for(int p=0; p< passes; p++){
+			int[] to = (passes - p) % 2 == 1 ? out : scratch;
+			pass(from, to, w, h, radius, parallel);
+			from = to;
+		}
+		if(passes == 0){
+			System.arraycopy(in, 0, out, 0, w * h);
+		}
+		if(opacity != 1){
+			for(int i=0; i< out.length; i++){
+				int a = (int) ((out[i] >>> 24) * opacity + .5f);
+				out[i] = a << 24 | (out[i] & 0xffffff);
+			}
+		}
+	}
+
+	private static int[] pixels(BufferedImage img){
+		return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * One box blur of the given radius from one array of pixels to
+	 * another; pixels closer than the radius to an edge are copied.
+	 */
+	static void pass(int[] src, int[] dst, int w, int h, int r, boolean parallel){
+		if(r <= 0 || w < 2 * r + 1 || h < 2 * r + 1){
+			System.arraycopy(src, 0, dst, 0, w * h);
+			return;
+		}
+		System.arraycopy(src, 0, dst, 0, r * w);
+		System.arraycopy(src, (h - r) * w, dst, (h - r) * w, r * w);
+		int rows = h - 2 * r;
+		int bands = (rows + BAND_ROWS - 1) / BAND_ROWS;
+		IntStream work = IntStream.range(0, bands);
+		if(parallel){
+			work = work.parallel();
+		}
+		work.forEach(b -> band(src, dst, w, r, r + b * BAND_ROWS, Math.min(h - r, r + (b + 1) * BAND_ROWS)));
+	}
+
+	/**
+	 * Blur rows y0 to y1, exclusive, keeping a running sum of the
+	 * horizontal sums of the rows above and below each column.
+	 */
+	private static void band(int[] src, int[] dst, int w, int r, int y0, int y1){
+		int area = (2 * r + 1) * (2 * r + 1);
+		//dividing a sum of at most 255 * area by multiplying by 2^40 / area,
+		//rounded up, and shifting back is exact while 255 * area^2 < 2^40
+		long reciprocal = 255L * area * area < 1L << 40 ? ((1L << 40) + area - 1) / area : 0;
+		int n = w - 2 * r;
+		//channels interleaved a, r, g, b for each column away from the edges
+		int[] sums = new int[4 * n];
+		int[] row = new int[4 * n];
+		for(int y = y0 - r; y <= y0 + r; y++){
+			horizontal(src, w, r, y, row);
+			for(int i=0; i< sums.length; i++){
+				sums[i] += row[i];
+			}
+		}
+		for(int y = y0; ; y++){
+			int o = y * w;
+			System.arraycopy(src, o, dst, o, r);
+			//truncated, as the convolution's averages are
+			if(reciprocal != 0){
+				for(int i=0, j=0, x = o + r; i< n; i++, j+=4, x++){
+					dst[x] = (int) (sums[j] * reciprocal >>> 40) << 24
+							| (int) (sums[j+1] * reciprocal >>> 40) << 16
+							| (int) (sums[j+2] * reciprocal >>> 40) << 8
+							| (int) (sums[j+3] * reciprocal >>> 40);
+				}
+			}else{
+				for(int i=0, j=0, x = o + r; i< n; i++, j+=4, x++){
+					dst[x] = sums[j] / area << 24
+							| sums[j+1] / area << 16
+							| sums[j+2] / area << 8
+							| sums[j+3] / area;
+				}
+			}
+			System.arraycopy(src, o + w - r, dst, o + w - r, r);
+			if(y + 1 == y1){
+				return;
+			}
+			//the row leaving the window is summed again rather than kept
+			horizontal(src, w, r, y + r + 1, row);
+			for(int i=0; i< sums.length; i++){
+				sums[i] += row[i];
+			}
+			horizontal(src, w, r, y - r, row);
+			for(int i=0; i< sums.length; i++){
+				sums[i] -= row[i];
+			}
+		}
+	}
+
+	/**
+	 * The sums of each channel over the 2r+1 pixels of row y centred on
+	 * each column away from the edges.
+	 */
+	private static void horizontal(int[] src, int w, int r, int y, int[] row){
+		int o = y * w;
+		int a = 0, red = 0, green = 0, blue = 0;
+		for(int x = o; x <= o + 2 * r; x++){
+			int p = src[x];
+			a += p >>> 24;
+			red += (p >> 16) & 0xff;
+			green += (p >> 8) & 0xff;
+			blue += p & 0xff;
+		}
+		row[0] = a;
+		row[1] = red;
+		row[2] = green;
+		row[3] = blue;
+		int n = w - 2 * r;
+		for(int i=1, j=4; i< n; i++, j+=4){
+			int in = src[o + 2 * r + i];
+			int out = src[o + i - 1];
+			a += (in >>> 24) - (out >>> 24);
+			red += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+			green += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+			blue += (in & 0xff) - (out & 0xff);
+			row[j] = a;
+			row[j+1] = red;
+			row[j+2] = green;
+			row[j+3] = blue;
+		}
+	}
+}
@@ -20,19 +20,61 @@ package gov.nih.ncats.molwitch.renderer;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.*;
 import gov.nih.ncats.molwitch.Atom;
 import gov.nih.ncats.molwitch.Bond;
 import gov.nih.ncats.molwitch.Chemical;
 
+/**
+ * Draws chemical structures.
+ *
+ * A renderer is thread safe: once configured, one instance can be shared
+ * by any number of threads rendering at the same time, with no need to
+ * {@link #copy()} it per thread or per request.  Rendering never changes
+ * the renderer or its {@link RendererOptions}, and everything a render
+ * needs beyond its settings lives on the rendering thread.  Settings can
+ * also be changed while renders are in flight: each change is safely
+ * published and renders that start afterwards see it, but a change made
+ * during a render may or may not apply to it, so that render can mix
+ * old and new settings.  Such a layout is never put in a
+ * {@link DisplayListCache}.
+ *
+ * The {@link Chemical}s passed in are only read, but are not themselves
+ * safe to read from several threads at once, so don't render the same
+ * chemical object concurrently.
+ */
 public class ChemicalRenderer {
+	//only measured with, never painted, so one image serves every thread
+	private static final BufferedImage METRICS = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+	//the font render context text is laid out with while painting
+	static final FontRenderContext VECTOR_FRC;
+	static {
+		//also sets up the image's surface now rather than racing to on first use
+		Graphics2D g2 = METRICS.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		VECTOR_FRC = g2.getFontRenderContext();
+		g2.dispose();
+	}
+	private static final ARGBColor CAPTION_COLOR = new ARGBColor(Color.black);
+
     @JsonIgnore
 	private final NchemicalRenderer renderer;
 	
@@ -52,10 +94,57 @@ public class ChemicalRenderer {
 		ChemicalRenderer copy = new ChemicalRenderer(renderer.getOptions().copy());
 		copy.setBorderVisible(renderer.getBorderVisible());
 		copy.setShadowVisible(renderer.getShadowVisible());
+		copy.setShadowResolution(renderer.getShadowResolution());
 		copy.setBackgroundColor(renderer.getBackgroundColor().asColor());
 		copy.setBorderColor(renderer.getBorderColor().asColor());
+		copy.setDisplayListCache(renderer.getDisplayListCache());
+		copy.setRenderMetricsListener(renderer.getRenderMetricsListener());
 		return copy;
 	}
+
+	/**
+	 * Keep the layout of every structure rendered in the given cache, so
+	 * rendering the same structure again, at any size, only has to paint
+	 * it.  The cache may be shared with other renderers.  Layouts made
+	 * with this renderer's options are dropped from it when they change.
+	 *
+	 * @param cache the cache to use, or null for none.
+	 */
+	@JsonIgnore
+	public ChemicalRenderer setDisplayListCache(DisplayListCache cache) {
+		renderer.setDisplayListCache(cache);
+		return this;
+	}
+	@JsonIgnore
+	public DisplayListCache getDisplayListCache() {
+		return renderer.getDisplayListCache();
+	}
+
+	/**
+	 * Tell the given listener how long each phase of every render took
+	 * and how much work it did.  Without a listener nothing is measured.
+	 *
+	 * @param listener the listener to tell, or null for none.
+	 */
+	@JsonIgnore
+	public ChemicalRenderer setRenderMetricsListener(RenderMetricsListener listener) {
+		renderer.setRenderMetricsListener(listener);
+		return this;
+	}
+	@JsonIgnore
+	public RenderMetricsListener getRenderMetricsListener() {
+		return renderer.getRenderMetricsListener();
+	}
+
+	/**
+	 * Write everything besides the structure itself that determines how an
+	 * image of the given chemical comes out.
+	 */
+	void writeStyle(DataOutput out, Chemical c) throws IOException {
+		renderer.writeStyle(out, c);
+		out.writeUTF(getOptions().captionTop(c).orElse(""));
+		out.writeUTF(getOptions().captionBottom(c).orElse(""));
+	}
     @JsonIgnore
     public ARGBColor getBackgroundColor(){
 	    return renderer.getBackgroundColor();
@@ -107,6 +196,23 @@ public class ChemicalRenderer {
 		this.renderer.setShadowVisible(visible);
 		return this;
 	}
+	/**
+	 * Draw and blur the shadow at a fraction of the image's resolution,
+	 * then scale it up.  The shadow is blurred anyway, so half resolution
+	 * looks much the same for a quarter of the work.
+	 *
+	 * @param resolution from 1, the default, down to any positive
+	 *                   fraction.
+	 */
+	@JsonIgnore
+	public ChemicalRenderer setShadowResolution(float resolution) {
+		this.renderer.setShadowResolution(resolution);
+		return this;
+	}
+	@JsonIgnore
+	public float getShadowResolution() {
+		return renderer.getShadowResolution();
+	}
     @JsonGetter("add-border")
     public boolean isBorderVisible(){
         return renderer.getShadowVisible();
@@ -123,10 +229,22 @@ public class ChemicalRenderer {
 		render(g2d, Chemical.parseMol(inputMol), x,y, width, height, round);
 	}
 	public void render(Graphics2D g2d, Chemical c, int x, int y, int width, int height, boolean round) {
-		
+		RenderMetrics metrics = RenderMetrics.begin(renderer, c, width, height);
+		try{
+			renderWithCaptions(g2d, c, x, y, width, height, round, metrics);
+		}finally{
+			if(metrics != null){
+				metrics.finish();
+			}
+		}
+	}
+
+	private void renderWithCaptions(Graphics2D g2d, Chemical c, int x, int y, int width, int height, boolean round,
+			RenderMetrics metrics) {
+		long start = RenderMetrics.start(metrics);
 		//the offsets on the bounds rectangle needed to draw the captions
 		double ddy=0; //expect positive
-		double ddh=0; //expect negative
+		double ddh=0; //expect positive
 		Optional<String> capTop = getOptions().captionTop(c);
 		Optional<String> capBottom = getOptions().captionBottom(c);
 		
@@ -135,25 +253,158 @@ public class ChemicalRenderer {
 			Rectangle2D.Double boundstop = renderer.drawText(g2d,x,y,width,height,capTop.get(),0, true); // 1 is bottom, 0 is top
 			//the y-coordinate must be moved down by 
 			//the top gap amount
-			ddy = ((y)-boundstop.getMaxY());
+			ddy = (boundstop.getMaxY()-(y));
 			//the height must be decreased by the same amount
 			ddh += ddy;
 		}
 		if(capBottom.isPresent()){
 			Rectangle2D.Double boundsBot = renderer.drawText(g2d,x,y,width,height,capBottom.get(),1, true); // 1 is bottom, 0 is top
 			//the height must be decreased by the bottom gap amount
-			ddh = ((y+height)-boundsBot.getMinY());
+			ddh += ((y+height)-boundsBot.getMinY());
 		}
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.CAPTIONS, start);
 		//then draw
 		renderer.renderChem (g2d, c, x, (int) ( y+ddy), width, (int)(height-ddh), round);
 		
 		//then draw captions
+		start = RenderMetrics.start(metrics);
 		if(capTop.isPresent()){
 			renderer.drawText(g2d,x,y,width,height,capTop.get(),0, false); // 1 is bottom, 0 is top
 		}
 		if(capBottom.isPresent()){
 			renderer.drawText(g2d,x,y,width,height,capBottom.get(),1, false); // 1 is bottom, 0 is top
 		}
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.CAPTIONS, start);
+	}
+	/**
+	 * Lay out the given structure to fill a box of the given size,
+	 * without painting it.  The result can be replayed into any
+	 * {@link Graphics2D}, at any position and size, as many times as
+	 * needed.  Captions, shadow, border and background are not part of
+	 * the layout.
+	 *
+	 * @return the display list; empty if there is nothing to draw.
+	 */
+	public DisplayList layout(Chemical c, int width, int height) {
+		Graphics2D g2 = METRICS.createGraphics();
+		try {
+			return renderer.layout(g2, c, width, height);
+		}finally {
+			g2.dispose();
+		}
+	}
+	/**
+	 * Draw the given structure, with its background, shadow and captions,
+	 * as an SVG document of the given size.  Nothing is rasterised: bonds
+	 * and shapes become paths and labels become glyph outlines, each
+	 * distinct glyph written once and referenced wherever it is used.
+	 *
+	 * @see #writeSvg(Chemical, int, int, boolean, Writer)
+	 */
+	public String createSvg(Chemical c, int width, int height, boolean round) {
+		StringWriter out = new StringWriter();
+		try {
+			writeSvg(c, width, height, round, out);
+		} catch (IOException e) {
+			//a StringWriter doesn't throw
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+	/**
+	 * Write the given structure as an SVG document to the given writer,
+	 * which is neither flushed nor closed.
+	 *
+	 * @see #createSvg(Chemical, int, int, boolean)
+	 */
+	public void writeSvg(Chemical c, int width, int height, boolean round, Writer out) throws IOException {
+		SvgWriter svg = new SvgWriter(width, height, VECTOR_FRC);
+		renderVector(svg, c, 0, 0, width, height, round);
+		svg.writeTo(out);
+	}
+	/**
+	 * Start a PDF document of structures, written to the given stream as
+	 * each page is finished.  The stream is closed with the returned
+	 * writer.
+	 *
+	 * @see PdfWriter
+	 */
+	public PdfWriter writePdf(OutputStream out) throws IOException {
+		return new PdfWriter(this, out);
+	}
+	/**
+	 * Draw the given structure, with its background, shadow and captions,
+	 * onto a vector canvas, by the same steps and with the same font
+	 * metrics as {@link #render(Graphics2D, Chemical, int, int, int, int, boolean)}.
+	 */
+	void renderVector(VectorCanvas canvas, Chemical c, int x, int y, int width, int height, boolean round) {
+		RenderMetrics metrics = RenderMetrics.begin(renderer, c, width, height);
+		Graphics2D g2 = METRICS.createGraphics();
+		try {
+			long start = RenderMetrics.start(metrics);
+			double ddy=0;
+			double ddh=0;
+			Optional<String> capTop = getOptions().captionTop(c);
+			Optional<String> capBottom = getOptions().captionBottom(c);
+			if(capTop.isPresent()){
+				ddy = renderer.drawText(g2,x,y,width,height,capTop.get(),0, true).getMaxY()-y;
+				ddh += ddy;
+			}
+			if(capBottom.isPresent()){
+				ddh += (y+height)-renderer.drawText(g2,x,y,width,height,capBottom.get(),1, true).getMinY();
+			}
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.CAPTIONS, start);
+			//as set by renderChem before painting
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			renderer.renderChemVector(canvas, g2, c, x, (int) (y+ddy), width, (int)(height-ddh), round);
+
+			start = RenderMetrics.start(metrics);
+
+			if(capTop.isPresent()){
+				AbstractChemicalRenderer.TextPlacement placed = renderer.placeText(g2,x,y,width,height,capTop.get(),0);
+				canvas.text(placed.text, placed.font, (int) placed.x, (int) placed.y, CAPTION_COLOR);
+			}
+			if(capBottom.isPresent()){
+				AbstractChemicalRenderer.TextPlacement placed = renderer.placeText(g2,x,y,width,height,capBottom.get(),1);
+				canvas.text(placed.text, placed.font, (int) placed.x, (int) placed.y, CAPTION_COLOR);
+			}
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.CAPTIONS, start);
+		}finally {
+			g2.dispose();
+			if(metrics != null){
+				metrics.finish();
+			}
+		}
+	}
+	/**
+	 * Render the given chemicals across many threads, each to an image of
+	 * the given size.  Nothing is rendered until the returned batch is run
+	 * with {@link BatchRender#forEach(java.util.function.Consumer)}.
+	 */
+	public BatchRender renderAll(Iterable<Chemical> chemicals, int width, int height) {
+		return new BatchRender(this, chemicals, width, height);
+	}
+	/**
+	 * Render the given chemicals across many threads; the stream is read
+	 * lazily, as the batch runs.
+	 *
+	 * @see #renderAll(Iterable, int, int)
+	 */
+	public BatchRender renderAll(Stream<Chemical> chemicals, int width, int height) {
+		return new BatchRender(this, chemicals::iterator, width, height);
+	}
+	/**
+	 * Render the given chemicals into the cells of a grid on one image,
+	 * filled row by row.  Nothing is rendered until
+	 * {@link GridRender#createImage()} is called.
+	 *
+	 * @param columns the number of cells across.
+	 * @param cellWidth the width of each cell, padding included.
+	 * @param cellHeight the height of each cell, padding included.
+	 */
+	public GridRender renderGrid(List<Chemical> chemicals, int columns, int cellWidth, int cellHeight) {
+		return new GridRender(this, chemicals, columns, cellWidth, cellHeight);
 	}
 	public BufferedImage createImage (String inputMol, int size) throws IOException{
 		return createImage (Chemical.parse(inputMol), size, size, true);
@@ -257,45 +508,36 @@ public class ChemicalRenderer {
     } 
 
 
+	/**
+	 * The mean distance between every pair of atoms, NaN if there are
+	 * fewer than two.  Large structures are summed in parallel.
+	 */
 	public static double computeAverageInterAtomDistance(Chemical c){
-		int totalDistances = 0;
-		double totalDistance =0.0d;
-		for(int i=0; i<c.getAtomCount();i++){
-			for(int j=i+1; j<c.getAtomCount();j++){
-				double firstAtomX= c.getAtom(i).getAtomCoordinates().getX();
-				double firstAtomY= c.getAtom(i).getAtomCoordinates().getY();
-				double secondAtomX= c.getAtom(j).getAtomCoordinates().getX();
-				double secondAtomY= c.getAtom(j).getAtomCoordinates().getY();
+		return new AtomDistances(c).average();
+	}
 
-				double distance = Math.sqrt(Math.pow( (secondAtomX-firstAtomX), 2) + Math.pow((secondAtomY-firstAtomY),2));
-				//System.out.printf("atom 1: %d; atom 2: %d; distance: %f\n", c.getAtom(i).getAtomicNumber(), c.getAtom(j).getAtomicNumber(), distance);
-				totalDistance+= distance;
-				totalDistances++;
-			}
-		}
-		return totalDistance/totalDistances;
+	/**
+	 * An estimate of {@link #computeAverageInterAtomDistance(Chemical)}
+	 * from a sample of the pairs of atoms, for structures too large to
+	 * sum every pair of.  The estimate is within {@code tolerance} times
+	 * the diagonal of the atoms' bounding box of the exact mean with 99%
+	 * probability; a tolerance of 0.01 samples about 26,500 pairs, however
+	 * many atoms there are.  When that is as many pairs as there are, the
+	 * exact mean is returned.
+	 *
+	 * @throws IllegalArgumentException if the tolerance is not positive.
+	 */
+	public static double estimateAverageInterAtomDistance(Chemical c, double tolerance){
+		return new AtomDistances(c).estimateAverage(tolerance);
 	}
 
+	/**
+	 * The smallest distance between two atoms that are not in the same
+	 * place; empty if there are fewer than two atoms or they all are.
+	 */
 	public static Optional<Double> computeLowestInterAtomDistance(Chemical c){
-		Double lowest =null;
-		for(int i=0; i<c.getAtomCount();i++){
-			for(int j=i+1; j<c.getAtomCount();j++){
-				double firstAtomX= c.getAtom(i).getAtomCoordinates().getX();
-				double firstAtomY= c.getAtom(i).getAtomCoordinates().getY();
-				double secondAtomX= c.getAtom(j).getAtomCoordinates().getX();
-				double secondAtomY= c.getAtom(j).getAtomCoordinates().getY();
-
-				double distance = Math.sqrt(Math.pow( (secondAtomX-firstAtomX), 2) + Math.pow((secondAtomY-firstAtomY),2));
-				/*System.out.printf("atom 1: %d x: %f, y: %f; atom 2: %d x: %f, y: %f; distance: %f\n",
-						c.getAtom(i).getAtomicNumber(), c.getAtom(i).getAtomCoordinates().getX(), c.getAtom(i).getAtomCoordinates().getY(),
-						c.getAtom(j).getAtomicNumber(), c.getAtom(j).getAtomCoordinates().getX(), c.getAtom(j).getAtomCoordinates().getY(),
-						distance);*/
-				if( distance > 0 && (lowest==null || distance< lowest)) {
-					lowest = distance;
-				}
-			}
-		}
-		return lowest>0 ? Optional.of(lowest) : Optional.empty();
+		OptionalDouble lowest = new AtomDistances(c).lowest();
+		return lowest.isPresent() ? Optional.of(lowest.getAsDouble()) : Optional.empty();
 	}
 
 	public static Optional<Double> computeAverageBondLength(Chemical c) {
@@ -23,8 +23,14 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonValue;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
+/**
+ * The colors atoms, stereo labels and highlights are drawn in.  A palette
+ * can be changed while renders on other threads read it.
+ */
 public class ColorPalette {
 
     private static ARGBColor STEREO_COLOR_UNKNOWN = new ARGBColor(255, 0, 0, 255);
@@ -62,20 +68,20 @@ public class ColorPalette {
     }
 
 
-    private Map<String, ARGBColor> atomColors;
+    private final Map<String, ARGBColor> atomColors;
 
-    private ARGBColor stereoColorKnown;
-    private ARGBColor stereoColorUnknown;
+    private volatile ARGBColor stereoColorKnown;
+    private volatile ARGBColor stereoColorUnknown;
 
-    private List<ARGBColor> highlightColors;
+    private volatile List<ARGBColor> highlightColors;
 
     public ColorPalette(){
-        atomColors= new HashMap<>(DEFAULT_ATOM_COLORS);
+        atomColors= new ConcurrentHashMap<>(DEFAULT_ATOM_COLORS);
 
         stereoColorKnown = STEREO_COLOR_KNOWN;
         stereoColorUnknown=STEREO_COLOR_UNKNOWN;
 
-        highlightColors = new ArrayList<>(DEFAULT_HIGHLIGHT_COLORS);
+        highlightColors = new CopyOnWriteArrayList<>(DEFAULT_HIGHLIGHT_COLORS);
     }
 
     @JsonCreator
@@ -97,7 +103,7 @@ public class ColorPalette {
         if(map.containsKey("highlightColors")){
             palette.highlightColors = ((List<String>) map.get("highlightColors")).stream()
                                         .map(v-> new ARGBColor(v))
-                                        .collect(Collectors.toList());
+                                        .collect(Collectors.toCollection(CopyOnWriteArrayList::new));
         }
         return palette;
     }
@@ -125,10 +131,10 @@ public class ColorPalette {
     }
 
     private ColorPalette(ColorPalette copy){
-        this.atomColors = new HashMap<>(copy.atomColors);
+        this.atomColors = new ConcurrentHashMap<>(copy.atomColors);
         this.stereoColorUnknown = copy.stereoColorUnknown;
         this.stereoColorKnown = copy.stereoColorKnown;
-        this.highlightColors = new ArrayList<>(copy.highlightColors);
+        this.highlightColors = new CopyOnWriteArrayList<>(copy.highlightColors);
     }
 
     public ColorPalette copy(){
@@ -140,7 +146,7 @@ public class ColorPalette {
         if(nullColor.isPresent()) {
             throw new NullPointerException("color list can not contain nulls");
         }
-        highlightColors = new ArrayList<>(colors);
+        highlightColors = new CopyOnWriteArrayList<>(colors);
     }
     public void addHighlightColor(int offset, ARGBColor color) {
         highlightColors.add(offset, Objects.requireNonNull(color));
@@ -156,7 +162,7 @@ public class ColorPalette {
         return highlightColors.size();
     }
     public ARGBColor getAtomColor(String symbol){
-        ARGBColor color = atomColors.get(symbol);
+        ARGBColor color = symbol==null? null : atomColors.get(symbol);
         if(color !=null){
             return color;
         }
@@ -0,0 +1,565 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.BasicStroke;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, retained rendering of one structure: the bond lines,
+ * wedges, dashes, halos, atom labels and brackets the renderer would
+ * paint, in paint order.
+ *
+ * Coordinates are pixels within the width x height box the list was laid
+ * out for, with its origin at 0,0.  A display list can be replayed into
+ * any {@link Graphics2D} at any position and size; at the size it was laid
+ * out for it paints exactly what the renderer paints, at any other size
+ * the whole drawing, including stroke widths and fonts, is scaled to fit.
+ *
+ * @see ChemicalRenderer#layout(gov.nih.ncats.molwitch.Chemical, int, int)
+ */
+public final class DisplayList {
+
+	public enum PrimitiveType{
+		BOND_LINE,
+		BOND_HALO,
+		DASH_SEGMENT,
+		WEDGE,
+		HALO,
+		ATOM_DISC,
+		GLYPH_RUN,
+		BRACKET
+	}
+
+	/**
+	 * The range of scales over which a layout is simply replayed scaled;
+	 * outside of it the structure should be laid out again at the new size.
+	 */
+	static final double MIN_REPLAY_SCALE = 0.5;
+	static final double MAX_REPLAY_SCALE = 2;
+
+	private static final DisplayList EMPTY = new DisplayList(Collections.emptyList(), null, 0, 0);
+
+	private final List<Primitive> primitives;
+	private final Rectangle2D bounds;
+	private final int width;
+	private final int height;
+
+	private DisplayList(List<Primitive> primitives, Rectangle2D bounds, int width, int height){
+		this.primitives = primitives;
+		this.bounds = bounds;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * A display list that paints nothing.
+	 */
+	public static DisplayList empty(){
+		return EMPTY;
+	}
+
+	public List<Primitive> getPrimitives(){
+		return primitives;
+	}
+
+	public boolean isEmpty(){
+		return primitives.isEmpty();
+	}
+
+	/**
+	 * A rough count of the bytes this list holds on the heap, used to
+	 * weigh it in a {@link DisplayListCache}.
+	 */
+	long estimatedSize(){
+		long size = 64 + 16L * primitives.size();
+		for(Primitive p : primitives){
+			size += p.estimatedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * The width of the box this list was laid out for.
+	 */
+	public int getWidth(){
+		return width;
+	}
+
+	/**
+	 * The height of the box this list was laid out for.
+	 */
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * The bounds of everything in this list, or null if it is empty.
+	 */
+	public Rectangle2D getBounds(){
+		return bounds==null? null : (Rectangle2D) bounds.clone();
+	}
+
+	/**
+	 * Paint this display list into the given box.
+	 *
+	 * @param g2 the graphics to paint into; its stroke, color and font are
+	 *           changed.
+	 */
+	public void replay(Graphics2D g2, int x, int y, int width, int height){
+		if(bounds==null){
+			return;
+		}
+		double scale;
+		AffineTransform af = new AffineTransform();
+		if(width == this.width && height == this.height){
+			scale = 1;
+			af.translate(x, y);
+		}else{
+			af = computeFitTransform(bounds, width, height);
+			af.preConcatenate(AffineTransform.getTranslateInstance(x, y));
+			scale = af.getScaleX();
+		}
+		replay(g2, af, scale);
+	}
+
+	/**
+	 * Whether replaying into a box of the given size keeps close enough
+	 * to the layout scale that text placed with the layout's font metrics
+	 * still lines up.
+	 */
+	boolean isReplayableAt(int width, int height){
+		if(bounds == null || (width == this.width && height == this.height)){
+			return true;
+		}
+		double scale = computeFitTransform(bounds, width, height).getScaleX();
+		return scale >= MIN_REPLAY_SCALE && scale <= MAX_REPLAY_SCALE;
+	}
+
+	/**
+	 * Paint every primitive mapped through the given transform, which is
+	 * expected to be a uniform scale plus a translation.  Stroke widths
+	 * are multiplied by the given stroke scale.
+	 */
+	void replay(Graphics2D g2, AffineTransform af, double strokeScale){
+		double scale = Math.sqrt(Math.abs(af.getDeterminant()));
+		Replay replay = new Replay(strokeScale);
+		for(Primitive p : primitives){
+			p.paint(g2, af, scale, replay);
+		}
+	}
+
+	/**
+	 * What one replay reuses from primitive to primitive, so painting a
+	 * list makes next to no garbage: a line and a point buffer to map
+	 * coordinates into, and the last stroke scaled along with what it was
+	 * scaled from, as consecutive primitives almost always share one.
+	 */
+	private static final class Replay{
+		private final double strokeScale;
+		private final Line2D.Double line = new Line2D.Double();
+		private double[] points = new double[4];
+		private Stroke lastStroke;
+		private Stroke lastScaled;
+
+		Replay(double strokeScale){
+			this.strokeScale = strokeScale;
+		}
+
+		Stroke scaled(Stroke stroke){
+			if(stroke != lastStroke){
+				lastStroke = stroke;
+				lastScaled = scale(stroke, strokeScale);
+			}
+			return lastScaled;
+		}
+
+		double[] points(int length){
+			if(points.length < length){
+				points = new double[length];
+			}
+			return points;
+		}
+	}
+
+	/**
+	 * The transform that centers the given bounds in a box of the given
+	 * size, scaled to fill it less a one pixel padding.
+	 */
+	static AffineTransform computeFitTransform(Rectangle2D bounds, int width, int height){
+		double paddingX=1;
+		double paddingY=1;
+
+		double xmin = bounds.getMinX();
+		double xmax = bounds.getMaxX();
+		double ymin = bounds.getMinY();
+		double ymax = bounds.getMaxY();
+		double centerx = (xmax+xmin)/2;
+		double centery = (ymax+ymin)/2;
+		double ssy = (height-2*paddingY)/(ymax-ymin);
+		double ssx = (width-2*paddingX)/(xmax-xmin);
+		double scale = Math.min(ssx,ssy);
+		double bx = (width*0.5)-scale*(centerx);
+		double by = (height*0.5)-scale*(centery);
+
+		AffineTransform af = new AffineTransform();
+		af.translate(bx, by);
+		af.scale(scale, scale);
+		return af;
+	}
+
+	private static Stroke scale(Stroke stroke, double strokeScale){
+		if(strokeScale == 1 || !(stroke instanceof BasicStroke)){
+			return stroke;
+		}
+		BasicStroke bs = (BasicStroke) stroke;
+		float k = (float) strokeScale;
+		float[] dash = bs.getDashArray();
+		if(dash !=null){
+			for(int i=0; i< dash.length; i++){
+				dash[i] *= k;
+			}
+		}
+		return new BasicStroke(bs.getLineWidth()*k, bs.getEndCap(), bs.getLineJoin(), bs.getMiterLimit(),
+				dash, bs.getDashPhase()*k);
+	}
+
+	private static Shape transform(Shape s, AffineTransform af){
+		if(s instanceof Ellipse2D){
+			Ellipse2D e = (Ellipse2D) s;
+			double[] pts = new double[] { e.getMinX(), e.getMinY(), e.getMaxX(), e.getMaxY() };
+			af.transform(pts, 0, pts, 0, 2);
+			return new Ellipse2D.Double(Math.min(pts[0], pts[2]), Math.min(pts[1], pts[3]),
+					Math.abs(pts[2] - pts[0]), Math.abs(pts[3] - pts[1]));
+		}
+		return af.createTransformedShape(s);
+	}
+
+	/**
+	 * One painted element of a display list.
+	 */
+	public abstract static class Primitive{
+		private final PrimitiveType type;
+		private final ARGBColor color;
+
+		Primitive(PrimitiveType type, ARGBColor color){
+			this.type = type;
+			this.color = color;
+		}
+
+		public PrimitiveType getType(){
+			return type;
+		}
+
+		public ARGBColor getColor(){
+			return color;
+		}
+
+		/**
+		 * This primitive mapped through the given transform.
+		 *
+		 * @param pts scratch space for mapping points, four long.
+		 */
+		abstract Primitive transform(AffineTransform af, double scale, double[] pts);
+
+		abstract long estimatedSize();
+
+		abstract void paint(Graphics2D g2, AffineTransform af, double scale, Replay replay);
+	}
+
+	/**
+	 * A single stroked line: part of a bond, a bond halo, or one
+	 * hash of a dashed stereo bond.
+	 */
+	public static final class StrokedLine extends Primitive{
+		private final double x1;
+		private final double y1;
+		private final double x2;
+		private final double y2;
+		private final Stroke stroke;
+
+		StrokedLine(PrimitiveType type, double x1, double y1, double x2, double y2, Stroke stroke, ARGBColor color){
+			super(type, color);
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+			this.stroke = stroke;
+		}
+
+		public Line2D getLine(){
+			return new Line2D.Double(x1, y1, x2, y2);
+		}
+
+		public Stroke getStroke(){
+			return stroke;
+		}
+
+		@Override
+		Primitive transform(AffineTransform af, double scale, double[] pts) {
+			pts[0] = x1;
+			pts[1] = y1;
+			pts[2] = x2;
+			pts[3] = y2;
+			af.transform(pts, 0, pts, 0, 2);
+			return new StrokedLine(getType(), pts[0], pts[1], pts[2], pts[3], stroke, getColor());
+		}
+
+		@Override
+		long estimatedSize() {
+			return 56;
+		}
+
+		@Override
+		void paint(Graphics2D g2, AffineTransform af, double scale, Replay replay) {
+			g2.setStroke(replay.scaled(stroke));
+			g2.setColor(getColor().asColor());
+			double[] pts = replay.points(4);
+			pts[0] = x1;
+			pts[1] = y1;
+			pts[2] = x2;
+			pts[3] = y2;
+			af.transform(pts, 0, pts, 0, 2);
+			replay.line.setLine(pts[0], pts[1], pts[2], pts[3]);
+			g2.draw(replay.line);
+		}
+	}
+
+	/**
+	 * A filled outline: a wedge trapezoid, a highlight halo or an atom
+	 * disc.
+	 */
+	public static final class FilledShape extends Primitive{
+		private final Shape shape;
+
+		FilledShape(PrimitiveType type, Shape shape, ARGBColor color){
+			super(type, color);
+			this.shape = shape;
+		}
+
+		public Shape getShape(){
+			if(shape instanceof Ellipse2D){
+				return (Shape) ((Ellipse2D) shape).clone();
+			}
+			return new Path2D.Double(shape);
+		}
+
+		@Override
+		Primitive transform(AffineTransform af, double scale, double[] pts) {
+			return new FilledShape(getType(), DisplayList.transform(shape, af), getColor());
+		}
+
+		@Override
+		long estimatedSize() {
+			return shape instanceof Ellipse2D ? 32 + 48 : 32 + 160;
+		}
+
+		@Override
+		void paint(Graphics2D g2, AffineTransform af, double scale, Replay replay) {
+			g2.setColor(getColor().asColor());
+			g2.fill(DisplayList.transform(shape, af));
+		}
+	}
+
+	/**
+	 * One side of an SGroup bracket, as a polyline of x,y pairs.
+	 */
+	public static final class BracketPath extends Primitive{
+		private final double[] points;
+		private final Stroke stroke;
+
+		BracketPath(double[] points, Stroke stroke, ARGBColor color){
+			super(PrimitiveType.BRACKET, color);
+			this.points = points;
+			this.stroke = stroke;
+		}
+
+		public double[] getPoints(){
+			return points.clone();
+		}
+
+		public Stroke getStroke(){
+			return stroke;
+		}
+
+		@Override
+		Primitive transform(AffineTransform af, double scale, double[] pts) {
+			double[] placed = new double[points.length];
+			af.transform(points, 0, placed, 0, points.length/2);
+			return new BracketPath(placed, stroke, getColor());
+		}
+
+		@Override
+		long estimatedSize() {
+			return 32 + 16 + 8L * points.length;
+		}
+
+		@Override
+		void paint(Graphics2D g2, AffineTransform af, double scale, Replay replay) {
+			g2.setStroke(replay.scaled(stroke));
+			g2.setColor(getColor().asColor());
+			double[] pts = replay.points(points.length);
+			af.transform(points, 0, pts, 0, points.length/2);
+			//each segment separately, as the renderer always has
+			for(int i=2; i< points.length; i+=2){
+				replay.line.setLine(pts[i-2], pts[i-1], pts[i], pts[i+1]);
+				g2.draw(replay.line);
+			}
+		}
+	}
+
+	/**
+	 * A run of glyphs in a single font and color: an atom symbol, an
+	 * attachment such as a charge or hydrogen count, or a label.
+	 */
+	public static final class GlyphRun extends Primitive{
+		private final String text;
+		private final Font font;
+		private final int[] glyphCodes;
+		private final float x;
+		private final float y;
+
+		GlyphRun(String text, Font font, int[] glyphCodes, float x, float y, ARGBColor color){
+			super(PrimitiveType.GLYPH_RUN, color);
+			this.text = text;
+			this.font = font;
+			this.glyphCodes = glyphCodes;
+			this.x = x;
+			this.y = y;
+		}
+
+		public String getText(){
+			return text;
+		}
+
+		public Font getFont(){
+			return font;
+		}
+
+		public int[] getGlyphCodes(){
+			return glyphCodes.clone();
+		}
+
+		/**
+		 * The x coordinate of the baseline origin.
+		 */
+		public float getX(){
+			return x;
+		}
+
+		/**
+		 * The y coordinate of the baseline origin.
+		 */
+		public float getY(){
+			return y;
+		}
+
+		@Override
+		Primitive transform(AffineTransform af, double scale, double[] pts) {
+			Point2D p = af.transform(new Point2D.Float(x, y), null);
+			return new GlyphRun(text, scaledFont(scale), glyphCodes, (float) p.getX(), (float) p.getY(), getColor());
+		}
+
+		@Override
+		long estimatedSize() {
+			return 48 + 16 + 4L * glyphCodes.length + (text==null? 0 : 40 + text.length());
+		}
+
+		private Font scaledFont(double scale){
+			return scale == 1 ? font : FontCache.derive(font, (float) (font.getSize2D() * scale));
+		}
+
+		@Override
+		void paint(Graphics2D g2, AffineTransform af, double scale, Replay replay) {
+			Font f = scaledFont(scale);
+			g2.setFont(f);
+			g2.setColor(getColor().asColor());
+			double[] pts = replay.points(2);
+			pts[0] = x;
+			pts[1] = y;
+			af.transform(pts, 0, pts, 0, 1);
+			GlyphVector gv = f.createGlyphVector(g2.getFontRenderContext(), glyphCodes);
+			g2.drawGlyphVector(gv, (float) pts[0], (float) pts[1]);
+		}
+	}
+
+	/**
+	 * Collects primitives in paint order while a structure is laid out.
+	 */
+	static final class Builder{
+		private final List<Primitive> primitives = new ArrayList<>();
+
+		void line(PrimitiveType type, double x1, double y1, double x2, double y2, Stroke stroke, ARGBColor color){
+			primitives.add(new StrokedLine(type, x1, y1, x2, y2, stroke, color));
+		}
+
+		void fill(PrimitiveType type, Shape shape, ARGBColor color){
+			primitives.add(new FilledShape(type, shape, color));
+		}
+
+		void bracket(double[] points, Stroke stroke, ARGBColor color){
+			primitives.add(new BracketPath(points, stroke, color));
+		}
+
+		void glyphs(String text, GlyphVector gv, float x, float y, ARGBColor color){
+			glyphs(text, gv.getFont(), gv.getGlyphCodes(0, gv.getNumGlyphs(), null), x, y, color);
+		}
+
+		/**
+		 * @param glyphCodes kept, not copied, so must not be changed.
+		 */
+		void glyphs(String text, Font font, int[] glyphCodes, float x, float y, ARGBColor color){
+			primitives.add(new GlyphRun(text, font, glyphCodes, x, y, color));
+		}
+
+		/**
+		 * Map everything collected through the given transform, which
+		 * places the layout in its width x height box, and seal it.
+		 *
+		 * @param bounds the bounds of what was collected, before the
+		 *               transform.
+		 */
+		DisplayList build(Rectangle2D bounds, AffineTransform af, int width, int height){
+			if(bounds == null){
+				return new DisplayList(Collections.emptyList(), null, width, height);
+			}
+			double scale = Math.sqrt(Math.abs(af.getDeterminant()));
+			List<Primitive> placed = new ArrayList<>(primitives.size());
+			double[] pts = new double[4];
+			for(Primitive p : primitives){
+				placed.add(af.isIdentity()? p : p.transform(af, scale, pts));
+			}
+			Rectangle2D placedBounds = af.createTransformedShape(bounds).getBounds2D();
+			return new DisplayList(Collections.unmodifiableList(placed), placedBounds, width, height);
+		}
+	}
+}
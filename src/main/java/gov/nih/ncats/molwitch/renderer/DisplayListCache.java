@@ -0,0 +1,349 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.AtomCoordinates;
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.SGroup;
+
+/**
+ * A bounded, least recently used cache of laid out structures, keyed
+ * by a fingerprint of the structure and one of the {@link RendererOptions}
+ * it was laid out with.
+ *
+ * Entries are weighed by the approximate heap size of their
+ * {@link DisplayList}; once the total passes the maximum weight the least
+ * recently used entries are evicted.  A cached layout is replayed at any
+ * size it can be scaled to without visible drift, so re-rendering a
+ * structure at a new size skips the whole layout.
+ *
+ * One cache can be shared by any number of renderers and threads:
+ * <pre>
+ * DisplayListCache cache = new DisplayListCache(64 * 1024 * 1024);
+ * ChemicalRenderer renderer = new ChemicalRenderer().setDisplayListCache(cache);
+ * </pre>
+ */
+public final class DisplayListCache {
+
+	private final long maximumWeight;
+
+	private final LinkedHashMap<Key, DisplayList> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private long weight;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param maximumWeight the most bytes of display lists to keep, as
+	 *                      estimated from their contents.
+	 */
+	public DisplayListCache(long maximumWeight) {
+		if(maximumWeight <0){
+			throw new IllegalArgumentException("maximum weight can not be negative");
+		}
+		this.maximumWeight = maximumWeight;
+	}
+
+	/**
+	 * Get the cached layout for the given key if it can be replayed into
+	 * a box of the given size, counting a hit or a miss.
+	 *
+	 * @return the layout, or null if there is none or it would have to be
+	 *         scaled too far.
+	 */
+	public synchronized DisplayList get(Key key, int width, int height){
+		DisplayList list = entries.get(key);
+		if(list == null || !list.isReplayableAt(width, height)){
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return list;
+	}
+
+	public synchronized void put(Key key, DisplayList list){
+		Objects.requireNonNull(list);
+		long listWeight = list.estimatedSize();
+		if(listWeight > maximumWeight){
+			remove(key);
+			return;
+		}
+		DisplayList old = entries.put(Objects.requireNonNull(key), list);
+		if(old !=null){
+			weight -= old.estimatedSize();
+		}
+		weight += listWeight;
+		Iterator<Map.Entry<Key, DisplayList>> iter = entries.entrySet().iterator();
+		while(weight > maximumWeight && iter.hasNext()){
+			Map.Entry<Key, DisplayList> eldest = iter.next();
+			weight -= eldest.getValue().estimatedSize();
+			iter.remove();
+			evictionCount++;
+		}
+	}
+
+	public synchronized void remove(Key key){
+		DisplayList old = entries.remove(key);
+		if(old !=null){
+			weight -= old.estimatedSize();
+		}
+	}
+
+	/**
+	 * Drop every layout made with options of the given fingerprint.
+	 */
+	synchronized void invalidateOptions(long optionsFingerprint){
+		Iterator<Map.Entry<Key, DisplayList>> iter = entries.entrySet().iterator();
+		while(iter.hasNext()){
+			Map.Entry<Key, DisplayList> e = iter.next();
+			if(e.getKey().options == optionsFingerprint){
+				weight -= e.getValue().estimatedSize();
+				iter.remove();
+			}
+		}
+	}
+
+	public synchronized void invalidateAll(){
+		entries.clear();
+		weight = 0;
+	}
+
+	/**
+	 * A listener that, registered with the given options, drops the
+	 * layouts made with them whenever they change.
+	 */
+	RendererOptionChangeListener invalidateOnChange(RendererOptions options){
+		return new RendererOptionChangeListener() {
+			private long fingerprint = options.fingerprint();
+
+			@Override
+			public void optionChanged(RendererOptionChangeEvent event) {
+				long old;
+				synchronized (this) {
+					old = fingerprint;
+					fingerprint = options.fingerprint();
+				}
+				if(old != fingerprint){
+					invalidateOptions(old);
+				}
+			}
+		};
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public long getMaximumWeight(){
+		return maximumWeight;
+	}
+
+	public synchronized long getWeight(){
+		return weight;
+	}
+
+	public synchronized long getHitCount(){
+		return hitCount;
+	}
+
+	public synchronized long getMissCount(){
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount(){
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DisplayListCache{" +
+				"size=" + entries.size() +
+				", weight=" + weight +
+				", maximumWeight=" + maximumWeight +
+				", hits=" + hitCount +
+				", misses=" + missCount +
+				", evictions=" + evictionCount +
+				'}';
+	}
+
+	/**
+	 * Identifies a layout: a structure, down to the coordinates and
+	 * everything the renderer reads from its atoms, bonds and SGroups,
+	 * together with the options it is drawn with.  The structure part is
+	 * a 128 bit hash, not a copy, so a key does not keep its structure
+	 * alive.
+	 */
+	public static final class Key{
+		private final long structure1;
+		private final long structure2;
+		private final int atomCount;
+		private final int bondCount;
+		private final long options;
+
+		private Key(long structure1, long structure2, int atomCount, int bondCount, long options){
+			this.structure1 = structure1;
+			this.structure2 = structure2;
+			this.atomCount = atomCount;
+			this.bondCount = bondCount;
+			this.options = options;
+		}
+
+		/**
+		 * @param sequenceProperty the name of the property that holds a
+		 *                         sequence drawn instead of the structure.
+		 */
+		public static Key of(Chemical c, String sequenceProperty, RendererOptions options){
+			return of(c, sequenceProperty, options.fingerprint());
+		}
+
+		static Key of(Chemical c, String sequenceProperty, long optionsFingerprint){
+			Hasher h = new Hasher();
+			h.add(c.getProperty(sequenceProperty));
+			return of(c, h, optionsFingerprint);
+		}
+
+		/**
+		 * A key for the given structure alone, for things worked out from
+		 * it that do not depend on how it is drawn.
+		 *
+		 * @param tag told apart like options, for keeping different kinds
+		 *            of result for the same structure.
+		 */
+		static Key ofStructure(Chemical c, long tag){
+			return of(c, new Hasher(), tag);
+		}
+
+		private static Key of(Chemical c, Hasher h, long optionsFingerprint){
+			for(Atom a : c.getAtoms()){
+				h.add(a.getAtomCoordinates());
+				h.add(a.getSymbol());
+				h.add(a.getCharge());
+				h.add(a.isIsotope()? a.getMassNumber() : 0);
+				h.add(a.getRadical());
+				h.add(a.getImplicitHCount());
+				h.add(a.getAtomToAtomMap());
+				h.add(a.getRGroupIndex());
+				h.add(a.getAlias().orElse(null));
+				h.add(a.isQueryAtom()? 1 : 0);
+			}
+			for(Bond b : c.getBonds()){
+				h.add(b.getAtom1().getAtomCoordinates());
+				h.add(b.getAtom2().getAtomCoordinates());
+				h.add(b.getBondType());
+				h.add(b.getStereo());
+				h.add(b.getDoubleBondStereo());
+			}
+			if(c.getSGroupCount() > 0){
+				for(SGroup sg : c.getSGroups()){
+					h.add(sg.getType());
+					sg.getAtoms().forEach(a -> h.add(a.getAtomCoordinates()));
+					if(sg.hasBrackets()){
+						for(SGroup.SGroupBracket br : sg.getBrackets()){
+							h.add(br.getPoint1());
+							h.add(br.getPoint2());
+						}
+					}
+					h.add(sg.getSubscript());
+					h.add(sg.getSuperscript());
+					h.add(sg.getSuperatomLabel());
+				}
+			}
+			return new Key(h.h1, h.h2, c.getAtomCount(), c.getBondCount(), optionsFingerprint);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key key = (Key) o;
+			return structure1 == key.structure1 &&
+					structure2 == key.structure2 &&
+					atomCount == key.atomCount &&
+					bondCount == key.bondCount &&
+					options == key.options;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(structure1) * 31 + Long.hashCode(options);
+		}
+	}
+
+	/**
+	 * Two independent 64 bit running hashes.
+	 */
+	static final class Hasher{
+		long h1 = 0xCBF29CE484222325L;
+		long h2 = 0x84222325CBF29CE4L;
+
+		void add(long v){
+			h1 = (h1 ^ v) * 0x9E3779B97F4A7C15L;
+			h1 ^= h1 >>> 29;
+			h2 = h2 * 0xC2B2AE3D27D4EB4FL + v;
+			h2 ^= h2 >>> 31;
+		}
+
+		void add(double d){
+			add(Double.doubleToLongBits(d));
+		}
+
+		void add(String s){
+			if(s == null){
+				add(-1L);
+				return;
+			}
+			add((long) s.length());
+			for(int i=0; i< s.length(); i++){
+				add((long) s.charAt(i));
+			}
+		}
+
+		void add(Enum<?> e){
+			add(e == null? -1L : e.ordinal());
+		}
+
+		void add(Optional<String> s){
+			add(s.orElse(null));
+		}
+
+		void add(OptionalInt i){
+			add(i.isPresent()? i.getAsInt() : Long.MIN_VALUE);
+		}
+
+		void add(AtomCoordinates ac){
+			if(ac == null){
+				//coordinates that couldn't be generated
+				add(-1L);
+				return;
+			}
+			add(ac.getX());
+			add(ac.getY());
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * A two tier cache of finished, encoded images such as PNG bytes.
+ *
+ * Recently stored images are kept on the heap, bounded by size.  Every
+ * image is also appended to a pack file on disk, which is read through a
+ * memory mapping and survives restarts: opening a cache on an existing
+ * pack file serves everything in it straight away.  The disk tier is
+ * bounded as well; the least recently used images are dropped from its
+ * index, and once enough of the file is dead it is compacted into a fresh
+ * one.
+ *
+ * Lookups return read-only buffers over the cached bytes themselves,
+ * either the heap array or the mapped file, so nothing is copied.
+ * Buffers handed out stay valid after later compactions, as the old
+ * mapping is kept alive for as long as they are referenced; on platforms
+ * that can not replace a mapped file, such as Windows, compaction fails
+ * with an {@link IOException} instead, and the cache carries on over
+ * the old file.
+ *
+ * All methods are safe to call from many threads.
+ */
+public final class EncodedImageCache implements Closeable {
+
+	private static final int FILE_MAGIC = 0x4D574943; //MWIC
+	private static final int FILE_VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+
+	private static final int RECORD_MAGIC = 0x52454331; //REC1
+	private static final int RECORD_HEADER_SIZE = 4 + Key.SIZE + 4 + 4;
+
+	private final Path packFile;
+	private final long maximumHeapBytes;
+	private final long maximumDiskBytes;
+
+	private final LinkedHashMap<Key, byte[]> heap = new LinkedHashMap<>(64, 0.75f, true);
+	private long heapBytes;
+
+	private final LinkedHashMap<Key, Extent> disk = new LinkedHashMap<>(1024, 0.75f, true);
+	/**
+	 * The bytes of the records the disk index still points at, headers
+	 * included; the rest of the file past its header is dead.
+	 */
+	private long liveBytes;
+
+	private FileChannel channel;
+	private long fileSize;
+	private MappedByteBuffer mapped;
+
+	private long heapHitCount;
+	private long diskHitCount;
+	private long missCount;
+	private long evictionCount;
+	private long compactionCount;
+
+	/**
+	 * Open a cache over the given pack file, creating the file if needed.
+	 *
+	 * @param maximumHeapBytes the most image bytes to keep on the heap.
+	 * @param maximumDiskBytes the most image bytes to keep in the pack
+	 *                         file, which can not exceed 2GB.
+	 *
+	 * @throws IOException if the file can not be opened or is not a pack
+	 *                     file.
+	 */
+	public EncodedImageCache(Path packFile, long maximumHeapBytes, long maximumDiskBytes) throws IOException {
+		if(maximumHeapBytes < 0 || maximumDiskBytes < 0){
+			throw new IllegalArgumentException("maximum sizes can not be negative");
+		}
+		if(maximumDiskBytes > Integer.MAX_VALUE - FILE_HEADER_SIZE){
+			throw new IllegalArgumentException("pack file can not exceed " + Integer.MAX_VALUE + " bytes");
+		}
+		this.packFile = Objects.requireNonNull(packFile);
+		this.maximumHeapBytes = maximumHeapBytes;
+		this.maximumDiskBytes = maximumDiskBytes;
+		open();
+		if(evictFromDisk()){
+			compact();
+		}
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(packFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		fileSize = channel.size();
+		if(fileSize < FILE_HEADER_SIZE){
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+			((Buffer) header).flip();
+			channel.truncate(0);
+			writeFully(header, 0);
+			fileSize = FILE_HEADER_SIZE;
+		}
+		if(fileSize > Integer.MAX_VALUE){
+			throw new IOException(packFile + " is too large to be a pack file");
+		}
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		if(mapped.getInt(0) != FILE_MAGIC || mapped.getInt(4) != FILE_VERSION){
+			channel.close();
+			throw new IOException(packFile + " is not an image pack file");
+		}
+		disk.clear();
+		liveBytes = 0;
+		long pos = scan();
+		if(pos < fileSize){
+			//the tail of the last append never made it, drop it
+			channel.truncate(pos);
+			fileSize = pos;
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		}
+	}
+
+	/**
+	 * Index every complete record in the mapped file, oldest first.
+	 *
+	 * @return the end of the last complete record.
+	 */
+	private long scan() throws IOException {
+		int pos = FILE_HEADER_SIZE;
+		while(pos + RECORD_HEADER_SIZE <= fileSize){
+			if(mapped.getInt(pos) != RECORD_MAGIC){
+				break;
+			}
+			byte[] digest = new byte[Key.SIZE];
+			for(int i=0; i< Key.SIZE; i++){
+				digest[i] = mapped.get(pos + 4 + i);
+			}
+			int length = mapped.getInt(pos + 4 + Key.SIZE);
+			int crc = mapped.getInt(pos + 8 + Key.SIZE);
+			long end = (long) pos + RECORD_HEADER_SIZE + length;
+			if(length < 0 || end > fileSize){
+				break;
+			}
+			if(end == fileSize && crc != crc(slice(pos + RECORD_HEADER_SIZE, length))){
+				//only the last record can be torn
+				break;
+			}
+			Extent old = disk.put(new Key(digest), new Extent(pos + RECORD_HEADER_SIZE, length));
+			if(old != null){
+				liveBytes -= old.recordSize();
+			}
+			liveBytes += RECORD_HEADER_SIZE + length;
+			pos = (int) end;
+		}
+		return pos;
+	}
+
+	/**
+	 * Look up an image.
+	 *
+	 * @return a read-only buffer over the image bytes, or null if the
+	 *         image is not cached.
+	 */
+	public synchronized ByteBuffer get(Key key) throws IOException {
+		ensureOpen();
+		byte[] bytes = heap.get(key);
+		if(bytes != null){
+			heapHitCount++;
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+		Extent extent = disk.get(key);
+		if(extent != null){
+			diskHitCount++;
+			return slice(extent.offset, extent.length);
+		}
+		missCount++;
+		return null;
+	}
+
+	/**
+	 * Store an image.  The array is kept as is, so it must not be
+	 * modified afterwards.
+	 */
+	public synchronized void put(Key key, byte[] image) throws IOException {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(image);
+		ensureOpen();
+		if(image.length <= maximumHeapBytes){
+			byte[] old = heap.put(key, image);
+			if(old != null){
+				heapBytes -= old.length;
+			}
+			heapBytes += image.length;
+			Iterator<byte[]> iter = heap.values().iterator();
+			while(heapBytes > maximumHeapBytes && iter.hasNext()){
+				heapBytes -= iter.next().length;
+				iter.remove();
+			}
+		}
+		long recordSize = RECORD_HEADER_SIZE + (long) image.length;
+		if(disk.containsKey(key) || recordSize > maximumDiskBytes){
+			return;
+		}
+		if(fileSize + recordSize > Integer.MAX_VALUE){
+			compact();
+			if(fileSize + recordSize > Integer.MAX_VALUE){
+				//no room even with the dead records gone, so it stays on
+				//the heap only
+				return;
+			}
+		}
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.putInt(RECORD_MAGIC).put(key.digest).putInt(image.length).putInt(crc(ByteBuffer.wrap(image)));
+		((Buffer) header).flip();
+		long pos = fileSize;
+		writeFully(header, pos);
+		writeFully(ByteBuffer.wrap(image), pos + RECORD_HEADER_SIZE);
+		fileSize += recordSize;
+		disk.put(key, new Extent(pos + RECORD_HEADER_SIZE, image.length));
+		liveBytes += recordSize;
+		if(evictFromDisk()){
+			compact();
+		}
+	}
+
+	/**
+	 * Look up the PNG image of the given chemical, rendering and storing
+	 * it if it is not cached yet.
+	 *
+	 * @return a read-only buffer over the PNG bytes.
+	 */
+	public ByteBuffer getOrRender(ChemicalRenderer renderer, Chemical c, int width, int height, boolean round) throws IOException {
+		Key key = Key.of(renderer, c, width, height, round);
+		ByteBuffer cached = get(key);
+		if(cached != null){
+			return cached;
+		}
+		BufferedImage img = renderer.createImage(c, width, height, round);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", out);
+		byte[] png = out.toByteArray();
+		put(key, png);
+		return ByteBuffer.wrap(png).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Drop least recently used records from the disk index until it fits.
+	 *
+	 * @return true if enough of the file is dead that it should be
+	 *         compacted.
+	 */
+	private boolean evictFromDisk(){
+		boolean evicted = false;
+		Iterator<Extent> iter = disk.values().iterator();
+		while(liveBytes > maximumDiskBytes && iter.hasNext()){
+			liveBytes -= iter.next().recordSize();
+			iter.remove();
+			evictionCount++;
+			evicted = true;
+		}
+		long deadBytes = fileSize - FILE_HEADER_SIZE - liveBytes;
+		return evicted && deadBytes * 2 > liveBytes;
+	}
+
+	/**
+	 * Rewrite the pack file with only the records still indexed, least
+	 * recently used first, and swap it in for the old one.
+	 */
+	public synchronized void compact() throws IOException {
+		ensureOpen();
+		Path tmp = packFile.resolveSibling(packFile.getFileName() + ".compact");
+		try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)){
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+			((Buffer) header).flip();
+			long pos = 0;
+			pos += writeFully(out, header, pos);
+			for(Extent e : disk.values()){
+				pos += writeFully(out, slice(e.offset - RECORD_HEADER_SIZE, e.recordSize()), pos);
+			}
+			out.force(true);
+		}
+		channel.close();
+		boolean swapped = false;
+		try{
+			try{
+				Files.move(tmp, packFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}catch(AtomicMoveNotSupportedException e){
+				Files.move(tmp, packFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			swapped = true;
+		}finally{
+			//either the new file or, if it couldn't be swapped in, the old
+			//one, so the cache carries on either way
+			open();
+			if(!swapped){
+				Files.deleteIfExists(tmp);
+				//the old file still has everything evicted since it was
+				//last compacted
+				evictFromDisk();
+			}
+		}
+		compactionCount++;
+	}
+
+	private ByteBuffer slice(long offset, long length) throws IOException {
+		if(offset + length > mapped.capacity()){
+			//appended since the last lookup, grow the mapping to the file
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		}
+		ByteBuffer b = mapped.duplicate();
+		((Buffer) b).position((int) offset);
+		((Buffer) b).limit((int) (offset + length));
+		return b.slice().asReadOnlyBuffer();
+	}
+
+	private void writeFully(ByteBuffer src, long position) throws IOException {
+		writeFully(channel, src, position);
+	}
+
+	private static int writeFully(FileChannel ch, ByteBuffer src, long position) throws IOException {
+		int written = 0;
+		while(src.hasRemaining()){
+			written += ch.write(src, position + written);
+		}
+		return written;
+	}
+
+	private static int crc(ByteBuffer data){
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		return (int) crc.getValue();
+	}
+
+	private void ensureOpen() throws IOException {
+		if(channel == null || !channel.isOpen()){
+			throw new IOException("cache is closed");
+		}
+	}
+
+	/**
+	 * Flush the pack file to disk.
+	 */
+	public synchronized void flush() throws IOException {
+		ensureOpen();
+		channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(channel != null && channel.isOpen()){
+			channel.force(false);
+			channel.close();
+		}
+		heap.clear();
+		heapBytes = 0;
+	}
+
+	public synchronized int size(){
+		return disk.size();
+	}
+
+	public synchronized long getHeapBytes(){
+		return heapBytes;
+	}
+
+	/**
+	 * The bytes of the records the disk tier holds, headers included.
+	 */
+	public synchronized long getDiskBytes(){
+		return liveBytes;
+	}
+
+	/**
+	 * The size of the pack file, including records that were evicted but
+	 * not yet compacted away.
+	 */
+	public synchronized long getFileSize(){
+		return fileSize;
+	}
+
+	public synchronized long getHeapHitCount(){
+		return heapHitCount;
+	}
+
+	public synchronized long getDiskHitCount(){
+		return diskHitCount;
+	}
+
+	public synchronized long getMissCount(){
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount(){
+		return evictionCount;
+	}
+
+	public synchronized long getCompactionCount(){
+		return compactionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EncodedImageCache{" +
+				"packFile=" + packFile +
+				", size=" + disk.size() +
+				", heapBytes=" + heapBytes +
+				", diskBytes=" + liveBytes +
+				", fileSize=" + fileSize +
+				", heapHits=" + heapHitCount +
+				", diskHits=" + diskHitCount +
+				", misses=" + missCount +
+				", evictions=" + evictionCount +
+				", compactions=" + compactionCount +
+				'}';
+	}
+
+	private static final class Extent{
+		final long offset;
+		final int length;
+
+		Extent(long offset, int length){
+			this.offset = offset;
+			this.length = length;
+		}
+
+		long recordSize(){
+			return RECORD_HEADER_SIZE + (long) length;
+		}
+	}
+
+	/**
+	 * Identifies an encoded image by a SHA-256 digest.  Digests are stable
+	 * across runs, so a pack file written by one process is read by the
+	 * next.
+	 */
+	public static final class Key{
+		static final int SIZE = 32;
+
+		private static final byte[] NO_BYTES = new byte[0];
+
+		private final byte[] digest;
+		private final int hash;
+
+		private Key(byte[] digest){
+			this.digest = digest;
+			this.hash = Arrays.hashCode(digest);
+		}
+
+		/**
+		 * Use a digest computed elsewhere, such as one of a stored
+		 * molfile along with the rendering settings.
+		 *
+		 * @param sha256 32 bytes.
+		 */
+		public static Key fromDigest(byte[] sha256){
+			if(sha256.length != SIZE){
+				throw new IllegalArgumentException("digest must be " + SIZE + " bytes");
+			}
+			return new Key(sha256.clone());
+		}
+
+		/**
+		 * The key of the PNG image of the given chemical as the given renderer
+		 * draws it: a digest of its molfile, the renderer's options, shadow,
+		 * border, colors and captions, the size and the round flag.
+		 */
+		public static Key of(ChemicalRenderer renderer, Chemical c, int width, int height, boolean round) throws IOException {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}, md));
+			out.writeUTF("png");
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeBoolean(round);
+			String name = c.getName();
+			out.writeUTF(name==null? "" : name);
+			byte[] mol = c.getAtomCount()==0? NO_BYTES : withoutHeader(c.toMol()).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(mol.length);
+			out.write(mol);
+			renderer.writeStyle(out, c);
+			out.flush();
+			return new Key(md.digest());
+		}
+
+		/**
+		 * Drop the molfile header, whose second line carries the time it
+		 * was written.
+		 */
+		private static String withoutHeader(String mol){
+			int pos = 0;
+			for(int i=0; i< 3 && pos >=0; i++){
+				pos = mol.indexOf('\n', pos);
+				if(pos >=0){
+					pos++;
+				}
+			}
+			return pos < 0 ? mol : mol.substring(pos);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			return Arrays.equals(digest, ((Key) o).digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
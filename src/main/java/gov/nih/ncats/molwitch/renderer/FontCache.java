@@ -0,0 +1,190 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derived fonts and their metrics, shared by every renderer and thread, so
+ * laying out a structure derives each of its few label fonts once rather
+ * than once or more per atom.
+ *
+ * Sizes are keyed exactly, as the float they are, so a cached font is
+ * always equal to the one {@link Font#deriveFont(int, float)} would make.
+ * Each cache is emptied when it passes its maximum size.
+ */
+final class FontCache {
+
+	private static final int MAXIMUM_SIZE = 2048;
+
+	//element symbols, charges, hydrogen counts and the single characters
+	//attachments are laid out by are all this short
+	private static final int SHORT_STRING = 3;
+
+	private static final ConcurrentHashMap<Derivation, Font> FONTS = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<MetricsKey, Metrics> METRICS = new ConcurrentHashMap<>();
+
+	private FontCache(){
+		//can not instantiate
+	}
+
+	/**
+	 * The given font at the given size, in its own style.
+	 */
+	static Font derive(Font base, float size){
+		return derive(base, base.getStyle(), size);
+	}
+
+	/**
+	 * The given font in the given style and size.
+	 */
+	static Font derive(Font base, int style, float size){
+		Derivation key = new Derivation(base, style, size);
+		Font font = FONTS.get(key);
+		if(font == null){
+			font = base.deriveFont(style, size);
+			RenderMetrics metrics = RenderMetrics.current();
+			if(metrics != null){
+				metrics.fontsDerived++;
+			}
+			if(FONTS.size() >= MAXIMUM_SIZE){
+				FONTS.clear();
+			}
+			FONTS.putIfAbsent(key, font);
+		}
+		return font;
+	}
+
+	/**
+	 * The metrics of the given font as measured by the given graphics.
+	 */
+	static Metrics metrics(Graphics2D g2, Font font){
+		MetricsKey key = new MetricsKey(font, g2.getFontRenderContext());
+		Metrics metrics = METRICS.get(key);
+		if(metrics == null){
+			metrics = new Metrics(key.frc, g2.getFontMetrics(font));
+			if(METRICS.size() >= MAXIMUM_SIZE){
+				METRICS.clear();
+			}
+			Metrics raced = METRICS.putIfAbsent(key, metrics);
+			if(raced != null){
+				metrics = raced;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * The metrics of one font in one font render context, with a table of
+	 * the bounds of the short strings measured so far.
+	 */
+	static final class Metrics {
+		private final FontRenderContext frc;
+		private final FontMetrics fontMetrics;
+		private final ConcurrentHashMap<String, Rectangle2D> shortStrings = new ConcurrentHashMap<>();
+
+		Metrics(FontRenderContext frc, FontMetrics fontMetrics){
+			this.frc = frc;
+			this.fontMetrics = fontMetrics;
+		}
+
+		Font getFont(){
+			return fontMetrics.getFont();
+		}
+
+		/**
+		 * The logical bounds of the given string, as
+		 * {@link FontMetrics#getStringBounds(String, java.awt.Graphics)}
+		 * gives them.  Those of short strings are shared, so must not be
+		 * changed.
+		 */
+		Rectangle2D stringBounds(String s){
+			if(s.length() > SHORT_STRING){
+				return getFont().getStringBounds(s, frc);
+			}
+			Rectangle2D bounds = shortStrings.get(s);
+			if(bounds == null){
+				bounds = getFont().getStringBounds(s, frc);
+				shortStrings.putIfAbsent(s, bounds);
+			}
+			return bounds;
+		}
+
+		int stringWidth(String s){
+			return fontMetrics.stringWidth(s);
+		}
+
+		int getHeight(){
+			return fontMetrics.getHeight();
+		}
+	}
+
+	private static final class Derivation {
+		private final Font base;
+		private final int style;
+		private final int size;
+
+		Derivation(Font base, int style, float size){
+			this.base = base;
+			this.style = style;
+			this.size = Float.floatToIntBits(size);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof Derivation)) return false;
+			Derivation d = (Derivation) o;
+			return size == d.size && style == d.style && base.equals(d.base);
+		}
+
+		@Override
+		public int hashCode() {
+			return (base.hashCode() * 31 + style) * 31 + size;
+		}
+	}
+
+	private static final class MetricsKey {
+		private final Font font;
+		private final FontRenderContext frc;
+
+		MetricsKey(Font font, FontRenderContext frc){
+			this.font = font;
+			this.frc = frc;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof MetricsKey)) return false;
+			MetricsKey k = (MetricsKey) o;
+			return font.equals(k.font) && frc.equals(k.frc);
+		}
+
+		@Override
+		public int hashCode() {
+			return font.hashCode() * 31 + frc.hashCode();
+		}
+	}
+}
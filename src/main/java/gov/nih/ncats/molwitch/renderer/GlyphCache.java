@@ -0,0 +1,194 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of shaped label text: the glyphs a string maps to in a font and
+ * their bounds, so the atom symbols, charges, hydrogen counts and stereo
+ * labels that make up most text in a structure are shaped once rather
+ * than on every layout pass.
+ *
+ * Entries are keyed by the font, at its exact size, the font render
+ * context and the text, so a cached label measures and draws exactly as a
+ * freshly shaped one would.  Lookups don't lock; when the cache grows past
+ * its maximum size it is emptied and refills with the labels in use.
+ *
+ * The renderer uses the {@link #shared()} cache, whose statistics show how
+ * well it is doing:
+ * <pre>
+ * System.out.println(GlyphCache.shared());
+ * </pre>
+ */
+public final class GlyphCache {
+
+	private static final GlyphCache SHARED = new GlyphCache(8192);
+
+	private final int maximumSize;
+	private final ConcurrentHashMap<Key, Glyphs> entries = new ConcurrentHashMap<>();
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * @param maximumSize the most labels to keep.
+	 */
+	public GlyphCache(int maximumSize) {
+		if(maximumSize <=0){
+			throw new IllegalArgumentException("maximum size must be positive");
+		}
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * The cache every renderer shapes its labels with.
+	 */
+	public static GlyphCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Get the glyphs of the given text in the given font, shaping it if it
+	 * isn't cached.
+	 */
+	Glyphs get(Font font, FontRenderContext frc, String text) {
+		Key key = new Key(font, frc, text);
+		Glyphs glyphs = entries.get(key);
+		RenderMetrics metrics = RenderMetrics.current();
+		if(glyphs != null){
+			hitCount.increment();
+			if(metrics != null){
+				metrics.glyphCacheHits++;
+			}
+			return glyphs;
+		}
+		missCount.increment();
+		if(metrics != null){
+			metrics.glyphCacheMisses++;
+		}
+		//shaped outside the map, so a miss never holds up other threads
+		glyphs = new Glyphs(font, font.createGlyphVector(frc, text.toCharArray()));
+		if(entries.size() >= maximumSize){
+			evictionCount.add(entries.size());
+			entries.clear();
+		}
+		Glyphs raced = entries.putIfAbsent(key, glyphs);
+		return raced == null ? glyphs : raced;
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * The fraction of lookups that were hits, or 0 if there have been none.
+	 */
+	public double getHitRate() {
+		long hits = hitCount.sum();
+		long total = hits + missCount.sum();
+		return total == 0 ? 0 : hits / (double) total;
+	}
+
+	@Override
+	public String toString() {
+		return "GlyphCache{" +
+				"size=" + entries.size() +
+				", maximumSize=" + maximumSize +
+				", hits=" + getHitCount() +
+				", misses=" + getMissCount() +
+				", evictions=" + getEvictionCount() +
+				'}';
+	}
+
+	/**
+	 * A shaped string: its glyph codes, and its logical and visual bounds
+	 * relative to the baseline origin.  Shared between threads, so none
+	 * of it may be changed.
+	 */
+	static final class Glyphs {
+		final Font font;
+		final int[] glyphCodes;
+		final Rectangle2D logicalBounds;
+		final Rectangle2D visualBounds;
+
+		Glyphs(Font font, GlyphVector gv) {
+			this.font = font;
+			this.glyphCodes = gv.getGlyphCodes(0, gv.getNumGlyphs(), null);
+			this.logicalBounds = gv.getLogicalBounds();
+			this.visualBounds = gv.getVisualBounds();
+		}
+	}
+
+	private static final class Key {
+		private final Font font;
+		private final FontRenderContext frc;
+		private final String text;
+		private final int hash;
+
+		Key(Font font, FontRenderContext frc, String text) {
+			this.font = font;
+			this.frc = frc;
+			this.text = text;
+			this.hash = (font.hashCode() * 31 + frc.hashCode()) * 31 + text.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof Key)) return false;
+			Key key = (Key) o;
+			return hash == key.hash &&
+					text.equals(key.text) &&
+					font.equals(key.font) &&
+					frc.equals(key.frc);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -55,10 +55,18 @@ import java.text.AttributedCharacterIterator;
 import java.util.Map;
 import java.util.Optional;
 
+import gov.nih.ncats.molwitch.renderer.DisplayList.PrimitiveType;
+
 class Graphics2DTemp{
 	
 		private boolean _disabled=false;
 	        private Rectangle2D.Double _bounds=null;
+		private DisplayList.Builder _recorder=null;
+		//reused for every line drawn straight to the delegate
+		private final Line2D.Double _line=new Line2D.Double();
+		//the color last asked for as an ARGBColor, and that ARGBColor
+		private Color _lastColor;
+		private ARGBColor _lastARGB;
 	
 	
 		public Graphics2D _delagate;
@@ -1213,13 +1221,28 @@ class Graphics2DTemp{
 	        public void enable(){
 			this._disabled=false;
 		}
+
+		/**
+		 * Capture all further shape and glyph painting into the given
+		 * display list builder instead of painting to the delegate.
+		 * Bounds are still accumulated as usual.
+		 */
+		public void record(DisplayList.Builder recorder){
+			this._recorder=recorder;
+		}
 		public void updateBounds(Rectangle2D r){
-			Rectangle2D.Double rd=new Rectangle2D.Double(r.getX(),r.getY(),r.getWidth(),r.getHeight());
+			updateBounds(r.getX(),r.getY(),r.getWidth(),r.getHeight());
+		}
+		private void updateBounds(double x, double y, double w, double h){
 			if(_bounds==null){
-				_bounds=rd;
+				_bounds=new Rectangle2D.Double(x,y,w,h);
 			}else{
-				//increase bounds
-				_bounds.add(rd);
+				//increase bounds, as Rectangle2D.add would
+				double x1 = Math.min(_bounds.getMinX(), x);
+				double x2 = Math.max(_bounds.getMaxX(), x + w);
+				double y1 = Math.min(_bounds.getMinY(), y);
+				double y2 = Math.max(_bounds.getMaxY(), y + h);
+				_bounds.setRect(x1, y1, x2 - x1, y2 - y1);
 			}
 		}
 		public void clearBounds(){
@@ -1262,14 +1285,71 @@ class Graphics2DTemp{
 		}
 
 		public void drawd(Shape s) {
+			drawd(s, s.getBounds2D(), PrimitiveType.BOND_LINE);
+		}
+		private void drawd(Shape s, Rectangle2D bounds, PrimitiveType type) {
 		
-			updateBounds(s.getBounds2D());
-			if(!_disabled){
+			updateBounds(bounds);
+			if(_recorder!=null){
+				if(s instanceof Line2D){
+					Line2D l = (Line2D) s;
+					_recorder.line(type, l.getX1(), l.getY1(), l.getX2(), l.getY2(), _delagate.getStroke(), getARGBColor());
+				}else{
+					_recorder.fill(type, _delagate.getStroke().createStrokedShape(s), getARGBColor());
+				}
+			}else if(!_disabled){
 				_delagate.draw(s);
 			}
 		}
 		public void drawP(ShapeParent s) {
-			drawd(ShapeWrapper.toShape(s));
+			drawP(s, PrimitiveType.BOND_LINE);
+		}
+		public void drawP(ShapeParent s, PrimitiveType type) {
+			if(s instanceof LineParent){
+				LineParent l = (LineParent) s;
+				drawLine(l.getX1(), l.getY1(), l.getX2(), l.getY2(), type);
+			}else{
+				Shape shape = ShapeWrapper.toShape(s);
+				drawd(shape, shape.getBounds2D(), type);
+			}
+		}
+
+		/**
+		 * Draw a line with the current stroke and color without making a
+		 * shape for it; the bounds grow by the whole pixels the line
+		 * touches, as those of a line shape always have.
+		 */
+		public void drawLine(double x1, double y1, double x2, double y2, PrimitiveType type) {
+			//Rectangle2D.getBounds() of the line's box, without making either
+			double minX = Math.min(x1, x2);
+			double minY = Math.min(y1, y2);
+			double bx = Math.floor(minX);
+			double by = Math.floor(minY);
+			double bx2 = Math.ceil(minX + (Math.max(x1, x2) - minX));
+			double by2 = Math.ceil(minY + (Math.max(y1, y2) - minY));
+			updateBounds((int) bx, (int) by, (int) (bx2 - bx), (int) (by2 - by));
+			if(_recorder!=null){
+				_recorder.line(type, x1, y1, x2, y2, _delagate.getStroke(), getARGBColor());
+			}else if(!_disabled){
+				_line.setLine(x1, y1, x2, y2);
+				_delagate.draw(_line);
+			}
+		}
+
+		/**
+		 * Draw a bracket as a polyline of x,y pairs, one segment at a time.
+		 */
+		public void drawBracket(double[] xy) {
+			for(int i=2; i< xy.length; i+=2){
+				updateBounds(new Line2D.Double(xy[i-2], xy[i-1], xy[i], xy[i+1]).getBounds());
+			}
+			if(_recorder!=null){
+				_recorder.bracket(xy.clone(), _delagate.getStroke(), getARGBColor());
+			}else if(!_disabled){
+				for(int i=2; i< xy.length; i+=2){
+					_delagate.draw(new Line2D.Double(xy[i-2], xy[i-1], xy[i], xy[i+1]));
+				}
+			}
 		}
 
 		public void draw3DRect(int x, int y, int width, int height,
@@ -1291,14 +1371,37 @@ class Graphics2DTemp{
 		}
 
 		public void drawGlyphVector(GlyphVector g, float x, float y) {
+			drawGlyphVector(g, x, y, null);
+		}
+
+		/**
+		 * @param text the text the glyphs were made from, kept with them
+		 *             when recording; may be null.
+		 */
+		public void drawGlyphVector(GlyphVector g, float x, float y, String text) {
 			//updateBounds(g.getVisualBounds());
 			Rectangle2D rr = g.getVisualBounds();
 			updateBounds(new Rectangle2D.Double(rr.getMinX()+x, rr.getMinY()+y, rr.getWidth(), rr.getHeight()));
-			if(!_disabled){
+			if(_recorder!=null){
+				_recorder.glyphs(text, g, x, y, getARGBColor());
+			}else if(!_disabled){
 				_delagate.drawGlyphVector(g, x, y);
 			}
 		}
 
+		/**
+		 * Draw glyphs already shaped by a {@link GlyphCache}.
+		 */
+		public void drawGlyphs(GlyphCache.Glyphs g, float x, float y, String text) {
+			Rectangle2D rr = g.visualBounds;
+			updateBounds(new Rectangle2D.Double(rr.getMinX()+x, rr.getMinY()+y, rr.getWidth(), rr.getHeight()));
+			if(_recorder!=null){
+				_recorder.glyphs(text, g.font, g.glyphCodes, x, y, getARGBColor());
+			}else if(!_disabled){
+				_delagate.drawGlyphVector(g.font.createGlyphVector(_delagate.getFontRenderContext(), g.glyphCodes), x, y);
+			}
+		}
+
 		public void drawImage(BufferedImage img, BufferedImageOp op, int x,
 				int y) {
 			if(!_disabled){
@@ -1408,11 +1511,23 @@ class Graphics2DTemp{
 		}
 
 		public void fillP(ShapeParent s) {
-			fill(ShapeWrapper.toShape(s));
-		}
-		private void fill(Shape s) {
-			updateBounds(s.getBounds2D());
-			if(!_disabled){
+			fillP(s, PrimitiveType.WEDGE);
+		}
+		public void fillP(ShapeParent s, PrimitiveType type) {
+			Shape shape = ShapeWrapper.toShape(s);
+			Rectangle2D bounds = shape.getBounds2D();
+			if(s instanceof Ellipse2DWrapper){
+				shape = (Shape) ((Ellipse2DWrapper) s)._ellipse.clone();
+			}else if(s instanceof GeneralPathWrapper){
+				shape = (Shape) ((GeneralPathWrapper) s).gp.clone();
+			}
+			fill(shape, bounds, type);
+		}
+		private void fill(Shape s, Rectangle2D bounds, PrimitiveType type) {
+			updateBounds(bounds);
+			if(_recorder!=null){
+				_recorder.fill(type, s, getARGBColor());
+			}else if(!_disabled){
 				_delagate.fill(s);
 			}
 		}
@@ -1478,7 +1593,12 @@ class Graphics2DTemp{
 		
 
 	public ARGBColor getARGBColor() {
-		return new ARGBColor(this.getColorG2D());
+		Color c = this.getColorG2D();
+		if(c != _lastColor){
+			_lastARGB = new ARGBColor(c);
+			_lastColor = c;
+		}
+		return _lastARGB;
 	}
 		
 		public Composite getComposite() {
@@ -1570,7 +1690,10 @@ class Graphics2DTemp{
 		}
 
 		public void setColor(ARGBColor c) {
-			setColorG2D(c.asColor());
+			Color color = c.asColor();
+			setColorG2D(color);
+			_lastColor = color;
+			_lastARGB = c;
 		}
 
 
@@ -0,0 +1,232 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Renders many chemicals into the cells of a grid on one image, a
+ * contact sheet.  Made by {@link ChemicalRenderer#renderGrid(List, int, int, int)}:
+ * <pre>
+ * BufferedImage sheet = renderer.renderGrid(chemicals, 10, 200, 200)
+ *         .setPadding(4)
+ *         .createImage();
+ * </pre>
+ *
+ * Cells are rendered in parallel, each straight into its own region of
+ * the sheet through a view that shares the sheet's pixels, so no image
+ * is made per chemical and nothing is copied.  A shadowed cell is painted
+ * and blurred in buffers each worker thread reuses from cell to cell,
+ * as every cell is the same size, and lets go of once the grid is done.
+ * Each cell gets the captions of the
+ * renderer's {@link RendererOptions}.  The most expensive chemicals are
+ * started first.
+ */
+public final class GridRender {
+
+	private final ChemicalRenderer renderer;
+	private final List<Chemical> chemicals;
+	private final int columns;
+	private final int cellWidth;
+	private final int cellHeight;
+
+	private int padding;
+	private boolean round;
+	private Executor executor;
+	private BiConsumer<Integer, Throwable> errorHandler;
+
+	GridRender(ChemicalRenderer renderer, List<Chemical> chemicals, int columns, int cellWidth, int cellHeight) {
+		if(columns <=0){
+			throw new IllegalArgumentException("must have at least one column");
+		}
+		if(cellWidth <=0 || cellHeight <=0){
+			throw new IllegalArgumentException("cell size must be positive");
+		}
+		if(chemicals.isEmpty()){
+			throw new IllegalArgumentException("no chemicals to render");
+		}
+		this.renderer = Objects.requireNonNull(renderer);
+		this.chemicals = new ArrayList<>(chemicals);
+		this.columns = columns;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+	}
+
+	/**
+	 * @param padding the gap left inside each edge of a cell.
+	 */
+	public GridRender setPadding(int padding) {
+		if(padding <0 || 2 * padding >= Math.min(cellWidth, cellHeight)){
+			throw new IllegalArgumentException("padding must leave room in the cell");
+		}
+		this.padding = padding;
+		return this;
+	}
+
+	public GridRender setRound(boolean round) {
+		this.round = round;
+		return this;
+	}
+
+	/**
+	 * @param executor the executor to render on, or null, the default, for
+	 *                 a pool with a thread per processor that lasts as long
+	 *                 as the render.
+	 */
+	public GridRender setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * @param handler told the index and error of each chemical that fails
+	 *                to render, on the thread that rendered it; the rest of
+	 *                the grid carries on.  Or null, the default, for
+	 *                {@link #createImage()} to throw the first error once
+	 *                the rest of the grid is done.
+	 */
+	public GridRender setErrorHandler(BiConsumer<Integer, Throwable> handler) {
+		this.errorHandler = handler;
+		return this;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return (chemicals.size() + columns - 1) / columns;
+	}
+
+	/**
+	 * The region of the sheet the chemical at the given index is drawn
+	 * in, padding excluded.
+	 */
+	public Rectangle getCellBounds(int index) {
+		if(index <0 || index >= chemicals.size()){
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		return new Rectangle((index % columns) * cellWidth + padding, (index / columns) * cellHeight + padding,
+				cellWidth - 2 * padding, cellHeight - 2 * padding);
+	}
+
+	/**
+	 * Render every chemical into a new image of the whole grid.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the
+	 *                              cells to finish.
+	 * @throws RuntimeException the first chemical to fail, wrapped if it
+	 *                          isn't unchecked, if there is no error
+	 *                          handler; the other cells are still drawn.
+	 */
+	public BufferedImage createImage() throws InterruptedException {
+		BufferedImage sheet = new BufferedImage(Math.min(chemicals.size(), columns) * cellWidth, getRows() * cellHeight,
+				BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = sheet.createGraphics();
+		g2.setPaint(renderer.getBackgroundColor().asColor());
+		g2.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+		g2.dispose();
+
+		List<Integer> order = new ArrayList<>(chemicals.size());
+		for(int i=0; i< chemicals.size(); i++){
+			order.add(i);
+		}
+		//a missing chemical fails in its cell, where the error handler hears of it
+		order.sort(Comparator.comparingLong((Integer i) -> chemicals.get(i) == null ? 0 : -BatchRender.estimateCost(chemicals.get(i))));
+
+		ExecutorService ownExecutor = null;
+		Executor exec = executor;
+		int workers = Math.min(chemicals.size(), Runtime.getRuntime().availableProcessors());
+		if(exec == null){
+			ownExecutor = Executors.newFixedThreadPool(workers, r -> {
+				Thread t = new Thread(r, "molwitch-grid");
+				t.setDaemon(true);
+				return t;
+			});
+			exec = ownExecutor;
+		}
+		BiConsumer<Integer, Throwable> handler = errorHandler;
+		AtomicReference<Throwable> firstError = new AtomicReference<>();
+		BiConsumer<Integer, Throwable> onError = handler != null ? handler : (i, t) -> firstError.compareAndSet(null, t);
+		AtomicInteger next = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(workers);
+		try{
+			for(int w=0; w< workers; w++){
+				exec.execute(() -> {
+					//the cells are one size, so each shadow reuses the last one's images
+					ShadowBuffers.keepSpares();
+					try{
+						for(int n; (n = next.getAndIncrement()) < order.size(); ){
+							renderCell(sheet, order.get(n), onError);
+						}
+					}finally{
+						ShadowBuffers.dropSpares();
+						done.countDown();
+					}
+				});
+			}
+			done.await();
+		}finally{
+			if(ownExecutor != null){
+				ownExecutor.shutdownNow();
+			}
+		}
+		Throwable error = firstError.get();
+		if(error instanceof RuntimeException){
+			throw (RuntimeException) error;
+		}
+		if(error instanceof Error){
+			throw (Error) error;
+		}
+		if(error != null){
+			throw new IllegalStateException("failed to render a chemical", error);
+		}
+		return sheet;
+	}
+
+	private void renderCell(BufferedImage sheet, int index, BiConsumer<Integer, Throwable> onError){
+		Rectangle cell = getCellBounds(index);
+		//a view of the cell's pixels, so threads draw into disjoint regions
+		//of the one raster with a graphics each
+		BufferedImage view = sheet.getSubimage(cell.x, cell.y, cell.width, cell.height);
+		Graphics2D g2 = view.createGraphics();
+		try{
+			renderer.render(g2, chemicals.get(index), 0, 0, cell.width, cell.height, round);
+		}catch(Throwable t){
+			onError.accept(index, t);
+		}finally{
+			g2.dispose();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.renderer.NchemicalRenderer.DisplayLabel;
+
+import java.awt.Font;
+import java.util.Arrays;
+
+/**
+ * The atom labels of a structure as they are laid out: the text to
+ * attach to the atom being laid out, in flat arrays cleared for each
+ * atom, and the labels to draw, taken from a pool of
+ * {@link DisplayLabel}s that are reused rather than made for each
+ * label.
+ *
+ * Like {@link BondLayout}, a thread keeps the layout it last released
+ * and gets it back from the next {@link #acquire()}, so once it has laid
+ * out its largest structure laying out labels makes no new buffers.  A
+ * layout that has pooled more than {@link #MAXIMUM_SPARE_LABELS} labels
+ * is not kept.
+ */
+final class LabelLayout {
+
+	static final int MAXIMUM_SPARE_LABELS = 1024;
+
+	private static final ThreadLocal<LabelLayout> SPARE = new ThreadLocal<>();
+
+	int attachmentCount;
+	String[] attachments = new String[4];
+	/**
+	 * The sides each attachment may go on, a mask of the four
+	 * directions, or -1 for opposite the atom's bonds.
+	 */
+	int[] attachmentLOC = new int[4];
+	float[] attachmentSIZE = new float[4];
+	ARGBColor[] attachmentCOL = new ARGBColor[4];
+
+	int labelCount;
+	DisplayLabel[] labels = new DisplayLabel[16];
+
+	/**
+	 * Where the atom being laid out is drawn.
+	 */
+	final float[] position = new float[2];
+	/**
+	 * The direction an attachment is placed in.
+	 */
+	final float[] direction = new float[2];
+	private double[] angles = new double[4];
+
+	/**
+	 * An empty layout, reusing the one this thread last released if
+	 * there is one.
+	 */
+	static LabelLayout acquire(){
+		LabelLayout layout = SPARE.get();
+		if(layout == null){
+			return new LabelLayout();
+		}
+		//anything laid out while this one is in use gets its own
+		SPARE.remove();
+		return layout;
+	}
+
+	/**
+	 * Hand this layout back to be reused by the next structure this
+	 * thread lays out, unless it has grown too large to keep; it must
+	 * not be used after.
+	 */
+	void release(){
+		if(labels.length > MAXIMUM_SPARE_LABELS){
+			return;
+		}
+		//not keeping the structure reachable from the thread
+		for(int i=0; i< labelCount; i++){
+			labels[i].atomGroup = null;
+		}
+		labelCount = 0;
+		attachmentCount = 0;
+		SPARE.set(this);
+	}
+
+	void clearAttachments(){
+		attachmentCount = 0;
+	}
+
+	void attach(String text, int loc, float size, ARGBColor color){
+		if(attachmentCount == attachments.length){
+			int n = attachmentCount * 2;
+			attachments = Arrays.copyOf(attachments, n);
+			attachmentLOC = Arrays.copyOf(attachmentLOC, n);
+			attachmentSIZE = Arrays.copyOf(attachmentSIZE, n);
+			attachmentCOL = Arrays.copyOf(attachmentCOL, n);
+		}
+		attachments[attachmentCount] = text;
+		attachmentLOC[attachmentCount] = loc;
+		attachmentSIZE[attachmentCount] = size;
+		attachmentCOL[attachmentCount] = color;
+		attachmentCount++;
+	}
+
+	DisplayLabel addLabel(String text, Font font, float x, float y, ARGBColor color, Atom atom){
+		if(labelCount == labels.length){
+			labels = Arrays.copyOf(labels, labelCount * 2);
+		}
+		DisplayLabel label = labels[labelCount];
+		if(label == null){
+			label = new DisplayLabel(text, font, x, y, color);
+			labels[labelCount] = label;
+		}else{
+			label.set(text, font, x, y, color);
+		}
+		label.atomGroup = atom;
+		labelCount++;
+		return label;
+	}
+
+	/**
+	 * Room for the angles to the given number of neighbours.
+	 */
+	double[] angles(int count){
+		if(angles.length < count){
+			angles = new double[Math.max(count, angles.length * 2)];
+		}
+		return angles;
+	}
+}
@@ -23,6 +23,7 @@ import gov.nih.ncats.molwitch.SGroup.SGroupBracket;
 import gov.nih.ncats.molwitch.SGroup.SGroupType;
 import gov.nih.ncats.molwitch.Bond.BondType;
 import gov.nih.ncats.molwitch.isotopes.NISTIsotopeFactory;
+import gov.nih.ncats.molwitch.renderer.DisplayList.PrimitiveType;
 import gov.nih.ncats.molwitch.renderer.Graphics2DParent.*;
 import gov.nih.ncats.molwitch.renderer.RendererOptions.DrawOptions;
 import gov.nih.ncats.molwitch.renderer.RendererOptions.DrawProperties;
@@ -35,14 +36,15 @@ import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Stroke;
-import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -50,7 +52,6 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalInt;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -67,7 +68,11 @@ import java.util.stream.Collectors;
  */
 class NchemicalRenderer extends AbstractChemicalRenderer {
 	public static final ARGBColor transparent = new ARGBColor(0, 0, 0, 0);
-	private String protProperty = "AMINO_ACID_SEQUENCE";
+	private static final ARGBColor WHITE = new ARGBColor(Color.white);
+	private static final ARGBColor BLACK = new ARGBColor(Color.black);
+	private static final float HALO_RADIUS_MULTIPLY = .20f;
+	private static final float HALO_RADIUS_FUDGE = .5f;
+	private volatile String protProperty = "AMINO_ACID_SEQUENCE";
 	private static Font defaultFont;
 
 	static {
@@ -102,7 +107,7 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 
 	}
 	private static Map<Integer, String> subScripts = new HashMap<Integer, String>();
-	private static Set<String> subScriptSet = new HashSet<String>();
+	private static final String SUBSCRIPT_CHARS;
 	static {
 		subScripts.put(2, "\u2082");
 		subScripts.put(3, "\u2083");
@@ -114,11 +119,34 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		subScripts.put(9, "\u2089");
 		subScripts.put(0, "\u2080");
 
-		subScriptSet.addAll(subScripts.values());
+		SUBSCRIPT_CHARS = String.join("", subScripts.values());
 	}
 
+	//every label is made up front for the counts and charges atoms usually have
+	private static final String[] HYDROGEN_LABELS = new String[10];
+	private static final String[] SUPERSCRIPT_NUMBERS = new String[512];
+	private static final int MAX_TABLED_CHARGE = 16;
+	private static final String[] CHARGE_LABELS = new String[2 * MAX_TABLED_CHARGE + 1];
+	static {
+		for (int i = 0; i < HYDROGEN_LABELS.length; i++) {
+			String ss = subScripts.get(i);
+			HYDROGEN_LABELS[i] = ss == null ? "H" : "H" + ss;
+		}
+		for (int i = 0; i < SUPERSCRIPT_NUMBERS.length; i++) {
+			SUPERSCRIPT_NUMBERS[i] = superScriptOf(i);
+		}
+		for (int i = 0; i < CHARGE_LABELS.length; i++) {
+			CHARGE_LABELS[i] = chargeLabelOf(i - MAX_TABLED_CHARGE);
+		}
+	}
+
+	//single character labels, shared rather than made for every character laid out
+	private static final String[] CHAR_LABELS = new String[0x2200];
 
-	private RendererOptions displayParams;
+
+	private final RendererOptions displayParams;
+	private volatile DisplayListCache displayListCache;
+	private RendererOptionChangeListener cacheListener;
 
 	public NchemicalRenderer(RendererOptions options) {
 		displayParams = Objects.requireNonNull(options);
@@ -131,6 +159,26 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 	public RendererOptions getOptions() {
 		return displayParams;
 	}
+
+	/**
+	 * @param cache where to look up and keep layouts, or null to lay out
+	 *              every structure each time it is rendered.
+	 */
+	public synchronized void setDisplayListCache(DisplayListCache cache) {
+		if(cacheListener != null){
+			displayParams.removeChangeListener(cacheListener);
+			cacheListener = null;
+		}
+		displayListCache = cache;
+		if(cache != null){
+			cacheListener = cache.invalidateOnChange(displayParams);
+			displayParams.addChangeListener(cacheListener);
+		}
+	}
+
+	public DisplayListCache getDisplayListCache() {
+		return displayListCache;
+	}
 	/**
 	 * 
 	 * @param pprop
@@ -142,6 +190,14 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		protProperty = pprop;
 	}
 
+	@Override
+	void writeStyle(DataOutput out, Chemical c) throws IOException {
+		super.writeStyle(out, c);
+		out.writeLong(displayParams.fingerprint());
+		String seq = c.getProperty(protProperty);
+		out.writeUTF(seq==null? "" : seq);
+	}
+
 	public void renderProt(Graphics2DTemp g2, String seq, int x, int y, int width, int height) {
 		g2.setColor(new ARGBColor(0, 0, 0, 255));
 		Font f = new Font("Monospaced", Font.PLAIN, 12);
@@ -181,57 +237,289 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 	public void renderChem(Graphics2D g9, Chemical c, int x, int y, int width, int height) {
 /*		System.out.printf("in NchemicalRenderer.renderChem x: %d, y: %d, width: %d; height: %d\n",
 				x, y, width, height);*/
-		boolean firstPass=true;
-		Rectangle2D.Double realBounds=null;
-		
+
 		//exit early if no atoms with "no structure" message
 		if(c.getAtomCount() ==0){
-
-			double textWidth = g9.getFontMetrics().stringWidth("NO STRUCTURE");
-			//some simple font resizing based on render size
-			int multiple = (int) Math.floor(width/textWidth);
-
-			if(multiple > 2) {
-				g9.setFont(g9.getFont().deriveFont(Font.BOLD, g9.getFont().getSize() * (multiple / 2)));
-			}
+			TextPlacement placed = placeNoStructure(g9, x, y, width, height);
+			g9.setFont(placed.font);
 			g9.setBackground(Color.white);
 			g9.setColor(Color.white);
 			g9.fillRect(x,y,width, height);
 			g9.setColor(Color.BLACK);
-			textWidth = g9.getFontMetrics().stringWidth("NO STRUCTURE");
-			g9.drawString("NO STRUCTURE", (width-x)/2 -(int)(textWidth/2),(height-y)/2);
+			g9.drawString(placed.text, (int) placed.x, (int) placed.y);
 			return;
 		}
-		
-		
-		while(firstPass){
-		Graphics2DTemp g2 = new Graphics2DTemp(g9);	
-		if(realBounds!=null){
-			firstPass=false;
-			//g2.drawd(realBounds);
-		}
-		//TODO: delete, only debugging
-		//firstPass=false;
-		
-		if(firstPass){
-			g2.disable();
-		}		
-		
-		
-		String s = c.getProperty(protProperty);
-		if (s != null) {
-			if (!s.trim().equals("")) {
-				renderProt(g2, s, x, y, width, height);
-				return;
+
+		setQualityHints(g9);
+		DisplayList list = layout(g9, c, width, height);
+		RenderMetrics metrics = RenderMetrics.current();
+		long start = RenderMetrics.start(metrics);
+		list.replay(g9, x, y, width, height);
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.PAINT, start);
+		if(metrics != null){
+			metrics.painted(list);
+		}
+	}
+
+	/**
+	 * Lay the structure out once and paint both the shadow and the
+	 * structure from that layout.
+	 */
+	@Override
+	void renderStructure(Graphics2D g9, Chemical c, int x, int y, int width, int height, boolean shadow) {
+		if(c.getAtomCount() ==0){
+			super.renderStructure(g9, c, x, y, width, height, shadow);
+			return;
+		}
+		setQualityHints(g9);
+		DisplayList list = layout(g9, c, width, height);
+		RenderMetrics metrics = RenderMetrics.current();
+		long start = RenderMetrics.start(metrics);
+		if(shadow){
+			float resolution = getShadowResolution();
+			int sw = Math.max(1, Math.round(width * resolution));
+			int sh = Math.max(1, Math.round(height * resolution));
+			ShadowBuffers buffers = ShadowBuffers.acquire(sw, sh);
+			try{
+				Graphics2D g = buffers.mask.createGraphics();
+				setQualityHints(g);
+				if(sw != width || sh != height){
+					g.scale(sw / (double) width, sh / (double) height);
+				}
+				list.replay(g, 0, 0, width, height);
+				g.dispose();
+				drawShadow(g9, buffers, x, y, width, height);
+			}finally{
+				buffers.release();
 			}
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.SHADOW, start);
+			start = RenderMetrics.start(metrics);
 		}
+		list.replay(g9, x, y, width, height);
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.PAINT, start);
+		if(metrics != null){
+			metrics.painted(list);
+		}
+	}
+
+	@Override
+	long optionsFingerprint() {
+		return displayParams.fingerprint();
+	}
+
+	//a cached layout doesn't set these on the way, so they are set before
+	//laying out or painting
+	private static void setQualityHints(Graphics2D g2) {
 		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
 		g2.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
 		g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
-		// System.out.println("There are " + c.getSGroupCount() + " sgroups");
+	}
+
+	/**
+	 * Where the message shown in place of an empty structure goes.
+	 */
+	private static TextPlacement placeNoStructure(Graphics2D g9, int x, int y, int width, int height) {
+		Font font = g9.getFont();
+		double textWidth = g9.getFontMetrics(font).stringWidth("NO STRUCTURE");
+		//some simple font resizing based on render size
+		int multiple = (int) Math.floor(width/textWidth);
+
+		if(multiple > 2) {
+			font = font.deriveFont(Font.BOLD, font.getSize() * (multiple / 2));
+		}
+		textWidth = g9.getFontMetrics(font).stringWidth("NO STRUCTURE");
+		return new TextPlacement("NO STRUCTURE", font, (width-x)/2 -(int)(textWidth/2), (height-y)/2, null);
+	}
+
+	/**
+	 * Write what {@link #renderChem(Graphics2D, Chemical, int, int, int, int, boolean)}
+	 * would paint to a vector canvas: the background, shadow, structure and
+	 * displayed properties.
+	 * 
+	 * @param g9 the graphics whose font metrics are used for the layout;
+	 *           nothing is painted into it, though its font is changed as
+	 *           painting would.
+	 */
+	void renderChemVector(VectorCanvas canvas, Graphics2D g9, Chemical c, int x, int y, int width, int height, boolean round) {
+		RenderMetrics metrics = RenderMetrics.current();
+		long start = RenderMetrics.start(metrics);
+		//a transparent background is left out rather than written
+		if(getBackgroundColor().asColor().getAlpha() !=0){
+			canvas.fill(backgroundShape(x, y, width, height, round), getBackgroundColor());
+		}
+		if(round && getBorderVisible()){
+			canvas.draw(borderShape(x, y, width, height), borderStroke(width), getBorderColor());
+		}
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.BACKGROUND, start);
+
+		boolean shadow = getShadowVisible() && canvas.beginShadowed();
+		if(c.getAtomCount() ==0){
+			TextPlacement placed = placeNoStructure(g9, x, y, width, height);
+			g9.setFont(placed.font);
+			canvas.fill(new Rectangle2D.Double(x, y, width, height), WHITE);
+			canvas.text(placed.text, placed.font, (int) placed.x, (int) placed.y, BLACK);
+		}else{
+			DisplayList list = layout(g9, c, width, height);
+			start = RenderMetrics.start(metrics);
+			canvas.displayList(list, x, y);
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.PAINT, start);
+			if(metrics != null){
+				metrics.painted(list);
+			}
+			//replaying leaves the graphics with the last label's font
+			for(DisplayList.Primitive p : list.getPrimitives()){
+				if(p instanceof DisplayList.GlyphRun){
+					g9.setFont(((DisplayList.GlyphRun) p).getFont());
+				}
+			}
+		}
+		if(shadow){
+			canvas.endShadowed((int)(getShadowRadius()*width + .5f), getShadowTranslucency(), getShadowOffset());
+		}
+
+		for(TextPlacement placed : placeProperties(g9, c, x, y, width, height)){
+			canvas.text(placed.text, placed.font, (int) placed.x, (int) placed.y, BLACK);
+		}
+	}
+
+	/**
+	 * Lay out the given structure to fill a box of the given size.
+	 * 
+	 * @param g9 the graphics whose rendering hints and font metrics are
+	 *           used for the layout; nothing is painted into it.
+	 * 
+	 * @return the display list, which is empty if there is nothing to
+	 *         paint.
+	 */
+	DisplayList layout(Graphics2D g9, Chemical c, int width, int height) {
+		if(c.getAtomCount() ==0){
+			return DisplayList.empty();
+		}
+		//read each setting once, so the key always matches the layout
+		String sequenceProperty = protProperty;
+		DisplayListCache cache = displayListCache;
+		if(cache == null){
+			return layoutUncached(g9, c, sequenceProperty, width, height);
+		}
+		if(!isSequence(c, sequenceProperty)){
+			//the key hashes the coordinates, so it must be made from the ones
+			//the layout draws, and later renders of the same structure see
+			ensureCoordinates(c);
+		}
+		long options = displayParams.fingerprint();
+		DisplayListCache.Key key = DisplayListCache.Key.of(c, sequenceProperty, options);
+		DisplayList list = cache.get(key, width, height);
+		if(list != null){
+			RenderMetrics metrics = RenderMetrics.current();
+			if(metrics != null){
+				metrics.usedCachedLayout();
+			}
+		}else{
+			list = layoutUncached(g9, c, sequenceProperty, width, height);
+			//options changed by another thread mid layout, don't cache a mix
+			if(displayParams.fingerprint() == options){
+				cache.put(key, list);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Whether the structure is drawn as the protein sequence in the given
+	 * property rather than as atoms and bonds.
+	 */
+	private static boolean isSequence(Chemical c, String sequenceProperty) {
+		String s = c.getProperty(sequenceProperty);
+		return s != null && !s.trim().equals("");
+	}
+
+	/**
+	 * Generate coordinates for a structure that has none, as laying it
+	 * out needs them.
+	 */
+	private static void ensureCoordinates(Chemical c) {
+		if(c.hasCoordinates()){
+			return;
+		}
+		RenderMetrics metrics = RenderMetrics.current();
+		long start = RenderMetrics.start(metrics);
+		try {
+			c.generateCoordinates();
+		} catch (MolwitchException e) {
+//			e.printStackTrace();
+		}
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.COORDINATES, start);
+	}
 
-		ArrayList<double[]> toAdd = new ArrayList<>();
+	private DisplayList layoutUncached(Graphics2D g9, Chemical c, String sequenceProperty, int width, int height) {
+		DisplayList.Builder layout = new DisplayList.Builder();
+		if (isSequence(c, sequenceProperty)) {
+			Graphics2DTemp g2 = new Graphics2DTemp(g9);
+			g2.record(layout);
+			renderProt(g2, c.getProperty(sequenceProperty), 0, 0, width, height);
+			return layout.build(g2.getBounds().orElse(null), new AffineTransform(), width, height);
+		}
+
+		//lay everything out once at the approximate scale, recording what
+		//would be painted; the recorded bounds then give the final fit
+		Topology topology = Topology.of(c);
+		Rectangle2D.Double realBounds = layoutChem(g9, c, topology, 0, 0, width, height, null, layout);
+		if(realBounds==null){
+			return layout.build(null, null, width, height);
+		}
+		AffineTransform af = DisplayList.computeFitTransform(realBounds, width, height);
+		double fitScale = af.getScaleX();
+		if(fitScale < DisplayList.MIN_REPLAY_SCALE || fitScale > DisplayList.MAX_REPLAY_SCALE){
+			//text metrics are rounded at the size they are measured, so
+			//when the fit is far from the layout scale the labels would
+			//drift; lay out once more directly at the fitted scale
+			layout = new DisplayList.Builder();
+			realBounds = layoutChem(g9, c, topology, 0, 0, width, height, af, layout);
+			af = new AffineTransform();
+		}
+		return layout.build(realBounds, af, width, height);
+	}
+
+	/**
+	 * Lay out the given structure, recording what would be painted
+	 * into the given display list builder.
+	 * 
+	 * @param topology the connections of the structure, read once and
+	 *                 shared by every pass.
+	 * @param fit an extra transform applied on top of the approximate
+	 *            one (fonts are sized to match), or null for none.
+	 * 
+	 * @return the bounds of everything laid out, or null if there is
+	 *         nothing to paint.
+	 */
+	private Rectangle2D.Double layoutChem(Graphics2D g9, Chemical c, Topology topology, int x, int y, int width, int height,
+			AffineTransform fit, DisplayList.Builder layout) {
+		BondLayout bonds = BondLayout.acquire(c.getAtomCount(), c.getBondCount());
+		LabelLayout labels = LabelLayout.acquire();
+		try{
+			return layoutChem(g9, c, topology, x, y, width, height, fit, layout, bonds, labels);
+		}finally{
+			//released even if the layout fails, so the thread keeps its spares
+			labels.release();
+			bonds.release();
+		}
+	}
+
+	/**
+	 * Lay out the given structure into the given bond and label buffers,
+	 * which the caller acquires and releases.
+	 */
+	private Rectangle2D.Double layoutChem(Graphics2D g9, Chemical c, Topology topology, int x, int y, int width, int height,
+			AffineTransform fit, DisplayList.Builder layout, BondLayout bonds, LabelLayout labels) {
+		Graphics2DTemp g2 = new Graphics2DTemp(g9);
+		g2.record(layout);
+
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		g2.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+		g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		// System.out.println("There are " + c.getSGroupCount() + " sgroups");
 
 
 		boolean skeleton = false;
@@ -323,9 +611,6 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 
 		ARGBColor drawColor = colorPalette.getAtomColor("C");
 
-		final float HALO_RADIUS_MULTIPLY = .20f;
-		final float HALO_RADIUS_FUDGE = .5f;
-
 		double maxX = Double.NEGATIVE_INFINITY;
 		double maxY = Double.NEGATIVE_INFINITY;
 		double minX = Double.POSITIVE_INFINITY;
@@ -341,15 +626,9 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 
 		g2.setColor(drawColor);
 
-		float BONDAVG = 0f;
-		int bcount = 0;
-		if(!c.hasCoordinates()){
-            try {
-                c.generateCoordinates();
-            } catch (MolwitchException e) {
-//                e.printStackTrace();
-            }
-        }
+		RenderMetrics metrics = RenderMetrics.current();
+		ensureCoordinates(c);
+		long start;
 
 
 		Predicate<Bond> drawBond;
@@ -377,112 +656,10 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 			drawAtom = a->true;
 		}
 
-		for (Bond cb : c.getBonds()) {
-			if(!drawBond.test(cb)){
-				continue;
-			}
-			bcount++;
-			Atom[] ca = new Atom[] { cb.getAtom1(), cb.getAtom2() };
-			
-			double length = Math.sqrt(ca[0].getAtomCoordinates().distanceSquaredTo(ca[1].getAtomCoordinates()));
-			//BONDAVG += length;
-			//Note: the 'oldWay' calculations in this class, currently commented out, were used to test the
-			// computations performed -- oldWay was the calculation as performed before an update to address
-			// security issue related to compound assignment statements with operands of different numeric types.
-			// in case of doubt, uncomment the oldWay lines and run rendering tests.
-//			float oldWay = BONDAVG;
-//			oldWay += length;
-			BONDAVG = MathUtilities.safeFloatAdd(BONDAVG, length);
-//			System.out.printf("oldWay: %.2f; new: %.2f\n", oldWay, BONDAVG);
-//			assert Math.abs(oldWay-BONDAVG) < (0.1 * oldWay);
-			float nx = 0;
-			float ny = 0;
-			int bondType = cb.getBondType().getOrder();
-			Bond.Stereo sType = cb.getStereo();
-			if (sType != null && drawStereo) {
-				switch (sType) {
-				case DOWN:
-					bondType = 5;
-					break;
-				case UP:
-					bondType = 6;
-					break;
-				default:
-				}
-			}
-			if (bondType == Bond.BondType.DOUBLE.getOrder() || bondType == Bond.BondType.AROMATIC.getOrder()) {
-				if (ca[0].getBondCount() == 1 || ca[1].getBondCount() == 1)
-					bondType = -1;
-				else {
-					int bondCount = 0;
-					boolean ringBond = false;
-					for (int i = 0; i < 2; i++) {
-						for (Bond cab : ca[i].getBonds()) {
-
-							Atom can = cab.getOtherAtom(ca[i]);
-							int weight = 1;
-							if (cab.isInRing()) {
-								weight *= 4;
-								ringBond = true;
-							}
-							// Don't know what the point of this is ...
-							// It has something to do with deciding which side
-							// an asymmetrical double bond will go to
-							// It SHOULD favor the side INSIDE a ring, if one
-							// exists
-							// This is approximated by finding a weighted
-							// average of the neighbor atoms coordinates
-							// where ring-bonds are weighed more heavily.
-							for (Bond b : can.getBonds()) {
-
-								if (b.isInRing()) {
-									switch (b.getBondType()) {
-									case DOUBLE:
-									case AROMATIC:
-										//weight *= 1.75;  for security issue 17 January 2024
-//										int oldWay2 = weight;
-//										oldWay2 *= 1.75;
-										weight = MathUtilities.safeScaleInt(weight, 1.75f);
-//										System.out.printf("oldWay: %d; new: %d\n", oldWay2, weight);
-//										assert Math.abs(oldWay2-weight) < (0.1 * oldWay2);
-										break;
-									default:
-										break;
-									}
-								}
-							}
-							AtomCoordinates coords = can.getAtomCoordinates();
-							//nx += coords.getX() * weight;// for security issue 17 January 2024
-//							float oldWay3 = nx;
-//							oldWay3+= coords.getX() * weight;
-							nx = MathUtilities.safeFloatAdd(nx, MathUtilities.safeFloatMultiply(coords.getX(), weight));
-//							System.out.printf("oldWay3: %.2f; new: %.2f\n", oldWay3, nx);
-//							assert Math.abs(oldWay3-nx) < (0.1 * oldWay3);
-
-							//ny += coords.getY() * weight;// for security issue 17 January 2024
-
-//							float oldWay4 = ny;
-//							oldWay4+=coords.getY() * weight;
-							ny =MathUtilities.safeFloatAdd(ny, MathUtilities.safeFloatMultiply (coords.getY(), weight));
-//							System.out.printf("oldWay4: %.2f; new: %.2f\n", oldWay4, ny);
-//							assert Math.abs(oldWay4-ny) < (0.1 * Math.abs(oldWay4));
-							bondCount += weight;
-						}
-					}
-					nx /= (float) bondCount;
-					ny /= (float) bondCount;
-					ringBond = ringBond && cb.isInRing();
-					if (!ringBond && centerNonRingDoubleBonds) {
-						bondType = -1;
-					}
-				}
-			}
-			AtomCoordinates c1 =cb.getAtom1().getAtomCoordinates();
-			AtomCoordinates c2 =cb.getAtom2().getAtomCoordinates();
-			toAdd.add(new double[] { c1.getX(), c1.getY(), c2.getX(), c2.getY(), bondType, nx, ny, bcount - 1 });
-			// g2.drawLine((int)c1[0]*dist,(int)c1[1]*dist, (int)c2[0]*dist,
-			// (int)c2[1]*dist);
-		}
+		start = RenderMetrics.start(metrics);
+		float BONDAVG = layoutBondGeometry(c, topology, bonds, drawBond, drawStereo, centerNonRingDoubleBonds);
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.BONDS, start);
+		int bcount = bonds.size;
 		if (BONDAVG == 0 || !drawResize) {
 			BONDAVG = DEF_BOND_AVG;
 		} else {
@@ -529,7 +706,7 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		double adjH = Math.max((height - hMarge) / cheight, 1);
 		double resize = Math.min(adjW, adjH);
 		int newMarge = Math.max(
-				g2.getFontMetrics(defaultFont.deriveFont((float) (DEF_FONT_PERCENT * resize * BONDAVG))).getHeight(),
+				FontCache.metrics(g2._delagate, FontCache.derive(defaultFont, (float) (DEF_FONT_PERCENT * resize * BONDAVG))).getHeight(),
 				0);
 		//System.out.printf("original newMarge: %d\n", newMarge);
 		newMarge=newMarge/3;
@@ -546,42 +723,15 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		// centerTransform.rotate(Math.PI/9);
 		centerTransform.scale(resize, -resize);
 		centerTransform.translate(-centerX, -centerY);
-		
-		double paddingX=1;
-		double paddingY=1;
-		
+
 		double theRealScale=1;
-		if(!firstPass && realBounds!=null){
-			
-			double xmin = realBounds.getMinX();
-			double xmax = realBounds.getMaxX();
-			double ymin = realBounds.getMinY();
-			double ymax = realBounds.getMaxY();
-			double centerx = (xmax+xmin)/2;
-			double centery = (ymax+ymin)/2;
-			double ssy = (height-2*paddingY)/(ymax-ymin);
-			double ssx = (width-2*paddingX)/(xmax-xmin);
-			theRealScale = Math.min(ssx,ssy);
-			double bx = (width*0.5)-theRealScale*(centerx);
-			double by = (height*0.5)-theRealScale*(centery);
-			//TODO it may be that the order of these should be swapped
-			//System.out.println("theRealScale: " + theRealScale);
-			//New
-			AffineTransform af = new AffineTransform();
-			//TODO it may be that the order of these should be swapped
-			af.translate(bx, by);
-			af.scale(theRealScale, theRealScale);
-			//af.translate(0, 0);
-//			af.scale(theRealScale*1.5, theRealScale*1.5);
-
-
-			//TODO It may be that it should be preConcatenate
-			Graphics2DTemp.AffineTransformWrapper waf= new Graphics2DTemp.AffineTransformWrapper(af);
+		if(fit!=null){
+			theRealScale = fit.getScaleX();
+			Graphics2DTemp.AffineTransformWrapper waf= new Graphics2DTemp.AffineTransformWrapper(new AffineTransform(fit));
 			waf.concatenate(centerTransform);
 			centerTransform =waf;
 		}
-		
-		
+
 
 		float bondWidth = (float) (DEF_STROKE_PERCENT * resize * BONDAVG);
 		float braketFrac = 0.7f;
@@ -596,8 +746,8 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		BasicStroke solidREC = new BasicStroke(bondWidth, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
 		float fsize = (float) (DEF_FONT_PERCENT * resize * BONDAVG * theRealScale);
 		//System.out.printf("calculated fsize: %.3f; bracket font: %.3f\n", fsize, (fsize * braketFrac));
-		Font setfont = defaultFont.deriveFont(fsize);
-		Font brafont = defaultFont.deriveFont(fsize * braketFrac);
+		Font setfont = FontCache.derive(defaultFont, fsize);
+		Font brafont = FontCache.derive(defaultFont, fsize * braketFrac);
 		g2.setFont(setfont);
 		g2.setStroke(solid);
 
@@ -606,30 +756,11 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		 * if(fsize<8){ drawSymbols=false; }else{ }
 		 */
 
-		FontMetrics fm = g2.getFontMetrics();
-
-		ArrayList<DisplayLabel> toAddLabelsD = new ArrayList<DisplayLabel>();
-
-		Map<Atom, AtomDrawProps> atompDProps = new HashMap<>();
-		Map<Integer, Chirality> stereoMap = null;
+		StereoAnnotations stereo = null;
 		if (drawStereoLabels) {
-			
-			if(stereoFromMap) {
-				stereoMap = new HashMap<>();
-				for(Atom ca : c.getAtoms()) {
-					//dkatzel 11/ 2018
-					//this is to make it the same as the old ncgc renderer
-					//which any atom map value not set to 1 or 2 is considered either (3)
-					//even 0 !!!
-					int value = ca.getAtomToAtomMap().orElse(3);
-					stereoMap.put(ca.getAtomIndexInParent(), Chirality.valueByParity(value));
-				}
-			}else {
-				final List<Stereocenter> allStereocenters = c.getAllStereocenters();
-				stereoMap = allStereocenters.stream().filter(Stereocenter::isDefined).map(Stereocenter::getCenterAtom).filter(a -> a.getChirality() != null)
-					.collect(Collectors.toMap(Atom::getAtomIndexInParent, a -> a.getChirality()));
-			}
-
+			start = RenderMetrics.start(metrics);
+			stereo = StereoAnnotations.of(c, stereoFromMap);
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.STEREO, start);
 		}
 
 		if (highlightMapAtoms) {
@@ -639,663 +770,364 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				 highlightMapAtoms = false;
 			 }
 		}
-		int atomIndex = -1;
-		Chemical.OpticalActivity opticalActivity = c.computeOpticalActivity().orElse(null);
-		Chemical.StereochemistryType stereochemistryType = c.computeStereochemistryType().orElse(null);
 
-		for (Atom ca : c.getAtoms()) {
-			if(!drawAtom.test(ca)){
-				continue;
+		AtomProps ap = new AtomProps();
+		ap.drawColor = drawColor;
+		ap.colorPalette = colorPalette;
+		ap.highlightColors = highlightColors;
+		ap.highlightMapAtoms = highlightMapAtoms;
+		ap.highlightMonochromatic = highlightMonochromatic;
+		ap.highlightShowAtom = highlightShowAtom;
+		ap.highlightHalo = highlightHalo;
+		ap.drawColorScheme = drawColorScheme;
+		ap.drawStereoLabels = drawStereoLabels;
+		ap.forceStereomono = forceStereomono;
+		ap.assumeRelative = assumeRelative;
+		ap.assumeStarRelative = assumeStarRelative;
+		ap.drawStereoParentheses = drawStereoParentheses;
+		ap.stereoReplace = stereoReplace;
+		ap.stereoColoring = stereoColoring;
+		ap.drawTerminalCarbons = drawTerminalCarbons;
+		ap.drawTerminalHydrogens = drawTerminalHydrogens;
+		ap.drawCarbon = drawCarbon;
+		ap.drawRadius = drawRadius;
+		ap.drawSymbols = drawSymbols;
+		ap.drawAlleneCarbon = drawAlleneCarbon;
+		ap.showMappedNumbers = showMappedNumbers;
+		ap.fsize = fsize;
+		ap.resize = resize;
+		ap.BONDAVG = BONDAVG;
+		ap.Y_DISP_FRAC = Y_DISP_FRAC;
+		ap.DEF_FONT_GAP_PERCENT = DEF_FONT_GAP_PERCENT;
+		start = RenderMetrics.start(metrics);
+		ap.layoutAtoms(g2, c, topology, bonds, labels, stereo, centerTransform, drawAtom);
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.LABELS, start);
+
+		start = RenderMetrics.start(metrics);
+		g2.setColor(drawColor);
+		if (drawBonds) {
+			BondProps bp = new BondProps();
+
+			bp.DEF_DBL_BOND_GAP = DEF_DBL_BOND_GAP;
+			bp.DEF_DBL_BOND_DISTANCE = DEF_DBL_BOND_DISTANCE;
+			bp.BONDAVG = BONDAVG;
+			bp.DEF_NUM_DASH = DEF_NUM_DASH;
+			bp.bondWidth = bondWidth;
+			bp.DEF_SPLIT_RATIO = DEF_SPLIT_RATIO;
+			bp.DrawDashWedge = DrawDashWedge;
+			bp.drawLastDashLineOnNonSymbols = drawLastDashLineOnNonSymbols;
+			
+			bp.PROP_DASH_SPACING = PROP_DASH_SPACING;
+			bp.centerAllDoubleBonds = centerAllDoubleBonds;
+			bp.halfColoredBonds = halfColoredBonds;
+			bp.wedgeAsPoint = wedgeAsPoint;
+			bp.wedgeJoin = wedgeJoin;
+			bp.solidREC = solidREC;
+			bp.maxWedgeWidth = maxW;
+
+			if (highlightHalo) {
+				bp.highlightHalo = true;
+				bp.drawBonds(g2, c, bonds, solidHalo, dashed, centerTransform);
 			}
+			bp.highlightHalo = false;
+			bp.drawBonds(g2, c, bonds, solid, dashed, centerTransform);
 
-			atomIndex++;
-			boolean drawHydrogens = true;
-			boolean forceDraw = false;
-			boolean highlighted = false;
-			boolean fakeAtom = false;
-			boolean isCarbon = "C".equals(ca.getSymbol());
-			boolean isStereo = false;
-			boolean forceHalo = false;
+		}
+		RenderMetrics.stop(metrics, RenderMetrics.Phase.BONDS, start);
 
-			String sm;
-			ARGBColor col = drawColor;
-			ARGBColor hcol = transparent;
-			List<String> attachments = new ArrayList<String>();
-			List<Integer> attachmentLOC = new ArrayList<Integer>();
-			List<Float> attachmentSIZE = new ArrayList<Float>();
-			List<ARGBColor> attachmentCOL = new ArrayList<>();
+		g2.setStroke(solid);
 
+		if (!skeleton && drawSymbols) {
+			start = RenderMetrics.start(metrics);
+			drawLabels(g2, labels);
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.LABELS, start);
+			g2.setFont(setfont);
+			g2.setStroke(solid);
 
-			sm = ca.getAlias().orElse(ca.getSymbol());
-			if (sm==null || !sm.equals(ca.getSymbol())) {
-				fakeAtom = true;
-				if(sm==null && ca.isQueryAtom()){
-					sm="*";
-				}
-			  }
+			g2.setColor(drawColor);
 
-			// have to make a normal if statement
-			// because can't set effectively final variable sm
-			// in a lambda
-			OptionalInt rGroupIndex = ca.getRGroupIndex();
+			if(drawSuperatomLabels){
+				start = RenderMetrics.start(metrics);
+				drawSuperatomLabels(g2, c, centerTransform, drawAtom);
+				RenderMetrics.stop(metrics, RenderMetrics.Phase.SGROUPS, start);
+			}
+		}
 
-			if (rGroupIndex.isPresent()) {
-				sm = this.getRGroupText(rGroupIndex.getAsInt());
+//		System.out.println("Before sgroup call BoundingBox = " + BoundingBox.computeBoundingBoxFor(c));
+		List<SGroup> cgs = c.getSGroups();
+//		System.out.println("sgroups = " + cgs);
+//		System.out.println("after sgroup call BoundingBox = " + BoundingBox.computeBoundingBoxFor(c));
+//
+		if (cgs != null && !cgs.isEmpty()) {
+			start = RenderMetrics.start(metrics);
+			g2.setFont(brafont);
+			drawSGroupBrackets(g2, cgs, (float) maxX, (float) maxY, (float) minX, (float) minY, centerTransform, solidThin, fsize, BONDAVG);
+			RenderMetrics.stop(metrics, RenderMetrics.Phase.SGROUPS, start);
+		}
+		 
+		
+		return g2.getBounds().orElse(null);
+	}
+
+	/**
+	 * Lay out the geometry of every bond that is drawn: its ends, how it
+	 * is drawn and which side the second line of a double bond goes on.
+	 *
+	 * @return the total length of the bonds laid out.
+	 */
+	private static float layoutBondGeometry(Chemical c, Topology topology, BondLayout bonds, Predicate<Bond> drawBond,
+			boolean drawStereo, boolean centerNonRingDoubleBonds) {
+		float lengthSum = 0f;
+		float[] side = new float[2];
+		int bondIndex = -1;
+		for (Bond cb : c.getBonds()) {
+			bondIndex++;
+			if(!drawBond.test(cb)){
+				continue;
 			}
+			int atom1 = topology.getAtom1(bondIndex);
+			int atom2 = topology.getAtom2(bondIndex);
+			AtomCoordinates c1 =cb.getAtom1().getAtomCoordinates();
+			AtomCoordinates c2 =cb.getAtom2().getAtomCoordinates();
 
-			/*
-			 * //A is query atom means "any?" //mol file standard can alias the atom //is
-			 * list is for query atoms if (ca.getSymbol().equals("A") &&
-			 * ca.getAlias().equals("A")) { sm = "*"; } ColorParent col = drawColor;
-			 * ColorParent hcol = transparent; List<String> attachments = new
-			 * ArrayList<String>(); List<Integer> attachmentLOC = new ArrayList<Integer>();
-			 * List<Float> attachmentSIZE = new ArrayList<Float>(); List<ColorParent>
-			 * attachmentCOL = new ArrayList<ColorParent>(); if(ca.isList()){ int[]
-			 * l=ca.getAtomList(); if(l!=null){ String at="["; for(int i=0;i<l.length;i++){
-			 * if(i>0){ at+=","; } at+=Chemical.atomSymbols[l[i]-1]; } at+="]";
-			 * attachments.add(at); attachmentLOC.add(1 | 2 | 4 | 8);
-			 * attachmentSIZE.add(0.4f); attachmentCOL.add(col); } }
-			 */
-			if (highlightMapAtoms) {
-				col = drawColor;
-//				System.out.println("hightlight map atoms = " + highlightMapAtoms);
-//				System.out.println("highlightMonochromatic = " + highlightMonochromatic);
-//				
-				int map = ca.getAtomToAtomMap().orElse(0);
-				if(map >0) {
-//					System.out.println("map > 0 = " + map);
-					
-					if (!highlightMonochromatic) { 
-						col= highlightColors.get(map%highlightColors.size());
-						} else {
-							col = highlightColors.get(2);
-							} 
-					if(highlightShowAtom) {
-						forceDraw = true; 
-					}
-					highlighted = true;
-				}
-				
-				 
-			} else {
-				if (drawColorScheme) {
-					col = colorPalette.getAtomColor(sm);
+			double length = Math.sqrt(c1.distanceSquaredTo(c2));
+			//lengthSum += length;
+			//Note: the 'oldWay' calculations in this class, currently commented out, were used to test the
+			// computations performed -- oldWay was the calculation as performed before an update to address
+			// security issue related to compound assignment statements with operands of different numeric types.
+			// in case of doubt, uncomment the oldWay lines and run rendering tests.
+//			float oldWay = lengthSum;
+//			oldWay += length;
+			lengthSum = MathUtilities.safeFloatAdd(lengthSum, length);
+//			System.out.printf("oldWay: %.2f; new: %.2f\n", oldWay, lengthSum);
+//			assert Math.abs(oldWay-lengthSum) < (0.1 * oldWay);
+			float nx = 0;
+			float ny = 0;
+			int bondType = cb.getBondType().getOrder();
+			Bond.Stereo sType = cb.getStereo();
+			if (sType != null && drawStereo) {
+				switch (sType) {
+				case DOWN:
+					bondType = 5;
+					break;
+				case UP:
+					bondType = 6;
+					break;
+				default:
 				}
 			}
-			if (drawStereoLabels) {
-				if (forceStereomono) {
-					col = drawColor;
+			if (bondType == Bond.BondType.DOUBLE.getOrder() || bondType == Bond.BondType.AROMATIC.getOrder()) {
+				if (topology.getBondCount(atom1) == 1 || topology.getBondCount(atom2) == 1)
+					bondType = -1;
+				else {
+					boolean ringBond = weighDoubleBondSide(c, topology, atom1, atom2, side);
+					nx = side[0];
+					ny = side[1];
+					ringBond = ringBond && topology.isInRing(bondIndex);
+					if (!ringBond && centerNonRingDoubleBonds) {
+						bondType = -1;
+					}
 				}
+			}
+			int flags = 0;
+			if (cb.getBondType() == BondType.DOUBLE && cb.getDoubleBondStereo() == Bond.DoubleBondStereo.E_OR_Z) {
+				flags |= BondLayout.EITHER_DOUBLE;
+			}
+			if (cb.getBondType() == BondType.SINGLE && cb.getStereo() == Bond.Stereo.NONE) {
+				flags |= BondLayout.PLAIN_SINGLE;
+			}
+			bonds.addBond(bondIndex, atom1, atom2,
+					c1.getX(), c1.getY(), c2.getX(), c2.getY(), bondType, nx, ny, cb.getBondLength(), flags);
+			// g2.drawLine((int)c1[0]*dist,(int)c1[1]*dist, (int)c2[0]*dist,
+			// (int)c2[1]*dist);
+		}
+		return lengthSum;
+	}
 
-				String attach2 = null;
-				ARGBColor ncol = col;
-				Chirality chirality = stereoMap.get(atomIndex);
-				if(chirality !=null) {
-					switch (chirality) {
-						case R:
-							attach2 = "(R)";
-							ncol = colorPalette.getStereoColorKnown();
-							if (assumeStarRelative) {
-								attach2 = "(R*)";
-							}
-							if (!assumeRelative)
-								break;
-						case Unknown:
-						case Parity_Either:
-							//from TP: The big thing is that if the molecule is marked as racemic or (+/-) stereochemistry,
-							// //then it's definitely either R or S
-							if (Chemical.StereochemistryType.RACEMIC.equals(stereochemistryType) || Chemical.OpticalActivity.PLUS_MINUS.equals(opticalActivity)) {
-								attach2 = "(RS)";
-								ncol = colorPalette.getStereoColorKnown();
-							} else {
-								attach2 = "(*)";
-								ncol = colorPalette.getStereoColorUnknown();
-							}
+	/**
+	 * Work out which side of the double bond between the given atoms its
+	 * second line goes on, as the average of the neighbouring atoms'
+	 * coordinates, with atoms along ring bonds weighed more heavily.
+	 *
+	 * @param side set to the point the second line leans towards.
+	 *
+	 * @return whether any bond of either atom is in a ring.
+	 */
+	private static boolean weighDoubleBondSide(Chemical c, Topology topology, int atom1, int atom2, float[] side) {
+		float nx = 0;
+		float ny = 0;
+		boolean ringBond = false;
+		int bondCount = 0;
+		for (int i = 0; i < 2; i++) {
+			int end = i == 0 ? atom1 : atom2;
+			for (int e = topology.firstEdge(end); e < topology.endEdge(end); e++) {
+
+				int can = topology.neighbor(e);
+				int weight = 1;
+				if (topology.isInRing(topology.edgeBond(e))) {
+					weight *= 4;
+					ringBond = true;
+				}
+				// Don't know what the point of this is ...
+				// It has something to do with deciding which side
+				// an asymmetrical double bond will go to
+				// It SHOULD favor the side INSIDE a ring, if one
+				// exists
+				// This is approximated by finding a weighted
+				// average of the neighbor atoms coordinates
+				// where ring-bonds are weighed more heavily.
+				for (int e2 = topology.firstEdge(can); e2 < topology.endEdge(can); e2++) {
+					int b = topology.edgeBond(e2);
+
+					if (topology.isInRing(b)) {
+						switch (topology.getBondType(b)) {
+						case DOUBLE:
+						case AROMATIC:
+							//weight *= 1.75;  for security issue 17 January 2024
+//							int oldWay2 = weight;
+//							oldWay2 *= 1.75;
+							weight = MathUtilities.safeScaleInt(weight, 1.75f);
+//							System.out.printf("oldWay: %d; new: %d\n", oldWay2, weight);
+//							assert Math.abs(oldWay2-weight) < (0.1 * oldWay2);
 							break;
-						case S:
-							attach2 = "(S)";
-							ncol = colorPalette.getStereoColorKnown();
-							if (assumeStarRelative) {
-								attach2 = "(S*)";
-							}
-							if (!assumeRelative) {
-								break;
-							}
-							attach2 = "(*)";
-							ncol = colorPalette.getStereoColorUnknown();
-							// case ChemicalAtom.STEREO_SR:
-							// attach2 = "(SR)";
-							// ncol = STEREO_COLOR_KNOWN;
-							// break;
-
 						default:
-					}
-				}
-				if (attach2 != null) {
-					if (!drawStereoParentheses) {
-						attach2 = attach2.replace("(", "").replace(")", "");
-					}
-					isStereo = true;
-					if (stereoReplace) {
-						if (stereoColoring) {
-							col = ncol;
-						}
-						if ("C".equals(sm)) {
-							sm = attach2;
-						} else {
-							sm = sm + attach2;
-						}
-						forceDraw = true;
-						//System.out.printf("setting font to %.4f\n", (fsize * 0.7f));
-						g2.setFont(defaultFont.deriveFont(fsize * 0.7f));
-						fm = g2.getFontMetrics();
-					} else {
-						// should restrict full atom highlight for
-						// small images
-						if (stereoColoring) {
-							if (highlightShowAtom) {
-								forceDraw = true;
-							}
-							highlighted = true;
-
-							col = ncol.withAlpha( 55);
-							forceHalo = true;
-						}
-						attachments.add(attach2);
-						// attachmentLOC.add(1|2|4|8);
-						attachmentLOC.add(-1);
-						attachmentSIZE.add(.7f);
-						if (stereoColoring) {
-							attachmentCOL.add(ncol);
-						} else {
-							attachmentCOL.add(col);
+							break;
 						}
-						//System.out.printf("going to use der. font %.4f\n", (fsize * 1.0f));
-						g2.setFont(defaultFont.deriveFont(Font.BOLD, fsize * 1.0f));
-						fm = g2.getFontMetrics();
-					}
-				}
-			}
-			if(drawTerminalCarbons){
-				// String attatch="";
-				if (drawCarbon) {
-					drawHydrogens = true;
-				} else if (isCarbon) {
-					if ((forceDraw && !isStereo) || ca.getBondCount() < 2 || ca.getCharge() != 0 || ca.getRadical() != 0
-							|| ca.isIsotope()) {
-						drawHydrogens = true;
-					} else {
-						drawHydrogens = false;
-					}
-				}
-				if (drawHydrogens) {
-					drawHydrogens = drawTerminalHydrogens && !fakeAtom;
-				}
-			}else{
-				//don't draw terminal carbons
-				if(isCarbon){
-					if(ca.getBondCount() < 2){
-						
-						//terminal C
-						drawCarbon = forceDraw || ca.getCharge() != 0 || ca.getRadical() != 0 || ca.isIsotope();
-					}else{
-						drawCarbon=false;
 					}
-					drawHydrogens = drawCarbon;
 				}
-//				drawHydrogens = drawTerminalHydrogens;
+				AtomCoordinates coords = c.getAtom(can).getAtomCoordinates();
+				//nx += coords.getX() * weight;// for security issue 17 January 2024
+//				float oldWay3 = nx;
+//				oldWay3+= coords.getX() * weight;
+				nx = MathUtilities.safeFloatAdd(nx, MathUtilities.safeFloatMultiply(coords.getX(), weight));
+//				System.out.printf("oldWay3: %.2f; new: %.2f\n", oldWay3, nx);
+//				assert Math.abs(oldWay3-nx) < (0.1 * oldWay3);
+
+				//ny += coords.getY() * weight;// for security issue 17 January 2024
+
+//				float oldWay4 = ny;
+//				oldWay4+=coords.getY() * weight;
+				ny =MathUtilities.safeFloatAdd(ny, MathUtilities.safeFloatMultiply (coords.getY(), weight));
+//				System.out.printf("oldWay4: %.2f; new: %.2f\n", oldWay4, ny);
+//				assert Math.abs(oldWay4-ny) < (0.1 * Math.abs(oldWay4));
+				bondCount += weight;
 			}
-			String attatch = "";
-			
-			float[] p = new float[2];
-			centerTransform.transform(ca.getAtomCoordinates().xy(), 0, p, 0, 1);
-			// tyler says it's not worth drawing to proportion
-			// since we don't draw atom balls to scale
-			// not worth implementing.
+		}
+		nx /= (float) bondCount;
+		ny /= (float) bondCount;
+		side[0] = nx;
+		side[1] = ny;
+		return ringBond;
+	}
 
-			/*
-			 * if (drawProportion) { float atomRad = (ca.getAtomNo() <
-			 * Chemical.atomRadius.length && drawProportion) ? (float)
-			 * Chemical.atomRadius[ca .getAtomNo()] : 1f;
-			 * g2.setFont(defaultFont.deriveFont(fsize * atomRad)); fm =
-			 * g2.getFontMetrics(); }
-			 */
-			float w ;//= fm.stringWidth(sm) / 2;
-			Rectangle2D _ERASE_ME = fm.getStringBounds(sm, g2._delagate);
-			Rectangle2DParent rect = ggen.makeRectangle(_ERASE_ME.getX(), _ERASE_ME.getY(), _ERASE_ME.getWidth(),
-					_ERASE_ME.getHeight());
-			w = (float) rect.getWidth() / 2;
-			float h = (float) rect.getHeight() / 3;
-			g2.setBackground(transparent);
-			float radius = Math.max(w, h * 6 / 5) + 2 * w / 10;
-			boolean drawHalo = (highlightHalo && highlighted) || forceHalo;
+	/**
+	 * Draw the laid out atom labels, keeping the bounds of each.
+	 */
+	private static void drawLabels(Graphics2DTemp g2, LabelLayout labels) {
+		for (int i = 0; i < labels.labelCount; i++) {
+			DisplayLabel dl = labels.labels[i];
+			g2.setFont(dl.dfont);
+			g2.setColor(dl.c);
+			Rectangle2D s333 = drawString(g2, dl.lab, dl.x, dl.y,
+					dl.bbox != null ? dl.bbox : new Rectangle2D.Double());
+			// g2.drawd(s333);
+			dl.bbox = s333;
+		}
+	}
 
-			if (drawHalo) {
-				g2.setColor(col);
-				float prad = radius;
-				//radius *= HALO_RADIUS_FUDGE;// for security issue 17 January 2024
-//				float oldWay5 = radius;
-//				oldWay5*= HALO_RADIUS_FUDGE;
-				radius = MathUtilities.safeFloatMultiply(radius, HALO_RADIUS_FUDGE);
-//				System.out.printf("oldWay: %.2f; new: %.2f\n", oldWay5, radius);
-//				assert Math.abs(oldWay5-radius) < (0.1 * oldWay5);
+	/**
+	 * Draw the label of each superatom, at the atom its crossing bond
+	 * leads to.
+	 */
+	private static void drawSuperatomLabels(Graphics2DTemp g2, Chemical c, AffineTransformParent centerTransform,
+			Predicate<Atom> drawAtom) {
+		for(SGroup sgroup : c.getSGroups()){
+			if(sgroup.getType() == SGroupType.SUPERATOM_OR_ABBREVIATION){
+				sgroup.getSubscript().ifPresent(text->{
+
+					Optional<Atom> atomToUseCoordsOf = sgroup.getBonds().map(b->{
+						Atom a = b.getAtom1();
+						if(drawAtom.test(a)){
+							return b.getAtom2();
+						}else{
+							return a;
+						}
+					}).findFirst();
+					if(atomToUseCoordsOf.isPresent()){
+						double[] p = new double[2];
+						centerTransform.transform(atomToUseCoordsOf.get().getAtomCoordinates().xy(), 0, p, 0, 1);
+						String formattedText = formatSuperAtomLabel(text);
+
+						FontCache.Metrics metrics = metrics(g2);
+						int labelWidth = metrics.stringWidth(formattedText);
+						float labelX, labelY;
+						if(text.charAt(0) =='^'){
+							//the atom coord is the END coordinate not the start
+							labelX = (float)(p[0]- labelWidth);
+						}else{
+							labelX = (float)(p[0]);
+						}
+						labelY = (float) (p[1] + metrics.getHeight()/2 );
+						drawString(g2, formattedText, labelX, labelY);
+					}
 
-				//radius += HALO_RADIUS_MULTIPLY * resize * BONDAVG;
-//				float oldWay6 = radius;
-//				oldWay6+= HALO_RADIUS_MULTIPLY * resize * BONDAVG;
-				radius = MathUtilities.safeFloatAdd(radius, MathUtilities.safeFloatMultiply(HALO_RADIUS_MULTIPLY, resize, BONDAVG));
-//				System.out.printf("oldWay6: %.2f; new: %.2f\n", oldWay6, radius);
-//				assert Math.abs(oldWay6-radius) < (0.1 * oldWay6);
-				g2.fillP(ggen.makeEllipse(p[0] - radius, p[1] - radius, radius * 2, radius * 2));
-				radius = prad;
-				hcol = col;
-				col = drawColor;
+				});
 			}
+		}
+	}
 
-			if (ca.isIsotope()) {
-				String attatch2 = "";
-				attatch2 = getSuperScriptString(ca.getMassNumber());
-				if (!attatch2.equals("")) {
-					attachments.add(attatch2);
-					attachmentLOC.add(4);
-					attachmentSIZE.add(1f);
-					attachmentCOL.add(col);
-					forceDraw = true;
-				}
-			}
-			if (ca.getImplicitHCount() > 0) {
-				if (drawHydrogens) {
-					attatch += "H";
-					int hcount = ca.getImplicitHCount();
-					String ss = subScripts.get(hcount);
-					if (ss != null) {
-						attatch += ss;
-					}
-				}
+	/**
+	 * Draw the brackets of every SGroup besides superatoms, around the
+	 * given bounds of the structure.
+	 */
+	private void drawSGroupBrackets(Graphics2DTemp g2, List<SGroup> cgs, float maxX, float maxY, float minX, float minY,
+			AffineTransformParent centerTransform, BasicStroke solidThin, float fsize, float BONDAVG) {
+		//compute bounding boxes for brackets
+		Set<SGroup> trustedSgroupBrackets = new HashSet<>();
+		Set<SGroup> untrustedSgroupBrackets = new HashSet<>();
+		for (SGroup cg : cgs) {
+			if(cg.getType() == SGroupType.SUPERATOM_OR_ABBREVIATION){
+				//don't use bracket for SuperAtoms
+				continue;
 			}
 
-			if (ca.getCharge() != 0) {
-				String attatch2 = "";
-				int mag = Math.abs(ca.getCharge());
-
-				if (mag > 1) {
-					attatch2 = getSuperScriptString(mag);
+				if (cg.bracketsTrusted()) {
+					trustedSgroupBrackets.add(cg);
+				}else{
+					untrustedSgroupBrackets.add(cg);
 				}
 
-				if (ca.getCharge() > 0) {
-					attatch2 += "\u207A";
-				} else {
-					attatch2 += "\u207B";
-				}
-				if (!attatch2.equals("")) {
-					attachments.add(attatch2);
-					attachmentLOC.add(1);
-					attachmentSIZE.add(1f);
-					attachmentCOL.add(col);
-					forceDraw = true;
-				}
+		}
+		for(SGroup sgroup: trustedSgroupBrackets){
+			Rectangle2D.Float rect = computeBracketCoordsFor(sgroup, 0);
+			if(rect == null){
+				continue;
 			}
+			drawBracketedSgroup(g2, maxX, maxY, minX, minY, centerTransform, solidThin, fsize, sgroup, rect);
 
-			//MM experiment 30 May 2024
-			if(ca.getBonds().size()==0) {
-				forceDraw = true;
-			}
-			if (!attatch.equals("")) {
-				attachments.add(attatch);
-				if (ca.getBondCount() == 0) {
-					if (FORCE_LEFT_HYDROGEN.contains(ca.getSymbol()))
-						attachmentLOC.add(4);
-					else
-						attachmentLOC.add(1);
-				} else if (ca.getBondCount() == 1) {
-					attachmentLOC.add(1 | 4);
-				} else {
-					attachmentLOC.add(1 | 2 | 4 | 8);
-				}
-				attachmentCOL.add(col);
-				attachmentSIZE.add(1f);
-				forceDraw = true;
+		}
+
+		/*for(SGroup sgroup: untrustedSgroupBrackets){
+			Rectangle2D.Float rect = computeBracketCoordsFor(sgroup, bondWidth);
+			if(rect == null){
+				continue;
 			}
-			int radicalValue = ca.getRadical();
-			if (radicalValue != 0) {
-				String attatch2 = "";
-				switch (radicalValue) {
-				// NOTE CDK can't distinguish between divalent singlets and triplets
-				// so pretend they're both divalent singlets for now
-				// because that's what CDK's mol writer does....
-				case 1:
-					attatch2 = ".";
-					break;
-				case 2:
-					attatch2 = "\u200A.";
-					break;
-				// NOTE the attach2s for these was commented out already
-				// case ChemicalAtom.ATOM_RADICAL_2_SINGLET:
-				// attatch2 = "\u200A.";
-				// break;
-				// case ChemicalAtom.ATOM_RADICAL_2_TRIPLET:
-				// attatch2 = "\u200A...";
-				// break;
-				default:
-				}
-				if (!attatch2.equals("")) {
-					attachments.add(attatch2);
-					attachmentLOC.add(2 | 8);
-					attachmentCOL.add(col);
-					attachmentSIZE.add(1f);
-					forceDraw = true;
-				}
-			}
-			
-			if (showMappedNumbers) {
-				int amap = ca.getAtomToAtomMap().orElse(0);
-
-				if (amap != 0) {
-					String attatch2 = "";
-					attatch2 = getSuperScriptString(amap) + "";
-					if (!attatch2.equals("")) {
-						attachments.add(attatch2);
-						attachmentLOC.add(1 | 2 | 4 | 8);
-						attachmentCOL.add(col);
-						attachmentSIZE.add(1f);
-					}
-				}
-			}
-			 
-			boolean drawThisAtom = forceDraw
-					|| ((!isCarbon || drawCarbon) && (!isCarbon || drawTerminalCarbons || drawCarbon));
-			boolean drawAttachments = attachments.size() > 0;
-			if (ca.getBondCount() == 2) {
-				if (isCarbon) {
-
-					boolean onlyDoubleBonds = !ca.getBonds().stream()
-							.filter(cab -> cab.getBondType() != Bond.BondType.DOUBLE).findAny().isPresent();
-					if (onlyDoubleBonds) {
-						drawThisAtom = drawAlleneCarbon;
-					}
-					// boolean leave = false;
-					// for (int i = 0; i < ca.getBondCount(); i++) {
-					//
-					// switch (ca.getBond(i).getType()) {
-					// case ChemicalBond.BOND_TYPE_DOUBLE:
-					// break;
-					// default:
-					// leave = true;
-					// }
-					// if (leave)
-					// break;
-					// }
-					// if (!leave) {
-					// drawThisAtom = drawAlleneCarbon;
-					// }
-				}
-			}
-
-			if (drawRadius) {
-				if (!drawSymbols) {
-					if (drawThisAtom) {
-						g2.setColor(col);
-						g2.fillP(ggen.makeEllipse(p[0] - radius, p[1] - radius, radius * 2, radius * 2));
-					} else {
-						radius = 0;
-					}
-				}
-			}
-			if (drawSymbols) {
-				if (!drawThisAtom) {
-					radius = 0;
-				}
-				if (drawAttachments) {
-					int used = 0;
-					for (int j = 0; j < attachments.size(); j++) {
-						String att = attachments.get(j);
-						float size = attachmentSIZE.get(j);
-						ARGBColor acol = attachmentCOL.get(j);
-						int supported = attachmentLOC.get(j);
-						int cardPos = supported;
-
-						float[] nv = new float[] { 0, 1 };
-
-						if (supported != -1) {
-							int avail = supported & (~used);
-							cardPos = getAttachCardPos(ca, att, avail);
-							used = used | (1 << cardPos);
-						} else {
-							nv = getNormVecAway(ca);
-
-						}
-
-						Font ofont = g2.getFont();
-						Font fnt2 = ofont.deriveFont(fsize * size);
-						g2.setFont(fnt2);
-						FontMetrics fm2 = g2.getFontMetrics();
-						//System.out.printf("ofont: %d\n", ofont.getSize());
-						g2.setFont(ofont);
-
-						Collection<Entry<String, float[]>> smap = getAttachPos(att, w, h, p, fm2, g2, cardPos, nv, Y_DISP_FRAC);
-						if (smap != null) {
-							for (Entry<String, float[]> ent : smap) {
-								DisplayLabel dl = new DisplayLabel(ent.getKey(), fnt2, ent.getValue()[0],
-										ent.getValue()[1], acol);
-								toAddLabelsD.add(dl);
-								dl.atomGroup = ca;
-
-								// toAddLabels.add(ent.getKey());
-								// toAddLabelsPos.add(ent.getValue());
-								// toAddLabelsColor.add(acol);
-								// toAddLabelsFont.add(fnt2);
-							}
-						}
-					}
-				}
-				if (drawThisAtom) {
-					DisplayLabel dl = new DisplayLabel(sm, g2.getFont(), p[0] - w, p[1] + h, drawColor);
-					toAddLabelsD.add(dl);
-					dl.atomGroup = ca;
-					// toAddLabels.add(sm);
-					// toAddLabelsPos.add(new float[] { p[0] - w, p[1] + h });
-					if (highlighted && drawRadius) {
-						dl.c = drawColor;
-					} else {
-						dl.c = col;
-					}
-
-				}
-			}
-
-			radius = radius * DEF_FONT_GAP_PERCENT;
-
-			AtomDrawProps drawProps = new AtomDrawProps();
-			atompDProps.put(ca, drawProps);
-			drawProps.highlight = highlighted;
-			drawProps.dcolor = col;
-			drawProps.hcolor = hcol;
-			drawProps.radius = radius;
-			//simple test 20 September 2022
-			//fsize =20.0f;
-			g2.setFont(defaultFont.deriveFont(fsize));
-			fm = g2.getFontMetrics();
-			//System.out.printf("font size %.3f\n", fm.getFont().getSize());
-		}
-
-
-		g2.setColor(drawColor);
-		if (drawBonds) {
-			BondProps bp = new BondProps();
-
-			bp.DEF_DBL_BOND_GAP = DEF_DBL_BOND_GAP;
-			bp.DEF_DBL_BOND_DISTANCE = DEF_DBL_BOND_DISTANCE;
-			bp.BONDAVG = BONDAVG;
-			bp.DEF_NUM_DASH = DEF_NUM_DASH;
-			bp.bondWidth = bondWidth;
-			bp.DEF_SPLIT_RATIO = DEF_SPLIT_RATIO;
-			bp.DrawDashWedge = DrawDashWedge;
-			bp.drawLastDashLineOnNonSymbols = drawLastDashLineOnNonSymbols;
-			
-			bp.PROP_DASH_SPACING = PROP_DASH_SPACING;
-			bp.centerAllDoubleBonds = centerAllDoubleBonds;
-			bp.halfColoredBonds = halfColoredBonds;
-			bp.wedgeAsPoint = wedgeAsPoint;
-			bp.wedgeJoin = wedgeJoin;
-			bp.solidREC = solidREC;
-			bp.maxWedgeWidth = maxW;
-
-			if (highlightHalo) {
-				bp.highlightHalo = true;
-				bp.drawBonds(g2, c, toAdd, solidHalo, dashed, centerTransform, atompDProps);
-			}
-			bp.highlightHalo = false;
-			bp.drawBonds(g2, c, toAdd, solid, dashed, centerTransform, atompDProps);
-
-		}
-
-		g2.setStroke(solid);
-
-		if (!skeleton && drawSymbols) {
-			for (int i = 0; i < toAddLabelsD.size(); i++) {
-				DisplayLabel dl = toAddLabelsD.get(i);
-				g2.setFont(dl.dfont);
-				g2.setColor(dl.c);
-				Rectangle2D s333 = drawString(g2, dl.lab, dl.x, dl.y);
-				// g2.drawd(s333);
-				dl.bbox = s333;
-			}
-			g2.setFont(setfont);
-			g2.setStroke(solid);
-
-			g2.setColor(drawColor);
-
-			if(drawSuperatomLabels){
-				for(SGroup sgroup : c.getSGroups()){
-					if(sgroup.getType() == SGroupType.SUPERATOM_OR_ABBREVIATION){
-						AffineTransformParent finalCenterTransform = centerTransform;
-						sgroup.getSubscript().ifPresent(text->{
-
-							Optional<Atom> atomToUseCoordsOf = sgroup.getBonds().map(b->{
-								Atom a = b.getAtom1();
-								if(drawAtom.test(a)){
-									return b.getAtom2();
-								}else{
-									return a;
-								}
-							}).findFirst();
-							if(atomToUseCoordsOf.isPresent()){
-								double[] p = new double[2];
-								finalCenterTransform.transform(atomToUseCoordsOf.get().getAtomCoordinates().xy(), 0, p, 0, 1);
-								String formattedText = formatSuperAtomLabel(text);
-
-								FontMetrics metrics = g2.getFontMetrics();
-								int labelWidth = metrics.stringWidth(formattedText);
-								float labelX, labelY;
-								if(text.charAt(0) =='^'){
-									//the atom coord is the END coordinate not the start
-									labelX = (float)(p[0]- labelWidth);
-								}else{
-									labelX = (float)(p[0]);
-								}
-								labelY = (float) (p[1] + metrics.getHeight()/2 );
-								drawString(g2, formattedText, labelX, labelY);
-							}
-
-						});
-					}
-				}
-			}
-		}
-
-//		System.out.println("Before sgroup call BoundingBox = " + BoundingBox.computeBoundingBoxFor(c));
-		List<SGroup> cgs = c.getSGroups();
-//		System.out.println("sgroups = " + cgs);
-//		System.out.println("after sgroup call BoundingBox = " + BoundingBox.computeBoundingBoxFor(c));
-//
-		if (cgs != null && !cgs.isEmpty()) {
-			g2.setFont(brafont);
-			//compute bounding boxes for brackets
-			Set<SGroup> trustedSgroupBrackets = new HashSet<>();
-			Set<SGroup> untrustedSgroupBrackets = new HashSet<>();
-			for (SGroup cg : cgs) {
-				if(cg.getType() == SGroupType.SUPERATOM_OR_ABBREVIATION){
-					//don't use bracket for SuperAtoms
-					continue;
-				}
-
-					if (cg.bracketsTrusted()) {
-						trustedSgroupBrackets.add(cg);
-					}else{
-						untrustedSgroupBrackets.add(cg);
-					}
-
-			}
-			for(SGroup sgroup: trustedSgroupBrackets){
-				Rectangle2D.Float rect = computeBracketCoordsFor(sgroup, 0);
-				if(rect == null){
-					continue;
-				}
-				drawBracketedSgroup(g2, (float) maxX, (float) maxY, (float) minX, (float) minY, centerTransform, solidThin, fsize, sgroup, rect);
-
-			}
-
-			/*for(SGroup sgroup: untrustedSgroupBrackets){
-				Rectangle2D.Float rect = computeBracketCoordsFor(sgroup, bondWidth);
-				if(rect == null){
-					continue;
-				}
-				drawBracketedSgroup(g2, (float) maxX, (float) maxY, (float) minX, (float) minY, centerTransform, solidThin, fsize, sgroup, rect);
-
-			}*/
-			for(SGroup sgroup: untrustedSgroupBrackets){
-				Rectangle2D.Float rect = computeBracketCoordsFor(sgroup, BONDAVG);
-				if(rect == null){
-					continue;
-				}
-				drawBracketedSgroup(g2, (float) maxX, (float) maxY, (float) minX, (float) minY, centerTransform, solidThin, fsize, sgroup, rect);
-
+			drawBracketedSgroup(g2, maxX, maxY, minX, minY, centerTransform, solidThin, fsize, sgroup, rect);
+
+		}*/
+		for(SGroup sgroup: untrustedSgroupBrackets){
+			Rectangle2D.Float rect = computeBracketCoordsFor(sgroup, BONDAVG);
+			if(rect == null){
+				continue;
 			}
+			drawBracketedSgroup(g2, maxX, maxY, minX, minY, centerTransform, solidThin, fsize, sgroup, rect);
 
 		}
-		 
-		
-		realBounds = g2.getBounds().orElse(null);
-			if(realBounds==null)break;
 
-/*
-			System.out.printf("realBounds.getX(): %.3f, realBounds.getY(): %.3f, realBounds.getWidth(): %.3f, realBounds.getHeight(): %.3f\n",
-				realBounds.getX(), realBounds.getY(), realBounds.getWidth(), realBounds.getHeight());
-*/
-
-			double minAtomX =Double.POSITIVE_INFINITY;
-			double maxAtomX =Double.NEGATIVE_INFINITY;
-			double minAtomY =Double.POSITIVE_INFINITY;
-			double maxAtomY =Double.NEGATIVE_INFINITY;
-
-			for( Atom  at : c.getAtoms()){
-				if( at.getAtomCoordinates().getX() > maxAtomX) {
-					maxAtomX=at.getAtomCoordinates().getX();
-				}
-				if( at.getAtomCoordinates().getX() < minAtomX) {
-					minAtomX=at.getAtomCoordinates().getX();
-				}
-				if( at.getAtomCoordinates().getY() > maxAtomY) {
-					maxAtomY=at.getAtomCoordinates().getY();
-				}
-				if( at.getAtomCoordinates().getY() < minAtomY) {
-					minAtomY=at.getAtomCoordinates().getY();
-				}
-			}
-			/*System.out.printf("computed minAtomX: %.3f; maxAtomX: %.3f; minAtomY: %.3f; maxAtomY: %.3f\n",
-					minAtomX, maxAtomX, minAtomY, maxAtomY);*/
-
-			double xAtomRange = maxAtomX-minAtomX;
-			double yAtomRange = maxAtomY-minAtomY;
-			double xRatio = realBounds.getWidth()/xAtomRange;
-			double yRatio = realBounds.getHeight()/yAtomRange;
-			/*System.out.printf("xAtomRange: %.3f; yAtomRange: %.3f; xRatio: %.23f; yRatio: %.3f\n", xAtomRange, yAtomRange,
-					xRatio, yRatio);*/
-		}
 	}
 
 	private void drawBracketedSgroup(Graphics2DTemp g2, float maxX, float maxY, float minX, float minY, AffineTransformParent centerTransform, BasicStroke solidThin, float fsize, SGroup cg, Rectangle2D.Float rect) {
-		FontMetrics fm;
+		FontCache.Metrics fm;
 		float[] coord = new float[] { 	rect.x, rect.y, rect.x,
 				rect.y + rect.height, rect.x + rect.width,
 				rect.y, rect.x + rect.width,
@@ -1333,12 +1165,10 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		float bsize = .2f;
 
 
-		g2.drawP(ggen.makeLine(ncoord[0], ncoord[1], ncoord[2], ncoord[3]));
-		g2.drawP(ggen.makeLine(ncoord[0], ncoord[1], ncoord[0] + len1 * bsize, ncoord[1]));
-		g2.drawP(ggen.makeLine(ncoord[2], ncoord[3], ncoord[2] + len1 * bsize, ncoord[3]));
-		g2.drawP(ggen.makeLine(ncoord[4], ncoord[5], ncoord[6], ncoord[7]));
-		g2.drawP(ggen.makeLine(ncoord[4], ncoord[5], ncoord[4] - len1 * bsize, ncoord[5]));
-		g2.drawP(ggen.makeLine(ncoord[6], ncoord[7], ncoord[6] - len1 * bsize, ncoord[7]));
+		g2.drawBracket(new double[] { ncoord[0] + len1 * bsize, ncoord[1], ncoord[0], ncoord[1],
+				ncoord[2], ncoord[3], ncoord[2] + len1 * bsize, ncoord[3] });
+		g2.drawBracket(new double[] { ncoord[4] - len1 * bsize, ncoord[5], ncoord[4], ncoord[5],
+				ncoord[6], ncoord[7], ncoord[6] - len1 * bsize, ncoord[7] });
 
 
 //				System.out.println("minX " + minX + " minY = " + minY + "maxX = " + maxX + " maxY" + maxY);
@@ -1359,17 +1189,17 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 
 		if(supsOpt.isPresent() || subs.isPresent()){
 			//System.out.printf("g2.setFont(defaultFont.deriveFont(fsize * 0.7f)); %.5f", (fsize * 0.7f));
-			g2.setFont(defaultFont.deriveFont(fsize * 0.7f));
-			fm = g2.getFontMetrics();
+			g2.setFont(FontCache.derive(defaultFont, fsize * 0.7f));
+			fm = metrics(g2);
 
 			if(subs.isPresent()){
-				float h2 = (float) (fm.getStringBounds(subs.get(), g2._delagate).getHeight());
+				float h2 = (float) (fm.stringBounds(subs.get()).getHeight());
 
 				drawString(g2, " " + subs.get(), ncoord[4], ncoord[5] + h2 * .33f);
 			}
 			if(supsOpt.isPresent()){
 				String sups = supsOpt.get();
-				float h1 = (float) (fm.getStringBounds(sups, g2._delagate).getHeight());
+				float h1 = (float) (fm.stringBounds(sups).getHeight());
 				drawString(g2, " " + sups, ncoord[6], ncoord[7] + h1 * .33f);
 			}
 		}
@@ -1437,22 +1267,39 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		Atom atomGroup = null;
 
 		public DisplayLabel(String lab, Font f, float x, float y, ARGBColor c) {
+			set(lab, f, x, y, c);
+		}
+
+		void set(String lab, Font f, float x, float y, ARGBColor c) {
 			this.dfont = f;
 			this.lab = lab;
 			this.x = x;
 			this.y = y;
 			this.c = c;
-
+			this.atomGroup = null;
 		}
 	}
 
+	private static FontCache.Metrics metrics(Graphics2DTemp g2) {
+		return FontCache.metrics(g2._delagate, g2.getFont());
+	}
+
 	private static Rectangle2D drawString(Graphics2DTemp g2, String s, float x, float y) {
+		return drawString(g2, s, x, y, new Rectangle2D.Double());
+	}
+
+	/**
+	 * Draw the string, setting the bounds it covers into the given
+	 * rectangle, which is returned.
+	 */
+	private static Rectangle2D drawString(Graphics2DTemp g2, String s, float x, float y, Rectangle2D bounds) {
 		boolean glyph = true;
 		if (glyph) {
-			GlyphVector gv = g2.getFont().createGlyphVector(g2.getFontRenderContext(), s.toCharArray());
-			Rectangle2D r2 = gv.getLogicalBounds();
-			g2.drawGlyphVector(gv, x, y);
-			return new Rectangle2D.Double(r2.getMinX() + x, r2.getMinY() + y, r2.getWidth(), r2.getHeight());
+			GlyphCache.Glyphs gv = GlyphCache.shared().get(g2.getFont(), g2.getFontRenderContext(), s);
+			Rectangle2D r2 = gv.logicalBounds;
+			g2.drawGlyphs(gv, x, y, s);
+			bounds.setRect(r2.getMinX() + x, r2.getMinY() + y, r2.getWidth(), r2.getHeight());
+			return bounds;
 			// r2=g2.getTransform().createTransformedShape(r2).getBounds2D();
 			// r2
 			// return r2;
@@ -1477,107 +1324,594 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 			builder.setCharAt(i, toSubscriptIfNum(builder.charAt(i)));
 		}
 
-		return builder.toString();
-	}
+		return builder.toString();
+	}
+
+	private static StringBuilder reverseFormula(StringBuilder builder){
+		Pattern pattern = Pattern.compile("(\\d+)");
+		Matcher m = pattern.matcher(builder.toString());
+
+		// ^CF3  -> F3C
+		int prevPos = builder.length();
+		List<String> elements = new ArrayList<>();
+		List<Integer> numbers = new ArrayList<>();
+		while(m.find()){
+			 addElementsBetween(m.end(), prevPos, elements, builder);
+
+			numbers.add(elements.size());
+			elements.add(m.group(1));
+			prevPos = m.start();
+
+		}
+		addElementsBetween(0, prevPos, elements, builder);
+
+		//swap numbers with prev element
+		for(Integer offset : numbers){
+			//the values in the number list are reversed so
+
+			int next = offset+1;
+			String temp = elements.get(next);
+			elements.set(next,elements.get(offset));
+			elements.set(offset, temp);
+		}
+//		Collections.reverse(elements);
+		StringBuilder reversed = new StringBuilder(builder.length());
+		for(String e : elements){
+			reversed.append(e);
+		}
+		return reversed;
+	}
+
+	private static void addElementsBetween(int start,int end, List<String> elementsSoFar, StringBuilder input){
+		StringBuilder current = new StringBuilder();
+		for(int i= end-1; i>=start; i--){
+			current.insert(0, input.charAt(i));
+			String s = current.toString();
+			if(NISTIsotopeFactory.INSTANCE.getIsotopesFor(s) !=null){
+				elementsSoFar.add(s);
+				current.setLength(0);
+			}
+		}
+		//don't think we need this ?
+//		if(current.length() >0){
+//			elementsSoFar.add(current.toString());
+//		}
+	}
+	private static char toSubscriptIfNum(char c){
+		switch(c){
+			case '0' : return '\u2080';
+			case '1' : return '\u2081';
+			case '2' : return '\u2082';
+			case '3' : return '\u2083';
+			case '4' : return '\u2084';
+			case '5' : return '\u2085';
+			case '6' : return '\u2086';
+			case '7' : return '\u2087';
+			case '8' : return '\u2088';
+			case '9' : return '\u2089';
+			default: return c;
+		}
+	}
+	private static String getSuperScriptChar(int i) {
+
+		switch (i) {
+		case 0:
+			return "\u2070";
+		case 1:
+			return "\u00B9";
+		case 2:
+			return "\u00B2";
+		case 3:
+			return "\u00B3";
+		case 4:
+			return "\u2074";
+		case 5:
+			return "\u2075";
+		case 6:
+			return "\u2076";
+		case 7:
+			return "\u2077";
+		case 8:
+			return "\u2078";
+		case 9:
+			return "\u2079";
+		}
+		return "";
+	}
+
+	//a wedge to be drawn once the bonds it joins are known
+	private static class WedgeJoin {
+		int bond;
+		List<Bond> others;
+		ARGBColor fromCol;
+		ARGBColor toCol;
+	}
+
+	/**
+	 * What laying out the atoms needs to know of the options and the scale
+	 * of the structure.
+	 */
+	private static class AtomProps {
+		ARGBColor drawColor;
+		ColorPalette colorPalette;
+		List<ARGBColor> highlightColors;
+		float fsize;
+		double resize;
+		float BONDAVG;
+		float Y_DISP_FRAC;
+		float DEF_FONT_GAP_PERCENT;
+
+		boolean highlightMapAtoms;
+		boolean highlightMonochromatic;
+		boolean highlightShowAtom;
+		boolean highlightHalo;
+		boolean drawColorScheme;
+		boolean drawStereoLabels;
+		boolean forceStereomono;
+		boolean assumeRelative;
+		boolean assumeStarRelative;
+		boolean drawStereoParentheses;
+		boolean stereoReplace;
+		boolean stereoColoring;
+		boolean drawTerminalCarbons;
+		boolean drawTerminalHydrogens;
+		/**
+		 * Whether to draw carbons; when terminal carbons are not drawn,
+		 * each carbon laid out sets this for the next.
+		 */
+		boolean drawCarbon;
+		boolean drawRadius;
+		boolean drawSymbols;
+		boolean drawAlleneCarbon;
+		boolean showMappedNumbers;
+
+		/**
+		 * Lay out the label, halo and attachments of every atom that is
+		 * drawn, and what drawing its bonds needs to know of it.
+		 */
+		private void layoutAtoms(Graphics2DTemp g2, Chemical c, Topology topology, BondLayout bonds, LabelLayout labels,
+				StereoAnnotations stereo, AffineTransformParent centerTransform, Predicate<Atom> drawAtom) {
+			int atomPosition = -1;
+			for (Atom ca : c.getAtoms()) {
+				atomPosition++;
+				if(drawAtom.test(ca)){
+					layoutAtom(g2, ca, atomPosition, topology, bonds, labels, stereo, centerTransform);
+				}
+			}
+		}
+
+		private void layoutAtom(Graphics2DTemp g2, Atom ca, int atomPosition, Topology topology, BondLayout bonds,
+				LabelLayout labels, StereoAnnotations stereo, AffineTransformParent centerTransform) {
+			FontCache.Metrics fm = metrics(g2);
+			boolean drawHydrogens = true;
+			boolean forceDraw = false;
+			boolean highlighted = false;
+			boolean fakeAtom = false;
+			boolean isCarbon = "C".equals(ca.getSymbol());
+			boolean isStereo = false;
+			boolean forceHalo = false;
+
+			String sm;
+			ARGBColor col = drawColor;
+			ARGBColor hcol = transparent;
+			labels.clearAttachments();
+
+
+			sm = ca.getAlias().orElse(ca.getSymbol());
+			if (sm==null || !sm.equals(ca.getSymbol())) {
+				fakeAtom = true;
+				if(sm==null && ca.isQueryAtom()){
+					sm="*";
+				}
+			  }
+
+			// have to make a normal if statement
+			// because can't set effectively final variable sm
+			// in a lambda
+			OptionalInt rGroupIndex = ca.getRGroupIndex();
+
+			if (rGroupIndex.isPresent()) {
+				sm = getRGroupText(rGroupIndex.getAsInt());
+			}
+
+			/*
+			 * //A is query atom means "any?" //mol file standard can alias the atom //is
+			 * list is for query atoms if (ca.getSymbol().equals("A") &&
+			 * ca.getAlias().equals("A")) { sm = "*"; } ColorParent col = drawColor;
+			 * ColorParent hcol = transparent; List<String> attachments = new
+			 * ArrayList<String>(); List<Integer> attachmentLOC = new ArrayList<Integer>();
+			 * List<Float> attachmentSIZE = new ArrayList<Float>(); List<ColorParent>
+			 * attachmentCOL = new ArrayList<ColorParent>(); if(ca.isList()){ int[]
+			 * l=ca.getAtomList(); if(l!=null){ String at="["; for(int i=0;i<l.length;i++){
+			 * if(i>0){ at+=","; } at+=Chemical.atomSymbols[l[i]-1]; } at+="]";
+			 * attachments.add(at); attachmentLOC.add(1 | 2 | 4 | 8);
+			 * attachmentSIZE.add(0.4f); attachmentCOL.add(col); } }
+			 */
+			if (highlightMapAtoms) {
+				col = drawColor;
+//				System.out.println("hightlight map atoms = " + highlightMapAtoms);
+//				System.out.println("highlightMonochromatic = " + highlightMonochromatic);
+//				
+				int map = ca.getAtomToAtomMap().orElse(0);
+				if(map >0) {
+//					System.out.println("map > 0 = " + map);
+					
+					if (!highlightMonochromatic) { 
+						col= highlightColors.get(map%highlightColors.size());
+						} else {
+							col = highlightColors.get(2);
+							} 
+					if(highlightShowAtom) {
+						forceDraw = true; 
+					}
+					highlighted = true;
+				}
+				
+				 
+			} else {
+				if (drawColorScheme) {
+					col = colorPalette.getAtomColor(sm);
+				}
+			}
+			if (drawStereoLabels) {
+				if (forceStereomono) {
+					col = drawColor;
+				}
+
+				String attach2 = stereoLabel(stereo.getChirality(atomPosition), stereo);
+				if (attach2 != null) {
+					ARGBColor ncol = "(*)".equals(attach2) ? colorPalette.getStereoColorUnknown() : colorPalette.getStereoColorKnown();
+					if (!drawStereoParentheses) {
+						attach2 = attach2.replace("(", "").replace(")", "");
+					}
+					isStereo = true;
+					if (stereoReplace) {
+						if (stereoColoring) {
+							col = ncol;
+						}
+						if ("C".equals(sm)) {
+							sm = attach2;
+						} else {
+							sm = sm + attach2;
+						}
+						forceDraw = true;
+						//System.out.printf("setting font to %.4f\n", (fsize * 0.7f));
+						g2.setFont(FontCache.derive(defaultFont, fsize * 0.7f));
+						fm = metrics(g2);
+					} else {
+						// should restrict full atom highlight for
+						// small images
+						if (stereoColoring) {
+							if (highlightShowAtom) {
+								forceDraw = true;
+							}
+							highlighted = true;
+
+							col = ncol.withAlpha( 55);
+							forceHalo = true;
+						}
+						// labels.attach(attach2, 1|2|4|8, .7f, ...);
+						if (stereoColoring) {
+							labels.attach(attach2, -1, .7f, ncol);
+						} else {
+							labels.attach(attach2, -1, .7f, col);
+						}
+						//System.out.printf("going to use der. font %.4f\n", (fsize * 1.0f));
+						g2.setFont(FontCache.derive(defaultFont, Font.BOLD, fsize * 1.0f));
+						fm = metrics(g2);
+					}
+				}
+			}
+			if(drawTerminalCarbons){
+				// String attatch="";
+				if (drawCarbon) {
+					drawHydrogens = true;
+				} else if (isCarbon) {
+					if ((forceDraw && !isStereo) || topology.getBondCount(atomPosition) < 2 || ca.getCharge() != 0 || ca.getRadical() != 0
+							|| ca.isIsotope()) {
+						drawHydrogens = true;
+					} else {
+						drawHydrogens = false;
+					}
+				}
+				if (drawHydrogens) {
+					drawHydrogens = drawTerminalHydrogens && !fakeAtom;
+				}
+			}else{
+				//don't draw terminal carbons
+				if(isCarbon){
+					if(topology.getBondCount(atomPosition) < 2){
+						
+						//terminal C
+						drawCarbon = forceDraw || ca.getCharge() != 0 || ca.getRadical() != 0 || ca.isIsotope();
+					}else{
+						drawCarbon=false;
+					}
+					drawHydrogens = drawCarbon;
+				}
+//				drawHydrogens = drawTerminalHydrogens;
+			}
+			float[] p = labels.position;
+			centerTransform.transform(ca.getAtomCoordinates().xy(), 0, p, 0, 1);
+			// tyler says it's not worth drawing to proportion
+			// since we don't draw atom balls to scale
+			// not worth implementing.
+
+			/*
+			 * if (drawProportion) { float atomRad = (ca.getAtomNo() <
+			 * Chemical.atomRadius.length && drawProportion) ? (float)
+			 * Chemical.atomRadius[ca .getAtomNo()] : 1f;
+			 * g2.setFont(defaultFont.deriveFont(fsize * atomRad)); fm =
+			 * g2.getFontMetrics(); }
+			 */
+			float w ;//= fm.stringWidth(sm) / 2;
+			Rectangle2D rect = fm.stringBounds(sm);
+			w = (float) rect.getWidth() / 2;
+			float h = (float) rect.getHeight() / 3;
+			g2.setBackground(transparent);
+			float radius = Math.max(w, h * 6 / 5) + 2 * w / 10;
+			boolean drawHalo = (highlightHalo && highlighted) || forceHalo;
+
+			if (drawHalo) {
+				g2.setColor(col);
+				float prad = radius;
+				//radius *= HALO_RADIUS_FUDGE;// for security issue 17 January 2024
+//				float oldWay5 = radius;
+//				oldWay5*= HALO_RADIUS_FUDGE;
+				radius = MathUtilities.safeFloatMultiply(radius, HALO_RADIUS_FUDGE);
+//				System.out.printf("oldWay: %.2f; new: %.2f\n", oldWay5, radius);
+//				assert Math.abs(oldWay5-radius) < (0.1 * oldWay5);
+
+				//radius += HALO_RADIUS_MULTIPLY * resize * BONDAVG;
+//				float oldWay6 = radius;
+//				oldWay6+= HALO_RADIUS_MULTIPLY * resize * BONDAVG;
+				radius = MathUtilities.safeFloatAdd(radius, MathUtilities.safeFloatMultiply(HALO_RADIUS_MULTIPLY, resize, BONDAVG));
+//				System.out.printf("oldWay6: %.2f; new: %.2f\n", oldWay6, radius);
+//				assert Math.abs(oldWay6-radius) < (0.1 * oldWay6);
+				g2.fillP(ggen.makeEllipse(p[0] - radius, p[1] - radius, radius * 2, radius * 2), PrimitiveType.HALO);
+				radius = prad;
+				hcol = col;
+				col = drawColor;
+			}
+
+			if (attachDecorations(ca, topology.getBondCount(atomPosition), drawHydrogens, col, labels)) {
+				forceDraw = true;
+			}
+
+			boolean drawThisAtom = forceDraw
+					|| ((!isCarbon || drawCarbon) && (!isCarbon || drawTerminalCarbons || drawCarbon));
+			boolean drawAttachments = labels.attachmentCount > 0;
+			if (topology.getBondCount(atomPosition) == 2) {
+				if (isCarbon) {
+
+					boolean onlyDoubleBonds = true;
+					for (int e = topology.firstEdge(atomPosition); e < topology.endEdge(atomPosition); e++) {
+						if (topology.getBondType(topology.edgeBond(e)) != Bond.BondType.DOUBLE) {
+							onlyDoubleBonds = false;
+						}
+					}
+					if (onlyDoubleBonds) {
+						drawThisAtom = drawAlleneCarbon;
+					}
+					// boolean leave = false;
+					// for (int i = 0; i < ca.getBondCount(); i++) {
+					//
+					// switch (ca.getBond(i).getType()) {
+					// case ChemicalBond.BOND_TYPE_DOUBLE:
+					// break;
+					// default:
+					// leave = true;
+					// }
+					// if (leave)
+					// break;
+					// }
+					// if (!leave) {
+					// drawThisAtom = drawAlleneCarbon;
+					// }
+				}
+			}
+
+			if (drawRadius) {
+				if (!drawSymbols) {
+					if (drawThisAtom) {
+						g2.setColor(col);
+						g2.fillP(ggen.makeEllipse(p[0] - radius, p[1] - radius, radius * 2, radius * 2), PrimitiveType.ATOM_DISC);
+					} else {
+						radius = 0;
+					}
+				}
+			}
+			if (drawSymbols) {
+				if (!drawThisAtom) {
+					radius = 0;
+				}
+				if (drawAttachments) {
+					placeAttachments(g2, ca, labels, w, h, p);
+				}
+				if (drawThisAtom) {
+					DisplayLabel dl = labels.addLabel(sm, g2.getFont(), p[0] - w, p[1] + h, drawColor, ca);
+					// toAddLabels.add(sm);
+					// toAddLabelsPos.add(new float[] { p[0] - w, p[1] + h });
+					if (highlighted && drawRadius) {
+						dl.c = drawColor;
+					} else {
+						dl.c = col;
+					}
+
+				}
+			}
 
-	private static StringBuilder reverseFormula(StringBuilder builder){
-		Pattern pattern = Pattern.compile("(\\d+)");
-		Matcher m = pattern.matcher(builder.toString());
+			radius = radius * DEF_FONT_GAP_PERCENT;
 
-		// ^CF3  -> F3C
-		int prevPos = builder.length();
-		List<String> elements = new ArrayList<>();
-		List<Integer> numbers = new ArrayList<>();
-		while(m.find()){
-			 addElementsBetween(m.end(), prevPos, elements, builder);
+			bonds.placeAtom(atomPosition, radius, col, hcol, highlighted);
+			//simple test 20 September 2022
+			//fsize =20.0f;
+			g2.setFont(FontCache.derive(defaultFont, fsize));
+			//System.out.printf("font size %.3f\n", fm.getFont().getSize());
+		}
 
-			numbers.add(elements.size());
-			elements.add(m.group(1));
-			prevPos = m.start();
+		/**
+		 * The stereo label for the given chirality, with parentheses, or
+		 * null if it has none.  A label is drawn in the unknown stereo
+		 * colour only if it is "(*)".
+		 */
+		private String stereoLabel(Chirality chirality, StereoAnnotations stereo) {
+			if(chirality == null) {
+				return null;
+			}
+			switch (chirality) {
+				case R:
+					if (!assumeRelative) {
+						return assumeStarRelative ? "(R*)" : "(R)";
+					}
+				case Unknown:
+				case Parity_Either:
+					//from TP: The big thing is that if the molecule is marked as racemic or (+/-) stereochemistry,
+					// //then it's definitely either R or S
+					if (Chemical.StereochemistryType.RACEMIC.equals(stereo.getStereochemistryType()) || Chemical.OpticalActivity.PLUS_MINUS.equals(stereo.getOpticalActivity())) {
+						return "(RS)";
+					}
+					return "(*)";
+				case S:
+					if (!assumeRelative) {
+						return assumeStarRelative ? "(S*)" : "(S)";
+					}
+					return "(*)";
+					// case ChemicalAtom.STEREO_SR:
+					// attach2 = "(SR)";
+					// ncol = STEREO_COLOR_KNOWN;
+					// break;
 
+				default:
+					return null;
+			}
 		}
-		addElementsBetween(0, prevPos, elements, builder);
 
-		//swap numbers with prev element
-		for(Integer offset : numbers){
-			//the values in the number list are reversed so
+		/**
+		 * Attach the isotope, hydrogens, charge, radical and map number of
+		 * the given atom to it, whichever it has.
+		 *
+		 * @return whether the atom has to be drawn for them.
+		 */
+		private boolean attachDecorations(Atom ca, int bondCount, boolean drawHydrogens, ARGBColor col, LabelLayout labels) {
+			boolean forceDraw = false;
+			String attatch = "";
+			if (ca.isIsotope()) {
+				String attatch2 = "";
+				attatch2 = getSuperScriptString(ca.getMassNumber());
+				if (!attatch2.equals("")) {
+					labels.attach(attatch2, 4, 1f, col);
+					forceDraw = true;
+				}
+			}
+			if (ca.getImplicitHCount() > 0) {
+				if (drawHydrogens) {
+					int hcount = ca.getImplicitHCount();
+					attatch = hcount < HYDROGEN_LABELS.length ? HYDROGEN_LABELS[hcount] : "H";
+				}
+			}
 
-			int next = offset+1;
-			String temp = elements.get(next);
-			elements.set(next,elements.get(offset));
-			elements.set(offset, temp);
-		}
-//		Collections.reverse(elements);
-		StringBuilder reversed = new StringBuilder(builder.length());
-		for(String e : elements){
-			reversed.append(e);
-		}
-		return reversed;
-	}
+			if (ca.getCharge() != 0) {
+				String attatch2 = getChargeString(ca.getCharge());
+				if (!attatch2.equals("")) {
+					labels.attach(attatch2, 1, 1f, col);
+					forceDraw = true;
+				}
+			}
 
-	private static void addElementsBetween(int start,int end, List<String> elementsSoFar, StringBuilder input){
-		StringBuilder current = new StringBuilder();
-		for(int i= end-1; i>=start; i--){
-			current.insert(0, input.charAt(i));
-			String s = current.toString();
-			if(NISTIsotopeFactory.INSTANCE.getIsotopesFor(s) !=null){
-				elementsSoFar.add(s);
-				current.setLength(0);
+			//MM experiment 30 May 2024
+			if(bondCount==0) {
+				forceDraw = true;
 			}
-		}
-		//don't think we need this ?
-//		if(current.length() >0){
-//			elementsSoFar.add(current.toString());
-//		}
-	}
-	private static char toSubscriptIfNum(char c){
-		switch(c){
-			case '0' : return '\u2080';
-			case '1' : return '\u2081';
-			case '2' : return '\u2082';
-			case '3' : return '\u2083';
-			case '4' : return '\u2084';
-			case '5' : return '\u2085';
-			case '6' : return '\u2086';
-			case '7' : return '\u2087';
-			case '8' : return '\u2088';
-			case '9' : return '\u2089';
-			default: return c;
-		}
-	}
-	private static String getSuperScriptChar(int i) {
+			if (!attatch.equals("")) {
+				int loc;
+				if (bondCount == 0) {
+					if (FORCE_LEFT_HYDROGEN.contains(ca.getSymbol()))
+						loc = 4;
+					else
+						loc = 1;
+				} else if (bondCount == 1) {
+					loc = 1 | 4;
+				} else {
+					loc = 1 | 2 | 4 | 8;
+				}
+				labels.attach(attatch, loc, 1f, col);
+				forceDraw = true;
+			}
+			int radicalValue = ca.getRadical();
+			if (radicalValue != 0) {
+				String attatch2 = "";
+				switch (radicalValue) {
+				// NOTE CDK can't distinguish between divalent singlets and triplets
+				// so pretend they're both divalent singlets for now
+				// because that's what CDK's mol writer does....
+				case 1:
+					attatch2 = ".";
+					break;
+				case 2:
+					attatch2 = "\u200A.";
+					break;
+				// NOTE the attach2s for these was commented out already
+				// case ChemicalAtom.ATOM_RADICAL_2_SINGLET:
+				// attatch2 = "\u200A.";
+				// break;
+				// case ChemicalAtom.ATOM_RADICAL_2_TRIPLET:
+				// attatch2 = "\u200A...";
+				// break;
+				default:
+				}
+				if (!attatch2.equals("")) {
+					labels.attach(attatch2, 2 | 8, 1f, col);
+					forceDraw = true;
+				}
+			}
+			
+			if (showMappedNumbers) {
+				int amap = ca.getAtomToAtomMap().orElse(0);
 
-		switch (i) {
-		case 0:
-			return "\u2070";
-		case 1:
-			return "\u00B9";
-		case 2:
-			return "\u00B2";
-		case 3:
-			return "\u00B3";
-		case 4:
-			return "\u2074";
-		case 5:
-			return "\u2075";
-		case 6:
-			return "\u2076";
-		case 7:
-			return "\u2077";
-		case 8:
-			return "\u2078";
-		case 9:
-			return "\u2079";
+				if (amap != 0) {
+					String attatch2 = "";
+					attatch2 = getSuperScriptString(amap);
+					if (!attatch2.equals("")) {
+						labels.attach(attatch2, 1 | 2 | 4 | 8, 1f, col);
+					}
+				}
+			}
+			return forceDraw;
 		}
-		return "";
-	}
 
-	private static class AtomDrawProps {
-		float radius;
-		ARGBColor hcolor;
-		ARGBColor dcolor;
-		boolean highlight;
+		/**
+		 * Place each attachment of the given atom on a side of its label
+		 * not yet taken, or away from its bonds.
+		 */
+		private void placeAttachments(Graphics2DTemp g2, Atom ca, LabelLayout labels, float w, float h, float[] p) {
+			int used = 0;
+			for (int j = 0; j < labels.attachmentCount; j++) {
+				String att = labels.attachments[j];
+				float size = labels.attachmentSIZE[j];
+				ARGBColor acol = labels.attachmentCOL[j];
+				int supported = labels.attachmentLOC[j];
+				int cardPos = supported;
+
+				float[] nv = labels.direction;
+				nv[0] = 0;
+				nv[1] = 1;
+
+				if (supported != -1) {
+					int avail = supported & (~used);
+					cardPos = getAttachCardPos(ca, att, avail);
+					used = used | (1 << cardPos);
+				} else {
+					getNormVecAway(ca, labels, nv);
+
+				}
+
+				Font fnt2 = FontCache.derive(g2.getFont(), fsize * size);
+				FontCache.Metrics fm2 = FontCache.metrics(g2._delagate, fnt2);
 
+				addAttachLabels(labels, att, w, h, p, fm2, cardPos, nv, Y_DISP_FRAC, fnt2, acol, ca);
+			}
+		}
 	}
 
 	private static class BondProps {
@@ -1601,79 +1935,87 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		boolean drawStereoBondLabels;
 		Stroke solidREC;
 
-		private void drawBonds(Graphics2DTemp g2, Chemical c, List<double[]> toAdd, Stroke solid, Stroke dashed,
-				AffineTransformParent centerTransform, Map<Atom, AtomDrawProps> cprops) {
+		private void drawBonds(Graphics2DTemp g2, Chemical c, BondLayout bonds, Stroke solid, Stroke dashed,
+				AffineTransformParent centerTransform) {
 			ARGBColor drawColor = g2.getARGBColor();
 			float resize = (float) Math.abs(centerTransform.getScaleX());
+			PrimitiveType lineType = highlightHalo ? PrimitiveType.BOND_HALO : PrimitiveType.BOND_LINE;
 
-			List<LineParent> paintedLines = new ArrayList<>();
+			SegmentGrid paintedLines = new SegmentGrid(resize * BONDAVG, bonds.size);
 			
-			Map<Bond,Point2DParent[]> traps = new HashMap<>();
-			Map<Bond,List<Bond>> toFix = new HashMap<>();
-			Map<Bond, ARGBColor[]> toFixCol = new HashMap<>();
+			Point2DParent[][] traps = bonds.traps;
+			List<WedgeJoin> toFix = new ArrayList<>();
 			
-			
-
-			for (int k = toAdd.size()-1; k >= 0; k--) {
-				double[] xy = toAdd.get(k);// toAdd.size()-k-1)
-
-				Bond cb = c.getBond((int) xy[7]);
-				float wid = (float) Math.atan2(maxWedgeWidth, cb.getBondLength());
-
-				float[] rads = new float[2];
-				AtomDrawProps caprop1 = cprops.get(cb.getAtom1());
-				AtomDrawProps caprop2 = cprops.get(cb.getAtom2());
+			//reused by every bond, so laying out a bond makes next to no garbage
+			float[] rads = new float[2];
+			float[] p1 = new float[2];
+			float[] p2 = new float[2];
+			float[] avpt1 = new float[3];
+			float[] avpt2 = new float[3];
+			float[] doubleBPos = new float[2];
+			float dbcx[] = new float[2]; // double bond center x
+			float dbcy[] = new float[2]; // double bond center y
+			double[] line = new double[4];
+			double[] split = new double[8];
+			double[] half = new double[4];
+
+			int[] types = bonds.type;
+			for (int k = bonds.size-1; k >= 0; k--) {
+				int bondIndex = bonds.bond[k];
+				boolean eitherDouble = (bonds.flags[k] & BondLayout.EITHER_DOUBLE) != 0;
+				float wid = (float) Math.atan2(maxWedgeWidth, bonds.length[k]);
+
+				int atom1 = bonds.atom1[k];
+				int atom2 = bonds.atom2[k];
 
 				//if we are filtering out atoms such as when we replace with superatoms in Sgroups
-				//not all atoms will be in this property map but we will still draw
+				//not all atoms will have been placed but we will still draw
 				//the bond so just re-use the radius of the other side
-				if(caprop1 ==null && caprop2 ==null){
+				if(!bonds.placed[atom1] && !bonds.placed[atom2]){
 					continue;
 				}
-				if(caprop1 ==null){
-					caprop1 = caprop2;
+				if(!bonds.placed[atom1]){
+					atom1 = atom2;
 
-				}else if(caprop2 == null){
-					caprop2 = caprop1;
+				}else if(!bonds.placed[atom2]){
+					atom2 = atom1;
 				}
 
-				rads[0] = caprop1.radius;
-				rads[1] = caprop2.radius;
+				rads[0] = bonds.radius[atom1];
+				rads[1] = bonds.radius[atom2];
 
-				float[] p1 = new float[2];
-				float[] p2 = new float[2];
-				centerTransform.transform(xy, 0, p1, 0, 1);
-				centerTransform.transform(xy, 2, p2, 0, 1);
+				centerTransform.transform(bonds.ends, 4 * k, p1, 0, 1);
+				centerTransform.transform(bonds.ends, 4 * k + 2, p2, 0, 1);
 				float dx = (p1[0] - p2[0]);
 				float dy = (p1[1] - p2[1]);
-				float[] avpt1 = new float[] { p1[0], p1[1], rads[0] };
-				float[] avpt2 = new float[] { p2[0], p2[1], rads[1] };
+				avpt1[0] = p1[0];
+				avpt1[1] = p1[1];
+				avpt1[2] = rads[0];
+				avpt2[0] = p2[0];
+				avpt2[1] = p2[1];
+				avpt2[2] = rads[1];
 
 				float dxdbl = dx / 4.f;
 				float dydbl = dy / 4.f;
 
-				float[] doubleBPos = new float[2];
-				centerTransform.transform(xy, 5, doubleBPos, 0, 1);
+				centerTransform.transform(bonds.centers, 2 * k, doubleBPos, 0, 1);
 				// is this the same as double either?
-				if (cb.getBondType() == BondType.DOUBLE && cb.getDoubleBondStereo()== Bond.DoubleBondStereo.E_OR_Z) {
-					xy[4] = -1;
+				if (eitherDouble) {
+					types[k] = -1;
 				}
 
 				// norm: magnitude of vector from center of single bond to
 				// center of double bond
 				float norm = DEF_DBL_BOND_GAP * resize * BONDAVG / (float) Math.sqrt((dxdbl * dxdbl + dydbl * dydbl));
-				if ((int) xy[4] == -1 || (centerAllDoubleBonds && (int) xy[4] == 2)) {
+				if (types[k] == -1 || (centerAllDoubleBonds && types[k] == 2)) {
 					//norm *= .5;//  for security issue 17 January 2024
 //					float oldWay6 = norm;
 //					oldWay6 *= .5;
 					norm = MathUtilities.safeFloatMultiply(norm, 0.5f);
 //					System.out.printf("oldWay6: %.2f; new: %.2f\n", oldWay6, norm);
 //					assert Math.abs(oldWay6-norm) < (0.1 * oldWay6);
-					xy[4] = -1;
+					types[k] = -1;
 				}
-				float dbcx[] = new float[2]; // double bond center x
-				float dbcy[] = new float[2]; // double bond center y
-
 				dbcx[0] = ((p1[0] - dydbl * norm) + (p2[0] - dydbl * norm)) / 2;
 				dbcy[0] = ((p1[1] + dxdbl * norm) + (p2[1] + dxdbl * norm)) / 2;
 				dbcx[1] = ((p1[0] + dydbl * norm) + (p2[0] + dydbl * norm)) / 2;
@@ -1694,34 +2036,34 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				 * if (caprop2.highlight) { highlightbond = true; } } }
 				 */
 
-				if ((int) xy[4] != Bond.BondType.AROMATIC.ordinal()) {
+				if (types[k] != Bond.BondType.AROMATIC.ordinal()) {
 					g2.setStroke(solid);
 				} else {
 					g2.setStroke(dashed);
-					xy[4] = Bond.BondType.DOUBLE.getOrder();
+					types[k] = Bond.BondType.DOUBLE.getOrder();
 				}
 
 				ARGBColor fromCol = drawColor;
 				ARGBColor toCol = drawColor;
-				int typ = (int) xy[4];
+				int typ = types[k];
 				if (halfColoredBonds) {
 					if (highlightHalo) {
-						fromCol = caprop2.hcolor;
-						toCol = caprop1.hcolor;
-						if (!caprop2.highlight || !caprop1.highlight) {
+						fromCol = bonds.highlightColor[atom2];
+						toCol = bonds.highlightColor[atom1];
+						if (!bonds.highlight[atom2] || !bonds.highlight[atom1]) {
 							fromCol = transparent;
 							toCol = transparent;
 						}
 						typ = 1;
 						// xy[4]=1;
 					} else {
-						fromCol = caprop2.dcolor;
-						toCol = caprop1.dcolor;
+						fromCol = bonds.color[atom2];
+						toCol = bonds.color[atom1];
 
 					}
 				}
 				if(wedgeJoin){
-					if(cb.getBondType().equals(BondType.SINGLE) && cb.getStereo().equals(Bond.Stereo.NONE)){
+					if((bonds.flags[k] & BondLayout.PLAIN_SINGLE) != 0){
 						Point2DParent[] pp = new Point2DParent[4];
 						double dnorm = 0.5/Math.sqrt(dx*dx+dy*dy);
 						
@@ -1729,7 +2071,7 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 						pp[1]= ggen.makePoint(p1[0]-dy*dnorm*bondWidth, p1[1]+dx*dnorm*bondWidth);
 						pp[2]= ggen.makePoint(p2[0]-dy*dnorm*bondWidth, p2[1]+dx*dnorm*bondWidth);
 						pp[3]= ggen.makePoint(p2[0]+dy*dnorm*bondWidth, p2[1]-dx*dnorm*bondWidth);
-						traps.put(cb, pp);
+						traps[bondIndex] = pp;
 					}
 				}
 
@@ -1737,14 +2079,14 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				case 5:
 					if (DrawDashWedge) {
 						boolean drawLast=true;
-						if(!drawLastDashLineOnNonSymbols && caprop2.radius<0.0001f){
+						if(!drawLastDashLineOnNonSymbols && bonds.radius[atom2]<0.0001f){
 							drawLast=false;
 						}
-						drawDash(g2, ggen.makeLine(p1[0], p1[1], p2[0], p2[1]), avpt1, avpt2, wid, (int) (DEF_NUM_DASH),
+						drawDash(g2, setLine(line, 0, p1[0], p1[1], p2[0], p2[1]), avpt1, avpt2, wid, (int) (DEF_NUM_DASH),
 								PROP_DASH_SPACING, fromCol, toCol,drawLast);
 						
 					} else {
-						drawDashLine(g2, ggen.makeLine(p1[0], p1[1], p2[0], p2[1]), avpt1, avpt2, (int) (DEF_NUM_DASH),
+						drawDashLine(g2, setLine(line, 0, p1[0], p1[1], p2[0], p2[1]), avpt1, avpt2, (int) (DEF_NUM_DASH),
 								PROP_DASH_SPACING, fromCol, toCol);
 					}
 					break;
@@ -1756,15 +2098,16 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 						trapWid=bondWidth/2;						
 					}
 
-					Point2DParent[] trap= getWedgeTrapazoid(g2, ggen.makeLine(p1[0], p1[1], p2[0], p2[1]), avpt1, avpt2, wid, trapWid);
+					Point2DParent[] trap= getWedgeTrapazoid(g2, setLine(line, 0, p1[0], p1[1], p2[0], p2[1]), avpt1, avpt2, wid, trapWid);
 					
-					traps.put(cb, trap);
+					traps[bondIndex] = trap;
 					
 					boolean drawWed=true;
 					
 				
 					if(wedgeJoin){
-						if(caprop2.radius<0.0001f && 
+						Bond cb = c.getBond(bondIndex);
+						if(bonds.radius[atom2]<0.0001f && 
 						   cb.getAtom2().getBondCount()>1){
 								List<Bond> obonds = cb.getAtom2().getBonds()
 							             .stream()
@@ -1773,8 +2116,12 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 							             .filter(b->b.getStereo().equals(Bond.Stereo.UP) || b.getStereo().equals(Bond.Stereo.NONE))
 							             .collect(Collectors.toList());
 								if(obonds.size()!=0){
-									toFix.put(cb, obonds);
-									toFixCol.put(cb, new ARGBColor[]{fromCol, toCol});
+									WedgeJoin join = new WedgeJoin();
+									join.bond = bondIndex;
+									join.others = obonds;
+									join.fromCol = fromCol;
+									join.toCol = toCol;
+									toFix.add(join);
 									drawWed=false;
 								}
 						}
@@ -1791,57 +2138,52 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 					rat = 2f;
 
 				case 3:
-					LineParent line;
 					// is this the same as double either?
-					if (cb.getBondType() == BondType.DOUBLE && cb.getDoubleBondStereo()== Bond.DoubleBondStereo.E_OR_Z) {
+					if (eitherDouble) {
 
-						line = ggen.makeLine((dbcx[1] - rat * dxdbl), // x3
+						setLine(line, 0, (dbcx[1] - rat * dxdbl), // x3
 								(dbcy[1] - rat * dydbl), // y3
 								(dbcx[0] + rat * dxdbl), // x2
 								(dbcy[0] + rat * dydbl)); // y2
 					} else {
-						line = ggen.makeLine((dbcx[1] - rat * dxdbl), // x3
+						setLine(line, 0, (dbcx[1] - rat * dxdbl), // x3
 								(dbcy[1] - rat * dydbl), // y3
 								(dbcx[1] + rat * dxdbl), // x4
 								(dbcy[1] + rat * dydbl)); // y4
 					}
 
-					drawLine(g2, line, avpt1, avpt2, fromCol, toCol);
+					drawLine(g2, line, avpt1, avpt2, fromCol, toCol, lineType);
 				case 2:
-					LineParent lineb;
 					// is this the same as double either?
-					if (cb.getBondType() == BondType.DOUBLE && cb.getDoubleBondStereo()== Bond.DoubleBondStereo.E_OR_Z) {
+					if (eitherDouble) {
 
-						lineb = ggen.makeLine((dbcx[0] - rat * dxdbl), // x1
+						setLine(line, 0, (dbcx[0] - rat * dxdbl), // x1
 								(dbcy[0] - rat * dydbl), // y1
 								(dbcx[1] + rat * dxdbl), // x4
 								(dbcy[1] + rat * dydbl)); // y4
 					} else {
-						lineb = ggen.makeLine((dbcx[0] - rat * dxdbl), // x1
+						setLine(line, 0, (dbcx[0] - rat * dxdbl), // x1
 								(dbcy[0] - rat * dydbl), // y1
 								(dbcx[0] + rat * dxdbl), // x2
 								(dbcy[0] + rat * dydbl)); // y2
 					}
 
-					drawLine(g2, lineb, avpt1, avpt2, fromCol, toCol);
+					drawLine(g2, line, avpt1, avpt2, fromCol, toCol, lineType);
 
 				case 1:
 					g2.setStroke(solid);
-					if ((int) xy[4] != -1 || highlightHalo) {
-						LineParent linec = ggen.makeLine(p1[0], p1[1], p2[0], p2[1]);
-						LineParent[] newLines = getSplitLines(linec, paintedLines, bondWidth * DEF_SPLIT_RATIO);
-						if (newLines.length > 1) {
+					if (types[k] != -1 || highlightHalo) {
+						setLine(line, 0, p1[0], p1[1], p2[0], p2[1]);
+						if (getSplitLines(line, paintedLines, bondWidth * DEF_SPLIT_RATIO, split)) {
 							BasicStroke pstr = (BasicStroke) g2.getStroke();
 							g2.setStroke(solidREC);
-							for (LineParent lined : newLines) {
-								drawLine(g2, lined, avpt1, avpt2, toCol, fromCol);
-								// paintedLines.add(drawLine(g2,lined,avpt1,avpt2,toCol,fromCol));
+							for (int h = 0; h < split.length; h += 4) {
+								System.arraycopy(split, h, half, 0, 4);
+								drawLine(g2, half, avpt1, avpt2, toCol, fromCol, lineType);
 							}
 							g2.setStroke(pstr);
-						} else {
-							LineParent dLine = drawLine(g2, linec, avpt1, avpt2, toCol, fromCol);
-							if (dLine != null)
-								paintedLines.add(dLine);
+						} else if (drawLine(g2, line, avpt1, avpt2, toCol, fromCol, lineType)) {
+							paintedLines.add(line[0], line[1], line[2], line[3]);
 						}
 					}
 
@@ -1850,11 +2192,12 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				default:
 				}
 				//TEMP testing ability to draw text
-				if(drawStereoBondLabels && cb.getBondType()== BondType.DOUBLE) {
+				if(drawStereoBondLabels && c.getBond(bondIndex).getBondType()== BondType.DOUBLE) {
+					Bond cb = c.getBond(bondIndex);
 
 					String bondStereo =cb.getDoubleBondStereo().name();
 					String bsPieces[] = bondStereo.split("\\_");
-					FontMetrics metrics = g2.getFontMetrics();
+					FontCache.Metrics metrics = metrics(g2);
 					int labelWidth = metrics.stringWidth(bsPieces[0]);
 					double x = Math.min(cb.getAtom1().getAtomCoordinates().getX(), cb.getAtom2().getAtomCoordinates().getX()) +
 							Math.abs( cb.getAtom1().getAtomCoordinates().getX()-cb.getAtom2().getAtomCoordinates().getX())/2;
@@ -1876,10 +2219,8 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 			}
 			
 			
-			for(Bond wFix:toFix.keySet()){
-				List<Bond> blist=toFix.get(wFix);
-				
-				Point2DParent[] trap=traps.get(wFix);
+			for(WedgeJoin wFix:toFix){
+				Point2DParent[] trap=traps[wFix.bond];
 				
 				LineParent l1 = ggen.makeLine(trap[1].getX(), trap[1].getY(), trap[2].getX(), trap[2].getY());
 				LineParent l2 = ggen.makeLine(trap[0].getX(), trap[0].getY(), trap[3].getX(), trap[3].getY());
@@ -1894,8 +2235,8 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				double dxB = trap[3].getX() - trap[0].getX();
 				double dyB = trap[3].getY() - trap[0].getY();
 				
-				for(Bond obond:blist){
-					Point2DParent[] trap2=traps.get(obond);
+				for(Bond obond:wFix.others){
+					Point2DParent[] trap2=traps[c.indexOf(obond)];
 					if(trap2!=null){
 						LineParent ol1 = ggen.makeLine(trap2[1].getX(), trap2[1].getY(), trap2[2].getX(), trap2[2].getY());
 						LineParent ol2 = ggen.makeLine(trap2[0].getX(), trap2[0].getY(), trap2[3].getX(), trap2[3].getY());
@@ -1943,21 +2284,65 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				
 				if(bestA!=null)trap[2]=bestA;
 				if(bestB!=null)trap[3]=bestB;
-				drawWedge(g2, trap,toFixCol.get(wFix)[0], toFixCol.get(wFix)[1]);
+				drawWedge(g2, trap,wFix.fromCol, wFix.toCol);
 			}
 			
 		}
 	}
 
 	private static String getSuperScriptString(int i) {
-		String s = i + "";
-		String ret = "";
-		for (char c : s.toCharArray()) {
-			ret += getSuperScriptChar(Integer.parseInt(c + ""));
+		if (i >= 0 && i < SUPERSCRIPT_NUMBERS.length) {
+			return SUPERSCRIPT_NUMBERS[i];
+		}
+		return superScriptOf(i);
+	}
+
+	private static String superScriptOf(int i) {
+		String s = Integer.toString(i);
+		StringBuilder ret = new StringBuilder(s.length());
+		for (int k = 0; k < s.length(); k++) {
+			ret.append(getSuperScriptChar(s.charAt(k) - '0'));
 		}
-		return ret;
+		return ret.toString();
 	}
 
+	private static String getChargeString(int charge) {
+		if (Math.abs(charge) <= MAX_TABLED_CHARGE) {
+			return CHARGE_LABELS[charge + MAX_TABLED_CHARGE];
+		}
+		return chargeLabelOf(charge);
+	}
+
+	private static String chargeLabelOf(int charge) {
+		String attatch2 = "";
+		int mag = Math.abs(charge);
+		if (mag > 1) {
+			attatch2 = getSuperScriptString(mag);
+		}
+		if (charge > 0) {
+			attatch2 += "\u207A";
+		} else {
+			attatch2 += "\u207B";
+		}
+		return attatch2;
+	}
+
+	private static String getCharLabel(char ch) {
+		if (ch >= CHAR_LABELS.length) {
+			return String.valueOf(ch);
+		}
+		String s = CHAR_LABELS[ch];
+		if (s == null) {
+			//threads racing here only make the same string twice
+			s = String.valueOf(ch);
+			CHAR_LABELS[ch] = s;
+		}
+		return s;
+	}
+
+	//the direction of each of the four places an attachment can go
+	private static final float[][] CARD_DIRECTIONS = { { -1, 0 }, { 0, 1 }, { 1, 0 }, { 0, -1 } };
+
 	private static int getAttachCardPos(Atom ca, String attatch, int DMASK) {
 		int CARD = 0; // ENWS
 		AtomCoordinates coords = ca.getAtomCoordinates();
@@ -1978,20 +2363,24 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				ax = coords.getX();
 				ay = coords.getY();
 			}
-			double[] dv = normVec(new double[] { ax - coords.getX(), ay - coords.getY() }, 1);
-
-			dv[0] = dv[0] - 1f / 24f;
-			List<float[]> cardDir = new ArrayList<float[]>();
-			cardDir.add(new float[] { -1, 0 });
-			cardDir.add(new float[] { 0, 1 });
-			cardDir.add(new float[] { 1, 0 });
-			cardDir.add(new float[] { 0, -1 });
+			double vx = ax - coords.getX();
+			double vy = ay - coords.getY();
+			double len = vx * vx + vy * vy;
+			double dvx = 1;
+			double dvy = 0;
+			if (len != 0) {
+				double mul = 1 / Math.sqrt(len);
+				dvx = vx * mul;
+				dvy = vy * mul;
+			}
+
+			dvx = dvx - 1f / 24f;
 			double minDist = 50000;
-			for (int i = 0; i < cardDir.size(); i++) {
+			for (int i = 0; i < CARD_DIRECTIONS.length; i++) {
 				if (((1 << i) & DMASK) != 0) {
-					float[] testDir = cardDir.get(i);
-					double dx = (dv[0] - testDir[0]);
-					double dy = (dv[1] - testDir[1]);
+					float[] testDir = CARD_DIRECTIONS[i];
+					double dx = (dvx - testDir[0]);
+					double dy = (dvy - testDir[1]);
 					double dist = dx * dx + dy * dy;
 
 					if (dist <= minDist) {
@@ -2005,38 +2394,36 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		return CARD;
 	}
 
-	private static float[] getNormVecAway(Atom ca) {
+	/**
+	 * Set into nv the direction pointing away from the atom's bonds,
+	 * through the widest gap between them.
+	 */
+	private static void getNormVecAway(Atom ca, LabelLayout labels, float[] nv) {
 
 		int abcount = ca.getBondCount();
 
-		List<double[]> angs = new ArrayList<double[]>();
-
 		AtomCoordinates coords = ca.getAtomCoordinates();
 		if (abcount > 0) {
 
-			int i = 0;
-			for (Atom cnei : ca.getNeighbors()) {
+			List<Atom> neighbors = ca.getNeighbors();
+			double[] angs = labels.angles(neighbors.size());
+			int n = 0;
+			for (Atom cnei : neighbors) {
 				AtomCoordinates cneiCoords = cnei.getAtomCoordinates();
-				angs.add(new double[] { i, coords.angleTo(cneiCoords) });
-				i++;
+				angs[n++] = coords.angleTo(cneiCoords);
 			}
 			if (abcount == 1) {
-				double ang = angs.get(0)[1];
-				return new float[] { (float) Math.cos(ang), (float) Math.sin(ang) };
+				double ang = angs[0];
+				nv[0] = (float) Math.cos(ang);
+				nv[1] = (float) Math.sin(ang);
+				return;
 			}
-			Collections.sort(angs, new Comparator<double[]>() {
-				@Override
-				public int compare(double[] arg0, double[] arg1) {
-					return Double.compare(arg0[1], arg1[1]);
-				}
-			});
+			Arrays.sort(angs, 0, n);
 			double maxDtheta = 0;
 			double bestAng = 0;
-			for (i = 0; i < angs.size(); i++) {
-				double[] first = angs.get(i);
-				double[] second = angs.get((i + 1) % angs.size());
-				double ang1 = first[1];
-				double ang2 = second[1];
+			for (int i = 0; i < n; i++) {
+				double ang1 = angs[i];
+				double ang2 = angs[(i + 1) % n];
 //				System.out.println(ang2 / Math.PI * 180);
 				if (ang1 > ang2) {
 					ang2 = ang2 + Math.PI * 2;
@@ -2049,42 +2436,49 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 					bestAng = (ang2 + ang1) / 2;
 				}
 			}
-			return new float[] { (float) Math.cos(bestAng + Math.PI), (float) Math.sin(bestAng + Math.PI) };
+			nv[0] = (float) Math.cos(bestAng + Math.PI);
+			nv[1] = (float) Math.sin(bestAng + Math.PI);
+			return;
 		}
-		return new float[] { 1, 0 };
+		nv[0] = 1;
+		nv[1] = 0;
 	}
 
-	private static Collection<Entry<String, float[]>> getAttachPos(String attatch, float w, float h, float[] p,
-			FontMetrics fm, Graphics2DTemp g2, int CARD, float[] nv, float yDISP_FRAC) {
+	/**
+	 * Add a label for each character of the attachment, placed in the
+	 * given direction from the atom at p.
+	 */
+	private static void addAttachLabels(LabelLayout labels, String attatch, float w, float h, float[] p,
+			FontCache.Metrics fm, int CARD, float[] nv, float yDISP_FRAC, Font font, ARGBColor color, Atom atom) {
 		if (!attatch.equals("")) {
-			List<Entry<String, float[]>> entryList = new ArrayList<Entry<String, float[]>>();
 
-			float dv[] = new float[2];
+			float dvx;
+			float dvy;
 			switch (CARD) {
 			// RIGHT
 			case 0:
-				dv[0] = -2 * w;
-				dv[1] = 0;
+				dvx = -2 * w;
+				dvy = 0;
 				break;
 			// TOP
 			case 1:
-				dv[0] = 0;
-				dv[1] = 2 * h + w / 10;
+				dvx = 0;
+				dvy = 2 * h + w / 10;
 				break;
 			// LEFT
 			case 2:
-				dv[0] = (float) fm.getStringBounds(attatch, g2._delagate).getWidth();
-				dv[1] = 0;
+				dvx = (float) fm.stringBounds(attatch).getWidth();
+				dvy = 0;
 				break;
 			// BOTTOM
 			case 3:
-				dv[0] = 0;
-				dv[1] = -2 * h - w / 10;
+				dvx = 0;
+				dvy = -2 * h - w / 10;
 				break;
 			default:
 			// non-cardinal
 			{
-				double maxx = fm.getStringBounds(attatch, g2._delagate).getWidth();
+				double maxx = fm.stringBounds(attatch).getWidth();
 				double minx = -2 * w;
 				double miny = -2 * h - w / 10;
 				double maxy = 2 * h + w / 10;
@@ -2092,69 +2486,40 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				double cy = (maxy + miny) / 2;
 				double radx = (maxx - minx) / 2;
 				double rady = (maxy - miny) / 2;
-				dv[0] = (float) (cx + nv[0] * radx);
-				dv[1] = (float) (cy + nv[1] * rady);
+				dvx = (float) (cx + nv[0] * radx);
+				dvy = (float) (cy + nv[1] * rady);
 			}
 
 			}
 
-			// float[] aP = new float[] { (p[0] - dv[0]) - w,(p[1] + dv[1]) + h
-			// };
-			char[] res = attatch.toCharArray();
 			float disp = 0;
-			for (int i = 0; i < res.length; i++) {
+			for (int i = 0; i < attatch.length(); i++) {
+				char ch = attatch.charAt(i);
+				String label = getCharLabel(ch);
+				Rectangle2D bounds = fm.stringBounds(label);
 				float ydisp = 0;
 
-				if (subScriptSet.contains(res[i] + "")) {
-					ydisp = (float) fm.getStringBounds(res[i] + "", g2._delagate).getHeight() * yDISP_FRAC;
+				if (SUBSCRIPT_CHARS.indexOf(ch) >= 0) {
+					ydisp = (float) bounds.getHeight() * yDISP_FRAC;
 				}
-				float[] aP1 = new float[] { (p[0] - dv[0]) - w + disp, (p[1] + dv[1]) + h + ydisp };
-				disp += (float) fm.getStringBounds(res[i] + "", g2._delagate).getWidth();
-				Entry<String, float[]> ent = new MyEntry<String, float[]>(res[i] + "", aP1);
-				entryList.add(ent);
-				// smap.
-				// smap.put(res[i]+"", aP1);
+				labels.addLabel(label, font, (p[0] - dvx) - w + disp, (p[1] + dvy) + h + ydisp, color, atom);
+				disp += (float) bounds.getWidth();
 			}
-			return entryList;
-
-		}
-		return null;
-	}
-
-	private static class MyEntry<K, V> implements Entry<K, V> {
-		K key;
-		V val;
-
-		public MyEntry(K key, V val) {
-			this.key = key;
-			this.val = val;
-
-		}
-
-		@Override
-		public K getKey() {
-			// TODO Auto-generated method stub
-			return key;
-		}
-
-		@Override
-		public V getValue() {
-			// TODO Auto-generated method stub
-			return val;
-		}
-
-		@Override
-		public V setValue(V value) {
-			val = value;
-			return val;
 		}
 	}
 
-	private static LineParent[] getSplitLines(LineParent startLine, Collection<LineParent> olines, double width) {
-		double s2dx = startLine.getX2() - startLine.getX1();
-		double s2dy = startLine.getY2() - startLine.getY1();
-		double s2x = startLine.getX1();
-		double s2y = startLine.getY1();
+	/**
+	 * Split the given line either side of the first painted line it
+	 * crosses, leaving a gap of the given width.
+	 *
+	 * @param split where the two halves are put, four coordinates each.
+	 * @return whether the line crosses one and was split.
+	 */
+	private static boolean getSplitLines(double[] startLine, SegmentGrid painted, double width, double[] split) {
+		double s2dx = startLine[2] - startLine[0];
+		double s2dy = startLine[3] - startLine[1];
+		double s2x = startLine[0];
+		double s2y = startLine[1];
 		double pcwidth = width / Math.sqrt(s2dx * s2dx + s2dy * s2dy);
 
 		// (sx + sdx*t,sy+sdy*t) 0<t<1
@@ -2178,31 +2543,41 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		// t2 = (s1dx*s2y - s1dx*s1y - s1dy*s2x + s1dy*s1x)/(s1dy*s2dx -
 		// s1dx*s2dy)
 
-		for (LineParent oline : olines) {
-			if (oline.intersectsLine(startLine)) {
-				if (!((startLine.getX1() == oline.getX1() && startLine.getY1() == oline.getY1())
-						|| (startLine.getX2() == oline.getX1() && startLine.getY2() == oline.getY1())
-						|| (startLine.getX2() == oline.getX2() && startLine.getY2() == oline.getY2())
-						|| (startLine.getX1() == oline.getX2() && startLine.getY1() == oline.getY2()))) {
-					double s1dx = oline.getX2() - oline.getX1();
-					double s1dy = oline.getY2() - oline.getY1();
-					double s1x = oline.getX1();
-					double s1y = oline.getY1();
+		int near = painted.near(startLine[0], startLine[1], startLine[2], startLine[3]);
+		for (int k = 0; k < near; k++) {
+			int oline = painted.found(k);
+			double ox1 = painted.getX1(oline);
+			double oy1 = painted.getY1(oline);
+			double ox2 = painted.getX2(oline);
+			double oy2 = painted.getY2(oline);
+			if (Line2D.linesIntersect(startLine[0], startLine[1], startLine[2], startLine[3], ox1, oy1, ox2, oy2)) {
+				if (!((startLine[0] == ox1 && startLine[1] == oy1)
+						|| (startLine[2] == ox1 && startLine[3] == oy1)
+						|| (startLine[2] == ox2 && startLine[3] == oy2)
+						|| (startLine[0] == ox2 && startLine[1] == oy2))) {
+					double s1dx = ox2 - ox1;
+					double s1dy = oy2 - oy1;
+					double s1x = ox1;
+					double s1y = oy1;
 					double t2 = (s1dx * s2y - s1dx * s1y - s1dy * s2x + s1dy * s1x) / (s1dy * s2dx - s1dx * s2dy);
 
 					t2 = t2 - pcwidth;
-					double px = s2x + s2dx * t2;
-					double py = s2y + s2dy * t2;
-					LineParent newline1 = ggen.makeLine(s2x, s2y, px, py);
+					setLine(split, 0, s2x, s2y, s2x + s2dx * t2, s2y + s2dy * t2);
 					t2 = t2 + 2 * pcwidth;
-					px = s2x + s2dx * t2;
-					py = s2y + s2dy * t2;
-					LineParent newline2 = ggen.makeLine(px, py, s2x + s2dx, s2y + s2dy);
-					return new LineParent[] { newline1, newline2 };
+					setLine(split, 4, s2x + s2dx * t2, s2y + s2dy * t2, s2x + s2dx, s2y + s2dy);
+					return true;
 				}
 			}
 		}
-		return new LineParent[] { startLine };
+		return false;
+	}
+
+	private static double[] setLine(double[] line, int offset, double x1, double y1, double x2, double y2) {
+		line[offset] = x1;
+		line[offset + 1] = y1;
+		line[offset + 2] = x2;
+		line[offset + 3] = y2;
+		return line;
 	}
 	
 	
@@ -2241,81 +2616,85 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		return false;
 	}
 
-	private static LineParent getBoundedLine(LineParent line, float pt1[], float pt2[]) {
-		LineParent nline1 = lineCircleIntersections(line, pt1[0], pt1[1], pt1[2]);
-		nline1 = lineCircleIntersections(nline1, pt2[0], pt2[1], pt2[2]);
-		if (pointInCircle(nline1.getX1(), nline1.getY1(), pt1)) {
-			return null;
+	/**
+	 * Trim the given line, in place, to where it leaves the circles about
+	 * its two atoms.
+	 *
+	 * @return false if none of it is left outside them.
+	 */
+	private static boolean getBoundedLine(double[] line, float pt1[], float pt2[]) {
+		lineCircleIntersections(line, pt1[0], pt1[1], pt1[2]);
+		lineCircleIntersections(line, pt2[0], pt2[1], pt2[2]);
+		if (pointInCircle(line[0], line[1], pt1)) {
+			return false;
 		}
-		if (pointInCircle(nline1.getX2(), nline1.getY2(), pt2)) {
-			return null;
+		if (pointInCircle(line[2], line[3], pt2)) {
+			return false;
 		}
-		return nline1;
+		return true;
 	}
 
-	private static LineParent drawLine(Graphics2DTemp g, LineParent line, float pt1[], float pt2[], ARGBColor c1,
-			ARGBColor c2) {
+	/**
+	 * Draw the given line, trimmed in place to the atoms' circles, half
+	 * in each color.
+	 *
+	 * @return false if none of it was left to draw.
+	 */
+	private static boolean drawLine(Graphics2DTemp g, double[] line, float pt1[], float pt2[], ARGBColor c1,
+			ARGBColor c2, PrimitiveType type) {
 
-		line = getBoundedLine(line, pt1, pt2);
+		boolean bounded = getBoundedLine(line, pt1, pt2);
 		ARGBColor c = g.getARGBColor();
-		if (line != null) {
+		if (bounded) {
 			if (c1.equals(c2)) {
 				g.setColor(c1);
-				g.drawP(line);
+				g.drawLine(line[0], line[1], line[2], line[3], type);
 			} else {
 				BasicStroke s = (BasicStroke) g.getStroke();
 				BasicStroke solidREC = new BasicStroke(s.getLineWidth(), BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
-				LineParent[] splits = splitLine(line);
+				// each half runs from its end to the middle
+				double dx = line[2] - line[0];
+				double dy = line[3] - line[1];
+				double mx = line[0] + dx / 2;
+				double my = line[1] + dy / 2;
+				int first = 0;
 				if (c1.hashCode() < c2.hashCode()) {
-					LineParent tmp = splits[0];
-					splits[0] = splits[1];
-					splits[1] = tmp;
+					first = 2;
 					ARGBColor tcol = c2;
 					c2 = c1;
 					c1 = tcol;
 				}
+				int second = 2 - first;
 				g.setColor(c1);
-				g.drawP(splits[0]);
+				g.drawLine(line[first], line[first + 1], mx, my, type);
 				g.setColor(c2);
-				g.drawP(splits[1]);
+				g.drawLine(line[second], line[second + 1], mx, my, type);
 				g.setStroke(solidREC);
-				// line1 = new
-				// LineParent.Double(line.getX1(),line.getY1(),line.getX1()+dx/2f,line.getY1()+dy/2f);
 				g.setColor(c1);
-				g.drawP(splits[0]);
+				g.drawLine(line[first], line[first + 1], mx, my, type);
 				g.setStroke(s);
 
 			}
 		}
 		g.setColor(c);
-		return line;
+		return bounded;
 	}
 
-	private static LineParent[] splitLine(LineParent line) {
-		double dx = line.getX2() - line.getX1();
-		double dy = line.getY2() - line.getY1();
-		LineParent line1 = ggen.makeLine(line.getX1(), line.getY1(), line.getX1() + dx / 2, line.getY1() + dy / 2);
-		LineParent line2 = ggen.makeLine(line.getX2(), line.getY2(), line.getX1() + dx / 2, line.getY1() + dy / 2);
-		return new LineParent[] { line1, line2 };
-	}
-
-	private static LineParent drawLine(Graphics2DTemp g, LineParent line, float pt1[], float pt2[]) {
-		line = getBoundedLine(line, pt1, pt2);
-		if (line != null)
-			g.drawP(line);
-		return line;
-	}
-
-	private static Point2DParent[] wedgeAngle(LineParent line, float ang) {
-		double dx = line.getX2() - line.getX1();
-		double dy = line.getY2() - line.getY1();
+	/**
+	 * The far corners of a wedge of the given half angle along the given
+	 * line, put in the given array as x,y pairs.
+	 */
+	private static double[] wedgeAngle(double[] line, float ang, double[] ptd) {
+		double dx = line[2] - line[0];
+		double dy = line[3] - line[1];
 		double newmag = Math.sqrt(dx * dx + dy * dy);
 		double mag = newmag / Math.cos(ang);
 		double theta = Math.atan2(dy, dx);
-		return new Point2DParent[] {
-				ggen.makePoint(line.getX1() + mag * Math.cos(theta + ang), line.getY1() + mag * Math.sin(theta + ang)),
-				ggen.makePoint(line.getX1() + mag * Math.cos(theta - ang), line.getY1() + mag * Math.sin(theta - ang)) 
-				};
+		ptd[0] = line[0] + mag * Math.cos(theta + ang);
+		ptd[1] = line[1] + mag * Math.sin(theta + ang);
+		ptd[2] = line[0] + mag * Math.cos(theta - ang);
+		ptd[3] = line[1] + mag * Math.sin(theta - ang);
+		return ptd;
 	}
 
 //	private static void drawWedge(Graphics2DTemp g, LineParent line, float pt1[], float pt2[], float ang) {
@@ -2323,24 +2702,23 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 //
 //	}
 	
-	private static Point2DParent[] getWedgeTrapazoid(Graphics2DTemp g, LineParent line, float pt1[], float pt2[], float ang, float startWidth) {
-		line = getBoundedLine(line, pt1, pt2);
-		if (line == null)
+	private static Point2DParent[] getWedgeTrapazoid(Graphics2DTemp g, double[] line, float pt1[], float pt2[], float ang, float startWidth) {
+		if (!getBoundedLine(line, pt1, pt2))
 			return null;
-		Point2DParent[] ptd = wedgeAngle(line, ang);
+		double[] ptd = wedgeAngle(line, ang, new double[4]);
 		
-		double dx = line.getX2() -line.getX1();
-		double dy = line.getY2() -line.getY1();
+		double dx = line[2] -line[0];
+		double dy = line[3] -line[1];
 		double n = 1 / Math.sqrt(dx*dx+dy*dy);
 		
 		double sdx=startWidth*(dy*n);
 		double sdy=-startWidth*(dx*n);
 		
 		Point2DParent[] pp = new Point2DParent[4];
-		pp[0]= ggen.makePoint(line.getX1()+sdx, line.getY1()+sdy);
-		pp[1]= ggen.makePoint(line.getX1()-sdx, line.getY1()-sdy);
-		pp[2]= ggen.makePoint(ptd[0].getX(), ptd[0].getY());
-		pp[3]= ggen.makePoint(ptd[1].getX(), ptd[1].getY());
+		pp[0]= ggen.makePoint(line[0]+sdx, line[1]+sdy);
+		pp[1]= ggen.makePoint(line[0]-sdx, line[1]-sdy);
+		pp[2]= ggen.makePoint(ptd[0], ptd[1]);
+		pp[3]= ggen.makePoint(ptd[2], ptd[3]);
 		
 		return pp;
 	}
@@ -2366,7 +2744,7 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		gp.lineTo(trap[2].getX(), trap[2].getY());
 		gp.lineTo(trap[3].getX(), trap[3].getY());
 		gp.closePath();
-		g.fillP(gp);
+		g.fillP(gp, PrimitiveType.WEDGE);
 		if (split) {
 			g.setColor(c2);
 			gp = ggen.makeGeneralPath();
@@ -2375,15 +2753,15 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 			gp.lineTo((trap[2].getX()+trap[1].getX())/2, (trap[2].getY()+trap[1].getY())/2);
 			gp.lineTo((trap[3].getX()+trap[0].getX())/2, (trap[3].getY()+trap[0].getY())/2);
 			gp.closePath();
-			g.fillP(gp);
+			g.fillP(gp, PrimitiveType.WEDGE);
 		}
 		g.setColor(c);
 
 	}
 
-	private static void drawDash(Graphics2DTemp g, LineParent line, float pt1[], float pt2[], float ang, int NUMLINE,
+	private static void drawDash(Graphics2DTemp g, double[] line, float pt1[], float pt2[], float ang, int NUMLINE,
 			boolean prop, ARGBColor c1, ARGBColor c2, boolean drawLast) {
-		line = getBoundedLine(line, pt1, pt2);
+		boolean bounded = getBoundedLine(line, pt1, pt2);
 		ARGBColor c = g.getARGBColor();
 		boolean split = false;
 		// if(c1!=null && c2!=null){
@@ -2394,19 +2772,19 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 			split = true;
 		}
 		// }
-		if (line == null)
+		if (!bounded)
 			return;
 		if (prop) {
 			double dx = pt2[0] - pt1[0];
 			double dy = pt2[1] - pt1[1];
-			double dx2 = line.getX2() - line.getX1();
-			double dy2 = line.getY2() - line.getY1();
+			double dx2 = line[2] - line[0];
+			double dy2 = line[3] - line[1];
 			double l1 = Math.sqrt(dx * dx + dy * dy);
 			double l2 = Math.sqrt(dx2 * dx2 + dy2 * dy2);
 			NUMLINE = (int) ((NUMLINE * l2) / l1);
 		}
 
-		Point2DParent[] ptd = wedgeAngle(line, ang);
+		double[] ptd = wedgeAngle(line, ang, new double[4]);
 
 		for (int i = 0; i <= NUMLINE; i++) {
 			if(!drawLast){
@@ -2417,11 +2795,10 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 					g.setColor(c1);
 				}
 			}
-			LineParent lineb = ggen.makeLine(((line.getX1() * (NUMLINE - i) + ptd[0].getX() * i) / NUMLINE),
-					((line.getY1() * (NUMLINE - i) + ptd[0].getY() * i) / NUMLINE),
-					((line.getX1() * (NUMLINE - i) + ptd[1].getX() * i) / NUMLINE),
-					((line.getY1() * (NUMLINE - i) + ptd[1].getY() * i) / NUMLINE));
-			g.drawP(lineb);
+			g.drawLine(((line[0] * (NUMLINE - i) + ptd[0] * i) / NUMLINE),
+					((line[1] * (NUMLINE - i) + ptd[1] * i) / NUMLINE),
+					((line[0] * (NUMLINE - i) + ptd[2] * i) / NUMLINE),
+					((line[1] * (NUMLINE - i) + ptd[3] * i) / NUMLINE), PrimitiveType.DASH_SEGMENT);
 			// awLine(g, lineb, pt1, pt2);
 		}
 		g.setColor(c);
@@ -2432,14 +2809,14 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 //		drawDash(g, line, pt1, pt2, ang, NUMLINE, prop, null, null);
 //	}
 
-	private static void drawDashLine(Graphics2DTemp g, LineParent line, float pt1[], float pt2[], int NUMLINE,
+	private static void drawDashLine(Graphics2DTemp g, double[] line, float pt1[], float pt2[], int NUMLINE,
 			boolean prop, ARGBColor c1, ARGBColor c2) {
-		line = getBoundedLine(line, pt1, pt2);
+		boolean bounded = getBoundedLine(line, pt1, pt2);
 		// System.out.println("LINE DASH");
 		ARGBColor c = g.getARGBColor();
 		g.setColor(c2);
 
-		if (line == null)
+		if (!bounded)
 			return;
 		boolean split = false;
 
@@ -2451,8 +2828,8 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		if (prop) {
 			double dx = pt2[0] - pt1[0];
 			double dy = pt2[1] - pt1[1];
-			double dx2 = line.getX2() - line.getX1();
-			double dy2 = line.getY2() - line.getY1();
+			double dx2 = line[2] - line[0];
+			double dy2 = line[3] - line[1];
 			double l1 = Math.sqrt(dx * dx + dy * dy);
 			double l2 = Math.sqrt(dx2 * dx2 + dy2 * dy2);
 			NUMLINE = (int) ((NUMLINE * l2) / l1);
@@ -2466,12 +2843,11 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 						g.setColor(c1);
 				}
 			}
-			LineParent lineb = ggen.makeLine(
-					(line.getX1() * (NUMLINE * 2 - (i + .75)) + line.getX2() * (i + .75)) / (NUMLINE * 2),
-					(line.getY1() * (NUMLINE * 2 - (i + .75)) + line.getY2() * (i + .75)) / (NUMLINE * 2),
-					(line.getX1() * (NUMLINE * 2 - (i + 1.25)) + line.getX2() * (i + 1.25)) / (NUMLINE * 2),
-					(line.getY1() * (NUMLINE * 2 - (i + 1.25)) + line.getY2() * (i + 1.25)) / (NUMLINE * 2));
-			g.drawP(lineb);
+			g.drawLine(
+					(line[0] * (NUMLINE * 2 - (i + .75)) + line[2] * (i + .75)) / (NUMLINE * 2),
+					(line[1] * (NUMLINE * 2 - (i + .75)) + line[3] * (i + .75)) / (NUMLINE * 2),
+					(line[0] * (NUMLINE * 2 - (i + 1.25)) + line[2] * (i + 1.25)) / (NUMLINE * 2),
+					(line[1] * (NUMLINE * 2 - (i + 1.25)) + line[3] * (i + 1.25)) / (NUMLINE * 2), PrimitiveType.DASH_SEGMENT);
 			// drawLine(g, lineb, pt1, pt2);
 		}
 		g.setColor(c);
@@ -2479,20 +2855,15 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 
 
 
-	private static LineParent lineCircleIntersections(LineParent line, float Cx, float Cy, float R) {
-		// if(true)return line;
-		if (line == null)
-			return null;
-		double[] line2 = lineCircleIntersections(line.getX1(), line.getY1(), line.getX2(), line.getY2(), Cx, Cy, R);
-		if (line2 == null)
-			return null;
-		return ggen.makeLine(line2[0], line2[1], line2[2], line2[3]);
-	}
-
-	private static double[] lineCircleIntersections(double Ax, double Ay, double Bx, double By, double Cx, double Cy,
-			double R) {
-		double[] is1 = new double[2];
-		double[] is2 = new double[2];
+	/**
+	 * Move whichever ends of the given line are inside the given circle
+	 * to where the line crosses it, in place.
+	 */
+	private static void lineCircleIntersections(double[] line, double Cx, double Cy, double R) {
+		double Ax = line[0];
+		double Ay = line[1];
+		double Bx = line[2];
+		double By = line[3];
 		boolean achange = false;
 		boolean bchange = false;
 		double nax = Ax;
@@ -2526,10 +2897,10 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		if (LEC < R) {
 			// compute distance from t to circle intersection point
 			double dt = (double) Math.sqrt(R * R - LEC * LEC);
-			is1[0] = Ex + dt * Dx;
-			is1[1] = Ey + dt * Dy;
+			double is1x = Ex + dt * Dx;
+			double is1y = Ey + dt * Dy;
 
-			if (between(is1[0], Ax, Bx) && between(is1[1], Ay, By)) {
+			if (between(is1x, Ax, Bx) && between(is1y, Ay, By)) {
 				double dax = Cx - Ax;
 				double day = Cy - Ay;
 				double dbx = Cx - Bx;
@@ -2538,25 +2909,25 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 				double db = dbx * dbx + dby * dby;
 				if (da < db) {
 					achange = true;
-					nax = is1[0];
-					nay = is1[1];
+					nax = is1x;
+					nay = is1y;
 				} else {
 					bchange = true;
-					nbx = is1[0];
-					nby = is1[1];
+					nbx = is1x;
+					nby = is1y;
 				}
 			}
-			is2[0] = Ex - dt * Dx;
-			is2[1] = Ey - dt * Dy;
-			if (between(is2[0], Ax, Bx) && between(is2[1], Ay, By)) {
+			double is2x = Ex - dt * Dx;
+			double is2y = Ey - dt * Dy;
+			if (between(is2x, Ax, Bx) && between(is2y, Ay, By)) {
 				if (achange) {
 					bchange = true;
-					nbx = is2[0];
-					nby = is2[1];
+					nbx = is2x;
+					nby = is2y;
 				} else if (bchange) {
 					achange = true;
-					nax = is2[0];
-					nay = is2[1];
+					nax = is2x;
+					nay = is2y;
 				} else {
 					double dax = Cx - Ax;
 					double day = Cy - Ay;
@@ -2567,12 +2938,12 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 
 					if (da < db) {
 						achange = true;
-						nax = is2[0];
-						nay = is2[1];
+						nax = is2x;
+						nay = is2y;
 					} else {
 						bchange = true;
-						nbx = is2[0];
-						nby = is2[1];
+						nbx = is2x;
+						nby = is2y;
 					}
 				}
 			}
@@ -2590,7 +2961,10 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		// if(achange && bchange)
 		// return null;
 
-		return new double[] { nax, nay, nbx, nby };
+		line[0] = nax;
+		line[1] = nay;
+		line[2] = nbx;
+		line[3] = nby;
 
 	}
 
@@ -2598,15 +2972,6 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		return (x >= a && x <= b) || (x <= a && x >= b);
 	}
 
-	private static double[] normVec(double[] v, double L) {
-		double len = v[0] * v[0] + v[1] * v[1];
-		if (len == 0) {
-			return new double[] { L, 0 };
-		}
-		double mul = (L / Math.sqrt(len));
-		return new double[] { v[0] * mul, v[1] * mul };
-	}
-
 	private static double sqrDistance(double c1, double c12, double c2, double c22) {
 		return (c1 - c2) * (c1 - c2) + (c12 - c22) * (c12 - c22);
 	}
@@ -2615,7 +2980,7 @@ class NchemicalRenderer extends AbstractChemicalRenderer {
 		return sqrDistance(p1.getX(),p1.getY(),p2.getX(),p2.getY());
 	}
 
-	private String getRGroupText(int i) {
+	private static String getRGroupText(int i) {
 		switch (i) {
 		case 90:
 			return "[B]";
@@ -0,0 +1,710 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.BasicStroke;
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.renderer.DisplayList.BracketPath;
+import gov.nih.ncats.molwitch.renderer.DisplayList.FilledShape;
+import gov.nih.ncats.molwitch.renderer.DisplayList.GlyphRun;
+import gov.nih.ncats.molwitch.renderer.DisplayList.Primitive;
+import gov.nih.ncats.molwitch.renderer.DisplayList.StrokedLine;
+
+/**
+ * Writes structures as vector drawings onto the pages of a PDF document.
+ * Made by {@link ChemicalRenderer#writePdf(OutputStream)}:
+ * <pre>
+ * try(PdfWriter pdf = renderer.writePdf(out)){
+ *     for(Chemical c : chemicals){
+ *         pdf.addPage(c, 300, 300, false);
+ *     }
+ * }
+ * </pre>
+ * or with many structures to a page:
+ * <pre>
+ * pdf.beginPage(612, 792)
+ *    .draw(a, 36, 36, 270, 270, false)
+ *    .draw(b, 306, 36, 270, 270, false);
+ * </pre>
+ *
+ * Each page is written out as soon as the next one is begun, so only one
+ * page is held in memory however long the document.  Labels are drawn
+ * with Type 3 fonts made from the outlines of the glyphs used; each glyph
+ * is embedded once per document.  Sizes and positions are in points, from
+ * the top left of the page.
+ *
+ * Shadows are left out, as PDF has no blur.  A writer is not thread safe.
+ */
+public final class PdfWriter implements Closeable {
+
+	private static final int CATALOG = 1;
+	private static final int PAGES = 2;
+	private static final int RESOURCES = 3;
+
+	//the size glyph outlines are taken at; a Type 3 glyph space unit is
+	//then a thousandth of the font size, as with other font types
+	private static final float GLYPH_SIZE = 1000;
+
+	private final ChemicalRenderer renderer;
+	private final OutputStream out;
+	private final FontRenderContext frc = ChemicalRenderer.VECTOR_FRC;
+
+	private long position;
+	private long[] offsets = new long[64];
+	private int lastObject = RESOURCES;
+	private final List<Integer> pageObjects = new ArrayList<>();
+
+	private final Map<Font, Font> glyphFonts = new HashMap<>();
+	private final Map<GlyphKey, Integer> glyphs = new HashMap<>();
+	private final List<Type3Font> fonts = new ArrayList<>();
+	private final Map<Integer, String> alphaStates = new TreeMap<>();
+
+	private boolean compressed = true;
+	private Page page;
+	private boolean closed;
+
+	PdfWriter(ChemicalRenderer renderer, OutputStream out) throws IOException {
+		this.renderer = Objects.requireNonNull(renderer);
+		this.out = new BufferedOutputStream(Objects.requireNonNull(out));
+		write("%PDF-1.4\n");
+		//a comment of high bytes marks the file as binary
+		write(new byte[]{'%', (byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'});
+	}
+
+	/**
+	 * @param compressed true, the default, to deflate page contents and
+	 *                   glyph outlines.
+	 */
+	public PdfWriter setCompressed(boolean compressed) {
+		this.compressed = compressed;
+		return this;
+	}
+
+	/**
+	 * Finish the current page, if any, and start a new one of the given
+	 * size in points.
+	 */
+	public PdfWriter beginPage(int width, int height) throws IOException {
+		if(width <=0 || height <=0){
+			throw new IllegalArgumentException("page size must be positive");
+		}
+		ensureOpen();
+		endPage();
+		page = new Page(width, height);
+		return this;
+	}
+
+	/**
+	 * Draw the given structure, with its background and captions, into a
+	 * box of the current page.
+	 *
+	 * @throws IllegalStateException if no page has been begun.
+	 */
+	public PdfWriter draw(Chemical c, int x, int y, int width, int height, boolean round) {
+		ensureOpen();
+		if(page == null){
+			throw new IllegalStateException("no page has been begun");
+		}
+		renderer.renderVector(page, c, x, y, width, height, round);
+		return this;
+	}
+
+	/**
+	 * Put the given structure on a page of its own, of the given size.
+	 */
+	public PdfWriter addPage(Chemical c, int width, int height, boolean round) throws IOException {
+		return beginPage(width, height).draw(c, 0, 0, width, height, round);
+	}
+
+	/**
+	 * The number of pages begun so far.
+	 */
+	public int getPageCount() {
+		return pageObjects.size() + (page == null ? 0 : 1);
+	}
+
+	/**
+	 * Finish the document and close the stream it is written to.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed){
+			return;
+		}
+		try{
+			endPage();
+			writeFonts();
+			writeResources();
+
+			StringBuilder kids = new StringBuilder();
+			for(int p : pageObjects){
+				kids.append(p).append(" 0 R ");
+			}
+			writeObject(PAGES, "<< /Type /Pages /Kids [" + kids + "] /Count " + pageObjects.size() + " >>");
+			writeObject(CATALOG, "<< /Type /Catalog /Pages " + PAGES + " 0 R >>");
+
+			long xref = position;
+			StringBuilder sb = new StringBuilder();
+			sb.append("xref\n0 ").append(lastObject + 1).append("\n0000000000 65535 f \n");
+			for(int i=1; i<= lastObject; i++){
+				String offset = Long.toString(offsets[i]);
+				for(int k=offset.length(); k< 10; k++){
+					sb.append('0');
+				}
+				sb.append(offset).append(" 00000 n \n");
+			}
+			sb.append("trailer\n<< /Size ").append(lastObject + 1).append(" /Root ").append(CATALOG)
+					.append(" 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+			write(sb.toString());
+		}finally{
+			closed = true;
+			out.close();
+		}
+	}
+
+	private void ensureOpen(){
+		if(closed){
+			throw new IllegalStateException("closed");
+		}
+	}
+
+	private void endPage() throws IOException {
+		if(page == null){
+			return;
+		}
+		Page p = page;
+		page = null;
+		p.flushLines();
+		int contents = writeStream(reserve(), "", p.content.toString().getBytes(StandardCharsets.ISO_8859_1));
+		int pageObject = reserve();
+		writeObject(pageObject, "<< /Type /Page /Parent " + PAGES + " 0 R /MediaBox [0 0 " + p.width + " " + p.height
+				+ "] /Resources " + RESOURCES + " 0 R /Contents " + contents + " 0 R >>");
+		pageObjects.add(pageObject);
+	}
+
+	private void writeFonts() throws IOException {
+		for(Type3Font f : fonts){
+			StringBuilder sb = new StringBuilder();
+			sb.append("<< /Type /Font /Subtype /Type3 /FontBBox [");
+			Rectangle2D b = f.bounds == null ? new Rectangle2D.Double() : f.bounds;
+			number(sb, b.getMinX());
+			sb.append(' ');
+			number(sb, b.getMinY());
+			sb.append(' ');
+			number(sb, b.getMaxX());
+			sb.append(' ');
+			number(sb, b.getMaxY());
+			sb.append("] /FontMatrix [.001 0 0 .001 0 0] /CharProcs <<");
+			for(int i=0; i< f.count; i++){
+				sb.append(" /g").append(i).append(' ').append(f.charProcs[i]).append(" 0 R");
+			}
+			sb.append(" >> /Encoding << /Type /Encoding /Differences [0");
+			for(int i=0; i< f.count; i++){
+				sb.append(" /g").append(i);
+			}
+			sb.append("] >> /FirstChar 0 /LastChar ").append(f.count - 1).append(" /Widths [");
+			for(int i=0; i< f.count; i++){
+				if(i>0){
+					sb.append(' ');
+				}
+				number(sb, f.widths[i]);
+			}
+			sb.append("] /Resources << >> >>");
+			writeObject(f.object, sb.toString());
+		}
+	}
+
+	private void writeResources() throws IOException {
+		StringBuilder sb = new StringBuilder("<< /ProcSet [/PDF]");
+		if(!fonts.isEmpty()){
+			sb.append(" /Font <<");
+			for(int i=0; i< fonts.size(); i++){
+				sb.append(" /T").append(i).append(' ').append(fonts.get(i).object).append(" 0 R");
+			}
+			sb.append(" >>");
+		}
+		if(!alphaStates.isEmpty()){
+			sb.append(" /ExtGState <<");
+			for(Map.Entry<Integer, String> e : alphaStates.entrySet()){
+				sb.append(" /").append(e.getValue()).append(" << /Type /ExtGState /ca ");
+				number(sb, e.getKey() / 255.0);
+				sb.append(" /CA ");
+				number(sb, e.getKey() / 255.0);
+				sb.append(" >>");
+			}
+			sb.append(" >>");
+		}
+		sb.append(" >>");
+		writeObject(RESOURCES, sb.toString());
+	}
+
+	/**
+	 * The font and character a glyph is shown with, as the index of the
+	 * font times 256 plus the character code; the glyph's outline is
+	 * written the first time it is asked for.
+	 */
+	private int glyph(Font font, int glyphCode) {
+		Font unit = glyphFonts.computeIfAbsent(font, f -> f.deriveFont(GLYPH_SIZE));
+		GlyphKey key = new GlyphKey(unit, glyphCode);
+		Integer ref = glyphs.get(key);
+		if(ref != null){
+			return ref;
+		}
+		Type3Font f = fonts.isEmpty() ? null : fonts.get(fonts.size() - 1);
+		if(f == null || f.count == 256){
+			f = new Type3Font(reserve());
+			fonts.add(f);
+		}
+		GlyphVector gv = unit.createGlyphVector(frc, new int[]{glyphCode});
+		Shape outline = gv.getGlyphOutline(0);
+		float advance = gv.getGlyphMetrics(0).getAdvance();
+		//glyph space has y up
+		Rectangle2D b = outline.getBounds2D();
+		Rectangle2D bounds = new Rectangle2D.Double(b.getMinX(), -b.getMaxY(), b.getWidth(), b.getHeight());
+
+		StringBuilder sb = new StringBuilder();
+		number(sb, advance);
+		sb.append(" 0 ");
+		number(sb, Math.floor(bounds.getMinX()));
+		sb.append(' ');
+		number(sb, Math.floor(bounds.getMinY()));
+		sb.append(' ');
+		number(sb, Math.ceil(bounds.getMaxX()));
+		sb.append(' ');
+		number(sb, Math.ceil(bounds.getMaxY()));
+		sb.append(" d1\n");
+		if(path(sb, outline, -1)){
+			sb.append(outline.getPathIterator(null).getWindingRule() == PathIterator.WIND_EVEN_ODD ? "f*\n" : "f\n");
+		}
+		int code = f.count++;
+		try{
+			f.charProcs[code] = writeStream(reserve(), "", sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		f.widths[code] = advance;
+		if(!bounds.isEmpty()){
+			if(f.bounds == null){
+				f.bounds = bounds;
+			}else{
+				f.bounds.add(bounds);
+			}
+		}
+		ref = (fonts.size() - 1) * 256 + code;
+		glyphs.put(key, ref);
+		return ref;
+	}
+
+	private String alphaState(int alpha){
+		return alphaStates.computeIfAbsent(alpha, a -> "A" + a);
+	}
+
+	private int reserve(){
+		return ++lastObject;
+	}
+
+	private void writeObject(int number, String body) throws IOException {
+		beginObject(number);
+		write(body);
+		write("\nendobj\n");
+	}
+
+	private int writeStream(int number, String dictionary, byte[] data) throws IOException {
+		if(compressed){
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 3 + 16);
+			try(DeflaterOutputStream dos = new DeflaterOutputStream(deflated)){
+				dos.write(data);
+			}
+			data = deflated.toByteArray();
+			dictionary += " /Filter /FlateDecode";
+		}
+		beginObject(number);
+		write("<<" + dictionary + " /Length " + data.length + " >>\nstream\n");
+		write(data);
+		write("\nendstream\nendobj\n");
+		return number;
+	}
+
+	private void beginObject(int number) throws IOException {
+		if(number >= offsets.length){
+			offsets = Arrays.copyOf(offsets, Math.max(number + 1, offsets.length * 2));
+		}
+		offsets[number] = position;
+		write(number + " 0 obj\n");
+	}
+
+	private void write(String s) throws IOException {
+		write(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private void write(byte[] b) throws IOException {
+		out.write(b);
+		position += b.length;
+	}
+
+	private static void number(StringBuilder sb, double v){
+		VectorCanvas.number(sb, v);
+	}
+
+	/**
+	 * Append the path operators of the given shape, its y coordinates
+	 * multiplied by the given sign.
+	 *
+	 * @return false if the shape has no segments.
+	 */
+	private static boolean path(StringBuilder sb, Shape s, int ySign){
+		double[] c = new double[6];
+		double cx = 0, cy = 0;
+		boolean any = false;
+		for(PathIterator it = s.getPathIterator(null); !it.isDone(); it.next()){
+			int type = it.currentSegment(c);
+			for(int i=1; i< 6; i+=2){
+				c[i] *= ySign;
+			}
+			any = true;
+			switch(type){
+				case PathIterator.SEG_MOVETO:
+					point(sb, c[0], c[1]).append("m\n");
+					cx = c[0];
+					cy = c[1];
+					break;
+				case PathIterator.SEG_LINETO:
+					point(sb, c[0], c[1]).append("l\n");
+					cx = c[0];
+					cy = c[1];
+					break;
+				case PathIterator.SEG_QUADTO:
+					//a quadratic is the cubic with controls 2/3 of the way to its control
+					point(sb, cx + 2 * (c[0] - cx) / 3, cy + 2 * (c[1] - cy) / 3);
+					point(sb, c[2] + 2 * (c[0] - c[2]) / 3, c[3] + 2 * (c[1] - c[3]) / 3);
+					point(sb, c[2], c[3]).append("c\n");
+					cx = c[2];
+					cy = c[3];
+					break;
+				case PathIterator.SEG_CUBICTO:
+					point(sb, c[0], c[1]);
+					point(sb, c[2], c[3]);
+					point(sb, c[4], c[5]).append("c\n");
+					cx = c[4];
+					cy = c[5];
+					break;
+				default:
+					sb.append("h\n");
+					break;
+			}
+		}
+		return any;
+	}
+
+	private static StringBuilder point(StringBuilder sb, double x, double y){
+		number(sb, x);
+		sb.append(' ');
+		number(sb, y);
+		return sb.append(' ');
+	}
+
+	private static void colorComponent(StringBuilder sb, int c){
+		//three decimals, as two can be off by more than a level
+		long v = Math.round(c * 1000 / 255.0);
+		if(v == 0 || v == 1000){
+			sb.append(v / 1000);
+			return;
+		}
+		String digits = Long.toString(1000 + v).substring(1);
+		int end = digits.length();
+		while(digits.charAt(end - 1) == '0'){
+			end--;
+		}
+		sb.append('.').append(digits, 0, end);
+	}
+
+	/**
+	 * The page being drawn, with its content stream and the graphics
+	 * state the stream has set so far.
+	 */
+	private final class Page implements VectorCanvas {
+		final int width;
+		final int height;
+		final StringBuilder content = new StringBuilder();
+
+		private int fill = 0xff000000;
+		private int stroke = 0xff000000;
+		private int alpha = 255;
+		private Stroke lineStyle;
+
+		private final StringBuilder pendingLines = new StringBuilder();
+		private Stroke pendingStroke;
+		private ARGBColor pendingColor;
+
+		Page(int width, int height){
+			this.width = width;
+			this.height = height;
+			//y down from the top, as in the renderer
+			content.append("1 0 0 -1 0 ").append(height).append(" cm\n");
+		}
+
+		@Override
+		public void fill(Shape s, ARGBColor color) {
+			flushLines();
+			setFill(color);
+			if(s instanceof Rectangle2D){
+				Rectangle2D r = (Rectangle2D) s;
+				point(content, r.getX(), r.getY());
+				point(content, r.getWidth(), r.getHeight()).append("re\n");
+			}else if(!path(content, s, 1)){
+				return;
+			}
+			content.append(s.getPathIterator(null).getWindingRule() == PathIterator.WIND_EVEN_ODD ? "f*\n" : "f\n");
+		}
+
+		@Override
+		public void draw(Shape s, Stroke stroke, ARGBColor color) {
+			flushLines();
+			setStroke(stroke, color);
+			if(path(content, s, 1)){
+				content.append("S\n");
+			}
+		}
+
+		@Override
+		public void text(String text, Font font, double x, double y, ARGBColor color) {
+			glyphs(font.createGlyphVector(frc, text), x, y, color);
+		}
+
+		private void glyphs(GlyphVector gv, double x, double y, ARGBColor color) {
+			flushLines();
+			Font font = gv.getFont();
+			int n = gv.getNumGlyphs();
+			boolean begun = false;
+			int currentFont = -1;
+			double lastX = 0, lastY = 0;
+			for(int i=0; i< n; i++){
+				int ref = glyph(font, gv.getGlyphCode(i));
+				Point2D p = gv.getGlyphPosition(i);
+				double gx = x + p.getX();
+				double gy = y + p.getY();
+				if(!begun){
+					setFill(color);
+					content.append("BT\n");
+				}
+				if(ref / 256 != currentFont){
+					currentFont = ref / 256;
+					content.append("/T").append(currentFont).append(' ');
+					number(content, font.getSize2D());
+					content.append(" Tf\n");
+				}
+				if(!begun){
+					//flip the text back upright in the y down page
+					content.append("1 0 0 -1 ");
+					point(content, gx, gy).append("Tm\n");
+					begun = true;
+				}else{
+					//from the start of the last glyph, with text space y up
+					point(content, gx - lastX, lastY - gy).append("Td\n");
+				}
+				lastX = gx;
+				lastY = gy;
+				content.append('<').append(Character.forDigit((ref % 256) >> 4, 16))
+						.append(Character.forDigit(ref % 16, 16)).append("> Tj\n");
+			}
+			if(begun){
+				content.append("ET\n");
+			}
+		}
+
+		@Override
+		public void displayList(DisplayList list, double dx, double dy) {
+			for(Primitive p : list.getPrimitives()){
+				if(p instanceof StrokedLine){
+					StrokedLine l = (StrokedLine) p;
+					Line2D line = l.getLine();
+					line(line.getX1() + dx, line.getY1() + dy, line.getX2() + dx, line.getY2() + dy,
+							l.getStroke(), l.getColor());
+				}else if(p instanceof BracketPath){
+					BracketPath b = (BracketPath) p;
+					double[] pts = b.getPoints();
+					//each segment separately, as it is painted
+					for(int i=2; i< pts.length; i+=2){
+						line(pts[i-2] + dx, pts[i-1] + dy, pts[i] + dx, pts[i+1] + dy, b.getStroke(), b.getColor());
+					}
+				}else if(p instanceof FilledShape){
+					Shape s = ((FilledShape) p).getShape();
+					fill(dx == 0 && dy == 0 ? s : java.awt.geom.AffineTransform.getTranslateInstance(dx, dy)
+							.createTransformedShape(s), p.getColor());
+				}else if(p instanceof GlyphRun){
+					GlyphRun g = (GlyphRun) p;
+					glyphs(g.getFont().createGlyphVector(frc, g.getGlyphCodes()), g.getX() + dx, g.getY() + dy,
+							g.getColor());
+				}
+			}
+		}
+
+		/**
+		 * Draw one straight line; it is stroked together with the lines
+		 * before it when it looks the same and nothing shows through.
+		 */
+		private void line(double x1, double y1, double x2, double y2, Stroke stroke, ARGBColor color){
+			if(pendingStroke != null && !(stroke.equals(pendingStroke) && color.equals(pendingColor)
+					&& color.asColor().getAlpha() == 255)){
+				flushLines();
+			}
+			pendingStroke = stroke;
+			pendingColor = color;
+			point(pendingLines, x1, y1).append("m ");
+			point(pendingLines, x2, y2).append("l\n");
+		}
+
+		void flushLines(){
+			if(pendingStroke == null){
+				return;
+			}
+			setStroke(pendingStroke, pendingColor);
+			content.append(pendingLines).append("S\n");
+			pendingLines.setLength(0);
+			pendingStroke = null;
+			pendingColor = null;
+		}
+
+		private void setFill(ARGBColor color){
+			int argb = color.asColor().getRGB();
+			setAlpha(argb >>> 24);
+			if((argb & 0xffffff) != (fill & 0xffffff)){
+				rgb(argb).append("rg\n");
+			}
+			fill = argb;
+		}
+
+		private void setStroke(Stroke s, ARGBColor color){
+			int argb = color.asColor().getRGB();
+			setAlpha(argb >>> 24);
+			if((argb & 0xffffff) != (this.stroke & 0xffffff)){
+				rgb(argb).append("RG\n");
+			}
+			this.stroke = argb;
+			if(s.equals(lineStyle) || !(s instanceof BasicStroke)){
+				return;
+			}
+			BasicStroke bs = (BasicStroke) s;
+			number(content, bs.getLineWidth());
+			//java's caps and joins are numbered as PDF's are
+			content.append(" w ").append(bs.getEndCap()).append(" J ").append(bs.getLineJoin()).append(" j ");
+			number(content, bs.getMiterLimit());
+			content.append(" M [");
+			float[] dash = bs.getDashArray();
+			if(dash != null){
+				for(int i=0; i< dash.length; i++){
+					if(i>0){
+						content.append(' ');
+					}
+					number(content, dash[i]);
+				}
+			}
+			content.append("] ");
+			number(content, dash == null ? 0 : bs.getDashPhase());
+			content.append(" d\n");
+			lineStyle = s;
+		}
+
+		private void setAlpha(int a){
+			if(a != alpha){
+				content.append('/').append(alphaState(a)).append(" gs\n");
+				alpha = a;
+			}
+		}
+
+		private StringBuilder rgb(int argb){
+			colorComponent(content, (argb >> 16) & 0xff);
+			content.append(' ');
+			colorComponent(content, (argb >> 8) & 0xff);
+			content.append(' ');
+			colorComponent(content, argb & 0xff);
+			return content.append(' ');
+		}
+
+		@Override
+		public boolean beginShadowed() {
+			return false;
+		}
+
+		@Override
+		public void endShadowed(int blurRadius, float opacity, int offset) {
+		}
+	}
+
+	private static final class Type3Font{
+		final int object;
+		final int[] charProcs = new int[256];
+		final float[] widths = new float[256];
+		int count;
+		Rectangle2D bounds;
+
+		Type3Font(int object){
+			this.object = object;
+		}
+	}
+
+	private static final class GlyphKey{
+		private final Font font;
+		private final int glyphCode;
+
+		GlyphKey(Font font, int glyphCode){
+			this.font = font;
+			this.glyphCode = glyphCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof GlyphKey)){
+				return false;
+			}
+			GlyphKey other = (GlyphKey) o;
+			return glyphCode == other.glyphCode && font.equals(other.font);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * font.hashCode() + glyphCode;
+		}
+	}
+}
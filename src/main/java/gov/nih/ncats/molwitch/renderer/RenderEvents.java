@@ -0,0 +1,62 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+/**
+ * JDK Flight Recorder events for each render and each of its
+ * {@link RenderMetrics.Phase phases}.
+ *
+ * The flight recorder needs Java 11, so this is the Java 8 version,
+ * which records nothing.  The jar also holds a Java 11 version under
+ * {@code META-INF/versions/11}, used in its place on Java 11 and later,
+ * that makes the events whenever a recording has them enabled.
+ */
+final class RenderEvents {
+
+	private RenderEvents(){
+		//can not instantiate
+	}
+
+	/**
+	 * Whether any recording wants render or phase events.
+	 */
+	static boolean isEnabled(){
+		return false;
+	}
+
+	/**
+	 * Start the event for a render, or return null if it isn't recorded.
+	 */
+	static Object beginRender(){
+		return null;
+	}
+
+	static void commitRender(Object event, RenderMetrics metrics){
+	}
+
+	/**
+	 * Start the event for a phase, or return null if it isn't recorded.
+	 */
+	static Object beginPhase(){
+		return null;
+	}
+
+	static void commitPhase(Object event, RenderMetrics metrics, RenderMetrics.Phase phase){
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How long each phase of one render took, and how much work it did,
+ * as handed to a {@link RenderMetricsListener} when the render is done.
+ *
+ * Metrics are only gathered for renderers with a listener, or while
+ * a JDK Flight Recorder recording takes render events (see
+ * {@link RenderEvents}).  The render a thread is measuring is found by
+ * the code of each phase from {@link #current()}, which without any
+ * render being measured anywhere is a single read, so the phases cost
+ * next to nothing to leave unmeasured.
+ */
+public final class RenderMetrics {
+
+	/**
+	 * The phases of a render, in the order they are done.  A layout
+	 * taken from a {@link DisplayListCache} skips those from
+	 * {@link #COORDINATES} to {@link #SGROUPS}, which are otherwise done
+	 * again for each layout pass.
+	 */
+	public enum Phase {
+		BACKGROUND,
+		/**
+		 * Generating 2D coordinates for a structure without any.
+		 */
+		COORDINATES,
+		/**
+		 * Perceiving the stereo labels and the structure's optical
+		 * activity.
+		 */
+		STEREO,
+		/**
+		 * Laying out and drawing the atom labels.
+		 */
+		LABELS,
+		/**
+		 * Laying out the bond geometry and drawing the bonds.
+		 */
+		BONDS,
+		/**
+		 * Superatom labels and SGroup brackets.
+		 */
+		SGROUPS,
+		SHADOW,
+		/**
+		 * Painting the laid out structure.
+		 */
+		PAINT,
+		CAPTIONS
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private static final ThreadLocal<RenderMetrics> CURRENT = new ThreadLocal<>();
+	//the renders being measured on every thread, so phases only look
+	//for a render to record into while there are some
+	private static final AtomicInteger MEASURING = new AtomicInteger();
+
+	private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+	private final long[] nanos = new long[PHASES.length];
+	private final int atomCount;
+	private final int bondCount;
+	private final int width;
+	private final int height;
+	private final long optionsFingerprint;
+	private int primitiveCount;
+	private boolean layoutCached;
+	int fontsDerived;
+	int glyphCacheHits;
+	int glyphCacheMisses;
+	private final long startNanos;
+	private final long startAllocated;
+	private long totalNanos;
+	private long allocatedBytes = -1;
+
+	private final RenderMetricsListener listener;
+	//whether flight recorder events are made, and the ones in progress
+	private final boolean events;
+	private final Object renderEvent;
+	private Object phaseEvent;
+
+	//renders begun inside this one, such as the structure inside its
+	//captions, which are measured as part of it
+	private int depth;
+
+	private RenderMetrics(RenderMetricsListener listener, boolean events, Chemical c, int width, int height, long optionsFingerprint){
+		this.listener = listener;
+		this.events = events;
+		atomCount = c.getAtomCount();
+		bondCount = c.getBondCount();
+		this.width = width;
+		this.height = height;
+		this.optionsFingerprint = optionsFingerprint;
+		startAllocated = allocatedBytes();
+		renderEvent = events ? RenderEvents.beginRender() : null;
+		startNanos = System.nanoTime();
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean(){
+		try{
+			Object bean = ManagementFactory.getThreadMXBean();
+			if(bean instanceof com.sun.management.ThreadMXBean){
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+				if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()){
+					return threads;
+				}
+			}
+		}catch(Throwable e){
+			//not a HotSpot VM, allocations are just not counted
+		}
+		return null;
+	}
+
+	private static long allocatedBytes(){
+		return ALLOCATION == null ? -1 : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Start measuring a render of the given structure by the given
+	 * renderer into a box of the given size on this thread, or if this
+	 * thread is already measuring one, carry on measuring it.  Every
+	 * render measured must be finished by {@link #finish()}.
+	 *
+	 * @return the render being measured, or null if the renderer has no
+	 *         listener and no render events are being recorded.
+	 */
+	static RenderMetrics begin(AbstractChemicalRenderer renderer, Chemical c, int width, int height){
+		RenderMetricsListener listener = renderer.metricsListener;
+		boolean events = RenderEvents.isEnabled();
+		if(listener == null && !events){
+			return null;
+		}
+		RenderMetrics metrics = CURRENT.get();
+		if(metrics != null){
+			metrics.depth++;
+			return metrics;
+		}
+		metrics = new RenderMetrics(listener, events, c, width, height, renderer.optionsFingerprint());
+		CURRENT.set(metrics);
+		MEASURING.incrementAndGet();
+		return metrics;
+	}
+
+	/**
+	 * Finish the render begun by the matching
+	 * {@link #begin(AbstractChemicalRenderer, Chemical, int, int)}, telling
+	 * the listener about it if it was the outermost one.
+	 */
+	void finish(){
+		if(depth > 0){
+			depth--;
+			return;
+		}
+		totalNanos = System.nanoTime() - startNanos;
+		if(startAllocated >= 0){
+			allocatedBytes = allocatedBytes() - startAllocated;
+		}
+		CURRENT.remove();
+		MEASURING.decrementAndGet();
+		if(renderEvent != null){
+			RenderEvents.commitRender(renderEvent, this);
+		}
+		if(listener != null){
+			listener.renderFinished(this);
+		}
+	}
+
+	/**
+	 * The render being measured on this thread, or null if there isn't
+	 * one.
+	 */
+	static RenderMetrics current(){
+		return MEASURING.get() == 0 ? null : CURRENT.get();
+	}
+
+	/**
+	 * When a phase of the given render starts, or 0 if it isn't being
+	 * measured.
+	 */
+	static long start(RenderMetrics metrics){
+		if(metrics == null){
+			return 0;
+		}
+		if(metrics.events){
+			metrics.phaseEvent = RenderEvents.beginPhase();
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a phase of the given render, if it is being measured, as
+	 * having run from the given start until now.
+	 */
+	static void stop(RenderMetrics metrics, Phase phase, long start){
+		if(metrics != null){
+			metrics.nanos[phase.ordinal()] += System.nanoTime() - start;
+			if(metrics.phaseEvent != null){
+				RenderEvents.commitPhase(metrics.phaseEvent, metrics, phase);
+				metrics.phaseEvent = null;
+			}
+		}
+	}
+
+	void usedCachedLayout(){
+		layoutCached = true;
+	}
+
+	void painted(DisplayList list){
+		primitiveCount += list.getPrimitives().size();
+	}
+
+	/**
+	 * The time spent in the given phase, in nanoseconds; 0 if it wasn't
+	 * done.
+	 */
+	public long getNanos(Phase phase){
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * The time spent in each phase, in nanoseconds, in the order they
+	 * are done.
+	 */
+	public Map<Phase, Long> getPhaseNanos(){
+		Map<Phase, Long> map = new EnumMap<>(Phase.class);
+		for(Phase phase : PHASES){
+			map.put(phase, nanos[phase.ordinal()]);
+		}
+		return map;
+	}
+
+	/**
+	 * The time the whole render took, in nanoseconds, including any time
+	 * not in one of the phases.
+	 */
+	public long getTotalNanos(){
+		return totalNanos;
+	}
+
+	public int getAtomCount(){
+		return atomCount;
+	}
+
+	public int getBondCount(){
+		return bondCount;
+	}
+
+	/**
+	 * The width of the box the structure was rendered into.
+	 */
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * A fingerprint of the {@link RendererOptions} the render was made
+	 * with, the same for any two renders made with the same options.
+	 */
+	public long getOptionsFingerprint(){
+		return optionsFingerprint;
+	}
+
+	/**
+	 * The number of display list primitives painted.  A shadow paints
+	 * the same primitives again and isn't counted twice.
+	 */
+	public int getPrimitiveCount(){
+		return primitiveCount;
+	}
+
+	/**
+	 * Whether the layout painted came from a {@link DisplayListCache}.
+	 */
+	public boolean isLayoutCached(){
+		return layoutCached;
+	}
+
+	/**
+	 * The number of fonts that had to be derived at a new size or style,
+	 * rather than being found already derived.
+	 */
+	public int getFontsDerived(){
+		return fontsDerived;
+	}
+
+	public int getGlyphCacheHits(){
+		return glyphCacheHits;
+	}
+
+	public int getGlyphCacheMisses(){
+		return glyphCacheMisses;
+	}
+
+	/**
+	 * The bytes allocated by the rendering thread during the render, or
+	 * -1 if the VM doesn't count them.
+	 */
+	public long getAllocatedBytes(){
+		return allocatedBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("RenderMetrics{");
+		for(Phase phase : PHASES){
+			sb.append(phase).append('=').append(nanos[phase.ordinal()] / 1000).append("us, ");
+		}
+		return sb.append("total=").append(totalNanos / 1000).append("us")
+				.append(", atoms=").append(atomCount)
+				.append(", bonds=").append(bondCount)
+				.append(", size=").append(width).append('x').append(height)
+				.append(", primitives=").append(primitiveCount)
+				.append(", layoutCached=").append(layoutCached)
+				.append(", fontsDerived=").append(fontsDerived)
+				.append(", glyphCacheHits=").append(glyphCacheHits)
+				.append(", glyphCacheMisses=").append(glyphCacheMisses)
+				.append(", allocatedBytes=").append(allocatedBytes)
+				.append('}').toString();
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+/**
+ * Told how each render went by a renderer it is registered with, see
+ * {@link ChemicalRenderer#setRenderMetricsListener(RenderMetricsListener)}.
+ *
+ * It is called on the thread that did the render, once the render has
+ * finished, so it should return quickly; a renderer used by several
+ * threads calls it from all of them.
+ */
+public interface RenderMetricsListener {
+    void renderFinished(RenderMetrics metrics);
+}
@@ -18,7 +18,6 @@
 
 package gov.nih.ncats.molwitch.renderer;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
@@ -28,12 +27,23 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 import gov.nih.ncats.molwitch.Chemical;
 
+/**
+ * The options a structure is drawn with.
+ *
+ * Options can be read and changed from any thread.  Each change is
+ * published as a whole: the maps of options and properties are copied on
+ * write, so a render that is already running keeps the values it read and
+ * the next one sees the new ones.  Changing options while renders are in
+ * flight is safe, though a render that overlaps a series of changes may
+ * see only some of them.
+ */
 public class RendererOptions {
 
 	public enum DrawOptions{
@@ -191,16 +201,17 @@ public class RendererOptions {
 		
 	 
 	
-	private  final EnumMap<DrawOptions, Boolean> drawOptions = new EnumMap<>(DrawOptions.class);
+	//never modified once assigned, writers swap in a changed copy
+	private volatile EnumMap<DrawOptions, Boolean> drawOptions = new EnumMap<>(DrawOptions.class);
 	
-	private  final EnumMap<DrawProperties, Double> drawProps = new EnumMap<>(DrawProperties.class);
+	private volatile EnumMap<DrawProperties, Double> drawProps = new EnumMap<>(DrawProperties.class);
 	
-	private ColorPalette colorPalette = new ColorPalette();
+	private volatile ColorPalette colorPalette = new ColorPalette();
 	
-	private Function<Chemical, String> bottomCaptionFunction=null;
-	private Function<Chemical, String> topCaptionFunction=null;
+	private volatile Function<Chemical, String> bottomCaptionFunction=null;
+	private volatile Function<Chemical, String> topCaptionFunction=null;
 
-	private List<RendererOptionChangeListener> changeListeners = new ArrayList<>();
+	private final List<RendererOptionChangeListener> changeListeners = new CopyOnWriteArrayList<>();
 
 	public RendererOptions() {
 		_useDefauls();
@@ -251,6 +262,9 @@ public class RendererOptions {
 	public void addChangeListener(RendererOptionChangeListener listener){
 		changeListeners.add(Objects.requireNonNull(listener));
 	}
+	public void removeChangeListener(RendererOptionChangeListener listener){
+		changeListeners.remove(listener);
+	}
 	
 
 	public ColorPalette getColorPalette(){
@@ -270,10 +284,22 @@ public class RendererOptions {
 	}
 	
 	public RendererOptions setDrawOption(DrawOptions option, boolean value) {
-		drawOptions.put(option, value);
+		putDrawOption(option, value);
 		fireChangeListeners();
 		return this;
 	}
+
+	private synchronized void putDrawOption(DrawOptions option, boolean value) {
+		EnumMap<DrawOptions, Boolean> copy = drawOptions.clone();
+		copy.put(Objects.requireNonNull(option), value);
+		drawOptions = copy;
+	}
+
+	private synchronized void putDrawPropertyValue(DrawProperties p, double value) {
+		EnumMap<DrawProperties, Double> copy = drawProps.clone();
+		copy.put(Objects.requireNonNull(p), value);
+		drawProps = copy;
+	}
 	
 	public double getDrawPropertyValue(DrawProperties p) {
 		return drawProps.get(p);
@@ -289,15 +315,19 @@ public class RendererOptions {
 		return this;
 	}
 	public RendererOptions setDrawPropertyValue(DrawProperties p, double value) {
-		drawProps.put(p, value);
+		putDrawPropertyValue(p, value);
 		fireChangeListeners();
 		return this;
 	}
 	public RendererOptions withSubstructureHighlight() {
 		
-		drawOptions.put(DrawOptions.DRAW_HIGHLIGHT_MAPPED, true);
-		drawOptions.put(DrawOptions.DRAW_HIGHLIGHT_WITH_HALO, true);
-		drawOptions.put(DrawOptions.DRAW_HIGHLIGHT_MONOCHROMATIC, true);
+		synchronized (this) {
+			EnumMap<DrawOptions, Boolean> copy = drawOptions.clone();
+			copy.put(DrawOptions.DRAW_HIGHLIGHT_MAPPED, true);
+			copy.put(DrawOptions.DRAW_HIGHLIGHT_WITH_HALO, true);
+			copy.put(DrawOptions.DRAW_HIGHLIGHT_MONOCHROMATIC, true);
+			drawOptions = copy;
+		}
 		fireChangeListeners();
 		return this;
 	}
@@ -406,15 +436,35 @@ public class RendererOptions {
 		return true;
 	}
 
-	private void _useDefauls() {
+	/**
+	 * A hash of everything here that changes how a structure is laid
+	 * out: the draw options, the draw properties and the color palette.
+	 * Captions are not part of the layout.
+	 */
+	long fingerprint(){
+		DisplayListCache.Hasher h = new DisplayListCache.Hasher();
+		for(Boolean b : drawOptions.values()){
+			h.add(b.booleanValue()? 1L : 0L);
+		}
+		for(Double d : drawProps.values()){
+			h.add(d.doubleValue());
+		}
+		h.add((long) colorPalette.hashCode());
+		return h.h1;
+	}
+
+	private synchronized void _useDefauls() {
+		EnumMap<DrawOptions, Boolean> options = new EnumMap<>(DrawOptions.class);
 		for(DrawOptions o : DrawOptions.values()) {
-			drawOptions.put(o, o.defaultValue());
+			options.put(o, o.defaultValue());
 		}
 		
+		EnumMap<DrawProperties, Double> props = new EnumMap<>(DrawProperties.class);
 		for(DrawProperties o : DrawProperties.values()) {
-			drawProps.put(o, o.defaultValue());
+			props.put(o, o.defaultValue());
 		}
-		
+		drawOptions = options;
+		drawProps = props;
 		colorPalette = new ColorPalette();
 	}
 	
@@ -0,0 +1,703 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * Renders every record of an SD file to a PNG image, streaming: records
+ * are read one at a time, parsed, rendered and encoded on a pool of
+ * workers, and handed to a {@link Sink} in file order.
+ * <pre>
+ * try(SdfRenderPipeline.Sink sink = SdfRenderPipeline.Sink.toDirectory(imageDir)){
+ *     new SdfRenderPipeline(renderer, sdFile, 300, 300)
+ *             .setNameProperty("UNII")
+ *             .setCheckpoint(checkpointFile)
+ *             .run(sink);
+ * }
+ * </pre>
+ *
+ * Memory does not grow with the file, past the names a
+ * {@link Sink#toDirectory(Path) directory sink} keeps: only a window of
+ * records is ever between being read and being written, so a slow sink
+ * holds back the workers, and busy workers hold back the reader.
+ *
+ * A record that can not be parsed, rendered or encoded is handed to the
+ * sink as a failure and the rest carry on.
+ *
+ * With a checkpoint file set, the position after the last record written
+ * is saved every so often and when the run ends; a later run with the
+ * same checkpoint picks up from there.  The sink is flushed before each
+ * save; a directory sink syncs its images to disk then, so one that
+ * resumes after a crash misses no record, though it may write again the
+ * ones after the last checkpoint.  A ZIP can't be added to, so a
+ * {@link Sink#toZip(OutputStream) ZIP sink} can't be checkpointed; to
+ * break a large file into restartable parts, give each run a ZIP of its
+ * own.  A run that has finished leaves its checkpoint at the end of the
+ * file, so running it again does nothing.
+ */
+public final class SdfRenderPipeline {
+
+	private static final String RECORD_END = "$$$$";
+	//how often a worker waiting for a record checks whether the run is over
+	private static final long POLL_MILLIS = 100;
+
+	private final ChemicalRenderer renderer;
+	private final Path sdFile;
+	private final int width;
+	private final int height;
+
+	private boolean round;
+	private Executor executor;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int lookAhead = 256;
+	private String nameProperty;
+	private Path checkpoint;
+	private int checkpointInterval = 1000;
+	private int maximumRecordBytes = 64 * 1024 * 1024;
+
+	public SdfRenderPipeline(ChemicalRenderer renderer, Path sdFile, int width, int height) {
+		if(width <=0 || height <=0){
+			throw new IllegalArgumentException("size must be positive");
+		}
+		this.renderer = Objects.requireNonNull(renderer);
+		this.sdFile = Objects.requireNonNull(sdFile);
+		this.width = width;
+		this.height = height;
+	}
+
+	public SdfRenderPipeline setRound(boolean round) {
+		this.round = round;
+		return this;
+	}
+
+	/**
+	 * @param executor the executor to run the workers on, or null, the
+	 *                 default, for a pool that lasts as long as the run.
+	 *                 It must run them on threads of its own, as each
+	 *                 works until the run is over; one that runs tasks on
+	 *                 the calling thread, such as {@code Runnable::run} or
+	 *                 a pool with a caller runs policy once it is full,
+	 *                 makes {@link #run(Sink)} fail.  Workers return to it
+	 *                 soon after the run ends.
+	 */
+	public SdfRenderPipeline setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * @param threads the number of workers; by default one per processor.
+	 */
+	public SdfRenderPipeline setThreads(int threads) {
+		if(threads <=0){
+			throw new IllegalArgumentException("must have at least one thread");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @param records the most records to have read but not yet written.
+	 */
+	public SdfRenderPipeline setLookAhead(int records) {
+		if(records <=0){
+			throw new IllegalArgumentException("look ahead must be positive");
+		}
+		this.lookAhead = records;
+		return this;
+	}
+
+	/**
+	 * @param property the SD property whose value names each image, or
+	 *                 null, the default, to name them by record number.
+	 */
+	public SdfRenderPipeline setNameProperty(String property) {
+		this.nameProperty = property;
+		return this;
+	}
+
+	/**
+	 * @param file where to save how far the run got, and resume from; or
+	 *             null, the default, to always start at the beginning.
+	 *             The sink the run writes to must be
+	 *             {@link Sink#isResumable() resumable}.
+	 */
+	public SdfRenderPipeline setCheckpoint(Path file) {
+		this.checkpoint = file;
+		return this;
+	}
+
+	/**
+	 * @param records how many records to write between checkpoints.
+	 */
+	public SdfRenderPipeline setCheckpointInterval(int records) {
+		if(records <=0){
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		this.checkpointInterval = records;
+		return this;
+	}
+
+	/**
+	 * @param bytes the largest record to read; a larger one is skipped
+	 *              and reported as a failure.
+	 */
+	public SdfRenderPipeline setMaximumRecordBytes(int bytes) {
+		if(bytes <=0){
+			throw new IllegalArgumentException("maximum record size must be positive");
+		}
+		this.maximumRecordBytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Render the file, or what is left of it since the last checkpoint,
+	 * into the given sink.  The sink is flushed but not closed.
+	 *
+	 * @throws IOException if the file can not be read, or the sink or the
+	 *                     checkpoint can not be written; everything written
+	 *                     before then is checkpointed.
+	 * @throws IllegalArgumentException if there is a checkpoint and the
+	 *                     sink can't {@link Sink#isResumable() resume}.
+	 * @throws IllegalStateException if the executor ran a worker on the
+	 *                     calling thread.
+	 */
+	public Summary run(Sink sink) throws IOException, InterruptedException {
+		Objects.requireNonNull(sink);
+		if(checkpoint != null && !sink.isResumable()){
+			throw new IllegalArgumentException("a checkpointed run needs a sink that keeps what earlier runs wrote");
+		}
+		Position start = checkpoint != null && Files.exists(checkpoint) ? readCheckpoint(checkpoint) : new Position(0, 0);
+
+		Semaphore window = new Semaphore(lookAhead);
+		BlockingQueue<Item> toRender = new ArrayBlockingQueue<>(Math.max(1, Math.min(lookAhead, threads * 2)));
+		//holds at most the window, as the reader stops at it
+		BlockingQueue<Item> rendered = new LinkedBlockingQueue<>();
+
+		ExecutorService ownExecutor = null;
+		Executor exec = executor;
+		if(exec == null){
+			ownExecutor = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "molwitch-sdf-render");
+				t.setDaemon(true);
+				return t;
+			});
+			exec = ownExecutor;
+		}
+		Thread reader = new Thread(() -> read(start, window, toRender, rendered), "molwitch-sdf-read");
+		reader.setDaemon(true);
+		AtomicBoolean done = new AtomicBoolean();
+		Thread caller = Thread.currentThread();
+		AtomicBoolean ranInline = new AtomicBoolean();
+		try{
+			//started first, so a worker never waits on a reader yet to start
+			reader.start();
+			for(int i=0; i< threads; i++){
+				exec.execute(() -> {
+					if(Thread.currentThread() == caller){
+						//working here would leave nothing to write the records
+						ranInline.set(true);
+						return;
+					}
+					work(toRender, rendered, done);
+				});
+			}
+			if(ranInline.get()){
+				throw new IllegalStateException("the executor ran a worker on the calling thread");
+			}
+			return write(start, window, rendered, sink);
+		}finally{
+			reader.interrupt();
+			//workers see this the next time they look for a record
+			done.set(true);
+			toRender.clear();
+			if(ownExecutor != null){
+				ownExecutor.shutdownNow();
+			}
+		}
+	}
+
+	private Summary write(Position start, Semaphore window, BlockingQueue<Item> rendered, Sink sink) throws IOException, InterruptedException {
+		Map<Long, Item> waiting = new HashMap<>();
+		long next = start.record;
+		long offset = start.offset;
+		long end = -1;
+		long failures = 0;
+		Throwable readError = null;
+		int sinceCheckpoint = 0;
+		try{
+			while(end < 0 || next < end){
+				Item item = rendered.take();
+				if(item.isEnd()){
+					end = item.record;
+					readError = item.error;
+					continue;
+				}
+				waiting.put(item.record, item);
+				for(Item ready; (ready = waiting.remove(next)) != null; ){
+					if(ready.png != null){
+						sink.write(ready);
+					}else{
+						failures++;
+						sink.failed(ready);
+					}
+					next++;
+					offset = ready.endOffset;
+					window.release();
+					if(++sinceCheckpoint == checkpointInterval){
+						saveCheckpoint(sink, new Position(next, offset));
+						sinceCheckpoint = 0;
+					}
+				}
+			}
+		}finally{
+			if(sinceCheckpoint > 0 || end >= 0){
+				saveCheckpoint(sink, new Position(next, offset));
+			}
+		}
+		if(readError != null){
+			throw readError instanceof IOException ? (IOException) readError : new IOException(readError);
+		}
+		return new Summary(start.record, next - start.record, failures);
+	}
+
+	private void saveCheckpoint(Sink sink, Position p) throws IOException {
+		sink.flush();
+		if(checkpoint == null){
+			return;
+		}
+		Properties props = new Properties();
+		props.setProperty("record", Long.toString(p.record));
+		props.setProperty("offset", Long.toString(p.offset));
+		Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		try(Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+			props.store(w, "molwitch-renderer " + sdFile.getFileName());
+		}
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Position readCheckpoint(Path file) throws IOException {
+		Properties props = new Properties();
+		try(Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+			props.load(r);
+		}
+		try{
+			return new Position(Long.parseLong(props.getProperty("record")), Long.parseLong(props.getProperty("offset")));
+		}catch(RuntimeException e){
+			throw new IOException("bad checkpoint " + file, e);
+		}
+	}
+
+	/**
+	 * Split the file into records from the given position on, waiting for
+	 * room in the window before each.
+	 */
+	private void read(Position start, Semaphore window, BlockingQueue<Item> toRender, BlockingQueue<Item> rendered) {
+		long record = start.record;
+		Throwable error = null;
+		try(FileChannel ch = FileChannel.open(sdFile, StandardOpenOption.READ)){
+			ch.position(start.offset);
+			InputStream in = new BufferedInputStream(Channels.newInputStream(ch), 1 << 16);
+			ByteArrayOutputStream text = new ByteArrayOutputStream(8192);
+			ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			long offset = start.offset;
+			long recordStart = offset;
+			boolean tooLarge = false;
+			boolean blank = true;
+			while(true){
+				int b = in.read();
+				if(b >= 0){
+					offset++;
+					line.write(b);
+					if(b != '\n'){
+						continue;
+					}
+				}
+				boolean endOfRecord = false;
+				if(line.size() > 0){
+					String trimmed = line.size() <= 8 ? line.toString("ISO-8859-1").trim() : null;
+					endOfRecord = RECORD_END.equals(trimmed);
+					if(!endOfRecord){
+						blank &= trimmed == null ? line.toString("ISO-8859-1").trim().isEmpty() : trimmed.isEmpty();
+					}
+					if(text.size() + line.size() > maximumRecordBytes){
+						tooLarge = true;
+					}else{
+						//the parser needs the end marker to stop reading data items
+						line.writeTo(text);
+					}
+					line.reset();
+				}
+				if(endOfRecord || (b < 0 && !blank)){
+					window.acquire();
+					Item item = new Item(record++, offset);
+					if(tooLarge){
+						item.error = new IOException("record at byte " + recordStart + " is larger than " + maximumRecordBytes + " bytes");
+						rendered.put(item);
+					}else{
+						item.text = text.toByteArray();
+						toRender.put(item);
+					}
+					text.reset();
+					tooLarge = false;
+					blank = true;
+					recordStart = offset;
+				}
+				if(b < 0){
+					break;
+				}
+			}
+		}catch(InterruptedException e){
+			return;
+		}catch(Throwable t){
+			error = t;
+		}
+		Item end = new Item(record, -1);
+		end.error = error;
+		rendered.add(end);
+	}
+
+	private void work(BlockingQueue<Item> toRender, BlockingQueue<Item> rendered, AtomicBoolean done) {
+		try{
+			while(!done.get()){
+				Item item = toRender.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if(item == null){
+					continue;
+				}
+				try{
+					Chemical c = Chemical.parseMol(item.text);
+					item.name = nameFor(c, item.record);
+					BufferedImage img = renderer.createImage(c, width, height, round);
+					ByteArrayOutputStream png = new ByteArrayOutputStream(16 * 1024);
+					ImageIO.write(img, "png", png);
+					item.png = png.toByteArray();
+				}catch(Throwable t){
+					item.error = t;
+				}
+				item.text = null;
+				rendered.put(item);
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private String nameFor(Chemical c, long record){
+		if(nameProperty != null){
+			String name = c.getProperty(nameProperty);
+			if(name != null && !name.trim().isEmpty()){
+				return name.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+			}
+		}
+		return String.format("%08d", record);
+	}
+
+	private static final class Position{
+		final long record;
+		final long offset;
+
+		Position(long record, long offset){
+			this.record = record;
+			this.offset = offset;
+		}
+	}
+
+	private static final class Item implements Record{
+		final long record;
+		final long endOffset;
+		byte[] text;
+		String name;
+		byte[] png;
+		Throwable error;
+
+		Item(long record, long endOffset){
+			this.record = record;
+			this.endOffset = endOffset;
+		}
+
+		boolean isEnd(){
+			return endOffset < 0;
+		}
+
+		@Override
+		public long getRecordNumber() {
+			return record;
+		}
+
+		@Override
+		public String getName() {
+			return name == null ? String.format("%08d", record) : name;
+		}
+
+		@Override
+		public byte[] getPng() {
+			return png;
+		}
+
+		@Override
+		public Throwable getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * One record of the file, rendered or failed.
+	 */
+	public interface Record{
+		/**
+		 * The position of the record in the file, from 0.
+		 */
+		long getRecordNumber();
+
+		/**
+		 * A file name for the image, without an extension: the value of the
+		 * name property if it is set, made safe, or else the record number.
+		 */
+		String getName();
+
+		/**
+		 * @return the encoded image, or null if the record failed.
+		 */
+		byte[] getPng();
+
+		/**
+		 * @return why the record failed, or null if it didn't.
+		 */
+		Throwable getError();
+	}
+
+	/**
+	 * Where rendered records go.  Calls come from one thread at a time, in
+	 * record order.
+	 */
+	public interface Sink extends Closeable{
+
+		void write(Record record) throws IOException;
+
+		/**
+		 * Called for a record that failed; does nothing by default.
+		 */
+		default void failed(Record record) throws IOException {
+		}
+
+		/**
+		 * Make everything written so far durable; called before each
+		 * checkpoint is saved.
+		 */
+		default void flush() throws IOException {
+		}
+
+		@Override
+		default void close() throws IOException {
+		}
+
+		/**
+		 * Whether what this sink was given by an earlier run is still there
+		 * when a later one resumes from its checkpoint, so it can be given
+		 * only the records after it; true by default.  A sink that starts
+		 * over each time it is made, like a ZIP, must say false.
+		 */
+		default boolean isResumable() {
+			return true;
+		}
+
+		/**
+		 * Write each image to its own {@code <name>.png} in the given
+		 * directory, which is created if needed.  The images are synced to
+		 * disk when the sink is flushed.  A record named like one this
+		 * sink has already written is written to
+		 * {@code <name>_<record number>.png} instead; a resumed run doesn't
+		 * know the names the runs before it wrote, so a name shared with a
+		 * record from one of those replaces its image.
+		 */
+		static Sink toDirectory(Path dir) throws IOException {
+			Files.createDirectories(dir);
+			return new DirectorySink(dir);
+		}
+
+		/**
+		 * Write each image as an uncompressed {@code <name>.png} entry of
+		 * a ZIP written to the given stream; PNGs don't compress further.
+		 * Closing the sink finishes the ZIP and closes the stream.  The
+		 * sink isn't {@link #isResumable() resumable}.
+		 */
+		static Sink toZip(OutputStream out) {
+			ZipOutputStream zip = new ZipOutputStream(out);
+			return new Sink() {
+				@Override
+				public void write(Record record) throws IOException {
+					byte[] png = record.getPng();
+					ZipEntry entry = new ZipEntry(record.getName() + ".png");
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(png.length);
+					CRC32 crc = new CRC32();
+					crc.update(png, 0, png.length);
+					entry.setCrc(crc.getValue());
+					zip.putNextEntry(entry);
+					zip.write(png);
+					zip.closeEntry();
+				}
+
+				@Override
+				public void flush() throws IOException {
+					zip.flush();
+				}
+
+				@Override
+				public boolean isResumable() {
+					return false;
+				}
+
+				@Override
+				public void close() throws IOException {
+					zip.close();
+				}
+			};
+		}
+	}
+
+	private static final class DirectorySink implements Sink{
+		private final Path dir;
+		private final Set<String> names = new HashSet<>();
+		//written since the last flush
+		private final List<Path> unsynced = new ArrayList<>();
+
+		DirectorySink(Path dir){
+			this.dir = dir;
+		}
+
+		@Override
+		public void write(Record record) throws IOException {
+			String name = record.getName();
+			if(!names.add(name)){
+				//the record number alone could be another record's name
+				String unique = name + "_" + record.getRecordNumber();
+				name = unique;
+				for(int n=2; !names.add(name); n++){
+					name = unique + "_" + n;
+				}
+			}
+			Path file = dir.resolve(name + ".png");
+			Files.write(file, record.getPng());
+			unsynced.add(file);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(unsynced.isEmpty()){
+				return;
+			}
+			for(Path file : unsynced){
+				try(FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)){
+					ch.force(true);
+				}
+			}
+			unsynced.clear();
+			//the new entries; a directory can't be opened to sync on Windows,
+			//which makes its entries durable with the files
+			try(FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)){
+				ch.force(true);
+			}catch(IOException e){
+				//nothing more to sync
+			}
+		}
+	}
+
+	/**
+	 * What a run did.
+	 */
+	public static final class Summary{
+		private final long firstRecord;
+		private final long recordCount;
+		private final long failureCount;
+
+		Summary(long firstRecord, long recordCount, long failureCount){
+			this.firstRecord = firstRecord;
+			this.recordCount = recordCount;
+			this.failureCount = failureCount;
+		}
+
+		/**
+		 * The record the run started at, which is past 0 if it resumed.
+		 */
+		public long getFirstRecord() {
+			return firstRecord;
+		}
+
+		/**
+		 * The records handed to the sink, failures included.
+		 */
+		public long getRecordCount() {
+			return recordCount;
+		}
+
+		public long getFailureCount() {
+			return failureCount;
+		}
+
+		@Override
+		public String toString() {
+			return "Summary{" +
+					"firstRecord=" + firstRecord +
+					", recordCount=" + recordCount +
+					", failureCount=" + failureCount +
+					'}';
+		}
+	}
+}
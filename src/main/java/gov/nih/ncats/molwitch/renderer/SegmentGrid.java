@@ -0,0 +1,240 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.util.Arrays;
+
+/**
+ * The bond lines already painted, filed by the square cells of a uniform
+ * grid their bounding boxes cover, so finding the lines a new bond may
+ * cross looks at its neighbourhood rather than at every line.
+ *
+ * Two segments that intersect have overlapping bounding boxes, so share
+ * a cell; the lines {@link #near(double, double, double, double)} finds
+ * are therefore every line that could intersect the given one, in the
+ * order they were added, and the first that does is the same one a scan
+ * of every line finds.  Lines whose boxes span too many cells, or are
+ * not finite, are kept apart and always found.
+ *
+ * Lines are kept as their end points, four to a line, in one array.
+ */
+final class SegmentGrid {
+
+	//a bond is about one cell; anything longer than this is rare enough to check every time
+	private static final int MAX_CELLS = 64;
+
+	private final double cellSize;
+	private double[] lines;
+	private int size;
+	//an open addressed table from each cell's key to the indexes of the
+	//lines in it, the first element of which is the count
+	private long[] keys;
+	private int[][] cells;
+	private int cellCount;
+	private int[] oversized = new int[1];
+
+	private int[] found = new int[16];
+	private final long[] range = new long[4];
+
+	/**
+	 * @param cellSize the width of each cell, best about the length of
+	 *                 a bond; if not positive every line is found.
+	 */
+	SegmentGrid(double cellSize){
+		this(cellSize, 16);
+	}
+
+	/**
+	 * @param expectedLines about how many lines will be added, so room
+	 *                      is made for them up front.
+	 */
+	SegmentGrid(double cellSize, int expectedLines){
+		this.cellSize = cellSize > 0 && !Double.isInfinite(cellSize) ? cellSize : 0;
+		int lineCount = Math.max(16, expectedLines);
+		lines = new double[4 * lineCount];
+		//a bond's box covers about two cells, and the table is kept under half full
+		int slots = Integer.highestOneBit(lineCount * 4 - 1) << 1;
+		keys = new long[slots];
+		cells = new int[slots][];
+	}
+
+	void add(double x1, double y1, double x2, double y2){
+		int index = size++;
+		if(4 * size > lines.length){
+			lines = Arrays.copyOf(lines, lines.length * 2);
+		}
+		lines[4 * index] = x1;
+		lines[4 * index + 1] = y1;
+		lines[4 * index + 2] = x2;
+		lines[4 * index + 3] = y2;
+		if(!range(x1, y1, x2, y2)){
+			oversized = append(oversized, index);
+			return;
+		}
+		for(long cy = range[1]; cy <= range[3]; cy++){
+			for(long cx = range[0]; cx <= range[2]; cx++){
+				long key = key(cx, cy);
+				int slot = slot(key);
+				if(cells[slot] == null){
+					keys[slot] = key;
+					cells[slot] = new int[4];
+					if(++cellCount * 2 > cells.length){
+						rehash();
+						slot = slot(key);
+					}
+				}
+				cells[slot] = append(cells[slot], index);
+			}
+		}
+	}
+
+	int size(){
+		return size;
+	}
+
+	/**
+	 * Find the lines whose cells overlap those of the given line.
+	 *
+	 * @return how many were found; {@link #found(int)} gives each, in the
+	 *         order they were added, until the next call.
+	 */
+	int near(double x1, double y1, double x2, double y2){
+		int count = 0;
+		if(!range(x1, y1, x2, y2)){
+			found = ensure(found, size);
+			for(int i=0; i< size; i++){
+				found[i] = i;
+			}
+			return size;
+		}
+		for(int i=1; i<= oversized[0]; i++){
+			found = ensure(found, count);
+			found[count++] = oversized[i];
+		}
+		for(long cy = range[1]; cy <= range[3]; cy++){
+			for(long cx = range[0]; cx <= range[2]; cx++){
+				int[] cell = cells[slot(key(cx, cy))];
+				if(cell == null){
+					continue;
+				}
+				for(int i=1; i<= cell[0]; i++){
+					found = ensure(found, count);
+					found[count++] = cell[i];
+				}
+			}
+		}
+		Arrays.sort(found, 0, count);
+		int unique = 0;
+		for(int i=0; i< count; i++){
+			if(unique == 0 || found[unique - 1] != found[i]){
+				found[unique++] = found[i];
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * The index of the i-th line the last {@link #near} found.
+	 */
+	int found(int i){
+		return found[i];
+	}
+
+	double getX1(int line){
+		return lines[4 * line];
+	}
+
+	double getY1(int line){
+		return lines[4 * line + 1];
+	}
+
+	double getX2(int line){
+		return lines[4 * line + 2];
+	}
+
+	double getY2(int line){
+		return lines[4 * line + 3];
+	}
+
+	/**
+	 * Set the first and last cell columns and rows the line's box covers.
+	 *
+	 * @return false if it should be checked against everything instead.
+	 */
+	private boolean range(double lx1, double ly1, double lx2, double ly2){
+		if(cellSize == 0){
+			return false;
+		}
+		double x0 = Math.min(lx1, lx2) / cellSize;
+		double y0 = Math.min(ly1, ly2) / cellSize;
+		double x1 = Math.max(lx1, lx2) / cellSize;
+		double y1 = Math.max(ly1, ly2) / cellSize;
+		if(!(Math.abs(x0) < Integer.MAX_VALUE && Math.abs(y0) < Integer.MAX_VALUE
+				&& Math.abs(x1) < Integer.MAX_VALUE && Math.abs(y1) < Integer.MAX_VALUE)){
+			return false;
+		}
+		range[0] = (long) Math.floor(x0);
+		range[1] = (long) Math.floor(y0);
+		range[2] = (long) Math.floor(x1);
+		range[3] = (long) Math.floor(y1);
+		return (range[2] - range[0] + 1) * (range[3] - range[1] + 1) <= MAX_CELLS;
+	}
+
+	private static long key(long cx, long cy){
+		return cx << 32 | (cy & 0xffffffffL);
+	}
+
+	//the slot the key is in, or the empty one it would go in
+	private int slot(long key){
+		int mask = cells.length - 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int i = (int) (h >>> 32) & mask;
+		while(cells[i] != null && keys[i] != key){
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void rehash(){
+		long[] oldKeys = keys;
+		int[][] oldCells = cells;
+		keys = new long[oldKeys.length * 2];
+		cells = new int[oldCells.length * 2][];
+		for(int i=0; i< oldCells.length; i++){
+			if(oldCells[i] != null){
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				cells[slot] = oldCells[i];
+			}
+		}
+	}
+
+	private static int[] append(int[] list, int value){
+		list = ensure(list, list[0] + 1);
+		list[++list[0]] = value;
+		return list;
+	}
+
+	private static int[] ensure(int[] array, int index){
+		if(index < array.length){
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * The images a shadow is painted and blurred in: the mask the structure
+ * is painted into, the blurred image and the scratch pixels of the blur
+ * passes in between.
+ *
+ * While a thread is between {@link #keepSpares()} and
+ * {@link #dropSpares()}, as the workers of a {@link GridRender} are for
+ * the length of the grid, it keeps the buffers it last released and gets
+ * them back from the next {@link #acquire(int, int)} of the same size,
+ * so rendering many cells of one size makes no new images for their
+ * shadows.  Outside of that, such as a plain
+ * {@link ChemicalRenderer#createImage(gov.nih.ncats.molwitch.Chemical, int)}
+ * on a pooled thread, released buffers are left to be collected rather
+ * than held by the thread for as long as it lives.  Buffers larger than
+ * {@link #MAXIMUM_SPARE_PIXELS} are never kept.
+ */
+final class ShadowBuffers {
+
+	static final int MAXIMUM_SPARE_PIXELS = 1024 * 1024;
+
+	/**
+	 * How many jobs on a thread are keeping its spare buffers, and the
+	 * spare itself.
+	 */
+	private static final class Spare {
+		int keeping;
+		ShadowBuffers buffers;
+	}
+
+	private static final ThreadLocal<Spare> SPARE = new ThreadLocal<>();
+
+	final BufferedImage mask;
+	final BufferedImage blur;
+	final int[] scratch;
+
+	private ShadowBuffers(int width, int height){
+		mask = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		blur = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		scratch = new int[width * height];
+	}
+
+	/**
+	 * Keep the buffers this thread releases for its next shadow, until
+	 * the matching {@link #dropSpares()}.
+	 */
+	static void keepSpares(){
+		Spare spare = SPARE.get();
+		if(spare == null){
+			spare = new Spare();
+			SPARE.set(spare);
+		}
+		spare.keeping++;
+	}
+
+	/**
+	 * Finish the {@link #keepSpares()} before, letting go of this
+	 * thread's spare buffers if nothing else on it is keeping them.
+	 */
+	static void dropSpares(){
+		Spare spare = SPARE.get();
+		if(spare != null && --spare.keeping == 0){
+			SPARE.remove();
+		}
+	}
+
+	/**
+	 * Whether this thread is holding on to released buffers.
+	 */
+	static boolean hasSpare(){
+		Spare spare = SPARE.get();
+		return spare != null && spare.buffers != null;
+	}
+
+	/**
+	 * Buffers of the given size with a clear mask, reusing the ones this
+	 * thread last released if it kept them and they are that size.
+	 */
+	static ShadowBuffers acquire(int width, int height){
+		Spare spare = SPARE.get();
+		ShadowBuffers buffers = spare == null ? null : spare.buffers;
+		if(buffers == null || buffers.mask.getWidth() != width || buffers.mask.getHeight() != height){
+			return new ShadowBuffers(width, height);
+		}
+		//a shadow drawn while these are in use gets its own
+		spare.buffers = null;
+		Arrays.fill(((DataBufferInt) buffers.mask.getRaster().getDataBuffer()).getData(), 0);
+		return buffers;
+	}
+
+	/**
+	 * Hand these buffers back to be reused by the next shadow this thread
+	 * draws, if it is keeping them; they must not be used after.
+	 */
+	void release(){
+		Spare spare = SPARE.get();
+		if(spare != null && scratch.length <= MAXIMUM_SPARE_PIXELS){
+			spare.buffers = this;
+		}
+	}
+}
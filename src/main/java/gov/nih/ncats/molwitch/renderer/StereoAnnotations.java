@@ -0,0 +1,134 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.Chirality;
+import gov.nih.ncats.molwitch.Stereocenter;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The stereo labels of a structure: the chirality of each atom and the
+ * optical activity and stereochemistry of the whole.
+ *
+ * Working these out is the most expensive thing the toolkit is asked for
+ * while drawing, so they are kept for the most recently drawn structures,
+ * keyed by a hash of everything they are worked out from.  Every pass of
+ * a render and every later render of the same structure then reuse them.
+ */
+final class StereoAnnotations {
+
+	private static final int MAX_CACHED = 512;
+
+	private static final Chirality[] CHIRALITIES = Chirality.values();
+
+	private static final Map<DisplayListCache.Key, StereoAnnotations> CACHE =
+			new LinkedHashMap<DisplayListCache.Key, StereoAnnotations>(64, 0.75f, true){
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<DisplayListCache.Key, StereoAnnotations> eldest) {
+					return size() > MAX_CACHED;
+				}
+			};
+
+	//the ordinal of each atom's chirality, -1 if it has none
+	private final byte[] chiralities;
+	private final Chemical.OpticalActivity opticalActivity;
+	private final Chemical.StereochemistryType stereochemistryType;
+
+	private StereoAnnotations(byte[] chiralities, Chemical.OpticalActivity opticalActivity,
+			Chemical.StereochemistryType stereochemistryType){
+		this.chiralities = chiralities;
+		this.opticalActivity = opticalActivity;
+		this.stereochemistryType = stereochemistryType;
+	}
+
+	/**
+	 * The stereo labels of the given structure, worked out if they are
+	 * not cached.
+	 *
+	 * @param fromMap take each atom's chirality from its atom to atom map
+	 *                value rather than perceiving it.
+	 */
+	static StereoAnnotations of(Chemical c, boolean fromMap){
+		DisplayListCache.Key key = DisplayListCache.Key.ofStructure(c, fromMap ? 1 : 0);
+		synchronized (CACHE) {
+			StereoAnnotations cached = CACHE.get(key);
+			if(cached != null){
+				return cached;
+			}
+		}
+		StereoAnnotations annotations = perceive(c, fromMap);
+		synchronized (CACHE) {
+			CACHE.put(key, annotations);
+		}
+		return annotations;
+	}
+
+	static StereoAnnotations perceive(Chemical c, boolean fromMap){
+		byte[] chiralities = new byte[c.getAtomCount()];
+		Arrays.fill(chiralities, (byte) -1);
+		if(fromMap) {
+			for(Atom ca : c.getAtoms()) {
+				//dkatzel 11/ 2018
+				//this is to make it the same as the old ncgc renderer
+				//which any atom map value not set to 1 or 2 is considered either (3)
+				//even 0 !!!
+				int value = ca.getAtomToAtomMap().orElse(3);
+				set(chiralities, ca, Chirality.valueByParity(value));
+			}
+		}else {
+			for(Stereocenter center : c.getAllStereocenters()){
+				if(center.isDefined()){
+					Atom ca = center.getCenterAtom();
+					set(chiralities, ca, ca.getChirality());
+				}
+			}
+		}
+		return new StereoAnnotations(chiralities,
+				c.computeOpticalActivity().orElse(null),
+				c.computeStereochemistryType().orElse(null));
+	}
+
+	private static void set(byte[] chiralities, Atom atom, Chirality chirality){
+		if(chirality != null){
+			chiralities[atom.getAtomIndexInParent()] = (byte) chirality.ordinal();
+		}
+	}
+
+	/**
+	 * The chirality of the atom at the given index, or null if it has
+	 * none.
+	 */
+	Chirality getChirality(int atom){
+		int chirality = chiralities[atom];
+		return chirality < 0 ? null : CHIRALITIES[chirality];
+	}
+
+	Chemical.OpticalActivity getOpticalActivity(){
+		return opticalActivity;
+	}
+
+	Chemical.StereochemistryType getStereochemistryType(){
+		return stereochemistryType;
+	}
+}
@@ -0,0 +1,496 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.BasicStroke;
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RectangularShape;
+import java.awt.geom.RoundRectangle2D;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import gov.nih.ncats.molwitch.renderer.DisplayList.BracketPath;
+import gov.nih.ncats.molwitch.renderer.DisplayList.FilledShape;
+import gov.nih.ncats.molwitch.renderer.DisplayList.GlyphRun;
+import gov.nih.ncats.molwitch.renderer.DisplayList.Primitive;
+import gov.nih.ncats.molwitch.renderer.DisplayList.StrokedLine;
+
+/**
+ * Builds an SVG document out of the same shapes, strokes and glyphs the
+ * renderer would paint, without rasterising anything.
+ *
+ * Coordinates are written with at most two decimals.  Consecutive opaque
+ * lines with the same stroke and color share one path.  Each distinct
+ * glyph of a font is written once, as a path in the document's defs, and
+ * every occurrence of it is a reference to that path.
+ */
+final class SvgWriter implements VectorCanvas {
+
+	private static final String SVG_NS = "http://www.w3.org/2000/svg";
+	private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	private final int width;
+	private final int height;
+	private final FontRenderContext frc;
+
+	private final StringBuilder glyphDefs = new StringBuilder();
+	private final StringBuilder defs = new StringBuilder();
+	private final StringBuilder body = new StringBuilder();
+	private StringBuilder out = body;
+
+	private final Map<GlyphKey, String> glyphIds = new HashMap<>();
+	private int nextId;
+	private String shadowed;
+
+	//the lines waiting to be written as one path
+	private final StringBuilder pendingPath = new StringBuilder();
+	private Stroke pendingStroke;
+	private ARGBColor pendingColor;
+
+	/**
+	 * @param frc the font render context glyphs are laid out with; it
+	 *            should be that of the graphics the layout was made with.
+	 */
+	SvgWriter(int width, int height, FontRenderContext frc){
+		this.width = width;
+		this.height = height;
+		this.frc = Objects.requireNonNull(frc);
+	}
+
+	/**
+	 * Draws what casts the shadow as a group in the defs, used once
+	 * through the shadow filter and once as is.
+	 */
+	@Override
+	public boolean beginShadowed() {
+		shadowed = beginDefinition();
+		return true;
+	}
+
+	@Override
+	public void endShadowed(int blurRadius, float opacity, int offset) {
+		endDefinition();
+		String filter = shadowFilter(blurRadius, opacity);
+		use(shadowed, offset, offset, filter);
+		use(shadowed, 0, 0, null);
+		shadowed = null;
+	}
+
+	/**
+	 * Write everything painted from here until {@link #endDefinition()}
+	 * into the defs rather than the drawing.
+	 *
+	 * @return the id to {@link #use(String, double, double, String)} it by.
+	 */
+	private String beginDefinition(){
+		flushLines();
+		String id = "m" + nextId++;
+		out = defs;
+		out.append("<g id=\"").append(id).append("\">");
+		return id;
+	}
+
+	private void endDefinition(){
+		flushLines();
+		out.append("</g>");
+		out = body;
+	}
+
+	/**
+	 * Add a filter that turns what it is applied to into a soft grey
+	 * shadow: blurred, desaturated and faded.
+	 *
+	 * @param blurRadius the radius of the three box blurs the raster
+	 *                   shadow is made with; the gaussian used here has
+	 *                   the same spread.
+	 * @return the filter's id.
+	 */
+	private String shadowFilter(int blurRadius, float opacity){
+		String id = "f" + nextId++;
+		defs.append("<filter id=\"").append(id).append("\" color-interpolation-filters=\"sRGB\">");
+		if(blurRadius > 0){
+			//three passes of a (2r+1) box each add ((2r+1)^2-1)/12 to the variance
+			defs.append("<feGaussianBlur stdDeviation=\"");
+			VectorCanvas.number(defs, Math.sqrt(blurRadius * (blurRadius + 1.0)));
+			defs.append("\"/>");
+		}
+		defs.append("<feColorMatrix values=\"");
+		for(int i=0; i< 3; i++){
+			defs.append(".299 .587 .114 0 0 ");
+		}
+		defs.append("0 0 0 ");
+		VectorCanvas.number(defs, opacity);
+		defs.append(" 0\"/></filter>");
+		return id;
+	}
+
+	/**
+	 * Draw a definition again, moved by the given offset.
+	 *
+	 * @param filterId the filter to draw it through, or null for none.
+	 */
+	private void use(String id, double dx, double dy, String filterId){
+		flushLines();
+		out.append("<use xlink:href=\"#").append(id).append('"');
+		if(dx !=0 || dy !=0){
+			attribute("x", dx);
+			attribute("y", dy);
+		}
+		if(filterId !=null){
+			out.append(" filter=\"url(#").append(filterId).append(")\"");
+		}
+		out.append("/>");
+	}
+
+	@Override
+	public void displayList(DisplayList list, double dx, double dy){
+		for(Primitive p : list.getPrimitives()){
+			if(p instanceof StrokedLine){
+				StrokedLine l = (StrokedLine) p;
+				Line2D line = l.getLine();
+				line(line.getX1() + dx, line.getY1() + dy, line.getX2() + dx, line.getY2() + dy,
+						l.getStroke(), l.getColor());
+			}else if(p instanceof BracketPath){
+				BracketPath b = (BracketPath) p;
+				double[] pts = b.getPoints();
+				//each segment separately, as it is painted
+				for(int i=2; i< pts.length; i+=2){
+					line(pts[i-2] + dx, pts[i-1] + dy, pts[i] + dx, pts[i+1] + dy, b.getStroke(), b.getColor());
+				}
+			}else if(p instanceof FilledShape){
+				Shape s = ((FilledShape) p).getShape();
+				fill(dx == 0 && dy == 0 ? s : AffineTransform.getTranslateInstance(dx, dy).createTransformedShape(s),
+						p.getColor());
+			}else if(p instanceof GlyphRun){
+				GlyphRun g = (GlyphRun) p;
+				glyphs(g.getFont(), g.getGlyphCodes(), g.getX() + dx, g.getY() + dy, g.getColor());
+			}
+		}
+	}
+
+	/**
+	 * Draw one straight line; it is joined into the path of the lines
+	 * before it when it looks the same and nothing shows through.
+	 */
+	void line(double x1, double y1, double x2, double y2, Stroke stroke, ARGBColor color){
+		if(pendingStroke != null && !(stroke.equals(pendingStroke) && color.equals(pendingColor)
+				&& color.asColor().getAlpha() == 255)){
+			flushLines();
+		}
+		pendingStroke = stroke;
+		pendingColor = color;
+		pendingPath.append('M');
+		coordinate(pendingPath, x1);
+		coordinate(pendingPath, y1);
+		coordinate(pendingPath, x2);
+		coordinate(pendingPath, y2);
+	}
+
+	private void flushLines(){
+		if(pendingStroke == null){
+			return;
+		}
+		out.append("<path d=\"").append(pendingPath).append("\" fill=\"none\"");
+		strokeAttributes(pendingStroke, pendingColor);
+		out.append("/>");
+		pendingPath.setLength(0);
+		pendingStroke = null;
+		pendingColor = null;
+	}
+
+	@Override
+	public void draw(Shape s, Stroke stroke, ARGBColor color){
+		flushLines();
+		shapeElement(s);
+		out.append(" fill=\"none\"");
+		strokeAttributes(stroke, color);
+		out.append("/>");
+	}
+
+	@Override
+	public void fill(Shape s, ARGBColor color){
+		flushLines();
+		shapeElement(s);
+		paint("fill", color);
+		out.append("/>");
+	}
+
+	@Override
+	public void text(String text, Font font, double x, double y, ARGBColor color){
+		GlyphVector gv = font.createGlyphVector(frc, text);
+		glyphs(gv, x, y, color);
+	}
+
+	void glyphs(Font font, int[] glyphCodes, double x, double y, ARGBColor color){
+		glyphs(font.createGlyphVector(frc, glyphCodes), x, y, color);
+	}
+
+	private void glyphs(GlyphVector gv, double x, double y, ARGBColor color){
+		flushLines();
+		Font font = gv.getFont();
+		int n = gv.getNumGlyphs();
+		boolean group = n > 1;
+		if(group){
+			out.append("<g");
+			paint("fill", color);
+			out.append('>');
+		}
+		for(int i=0; i< n; i++){
+			String id = glyphId(font, gv.getGlyphCode(i));
+			if(id == null){
+				continue;
+			}
+			Point2D p = gv.getGlyphPosition(i);
+			out.append("<use xlink:href=\"#").append(id).append('"');
+			attribute("x", x + p.getX());
+			attribute("y", y + p.getY());
+			if(!group){
+				paint("fill", color);
+			}
+			out.append("/>");
+		}
+		if(group){
+			out.append("</g>");
+		}
+	}
+
+	/**
+	 * The id of the path of the given glyph's outline, written to the
+	 * defs the first time it is asked for; null for a glyph with no
+	 * outline, such as a space.
+	 */
+	private String glyphId(Font font, int glyphCode){
+		GlyphKey key = new GlyphKey(font, glyphCode);
+		if(glyphIds.containsKey(key)){
+			return glyphIds.get(key);
+		}
+		Shape outline = font.createGlyphVector(frc, new int[]{glyphCode}).getGlyphOutline(0);
+		String id = null;
+		if(!outline.getPathIterator(null).isDone()){
+			id = "g" + nextId++;
+			glyphDefs.append("<path id=\"").append(id).append("\" d=\"");
+			pathData(glyphDefs, outline);
+			glyphDefs.append("\"/>");
+		}
+		glyphIds.put(key, id);
+		return id;
+	}
+
+	private void shapeElement(Shape s){
+		if(s instanceof Ellipse2D){
+			Ellipse2D e = (Ellipse2D) s;
+			if(e.getWidth() == e.getHeight()){
+				out.append("<circle");
+				attribute("cx", e.getCenterX());
+				attribute("cy", e.getCenterY());
+				attribute("r", e.getWidth() / 2);
+			}else{
+				out.append("<ellipse");
+				attribute("cx", e.getCenterX());
+				attribute("cy", e.getCenterY());
+				attribute("rx", e.getWidth() / 2);
+				attribute("ry", e.getHeight() / 2);
+			}
+		}else if(s instanceof RoundRectangle2D){
+			RoundRectangle2D r = (RoundRectangle2D) s;
+			rectangle(r);
+			//the arc sizes are diameters
+			attribute("rx", r.getArcWidth() / 2);
+			attribute("ry", r.getArcHeight() / 2);
+		}else if(s instanceof Rectangle2D){
+			rectangle((Rectangle2D) s);
+		}else{
+			out.append("<path d=\"");
+			pathData(out, s);
+			out.append('"');
+		}
+	}
+
+	private void rectangle(RectangularShape r){
+		out.append("<rect");
+		attribute("x", r.getX());
+		attribute("y", r.getY());
+		attribute("width", r.getWidth());
+		attribute("height", r.getHeight());
+	}
+
+	private void strokeAttributes(Stroke stroke, ARGBColor color){
+		paint("stroke", color);
+		if(!(stroke instanceof BasicStroke)){
+			return;
+		}
+		BasicStroke bs = (BasicStroke) stroke;
+		attribute("stroke-width", bs.getLineWidth());
+		switch(bs.getEndCap()){
+			case BasicStroke.CAP_ROUND: out.append(" stroke-linecap=\"round\""); break;
+			case BasicStroke.CAP_SQUARE: out.append(" stroke-linecap=\"square\""); break;
+			default: break;
+		}
+		switch(bs.getLineJoin()){
+			case BasicStroke.JOIN_ROUND: out.append(" stroke-linejoin=\"round\""); break;
+			case BasicStroke.JOIN_BEVEL: out.append(" stroke-linejoin=\"bevel\""); break;
+			default:
+				if(bs.getMiterLimit() != 4){
+					attribute("stroke-miterlimit", bs.getMiterLimit());
+				}
+				break;
+		}
+		float[] dash = bs.getDashArray();
+		if(dash != null){
+			out.append(" stroke-dasharray=\"");
+			for(int i=0; i< dash.length; i++){
+				if(i>0){
+					out.append(' ');
+				}
+				VectorCanvas.number(out, dash[i]);
+			}
+			out.append('"');
+			if(bs.getDashPhase() != 0){
+				attribute("stroke-dashoffset", bs.getDashPhase());
+			}
+		}
+	}
+
+	private void paint(String name, ARGBColor color){
+		int argb = color.asColor().getRGB();
+		out.append(' ').append(name).append("=\"#");
+		int r = (argb >> 16) & 0xff, g = (argb >> 8) & 0xff, b = argb & 0xff;
+		if(r % 17 == 0 && g % 17 == 0 && b % 17 == 0){
+			out.append(Character.forDigit(r / 17, 16)).append(Character.forDigit(g / 17, 16))
+					.append(Character.forDigit(b / 17, 16));
+		}else{
+			hexByte(out, r);
+			hexByte(out, g);
+			hexByte(out, b);
+		}
+		out.append('"');
+		int alpha = argb >>> 24;
+		if(alpha != 255){
+			attribute(name + "-opacity", alpha / 255.0);
+		}
+	}
+
+	private static void hexByte(StringBuilder sb, int v){
+		sb.append(Character.forDigit(v >> 4, 16)).append(Character.forDigit(v & 0xf, 16));
+	}
+
+	private void attribute(String name, double value){
+		out.append(' ').append(name).append("=\"");
+		VectorCanvas.number(out, value);
+		out.append('"');
+	}
+
+	/**
+	 * Append the path data of the given shape, leaving out repeated
+	 * commands and the separators a parser does not need.
+	 */
+	static void pathData(StringBuilder sb, Shape s){
+		double[] c = new double[6];
+		char last = 0;
+		for(PathIterator it = s.getPathIterator(null); !it.isDone(); it.next()){
+			int type = it.currentSegment(c);
+			char cmd;
+			int n;
+			switch(type){
+				case PathIterator.SEG_MOVETO: cmd = 'M'; n = 2; break;
+				case PathIterator.SEG_LINETO: cmd = 'L'; n = 2; break;
+				case PathIterator.SEG_QUADTO: cmd = 'Q'; n = 4; break;
+				case PathIterator.SEG_CUBICTO: cmd = 'C'; n = 6; break;
+				default: cmd = 'Z'; n = 0; break;
+			}
+			//coordinates following a move are implicitly lines
+			boolean implicit = cmd != 'M' && cmd != 'Z' && (cmd == last || (last == 'M' && cmd == 'L'));
+			if(!implicit){
+				sb.append(cmd);
+			}
+			for(int i=0; i< n; i++){
+				coordinate(sb, c[i]);
+			}
+			last = implicit && last == 'M' ? 'L' : cmd;
+		}
+	}
+
+	/**
+	 * Append a number to path data, with a space before it only when it
+	 * would otherwise run into the number before.
+	 */
+	private static void coordinate(StringBuilder sb, double v){
+		int len = sb.length();
+		if(len > 0 && Math.round(v * 100) >= 0){
+			char prev = sb.charAt(len - 1);
+			if(Character.isDigit(prev) || prev == '.'){
+				sb.append(' ');
+			}
+		}
+		VectorCanvas.number(sb, v);
+	}
+
+	/**
+	 * Write the whole document.
+	 */
+	void writeTo(Writer writer) throws IOException {
+		flushLines();
+		writer.append("<svg xmlns=\"").append(SVG_NS).append("\" xmlns:xlink=\"").append(XLINK_NS)
+				.append("\" width=\"").append(Integer.toString(width))
+				.append("\" height=\"").append(Integer.toString(height))
+				.append("\" viewBox=\"0 0 ").append(Integer.toString(width)).append(' ')
+				.append(Integer.toString(height)).append("\">");
+		if(glyphDefs.length() > 0 || defs.length() > 0){
+			writer.append("<defs>").append(glyphDefs).append(defs).append("</defs>");
+		}
+		writer.append(body).append("</svg>");
+	}
+
+	private static final class GlyphKey{
+		private final Font font;
+		private final int glyphCode;
+
+		GlyphKey(Font font, int glyphCode){
+			this.font = font;
+			this.glyphCode = glyphCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof GlyphKey)){
+				return false;
+			}
+			GlyphKey other = (GlyphKey) o;
+			return glyphCode == other.glyphCode && font.equals(other.font);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * font.hashCode() + glyphCode;
+		}
+	}
+}
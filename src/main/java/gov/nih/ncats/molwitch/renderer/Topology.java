@@ -0,0 +1,160 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Bond.BondType;
+import gov.nih.ncats.molwitch.Chemical;
+
+/**
+ * How the atoms of a structure are connected, read from the toolkit
+ * once: each bond's atoms, type and whether it is in a ring, and each
+ * atom's bonds as one compressed sparse row adjacency.
+ *
+ * The edges of atom a are {@code firstEdge(a)} up to but not including
+ * {@code endEdge(a)}, each giving the atom at the other end and the bond
+ * to it, in the order the toolkit lists the atom's bonds.
+ *
+ * A topology is immutable, so one taken from a structure can be shared
+ * by every stage and pass of its layout, and between threads.
+ */
+final class Topology {
+
+	private static final BondType[] BOND_TYPES = BondType.values();
+
+	private final int atomCount;
+	private final int bondCount;
+
+	private final int[] atom1;
+	private final int[] atom2;
+	//the ordinal of each bond's type, -1 if it has none
+	private final byte[] types;
+	private final boolean[] rings;
+
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final int[] edgeBonds;
+
+	private Topology(int atomCount, int bondCount, int[] atom1, int[] atom2, byte[] types, boolean[] rings){
+		this.atomCount = atomCount;
+		this.bondCount = bondCount;
+		this.atom1 = atom1;
+		this.atom2 = atom2;
+		this.types = types;
+		this.rings = rings;
+
+		offsets = new int[atomCount + 1];
+		for(int b=0; b< bondCount; b++){
+			offsets[atom1[b] + 1]++;
+			offsets[atom2[b] + 1]++;
+		}
+		for(int a=0; a< atomCount; a++){
+			offsets[a + 1] += offsets[a];
+		}
+		neighbors = new int[offsets[atomCount]];
+		edgeBonds = new int[offsets[atomCount]];
+		int[] next = offsets.clone();
+		for(int b=0; b< bondCount; b++){
+			int e1 = next[atom1[b]]++;
+			neighbors[e1] = atom2[b];
+			edgeBonds[e1] = b;
+			int e2 = next[atom2[b]]++;
+			neighbors[e2] = atom1[b];
+			edgeBonds[e2] = b;
+		}
+	}
+
+	/**
+	 * Read the connections of the given structure.  Ring membership is
+	 * asked of each bond once here, so whatever ring perception the
+	 * toolkit does happens once.
+	 */
+	static Topology of(Chemical c){
+		int atomCount = c.getAtomCount();
+		int bondCount = c.getBondCount();
+		int[] atom1 = new int[bondCount];
+		int[] atom2 = new int[bondCount];
+		byte[] types = new byte[bondCount];
+		boolean[] rings = new boolean[bondCount];
+		int b = 0;
+		for(Bond bond : c.getBonds()){
+			atom1[b] = bond.getAtom1().getAtomIndexInParent();
+			atom2[b] = bond.getAtom2().getAtomIndexInParent();
+			BondType type = bond.getBondType();
+			types[b] = (byte) (type == null ? -1 : type.ordinal());
+			rings[b] = bond.isInRing();
+			b++;
+		}
+		return new Topology(atomCount, bondCount, atom1, atom2, types, rings);
+	}
+
+	int getAtomCount(){
+		return atomCount;
+	}
+
+	int getBondCount(){
+		return bondCount;
+	}
+
+	int getAtom1(int bond){
+		return atom1[bond];
+	}
+
+	int getAtom2(int bond){
+		return atom2[bond];
+	}
+
+	/**
+	 * The type of the given bond, or null if it has none.
+	 */
+	BondType getBondType(int bond){
+		int type = types[bond];
+		return type < 0 ? null : BOND_TYPES[type];
+	}
+
+	boolean isInRing(int bond){
+		return rings[bond];
+	}
+
+	int getBondCount(int atom){
+		return offsets[atom + 1] - offsets[atom];
+	}
+
+	int firstEdge(int atom){
+		return offsets[atom];
+	}
+
+	int endEdge(int atom){
+		return offsets[atom + 1];
+	}
+
+	/**
+	 * The atom at the far end of the given edge.
+	 */
+	int neighbor(int edge){
+		return neighbors[edge];
+	}
+
+	/**
+	 * The bond the given edge goes along.
+	 */
+	int edgeBond(int edge){
+		return edgeBonds[edge];
+	}
+}
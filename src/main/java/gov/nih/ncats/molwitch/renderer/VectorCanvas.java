@@ -0,0 +1,92 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.Stroke;
+
+/**
+ * A vector output format a rendering can be written to in place of a
+ * {@link java.awt.Graphics2D}: what would be painted is written out as
+ * shapes, strokes and glyph outlines, with nothing rasterised.
+ *
+ * Coordinates are in the same units and orientation as the raster
+ * renderer's: x to the right and y down from the top left.
+ */
+interface VectorCanvas {
+
+	void fill(Shape s, ARGBColor color);
+
+	void draw(Shape s, Stroke stroke, ARGBColor color);
+
+	/**
+	 * Draw a string with the given font, its baseline starting at x,y.
+	 */
+	void text(String text, Font font, double x, double y, ARGBColor color);
+
+	/**
+	 * Draw every primitive of the display list, moved by the given offset.
+	 */
+	void displayList(DisplayList list, double dx, double dy);
+
+	/**
+	 * Start drawing what casts a shadow, if this format can draw one.
+	 *
+	 * @return false if shadows are left out.
+	 */
+	boolean beginShadowed();
+
+	/**
+	 * Finish what was started by {@link #beginShadowed()}, giving it a
+	 * shadow like the raster renderer's.
+	 *
+	 * @param blurRadius the radius of the three box blurs the raster
+	 *                   shadow is made with.
+	 */
+	void endShadowed(int blurRadius, float opacity, int offset);
+
+	/**
+	 * Append a number rounded to two decimals, without trailing zeros or
+	 * a leading zero before the point; both SVG and PDF read it.
+	 */
+	static void number(StringBuilder sb, double v){
+		long r = Math.round(v * 100);
+		if(r < 0){
+			sb.append('-');
+			r = -r;
+		}
+		long whole = r / 100;
+		int frac = (int) (r % 100);
+		if(whole != 0 || frac == 0){
+			sb.append(whole);
+		}
+		if(frac != 0){
+			sb.append('.');
+			if(frac % 10 == 0){
+				sb.append(frac / 10);
+			}else{
+				if(frac < 10){
+					sb.append('0');
+				}
+				sb.append(frac);
+			}
+		}
+	}
+}
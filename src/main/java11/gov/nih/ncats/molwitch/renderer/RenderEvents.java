@@ -0,0 +1,200 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for each render and each of its
+ * {@link RenderMetrics.Phase phases}, carrying the size of the
+ * structure, the size it was rendered at and a fingerprint of the
+ * options it was rendered with.
+ *
+ * This is the Java 11 version, used in place of the Java 8 one, which
+ * records nothing.  Both events are on by default, with a threshold of
+ * 1 ms so a recording left running in production doesn't fill up with
+ * quick renders; a recording's settings can lower it.
+ *
+ * A runtime may have been linked without the {@code jdk.jfr} module, so
+ * the events are kept in {@link Recorder}, which is only loaded once the
+ * module has been found; without it nothing is ever recorded.
+ */
+final class RenderEvents {
+
+	/**
+	 * The events and their types, or null if the flight recorder
+	 * isn't there.
+	 */
+	private static final Recorder RECORDER = loadRecorder();
+
+	private RenderEvents(){
+		//can not instantiate
+	}
+
+	private static Recorder loadRecorder(){
+		if(!ModuleLayer.boot().findModule("jdk.jfr").isPresent()){
+			return null;
+		}
+		try{
+			return new Recorder();
+		}catch(LinkageError e){
+			//the module is there but its classes can't be loaded
+			return null;
+		}
+	}
+
+	/**
+	 * Whether any recording wants render or phase events.
+	 */
+	static boolean isEnabled(){
+		return RECORDER != null && RECORDER.isEnabled();
+	}
+
+	/**
+	 * Start the event for a render, or return null if it isn't recorded.
+	 */
+	static Object beginRender(){
+		return RECORDER == null ? null : RECORDER.beginRender();
+	}
+
+	static void commitRender(Object event, RenderMetrics metrics){
+		Recorder.commitRender(event, metrics);
+	}
+
+	/**
+	 * Start the event for a phase, or return null if it isn't recorded.
+	 */
+	static Object beginPhase(){
+		return RECORDER == null ? null : RECORDER.beginPhase();
+	}
+
+	static void commitPhase(Object event, RenderMetrics metrics, RenderMetrics.Phase phase){
+		Recorder.commitPhase(event, metrics, phase);
+	}
+
+	/**
+	 * Everything that needs the flight recorder's classes.  The events
+	 * handed out by {@link RenderEvents} only come from here, so the
+	 * commit methods are never reached without it.
+	 */
+	private static final class Recorder {
+
+		@Name("gov.nih.ncats.molwitch.renderer.Render")
+		@Label("Render")
+		@Category({"MolWitch", "Renderer"})
+		@Description("A structure rendered to an image, SVG or PDF")
+		@StackTrace(false)
+		@Threshold("1 ms")
+		static final class RenderEvent extends Event {
+			@Label("Atoms")
+			int atomCount;
+			@Label("Bonds")
+			int bondCount;
+			@Label("Width")
+			int width;
+			@Label("Height")
+			int height;
+			@Label("Options Fingerprint")
+			long optionsFingerprint;
+			@Label("Layout Cached")
+			boolean layoutCached;
+			@Label("Primitives")
+			int primitiveCount;
+		}
+
+		@Name("gov.nih.ncats.molwitch.renderer.RenderPhase")
+		@Label("Render Phase")
+		@Category({"MolWitch", "Renderer"})
+		@Description("One phase of rendering a structure, such as laying out its bonds or painting its shadow")
+		@StackTrace(false)
+		@Threshold("1 ms")
+		static final class PhaseEvent extends Event {
+			@Label("Phase")
+			String phase;
+			@Label("Atoms")
+			int atomCount;
+			@Label("Width")
+			int width;
+			@Label("Height")
+			int height;
+			@Label("Options Fingerprint")
+			long optionsFingerprint;
+		}
+
+		private final EventType render = EventType.getEventType(RenderEvent.class);
+		private final EventType phase = EventType.getEventType(PhaseEvent.class);
+
+		boolean isEnabled(){
+			return render.isEnabled() || phase.isEnabled();
+		}
+
+		Object beginRender(){
+			if(!render.isEnabled()){
+				return null;
+			}
+			RenderEvent event = new RenderEvent();
+			event.begin();
+			return event;
+		}
+
+		static void commitRender(Object event, RenderMetrics metrics){
+			RenderEvent render = (RenderEvent) event;
+			render.end();
+			if(render.shouldCommit()){
+				render.atomCount = metrics.getAtomCount();
+				render.bondCount = metrics.getBondCount();
+				render.width = metrics.getWidth();
+				render.height = metrics.getHeight();
+				render.optionsFingerprint = metrics.getOptionsFingerprint();
+				render.layoutCached = metrics.isLayoutCached();
+				render.primitiveCount = metrics.getPrimitiveCount();
+				render.commit();
+			}
+		}
+
+		Object beginPhase(){
+			if(!phase.isEnabled()){
+				return null;
+			}
+			PhaseEvent event = new PhaseEvent();
+			event.begin();
+			return event;
+		}
+
+		static void commitPhase(Object event, RenderMetrics metrics, RenderMetrics.Phase phase){
+			PhaseEvent phaseEvent = (PhaseEvent) event;
+			phaseEvent.end();
+			if(phaseEvent.shouldCommit()){
+				phaseEvent.phase = phase.name();
+				phaseEvent.atomCount = metrics.getAtomCount();
+				phaseEvent.width = metrics.getWidth();
+				phaseEvent.height = metrics.getHeight();
+				phaseEvent.optionsFingerprint = metrics.getOptionsFingerprint();
+				phaseEvent.commit();
+			}
+		}
+	}
+}
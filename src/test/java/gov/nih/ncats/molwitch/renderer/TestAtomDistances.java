@@ -0,0 +1,117 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestAtomDistances {
+
+    private static double[][] naive(double[] xs, double[] ys) {
+        double total = 0;
+        double lowest = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < xs.length; i++) {
+            for (int j = i + 1; j < xs.length; j++) {
+                double d = Math.sqrt(Math.pow(xs[j] - xs[i], 2) + Math.pow(ys[j] - ys[i], 2));
+                total += d;
+                if (d > 0 && d < lowest) {
+                    lowest = d;
+                }
+            }
+        }
+        return new double[][]{{total / ((long) xs.length * (xs.length - 1) / 2)}, {lowest}};
+    }
+
+    @Test
+    public void matchesEveryPairOfAtoms() throws Exception {
+        Chemical c = Chemical.parseMol(new File(getClass().getResource("/Structure2D_CID_118984375.mol").getFile()));
+        double[] xs = new double[c.getAtomCount()];
+        double[] ys = new double[c.getAtomCount()];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = c.getAtom(i).getAtomCoordinates().getX();
+            ys[i] = c.getAtom(i).getAtomCoordinates().getY();
+        }
+        double[][] expected = naive(xs, ys);
+        assertEquals(expected[0][0], ChemicalRenderer.computeAverageInterAtomDistance(c), 1e-9 * expected[0][0]);
+        assertEquals(expected[1][0], ChemicalRenderer.computeLowestInterAtomDistance(c).get(), 0);
+    }
+
+    @Test
+    public void largeLayoutsMatchInParallel() {
+        Random random = new Random(11);
+        int n = 3000;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            //a tall narrow layout, with repeated atoms
+            xs[i] = i % 10 == 0 ? 0 : random.nextDouble() * 20;
+            ys[i] = i % 10 == 0 ? 0 : random.nextDouble() * 2000;
+        }
+        AtomDistances distances = new AtomDistances(xs, ys);
+        double[][] expected = naive(xs, ys);
+        assertEquals(expected[0][0], distances.average(), 1e-9 * expected[0][0]);
+        assertEquals(expected[1][0], distances.lowest().getAsDouble(), 0);
+    }
+
+    @Test
+    public void estimateIsWithinItsTolerance() {
+        Random random = new Random(2);
+        int n = 5000;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = random.nextGaussian() * 100;
+            ys[i] = random.nextGaussian() * 40;
+        }
+        AtomDistances distances = new AtomDistances(xs, ys);
+        double exact = distances.average();
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double diagonal = Math.hypot(maxX - minX, maxY - minY);
+        assertEquals(exact, distances.estimateAverage(0.01), 0.01 * diagonal);
+        assertEquals(distances.estimateAverage(0.01), distances.estimateAverage(0.01), 0);
+
+        AtomDistances few = new AtomDistances(new double[]{0, 3, 0}, new double[]{0, 0, 4});
+        assertEquals(few.average(), few.estimateAverage(0.01), 0);
+    }
+
+    @Test
+    public void atomsAllInOnePlaceHaveNoLowestDistance() throws Exception {
+        assertFalse(new AtomDistances(new double[]{1, 1, 1}, new double[]{2, 2, 2}).lowest().isPresent());
+        assertFalse(new AtomDistances(new double[]{1}, new double[]{2}).lowest().isPresent());
+        Chemical c = Chemical.parse("O.O");
+        assertFalse(ChemicalRenderer.computeLowestInterAtomDistance(c).isPresent());
+        assertTrue(Double.isNaN(ChemicalRenderer.computeAverageInterAtomDistance(c)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toleranceMustBePositive() {
+        new AtomDistances(new double[]{0, 1}, new double[]{0, 1}).estimateAverage(0);
+    }
+}
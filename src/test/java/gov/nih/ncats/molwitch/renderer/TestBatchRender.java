@@ -0,0 +1,182 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TestBatchRender {
+
+    private static final List<String> FILES = Arrays.asList("water.mol", "benzoic_acid.mol", "usp_steroid.mol",
+            "dash.mol", "polymer.mol", "sodium_acetate.mol", "wedgeCollide.mol", "NFX970DSI2.mol");
+
+    private static Chemical load(String name) {
+        try {
+            return Chemical.parseMol(new File(TestBatchRender.class.getResource("/" + name).getFile()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<Chemical> loadAll(){
+        return FILES.stream().map(TestBatchRender::load).collect(Collectors.toList());
+    }
+
+    private static int[] pixels(BufferedImage img){
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    @Test
+    public void orderedResultsMatchSingleRenders() throws InterruptedException {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        List<Chemical> chemicals = loadAll();
+        List<BatchRender.Result> results = new ArrayList<>();
+        renderer.renderAll(chemicals, 200, 150).forEach(results::add);
+
+        assertEquals(chemicals.size(), results.size());
+        for(int i=0; i< results.size(); i++){
+            BatchRender.Result r = results.get(i);
+            assertEquals(i, r.getIndex());
+            assertTrue(r.isSuccess());
+            assertSame(chemicals.get(i), r.getChemical());
+            assertArrayEquals(FILES.get(i), pixels(renderer.createImage(chemicals.get(i), 200, 150, false)),
+                    pixels(r.getImage()));
+        }
+    }
+
+    @Test
+    public void streamsAreReadLazily() throws InterruptedException {
+        AtomicInteger read = new AtomicInteger();
+        List<Integer> indexes = new ArrayList<>();
+        new ChemicalRenderer().renderAll(FILES.stream().peek(f -> read.incrementAndGet()).map(TestBatchRender::load), 100, 100)
+                .setLookAhead(2)
+                .setOrdered(false)
+                .forEach(r -> {
+                    assertTrue(read.get() <= indexes.size() + 2);
+                    indexes.add(r.getIndex());
+                });
+        Set<Integer> expected = new HashSet<>();
+        for(int i=0; i< FILES.size(); i++){
+            expected.add(i);
+        }
+        assertEquals(expected, new HashSet<>(indexes));
+    }
+
+    @Test
+    public void mostExpensiveRendersFirst() throws InterruptedException {
+        List<Chemical> chemicals = loadAll();
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        List<Long> costs = new ArrayList<>();
+        try{
+            new ChemicalRenderer().renderAll(chemicals, 100, 100)
+                    .setExecutor(single)
+                    .setOrdered(false)
+                    .forEach(r -> costs.add(BatchRender.estimateCost(r.getChemical())));
+        }finally{
+            single.shutdown();
+        }
+        List<Long> sorted = new ArrayList<>(costs);
+        sorted.sort((a, b) -> Long.compare(b, a));
+        assertEquals(sorted, costs);
+    }
+
+    @Test
+    public void livePixelsStayWithinBudget() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicInteger rendering = new AtomicInteger();
+        AtomicInteger mostAtOnce = new AtomicInteger();
+        ChemicalRenderer renderer = new ChemicalRenderer(){
+            @Override
+            public BufferedImage createImage(Chemical c, int width, int height, boolean round) {
+                mostAtOnce.accumulateAndGet(rendering.incrementAndGet(), Math::max);
+                try{
+                    return super.createImage(c, width, height, round);
+                }finally{
+                    rendering.decrementAndGet();
+                }
+            }
+        };
+        renderer.setShadowVisible(false);
+        List<Chemical> chemicals = new ArrayList<>();
+        for(int i=0; i< 4; i++){
+            chemicals.addAll(loadAll());
+        }
+        AtomicInteger count = new AtomicInteger();
+        try{
+            renderer.renderAll(chemicals, 300, 300)
+                    .setExecutor(pool)
+                    .setMaximumLivePixels(2 * 300 * 300)
+                    .forEach(r -> count.incrementAndGet());
+        }finally{
+            pool.shutdown();
+        }
+        assertEquals(chemicals.size(), count.get());
+        assertTrue(mostAtOnce.get() + " at once", mostAtOnce.get() <= 2);
+    }
+
+    @Test
+    public void imageLargerThanBudgetStillRenders() throws InterruptedException {
+        List<BatchRender.Result> results = new ArrayList<>();
+        new ChemicalRenderer().renderAll(loadAll(), 200, 200)
+                .setMaximumLivePixels(100)
+                .forEach(results::add);
+        assertEquals(FILES.size(), results.size());
+        for(int i=0; i< results.size(); i++){
+            assertEquals(i, results.get(i).getIndex());
+        }
+    }
+
+    @Test
+    public void failedRenderDoesNotStopTheBatch() throws InterruptedException {
+        List<Chemical> chemicals = loadAll();
+        Chemical bad = chemicals.get(3);
+        ChemicalRenderer renderer = new ChemicalRenderer(){
+            @Override
+            public BufferedImage createImage(Chemical c, int width, int height, boolean round) {
+                if(c == bad){
+                    throw new IllegalStateException("bad chemical");
+                }
+                return super.createImage(c, width, height, round);
+            }
+        };
+        List<BatchRender.Result> results = new ArrayList<>();
+        renderer.renderAll(chemicals, 100, 100).forEach(results::add);
+        assertEquals(chemicals.size(), results.size());
+        assertFalse(results.get(3).isSuccess());
+        assertNull(results.get(3).getImage());
+        assertEquals("bad chemical", results.get(3).getError().getMessage());
+        assertTrue(results.get(4).isSuccess());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import org.junit.Test;
+
+import java.awt.Color;
+
+import static org.junit.Assert.*;
+
+public class TestBondLayout {
+
+    @Test
+    public void releasedLayoutIsReusedEmpty() {
+        BondLayout first = BondLayout.acquire(2, 1);
+        first.placeAtom(0, 1f, new ARGBColor(Color.red), new ARGBColor(Color.blue), true);
+        first.addBond(0, 0, 1, 0, 0, 1, 1, 1, 0, 0, Math.sqrt(2), BondLayout.PLAIN_SINGLE);
+        first.traps[0] = new Graphics2DParent.Point2DParent[4];
+        first.release();
+
+        BondLayout second = BondLayout.acquire(2, 1);
+        assertSame(first, second);
+        assertEquals(0, second.size);
+        assertFalse(second.placed[0]);
+        assertNull(second.traps[0]);
+        second.release();
+    }
+
+    @Test
+    public void layoutInUseIsNotHandedOutAgain() {
+        BondLayout outer = BondLayout.acquire(4, 3);
+        BondLayout inner = BondLayout.acquire(40, 30);
+        assertNotSame(outer, inner);
+        assertTrue(inner.ends.length >= 4 * 30);
+        assertTrue(inner.placed.length >= 40);
+        inner.release();
+        outer.release();
+    }
+
+    @Test
+    public void layoutOfAHugeStructureIsNotKept() {
+        BondLayout huge = BondLayout.acquire(10, BondLayout.MAXIMUM_SPARE_SIZE + 1);
+        huge.release();
+        BondLayout next = BondLayout.acquire(2, 1);
+        assertNotSame(huge, next);
+        assertTrue(next.ends.length < 4 * BondLayout.MAXIMUM_SPARE_SIZE);
+        next.release();
+    }
+}
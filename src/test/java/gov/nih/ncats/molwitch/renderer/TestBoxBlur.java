@@ -0,0 +1,109 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestBoxBlur {
+
+    private static BufferedImage noise(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        return img;
+    }
+
+    private static BufferedImage convolve(BufferedImage src, int r, int passes) {
+        int k = 2 * r + 1;
+        float[] weights = new float[k * k];
+        Arrays.fill(weights, 1f / (k * k));
+        ConvolveOp op = new ConvolveOp(new Kernel(k, k, weights), ConvolveOp.EDGE_NO_OP, null);
+        BufferedImage img = src;
+        for (int i = 0; i < passes; i++) {
+            img = op.filter(img, null);
+        }
+        return img;
+    }
+
+    private static int maxChannelDifference(BufferedImage a, BufferedImage b) {
+        int max = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int s = 0; s < 32; s += 8) {
+                    max = Math.max(max, Math.abs(((p >> s) & 0xff) - ((q >> s) & 0xff)));
+                }
+            }
+        }
+        return max;
+    }
+
+    @Test
+    public void matchesTheConvolutionItReplaces() {
+        for (int r : new int[]{1, 2, 5, 9}) {
+            BufferedImage src = noise(97, 61, r);
+            assertTrue("radius " + r, maxChannelDifference(convolve(src, r, 3), BoxBlur.blur(src, r, 3, 1f)) <= 1);
+        }
+    }
+
+    @Test
+    public void largeImagesBlurInParallelTheSame() {
+        BufferedImage src = noise(700, 400, 42);
+        assertTrue(maxChannelDifference(convolve(src, 4, 1), BoxBlur.blur(src, 4, 1, 1f)) <= 1);
+    }
+
+    @Test
+    public void edgesAndTooSmallImagesAreKept() {
+        BufferedImage src = noise(9, 30, 7);
+        BufferedImage blurred = BoxBlur.blur(src, 5, 3, 1f);
+        for (int y = 0; y < src.getHeight(); y++) {
+            for (int x = 0; x < src.getWidth(); x++) {
+                assertEquals(src.getRGB(x, y), blurred.getRGB(x, y));
+            }
+        }
+        BufferedImage unblurred = BoxBlur.blur(src, 0, 3, 1f);
+        assertEquals(src.getRGB(4, 4), unblurred.getRGB(4, 4));
+    }
+
+    @Test
+    public void opacityScalesAlphaOnly() {
+        BufferedImage src = new BufferedImage(20, 20, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 20; x++) {
+                src.setRGB(x, y, 0xc8336699);
+            }
+        }
+        BufferedImage blurred = BoxBlur.blur(src, 2, 3, .25f);
+        assertEquals(0x32336699, blurred.getRGB(10, 10));
+        assertEquals(0x32336699, blurred.getRGB(0, 0));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.renderer.RendererOptions.DrawOptions;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TestConcurrentRendering {
+
+    private static final String[] FILES = {"benzoic_acid.mol", "dash.mol", "polymer.mol",
+            "wedgeCollide.mol", "usp_steroid.mol", "sodium_acetate.mol"};
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 6;
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestConcurrentRendering.class.getResource("/" + name).getFile()));
+    }
+
+    private static int[] pixels(BufferedImage img){
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    private static List<int[]> renderAll(ChemicalRenderer renderer) throws IOException {
+        List<int[]> images = new ArrayList<>();
+        for(String f : FILES){
+            images.add(pixels(renderer.createImage(load(f), 250)));
+        }
+        return images;
+    }
+
+    private static void sharedRendererMatchesSingleThreaded(ChemicalRenderer shared) throws Exception {
+        List<int[]> expected = renderAll(shared.copy().setDisplayListCache(null));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try{
+            List<Future<List<int[]>>> futures = new ArrayList<>();
+            for(int i=0; i< THREADS * ROUNDS; i++){
+                futures.add(executor.submit(() -> renderAll(shared)));
+            }
+            for(Future<List<int[]>> f : futures){
+                List<int[]> actual = f.get(2, TimeUnit.MINUTES);
+                for(int i=0; i< FILES.length; i++){
+                    assertArrayEquals(FILES[i], expected.get(i), actual.get(i));
+                }
+            }
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void oneRendererServesManyThreads() throws Exception {
+        sharedRendererMatchesSingleThreaded(new ChemicalRenderer());
+    }
+
+    @Test
+    public void oneRendererWithCacheServesManyThreads() throws Exception {
+        DisplayListCache cache = new DisplayListCache(50_000_000);
+        sharedRendererMatchesSingleThreaded(new ChemicalRenderer().setDisplayListCache(cache));
+        assertTrue(cache.getHitCount() > 0);
+        assertEquals(FILES.length, cache.size());
+    }
+
+    @Test
+    public void changingSettingsWhileRenderingIsSafe() throws Exception {
+        ChemicalRenderer shared = new ChemicalRenderer().setDisplayListCache(new DisplayListCache(50_000_000));
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try{
+            Future<?> writer = executor.submit(() -> {
+                boolean b = false;
+                while(!done.get()){
+                    b = !b;
+                    shared.getOptions().setDrawOption(DrawOptions.DRAW_CARBON, b);
+                    shared.getOptions().getColorPalette().setAtomColor("O", b? new ARGBColor(0, 0, 255, 255) : null);
+                    shared.setShadowVisible(b);
+                    shared.setBorderVisible(b);
+                    shared.setBackgroundColor(b? Color.WHITE : new Color(0, 0, 0, 0));
+                }
+                return null;
+            });
+            List<Future<List<int[]>>> futures = new ArrayList<>();
+            for(int i=0; i< THREADS * 2; i++){
+                futures.add(executor.submit(() -> renderAll(shared)));
+            }
+            for(Future<List<int[]>> f : futures){
+                assertEquals(FILES.length, f.get(2, TimeUnit.MINUTES).size());
+            }
+            done.set(true);
+            writer.get(1, TimeUnit.MINUTES);
+        }finally{
+            done.set(true);
+            executor.shutdownNow();
+        }
+
+        //once the changes stop, renders see the last of them
+        shared.getOptions().setDrawOption(DrawOptions.DRAW_CARBON, false);
+        shared.getOptions().getColorPalette().setAtomColor("O", null);
+        shared.setShadowVisible(true);
+        shared.setBorderVisible(false);
+        shared.setBackgroundColor(new Color(0, 0, 0, 0));
+        assertArrayEquals(pixels(new ChemicalRenderer().createImage(load("benzoic_acid.mol"), 250)),
+                pixels(shared.createImage(load("benzoic_acid.mol"), 250)));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.renderer.DisplayList.PrimitiveType;
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestDisplayList {
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestDisplayList.class.getResource("/" + name).getFile()));
+    }
+
+    private static Set<PrimitiveType> typesOf(DisplayList list){
+        Set<PrimitiveType> types = EnumSet.noneOf(PrimitiveType.class);
+        list.getPrimitives().forEach(p -> types.add(p.getType()));
+        return types;
+    }
+
+    private static BufferedImage replay(DisplayList list, int imageSize, int x, int y, int width, int height){
+        BufferedImage img = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = img.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        list.replay(g2, x, y, width, height);
+        g2.dispose();
+        return img;
+    }
+
+    @Test
+    public void replayAtLayoutSizeMatchesRenderedImage() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        renderer.setShadowVisible(false);
+
+        BufferedImage expected = renderer.createImage(c, 200, 200, false);
+        BufferedImage actual = replay(renderer.layout(c, 200, 200), 200, 0, 0, 200, 200);
+
+        assertArrayEquals(expected.getRGB(0, 0, 200, 200, null, 0, 200),
+                actual.getRGB(0, 0, 200, 200, null, 0, 200));
+    }
+
+    @Test
+    public void replayAtOffsetOnlyPaintsInsideTheBox() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        DisplayList list = new ChemicalRenderer().layout(c, 200, 200);
+
+        BufferedImage home = replay(list, 200, 0, 0, 200, 200);
+        BufferedImage moved = replay(list, 300, 60, 40, 200, 200);
+
+        assertArrayEquals(home.getRGB(0, 0, 200, 200, null, 0, 200),
+                moved.getRGB(60, 40, 200, 200, null, 0, 200));
+        for(int i=0; i< 300; i++){
+            assertEquals(0, moved.getRGB(i, 20));
+            assertEquals(0, moved.getRGB(30, i));
+        }
+    }
+
+    @Test
+    public void replayAtOtherSizeFitsTheBox() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        DisplayList list = new ChemicalRenderer().layout(c, 200, 200);
+
+        BufferedImage small = replay(list, 300, 100, 100, 100, 100);
+        int painted=0;
+        for(int y=0; y< 300; y++){
+            for(int x=0; x< 300; x++){
+                if(small.getRGB(x, y) !=0){
+                    assertTrue(x + "," + y, x >= 99 && x <= 200 && y >= 99 && y <= 200);
+                    painted++;
+                }
+            }
+        }
+        assertTrue(painted > 0);
+    }
+
+    @Test
+    public void boundsAreInsideTheLayoutBox() throws IOException {
+        DisplayList list = new ChemicalRenderer().layout(load("benzoic_acid.mol"), 250, 150);
+        assertEquals(250, list.getWidth());
+        assertEquals(150, list.getHeight());
+        Rectangle2D bounds = list.getBounds();
+        assertTrue(bounds.toString(), new Rectangle2D.Double(0, 0, 250, 150).contains(bounds));
+    }
+
+    @Test
+    public void labelsAreGlyphRuns() throws IOException {
+        DisplayList list = new ChemicalRenderer().layout(load("benzoic_acid.mol"), 200, 200);
+        assertTrue(typesOf(list).containsAll(EnumSet.of(PrimitiveType.BOND_LINE, PrimitiveType.GLYPH_RUN)));
+        assertTrue(list.getPrimitives().stream()
+                .filter(p -> p instanceof DisplayList.GlyphRun)
+                .anyMatch(p -> "O".equals(((DisplayList.GlyphRun) p).getText())));
+    }
+
+    @Test
+    public void stereoBondsAndBracketsAreTyped() throws IOException {
+        assertTrue(typesOf(new ChemicalRenderer().layout(load("dash.mol"), 200, 200))
+                .contains(PrimitiveType.DASH_SEGMENT));
+        assertTrue(typesOf(new ChemicalRenderer().layout(load("polymer.mol"), 200, 200))
+                .contains(PrimitiveType.BRACKET));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void primitivesCannotBeModified() throws IOException {
+        DisplayList list = new ChemicalRenderer().layout(load("benzoic_acid.mol"), 200, 200);
+        list.getPrimitives().clear();
+    }
+
+    @Test
+    public void emptyStructureHasEmptyList() throws IOException {
+        DisplayList list = new ChemicalRenderer().layout(Chemical.parse("C"), 200, 200);
+        assertFalse(list.isEmpty());
+        assertTrue(new ChemicalRenderer().layout(new Chemical(), 200, 200).isEmpty());
+    }
+}
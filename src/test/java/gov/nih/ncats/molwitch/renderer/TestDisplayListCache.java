@@ -0,0 +1,150 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.renderer.RendererOptions.DrawOptions;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestDisplayListCache {
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestDisplayListCache.class.getResource("/" + name).getFile()));
+    }
+
+    private static int[] pixels(BufferedImage img){
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    @Test
+    public void secondRenderIsAHitAndLooksTheSame() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        DisplayListCache cache = new DisplayListCache(10_000_000);
+        ChemicalRenderer cached = new ChemicalRenderer().setDisplayListCache(cache);
+        cached.setShadowVisible(false);
+        ChemicalRenderer uncached = new ChemicalRenderer();
+        uncached.setShadowVisible(false);
+
+        BufferedImage first = cached.createImage(c, 200);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        BufferedImage second = cached.createImage(c, 200);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        assertArrayEquals(pixels(uncached.createImage(c, 200)), pixels(first));
+        assertArrayEquals(pixels(first), pixels(second));
+    }
+
+    @Test
+    public void structureWithoutCoordinatesIsAHitOnceLaidOut() throws IOException {
+        Chemical c = Chemical.parse("OC(=O)c1ccccc1");
+        assertFalse(c.hasCoordinates());
+        DisplayListCache cache = new DisplayListCache(10_000_000);
+        ChemicalRenderer renderer = new ChemicalRenderer().setDisplayListCache(cache);
+
+        renderer.createImage(c, 200);
+        assertTrue(c.hasCoordinates());
+        renderer.createImage(c, 200);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void sameStructureParsedTwiceSharesAnEntry() throws IOException {
+        RendererOptions options = RendererOptions.createDefault();
+        assertEquals(DisplayListCache.Key.of(load("benzoic_acid.mol"), "SEQ", options),
+                DisplayListCache.Key.of(load("benzoic_acid.mol"), "SEQ", options));
+        assertNotEquals(DisplayListCache.Key.of(load("benzoic_acid.mol"), "SEQ", options),
+                DisplayListCache.Key.of(load("dash.mol"), "SEQ", options));
+        assertNotEquals(DisplayListCache.Key.of(load("benzoic_acid.mol"), "SEQ", options),
+                DisplayListCache.Key.of(load("benzoic_acid.mol"), "SEQ", RendererOptions.createINNLike()));
+    }
+
+    @Test
+    public void nearbySizeIsAHitFarSizeIsAMiss() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        DisplayListCache cache = new DisplayListCache(10_000_000);
+        ChemicalRenderer renderer = new ChemicalRenderer().setDisplayListCache(cache);
+        renderer.setShadowVisible(false);
+
+        renderer.createImage(c, 200);
+        renderer.createImage(c, 300);
+        assertEquals(1, cache.getHitCount());
+        renderer.createImage(c, 1000);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void changingOptionsDropsTheirLayouts() throws IOException {
+        DisplayListCache cache = new DisplayListCache(10_000_000);
+        ChemicalRenderer renderer = new ChemicalRenderer().setDisplayListCache(cache);
+        renderer.setShadowVisible(false);
+        renderer.createImage(load("benzoic_acid.mol"), 200);
+        renderer.createImage(load("dash.mol"), 200);
+        assertEquals(2, cache.size());
+
+        renderer.getOptions().setDrawOption(DrawOptions.DRAW_CARBON, true);
+        assertEquals(0, cache.size());
+
+        renderer.createImage(load("benzoic_acid.mol"), 200);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedByWeight() throws IOException {
+        DisplayListCache sizing = new DisplayListCache(Long.MAX_VALUE);
+        ChemicalRenderer renderer = new ChemicalRenderer().setDisplayListCache(sizing);
+        renderer.setShadowVisible(false);
+        Chemical a = load("benzoic_acid.mol");
+        Chemical b = load("dash.mol");
+        Chemical c = load("water.mol");
+        renderer.createImage(a, 200);
+        long weightOfA = sizing.getWeight();
+        renderer.createImage(b, 200);
+        renderer.createImage(c, 200);
+
+        DisplayListCache cache = new DisplayListCache(sizing.getWeight() - 1);
+        renderer.setDisplayListCache(cache);
+        renderer.createImage(a, 200);
+        renderer.createImage(b, 200);
+        renderer.createImage(a, 200);
+        renderer.createImage(c, 200);
+
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.getWeight() <= cache.getMaximumWeight());
+        assertTrue(weightOfA > 0);
+
+        renderer.createImage(a, 200);
+        assertEquals(2, cache.getHitCount());
+        renderer.createImage(b, 200);
+        assertEquals(2, cache.getHitCount());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class TestEncodedImageCache {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestEncodedImageCache.class.getResource("/" + name).getFile()));
+    }
+
+    private static byte[] bytes(ByteBuffer b){
+        byte[] array = new byte[b.remaining()];
+        b.duplicate().get(array);
+        return array;
+    }
+
+    private static EncodedImageCache.Key key(int i){
+        byte[] digest = new byte[32];
+        digest[0] = (byte) i;
+        return EncodedImageCache.Key.fromDigest(digest);
+    }
+
+    private static byte[] image(int i, int length){
+        byte[] image = new byte[length];
+        for(int j=0; j< length; j++){
+            image[j] = (byte) (i + j);
+        }
+        return image;
+    }
+
+    @Test
+    public void renderedImageIsServedFromHeapThenFromDisk() throws IOException {
+        Path pack = tmp.getRoot().toPath().resolve("images.pack");
+        Chemical c = load("benzoic_acid.mol");
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        byte[] png;
+        try(EncodedImageCache cache = new EncodedImageCache(pack, 1_000_000, 10_000_000)){
+            png = bytes(cache.getOrRender(renderer, c, 200, 200, false));
+            assertEquals(1, cache.getMissCount());
+            assertArrayEquals(png, bytes(cache.getOrRender(renderer, load("benzoic_acid.mol"), 200, 200, false)));
+            assertEquals(1, cache.getHeapHitCount());
+
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+            assertEquals(200, img.getWidth());
+        }
+        try(EncodedImageCache cache = new EncodedImageCache(pack, 1_000_000, 10_000_000)){
+            assertEquals(1, cache.size());
+            assertArrayEquals(png, bytes(cache.getOrRender(renderer, c, 200, 200, false)));
+            assertEquals(1, cache.getDiskHitCount());
+            assertEquals(0, cache.getMissCount());
+        }
+    }
+
+    @Test
+    public void keyDependsOnSizeAndStyle() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        EncodedImageCache.Key key = EncodedImageCache.Key.of(renderer, c, 200, 200, false);
+        assertEquals(key, EncodedImageCache.Key.of(renderer, load("benzoic_acid.mol"), 200, 200, false));
+        assertNotEquals(key, EncodedImageCache.Key.of(renderer, c, 201, 200, false));
+        assertNotEquals(key, EncodedImageCache.Key.of(renderer, c, 200, 200, true));
+        assertNotEquals(key, EncodedImageCache.Key.of(renderer, load("dash.mol"), 200, 200, false));
+        assertNotEquals(key, EncodedImageCache.Key.of(renderer.copy().setShadowVisible(false), c, 200, 200, false));
+        assertNotEquals(key, EncodedImageCache.Key.of(new ChemicalRenderer(RendererOptions.createINNLike()), c, 200, 200, false));
+    }
+
+    @Test(expected = java.nio.ReadOnlyBufferException.class)
+    public void returnedBuffersAreReadOnly() throws IOException {
+        try(EncodedImageCache cache = new EncodedImageCache(tmp.getRoot().toPath().resolve("images.pack"), 0, 1_000_000)){
+            cache.put(key(1), image(1, 100));
+            ByteBuffer b = cache.get(key(1));
+            assertEquals(0, cache.getHeapBytes());
+            assertEquals(1, cache.getDiskHitCount());
+            b.put(0, (byte) 0);
+        }
+    }
+
+    @Test
+    public void evictionCompactsThePackFile() throws IOException {
+        Path pack = tmp.getRoot().toPath().resolve("images.pack");
+        try(EncodedImageCache cache = new EncodedImageCache(pack, 0, 10_000)){
+            for(int i=0; i< 40; i++){
+                cache.put(key(i), image(i, 1000));
+                assertTrue(cache.getDiskBytes() <= 10_000);
+            }
+            assertTrue(cache.getEvictionCount() > 0);
+            assertTrue(cache.getCompactionCount() > 0);
+            assertTrue(cache.getFileSize() <= 8 + 3 * cache.getDiskBytes());
+            assertEquals(cache.getFileSize(), Files.size(pack));
+
+            assertNull(cache.get(key(0)));
+            assertArrayEquals(image(39, 1000), bytes(cache.get(key(39))));
+        }
+        try(EncodedImageCache cache = new EncodedImageCache(pack, 0, 10_000)){
+            assertArrayEquals(image(39, 1000), bytes(cache.get(key(39))));
+            assertNull(cache.get(key(0)));
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedOnOpen() throws IOException {
+        Path pack = tmp.getRoot().toPath().resolve("images.pack");
+        long complete;
+        try(EncodedImageCache cache = new EncodedImageCache(pack, 0, 1_000_000)){
+            cache.put(key(1), image(1, 500));
+            complete = cache.getFileSize();
+            cache.put(key(2), image(2, 500));
+        }
+        byte[] file = Files.readAllBytes(pack);
+        byte[] torn = new byte[file.length - 10];
+        System.arraycopy(file, 0, torn, 0, torn.length);
+        Files.write(pack, torn);
+
+        try(EncodedImageCache cache = new EncodedImageCache(pack, 0, 1_000_000)){
+            assertEquals(1, cache.size());
+            assertEquals(complete, cache.getFileSize());
+            assertArrayEquals(image(1, 500), bytes(cache.get(key(1))));
+            assertNull(cache.get(key(2)));
+        }
+    }
+}
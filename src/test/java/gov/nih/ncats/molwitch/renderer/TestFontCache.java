@@ -0,0 +1,62 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import org.junit.Test;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class TestFontCache {
+
+    private static final Font BASE = new Font("SansSerif", Font.BOLD, 25);
+
+    @Test
+    public void derivedFontsEqualFreshlyDerivedOnes() {
+        assertEquals(BASE.deriveFont(13.7f), FontCache.derive(BASE, 13.7f));
+        assertEquals(BASE.deriveFont(Font.PLAIN, 13.7f), FontCache.derive(BASE, Font.PLAIN, 13.7f));
+        assertSame(FontCache.derive(BASE, 13.7f), FontCache.derive(BASE, 13.7f));
+        assertNotEquals(FontCache.derive(BASE, 13.7f), FontCache.derive(BASE, Math.nextUp(13.7f)));
+    }
+
+    @Test
+    public void metricsMatchTheGraphicsMetrics() {
+        Graphics2D g2 = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            Font font = BASE.deriveFont(17.3f);
+            FontCache.Metrics metrics = FontCache.metrics(g2, font);
+            for (String s : new String[]{"C", "Cl", "NH2", "(R)", "a longer caption"}) {
+                assertEquals(s, g2.getFontMetrics(font).getStringBounds(s, g2), metrics.stringBounds(s));
+                assertEquals(s, g2.getFontMetrics(font).stringWidth(s), metrics.stringWidth(s));
+            }
+            assertEquals(g2.getFontMetrics(font).getHeight(), metrics.getHeight());
+            assertSame(metrics.stringBounds("Cl"), metrics.stringBounds("Cl"));
+
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            assertNotSame(metrics, FontCache.metrics(g2, font));
+        } finally {
+            g2.dispose();
+        }
+    }
+}
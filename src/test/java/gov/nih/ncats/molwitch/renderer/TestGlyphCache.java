@@ -0,0 +1,104 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import org.junit.Test;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestGlyphCache {
+
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+    private static final Font FONT = new Font("SansSerif", Font.BOLD, 25).deriveFont(17.3f);
+
+    @Test
+    public void cachedGlyphsMatchFreshlyShapedOnes() {
+        GlyphCache cache = new GlyphCache(16);
+        GlyphCache.Glyphs glyphs = cache.get(FONT, FRC, "NH2+");
+        GlyphVector gv = FONT.createGlyphVector(FRC, "NH2+");
+        assertArrayEquals(gv.getGlyphCodes(0, gv.getNumGlyphs(), null), glyphs.glyphCodes);
+        assertEquals(gv.getLogicalBounds(), glyphs.logicalBounds);
+        assertEquals(gv.getVisualBounds(), glyphs.visualBounds);
+    }
+
+    @Test
+    public void repeatedLookupsAreHits() {
+        GlyphCache cache = new GlyphCache(16);
+        GlyphCache.Glyphs first = cache.get(FONT, FRC, "O");
+        assertSame(first, cache.get(FONT, FRC, "O"));
+        assertSame(first, cache.get(FONT.deriveFont(17.3f), FRC, "O"));
+        assertNotSame(first, cache.get(FONT.deriveFont(17.4f), FRC, "O"));
+        assertNotSame(first, cache.get(FONT, new FontRenderContext(null, false, false), "O"));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0.4, cache.getHitRate(), 1e-9);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void emptiedWhenFull() {
+        GlyphCache cache = new GlyphCache(4);
+        for (String s : Arrays.asList("C", "N", "O", "S", "P")) {
+            cache.get(FONT, FRC, s);
+        }
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.getEvictionCount());
+        cache.get(FONT, FRC, "P");
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws Exception {
+        GlyphCache cache = new GlyphCache(1024);
+        List<String> labels = Arrays.asList("C", "N", "O", "H", "H2", "+", "(R)", "(S)", "R1", "Cl", "Br");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        String s = labels.get(i % labels.size());
+                        GlyphCache.Glyphs g = cache.get(FONT, FRC, s);
+                        assertEquals(s.length(), g.glyphCodes.length);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(labels.size(), cache.size());
+        assertEquals(8000, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.getHitRate() > 0.9);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TestGridRender {
+
+    private static final List<String> FILES = Arrays.asList("water.mol", "benzoic_acid.mol", "usp_steroid.mol",
+            "dash.mol", "polymer.mol", "sodium_acetate.mol", "wedgeCollide.mol");
+
+    private static Chemical load(String name) {
+        try {
+            return Chemical.parseMol(new File(TestGridRender.class.getResource("/" + name).getFile()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<Chemical> loadAll(){
+        return FILES.stream().map(TestGridRender::load).collect(Collectors.toList());
+    }
+
+    private static int[] pixels(BufferedImage img, Rectangle r){
+        return img.getRGB(r.x, r.y, r.width, r.height, null, 0, r.width);
+    }
+
+    @Test
+    public void sheetIsSizedToTheGrid() throws InterruptedException {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        GridRender grid = renderer.renderGrid(loadAll(), 3, 120, 100);
+        assertEquals(3, grid.getRows());
+
+        BufferedImage sheet = grid.createImage();
+        assertEquals(360, sheet.getWidth());
+        assertEquals(300, sheet.getHeight());
+    }
+
+    @Test
+    public void cellsMatchSingleRendersWithCaptions() throws InterruptedException {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        renderer.getOptions().captionTop(c -> "atoms " + c.getAtomCount());
+        List<Chemical> chemicals = loadAll();
+        GridRender grid = renderer.renderGrid(chemicals, 4, 160, 140).setPadding(5);
+        BufferedImage sheet = grid.createImage();
+
+        for(int i=0; i< chemicals.size(); i++){
+            Rectangle cell = grid.getCellBounds(i);
+            assertEquals(150, cell.width);
+            assertEquals(130, cell.height);
+            BufferedImage single = renderer.createImage(chemicals.get(i), cell.width, cell.height, false);
+            assertArrayEquals(FILES.get(i), pixels(single, new Rectangle(0, 0, cell.width, cell.height)),
+                    pixels(sheet, cell));
+        }
+    }
+
+    @Test
+    public void paddingIsLeftAsBackground() throws InterruptedException {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        GridRender grid = renderer.renderGrid(loadAll(), 4, 100, 100).setPadding(6);
+        BufferedImage sheet = grid.createImage();
+        int background = renderer.getBackgroundColor().asColor().getRGB();
+
+        for(int x=0; x< sheet.getWidth(); x++){
+            for(int y=0; y< sheet.getHeight(); y++){
+                int cx = x % 100, cy = y % 100;
+                if(cx < 6 || cx >= 94 || cy < 6 || cy >= 94){
+                    assertEquals("(" + x + "," + y + ")", background, sheet.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void failedCellIsReportedAndOthersStillRender() throws InterruptedException {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        List<Chemical> chemicals = new ArrayList<>(loadAll());
+        chemicals.set(2, null);
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        GridRender grid = renderer.renderGrid(chemicals, 4, 120, 120)
+                .setErrorHandler((i, t) -> failed.add(i));
+        BufferedImage sheet = grid.createImage();
+
+        assertEquals(Collections.singletonList(2), failed);
+        Rectangle cell = grid.getCellBounds(0);
+        assertArrayEquals(pixels(renderer.createImage(chemicals.get(0), 120, 120, false), cell),
+                pixels(sheet, cell));
+    }
+
+    @Test
+    public void firstFailureIsThrownOnceTheGridIsDone() throws InterruptedException {
+        List<Chemical> chemicals = new ArrayList<>(loadAll());
+        chemicals.set(1, null);
+        try{
+            new ChemicalRenderer().renderGrid(chemicals, 4, 120, 120).createImage();
+            fail("should have thrown");
+        }catch(RuntimeException expected){
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyListIsRejected() {
+        new ChemicalRenderer().renderGrid(Collections.emptyList(), 5, 50, 50);
+    }
+}
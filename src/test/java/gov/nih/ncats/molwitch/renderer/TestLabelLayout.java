@@ -0,0 +1,82 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Font;
+
+import static org.junit.Assert.*;
+
+public class TestLabelLayout {
+
+    private static final ARGBColor BLACK = new ARGBColor(Color.black);
+
+    @Test
+    public void labelsAreReusedAndLetGoOfTheirAtoms() throws Exception {
+        Chemical c = Chemical.parse("CO");
+        Font font = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+
+        LabelLayout layout = LabelLayout.acquire();
+        for (int i = 0; i < 40; i++) {
+            layout.addLabel("O", font, i, i, BLACK, c.getAtom(1));
+        }
+        NchemicalRenderer.DisplayLabel first = layout.labels[0];
+        assertEquals(40, layout.labelCount);
+        layout.release();
+        assertNull(first.atomGroup);
+
+        LabelLayout again = LabelLayout.acquire();
+        assertSame(layout, again);
+        assertEquals(0, again.labelCount);
+        assertSame(first, again.addLabel("C", font, 1, 2, BLACK, null));
+        assertEquals("C", first.lab);
+        assertEquals(2f, first.y, 0);
+        again.release();
+    }
+
+    @Test
+    public void attachmentsAreClearedForEachAtom() {
+        LabelLayout layout = LabelLayout.acquire();
+        for (int i = 0; i < 9; i++) {
+            layout.attach("H" + i, 1 | 4, 1f, BLACK);
+        }
+        assertEquals(9, layout.attachmentCount);
+        assertEquals("H8", layout.attachments[8]);
+        assertEquals(1 | 4, layout.attachmentLOC[8]);
+        layout.clearAttachments();
+        assertEquals(0, layout.attachmentCount);
+        layout.release();
+    }
+
+    @Test
+    public void layoutWithTooManyLabelsIsNotKept() {
+        Font font = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+        LabelLayout huge = LabelLayout.acquire();
+        for (int i = 0; i <= LabelLayout.MAXIMUM_SPARE_LABELS; i++) {
+            huge.addLabel("C", font, i, i, BLACK, null);
+        }
+        huge.release();
+        LabelLayout next = LabelLayout.acquire();
+        assertNotSame(huge, next);
+        next.release();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class TestPdfWriter {
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestPdfWriter.class.getResource("/" + name).getFile()));
+    }
+
+    private static String pdf(boolean compressed, String... pages) throws IOException {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PdfWriter pdf = renderer.writePdf(out).setCompressed(compressed)) {
+            for (String name : pages) {
+                pdf.addPage(load(name), 300, 300, false);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static int occurrences(String s, String pattern) {
+        Matcher m = Pattern.compile(pattern).matcher(s);
+        int n = 0;
+        while (m.find()) {
+            n++;
+        }
+        return n;
+    }
+
+    private static void assertCrossReferencesMatch(String pdf) {
+        assertTrue(pdf.startsWith("%PDF-1.4\n"));
+        assertTrue(pdf.endsWith("%%EOF\n"));
+        Matcher start = Pattern.compile("startxref\n(\\d+)\n%%EOF\n$").matcher(pdf);
+        assertTrue(start.find());
+        int xref = Integer.parseInt(start.group(1));
+        assertTrue(pdf.startsWith("xref\n0 ", xref));
+
+        Matcher size = Pattern.compile("xref\n0 (\\d+)\n").matcher(pdf);
+        assertTrue(size.find(xref));
+        int objects = Integer.parseInt(size.group(1));
+        int entry = size.end() + 20;
+        for (int i = 1; i < objects; i++, entry += 20) {
+            int offset = Integer.parseInt(pdf.substring(entry, entry + 10));
+            assertTrue("object " + i, pdf.startsWith(i + " 0 obj\n", offset));
+        }
+        assertTrue(pdf.contains("/Size " + objects + " "));
+    }
+
+    @Test
+    public void crossReferencesPointAtTheirObjects() throws Exception {
+        assertCrossReferencesMatch(pdf(false, "benzoic_acid.mol", "usp_steroid.mol"));
+        assertCrossReferencesMatch(pdf(true, "benzoic_acid.mol", "usp_steroid.mol"));
+    }
+
+    @Test
+    public void everyPageIsInThePageTree() throws Exception {
+        String pdf = pdf(false, "benzoic_acid.mol", "usp_steroid.mol", "benzoic_acid.mol");
+        assertEquals(3, occurrences(pdf, "/Type /Page "));
+        assertTrue(pdf.contains("/Count 3 "));
+        assertEquals(3, occurrences(pdf, "/MediaBox \\[0 0 300 300\\]"));
+    }
+
+    @Test
+    public void glyphsAreEmbeddedOncePerDocument() throws Exception {
+        String once = pdf(false, "usp_steroid.mol");
+        String thrice = pdf(false, "usp_steroid.mol", "usp_steroid.mol", "usp_steroid.mol");
+        int glyphs = occurrences(once, " d1\n");
+        assertTrue(glyphs > 0);
+        assertEquals(glyphs, occurrences(thrice, " d1\n"));
+        assertEquals(1, occurrences(thrice, "/Subtype /Type3"));
+        assertEquals(3, occurrences(thrice, "\nBT\n") / occurrences(once, "\nBT\n"));
+    }
+
+    @Test
+    public void manyStructuresCanShareAPage() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PdfWriter pdf = renderer.writePdf(out).setCompressed(false)) {
+            pdf.beginPage(612, 792)
+                    .draw(load("benzoic_acid.mol"), 36, 36, 270, 270, false)
+                    .draw(load("usp_steroid.mol"), 306, 36, 270, 270, false);
+            assertEquals(1, pdf.getPageCount());
+        }
+        String pdf = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        assertCrossReferencesMatch(pdf);
+        assertEquals(1, occurrences(pdf, "/Type /Page "));
+        assertTrue(pdf.contains("1 0 0 -1 0 792 cm\n"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void drawingNeedsAPage() throws Exception {
+        try (PdfWriter pdf = new ChemicalRenderer().writePdf(new ByteArrayOutputStream())) {
+            pdf.draw(load("benzoic_acid.mol"), 0, 0, 100, 100, false);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.renderer.RenderMetrics.Phase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestRenderMetrics {
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestRenderMetrics.class.getResource("/" + name).getFile()));
+    }
+
+    @Test
+    public void listenerIsToldOncePerRender() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        List<RenderMetrics> seen = new ArrayList<>();
+        ChemicalRenderer renderer = new ChemicalRenderer().setRenderMetricsListener(seen::add);
+        renderer.createImage(c, 200);
+
+        assertEquals(1, seen.size());
+        RenderMetrics metrics = seen.get(0);
+        assertEquals(c.getAtomCount(), metrics.getAtomCount());
+        assertEquals(c.getBondCount(), metrics.getBondCount());
+        assertEquals(200, metrics.getWidth());
+        assertEquals(200, metrics.getHeight());
+        assertEquals(renderer.getOptions().fingerprint(), metrics.getOptionsFingerprint());
+        assertTrue(metrics.getPrimitiveCount() > 0);
+        assertFalse(metrics.isLayoutCached());
+        assertTrue(metrics.getNanos(Phase.BONDS) > 0);
+        assertTrue(metrics.getNanos(Phase.LABELS) > 0);
+        assertTrue(metrics.getNanos(Phase.PAINT) > 0);
+        assertTrue(metrics.getNanos(Phase.SHADOW) > 0);
+        long phases = 0;
+        for (long nanos : metrics.getPhaseNanos().values()) {
+            assertTrue(nanos >= 0);
+            phases += nanos;
+        }
+        assertTrue(phases <= metrics.getTotalNanos());
+        assertTrue(metrics.getGlyphCacheHits() + metrics.getGlyphCacheMisses() > 0);
+        assertNull(RenderMetrics.current());
+    }
+
+    @Test
+    public void cachedLayoutSkipsLayoutPhases() throws IOException {
+        Chemical c = load("benzoic_acid.mol");
+        List<RenderMetrics> seen = new ArrayList<>();
+        ChemicalRenderer renderer = new ChemicalRenderer()
+                .setDisplayListCache(new DisplayListCache(10_000_000))
+                .setRenderMetricsListener(seen::add);
+        renderer.setShadowVisible(false);
+        renderer.createImage(c, 200);
+        renderer.createImage(c, 200);
+
+        assertEquals(2, seen.size());
+        RenderMetrics second = seen.get(1);
+        assertTrue(second.isLayoutCached());
+        assertEquals(0, second.getNanos(Phase.BONDS));
+        assertEquals(0, second.getNanos(Phase.SHADOW));
+        assertEquals(seen.get(0).getPrimitiveCount(), second.getPrimitiveCount());
+    }
+
+    @Test
+    public void nothingIsMeasuredWithoutAListener() throws IOException {
+        ChemicalRenderer renderer = new ChemicalRenderer().setRenderMetricsListener(m -> fail());
+        renderer.setRenderMetricsListener(null);
+        renderer.createImage(load("benzoic_acid.mol"), 200);
+        assertNull(RenderMetrics.current());
+    }
+}
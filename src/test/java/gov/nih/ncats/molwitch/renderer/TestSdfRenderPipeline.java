@@ -0,0 +1,248 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestSdfRenderPipeline {
+
+    private static final List<String> FILES = Arrays.asList("benzoic_acid.mol", "dash.mol", "water.mol",
+            "polymer.mol", "sodium_acetate.mol", "usp_steroid.mol", "wedgeCollide.mol");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String mol(String name) throws IOException {
+        String mol = new String(Files.readAllBytes(new File(TestSdfRenderPipeline.class.getResource("/" + name).getFile()).toPath()),
+                StandardCharsets.UTF_8);
+        int end = mol.indexOf("M  END");
+        return mol.substring(0, end + "M  END".length()) + "\n";
+    }
+
+    /**
+     * An SD file of the test structures, each with an ID property, and a
+     * garbage record in the middle.
+     */
+    private Path sdFile() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i< FILES.size(); i++){
+            if(i == 3){
+                sb.append("bad\n\n\nxx\nM  END\n$$$$\n");
+            }
+            sb.append(mol(FILES.get(i)))
+                    .append("> <ID>\n").append("ID-").append(i).append("\n\n$$$$\n");
+        }
+        Path sd = tmp.getRoot().toPath().resolve("structures.sdf");
+        Files.write(sd, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return sd;
+    }
+
+    private static int[] pixels(BufferedImage img){
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    @Test
+    public void everyRecordIsWrittenToTheDirectory() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        Path dir = tmp.getRoot().toPath().resolve("images");
+        List<Long> failed = new ArrayList<>();
+        SdfRenderPipeline.Sink files = SdfRenderPipeline.Sink.toDirectory(dir);
+        SdfRenderPipeline.Summary summary = new SdfRenderPipeline(renderer, sdFile(), 150, 120)
+                .setNameProperty("ID")
+                .setThreads(3)
+                .setLookAhead(2)
+                .run(new SdfRenderPipeline.Sink() {
+                    @Override
+                    public void write(SdfRenderPipeline.Record record) throws IOException {
+                        files.write(record);
+                    }
+
+                    @Override
+                    public void failed(SdfRenderPipeline.Record record) {
+                        assertNull(record.getPng());
+                        assertNotNull(record.getError());
+                        failed.add(record.getRecordNumber());
+                    }
+                });
+
+        assertEquals(FILES.size() + 1, summary.getRecordCount());
+        assertEquals(1, summary.getFailureCount());
+        assertEquals(Arrays.asList(3L), failed);
+        for(int i=0; i< FILES.size(); i++){
+            BufferedImage img = ImageIO.read(dir.resolve("ID-" + i + ".png").toFile());
+            Chemical c = Chemical.parseMol(mol(FILES.get(i)));
+            assertArrayEquals(FILES.get(i), pixels(renderer.createImage(c, 150, 120, false)), pixels(img));
+        }
+    }
+
+    @Test
+    public void zipHasAnEntryPerRecord() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(SdfRenderPipeline.Sink zip = SdfRenderPipeline.Sink.toZip(out)){
+            new SdfRenderPipeline(new ChemicalRenderer(), sdFile(), 100, 100).run(zip);
+        }
+        List<String> names = new ArrayList<>();
+        try(ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))){
+            for(ZipEntry e; (e = in.getNextEntry()) != null; ){
+                names.add(e.getName());
+                assertNotNull(ImageIO.read(in));
+            }
+        }
+        assertEquals(Arrays.asList("00000000.png", "00000001.png", "00000002.png", "00000004.png",
+                "00000005.png", "00000006.png", "00000007.png"), names);
+    }
+
+    @Test
+    public void resumesFromTheCheckpoint() throws Exception {
+        Path sd = sdFile();
+        Path checkpoint = tmp.getRoot().toPath().resolve("render.checkpoint");
+        List<Long> written = new ArrayList<>();
+        try{
+            new SdfRenderPipeline(new ChemicalRenderer(), sd, 100, 100)
+                    .setCheckpoint(checkpoint)
+                    .setCheckpointInterval(2)
+                    .run(record -> {
+                        if(written.size() == 5){
+                            throw new IOException("disk full");
+                        }
+                        written.add(record.getRecordNumber());
+                    });
+            fail("should stop at the sink's error");
+        }catch(IOException e){
+            assertEquals("disk full", e.getMessage());
+        }
+        assertEquals(Arrays.asList(0L, 1L, 2L, 4L, 5L), written);
+
+        SdfRenderPipeline.Summary summary = new SdfRenderPipeline(new ChemicalRenderer(), sd, 100, 100)
+                .setCheckpoint(checkpoint)
+                .run(record -> written.add(record.getRecordNumber()));
+        assertEquals(6, summary.getFirstRecord());
+        assertEquals(2, summary.getRecordCount());
+        assertEquals(Arrays.asList(0L, 1L, 2L, 4L, 5L, 6L, 7L), written);
+
+        summary = new SdfRenderPipeline(new ChemicalRenderer(), sd, 100, 100)
+                .setCheckpoint(checkpoint)
+                .run(record -> written.add(record.getRecordNumber()));
+        assertEquals(0, summary.getRecordCount());
+    }
+
+    @Test
+    public void zipCanNotBeCheckpointed() throws Exception {
+        Path checkpoint = tmp.getRoot().toPath().resolve("render.checkpoint");
+        try(SdfRenderPipeline.Sink zip = SdfRenderPipeline.Sink.toZip(new ByteArrayOutputStream())){
+            new SdfRenderPipeline(new ChemicalRenderer(), sdFile(), 100, 100)
+                    .setCheckpoint(checkpoint)
+                    .run(zip);
+            fail("a ZIP can't resume");
+        }catch(IllegalArgumentException expected){
+        }
+        assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void sharedNamesGetTheirOwnFiles() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for(String name : Arrays.asList("benzoic_acid.mol", "water.mol", "dash.mol")){
+            sb.append(mol(name)).append("> <ID>\nSAME\n\n$$$$\n");
+        }
+        Path sd = tmp.getRoot().toPath().resolve("same.sdf");
+        Files.write(sd, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Path dir = tmp.getRoot().toPath().resolve("images");
+        try(SdfRenderPipeline.Sink files = SdfRenderPipeline.Sink.toDirectory(dir)){
+            new SdfRenderPipeline(new ChemicalRenderer(), sd, 100, 100)
+                    .setNameProperty("ID")
+                    .setCheckpoint(tmp.getRoot().toPath().resolve("render.checkpoint"))
+                    .run(files);
+        }
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        assertArrayEquals(pixels(renderer.createImage(Chemical.parseMol(mol("benzoic_acid.mol")), 100, 100, false)),
+                pixels(ImageIO.read(dir.resolve("SAME.png").toFile())));
+        assertArrayEquals(pixels(renderer.createImage(Chemical.parseMol(mol("water.mol")), 100, 100, false)),
+                pixels(ImageIO.read(dir.resolve("SAME_1.png").toFile())));
+        assertArrayEquals(pixels(renderer.createImage(Chemical.parseMol(mol("dash.mol")), 100, 100, false)),
+                pixels(ImageIO.read(dir.resolve("SAME_2.png").toFile())));
+    }
+
+    @Test
+    public void oversizedRecordIsSkipped() throws Exception {
+        List<Long> written = new ArrayList<>();
+        SdfRenderPipeline.Summary summary = new SdfRenderPipeline(new ChemicalRenderer(), sdFile(), 100, 100)
+                .setMaximumRecordBytes(400)
+                .run(record -> written.add(record.getRecordNumber()));
+        assertEquals(FILES.size() + 1, summary.getRecordCount());
+        assertTrue(written.contains(2L));
+        assertFalse(written.contains(0L));
+        assertEquals(FILES.size() + 1, summary.getFailureCount() + written.size());
+    }
+
+    @Test(timeout = 60_000)
+    public void callersPoolGetsItsWorkersBackWithASmallLookAhead() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try{
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try(SdfRenderPipeline.Sink zip = SdfRenderPipeline.Sink.toZip(out)){
+                SdfRenderPipeline.Summary summary = new SdfRenderPipeline(new ChemicalRenderer(), sdFile(), 100, 100)
+                        .setExecutor(pool)
+                        .setThreads(4)
+                        .setLookAhead(1)
+                        .run(zip);
+                assertEquals(FILES.size() + 1, summary.getRecordCount());
+            }
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        }finally{
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void executorRunningWorkersOnTheCallingThreadIsRejected() throws Exception {
+        SdfRenderPipeline pipeline = new SdfRenderPipeline(new ChemicalRenderer(), sdFile(), 100, 100)
+                .setExecutor(Runnable::run)
+                .setThreads(2);
+        try(SdfRenderPipeline.Sink zip = SdfRenderPipeline.Sink.toZip(new ByteArrayOutputStream())){
+            pipeline.run(zip);
+            fail("should have been rejected");
+        }catch(IllegalStateException expected){
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import org.junit.Test;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestSegmentGrid {
+
+    private static List<Integer> near(SegmentGrid grid, double[] line) {
+        int n = grid.near(line[0], line[1], line[2], line[3]);
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            found.add(grid.found(i));
+        }
+        return found;
+    }
+
+    private static boolean crosses(SegmentGrid grid, int other, double[] line) {
+        return Line2D.linesIntersect(line[0], line[1], line[2], line[3],
+                grid.getX1(other), grid.getY1(other), grid.getX2(other), grid.getY2(other));
+    }
+
+    @Test
+    public void everyCrossingLineIsNearInTheOrderAdded() {
+        Random random = new Random(3);
+        SegmentGrid grid = new SegmentGrid(20);
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextDouble() * 1000 - 500;
+            double y = random.nextDouble() * 1000 - 500;
+            double length = i % 100 == 0 ? 900 : 20;
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double[] line = {x, y, x + length * Math.cos(angle), y + length * Math.sin(angle)};
+
+            List<Integer> crossing = new ArrayList<>();
+            for (int other = 0; other < grid.size(); other++) {
+                if (crosses(grid, other, line)) {
+                    crossing.add(other);
+                }
+            }
+            List<Integer> near = near(grid, line);
+            List<Integer> nearCrossing = new ArrayList<>();
+            for (int other : near) {
+                if (crosses(grid, other, line)) {
+                    nearCrossing.add(other);
+                }
+            }
+            assertEquals(crossing, nearCrossing);
+            assertTrue(near.size() <= grid.size());
+
+            grid.add(line[0], line[1], line[2], line[3]);
+            assertEquals(line[2], grid.getX2(i), 0);
+        }
+        assertEquals(2000, grid.size());
+    }
+
+    @Test
+    public void segmentsSharingAnEndAreNear() {
+        SegmentGrid grid = new SegmentGrid(10);
+        grid.add(0, 0, 10, 10);
+        assertEquals(Collections.singletonList(0), near(grid, new double[]{10, 10, 20, 0}));
+        assertTrue(near(grid, new double[]{50, 50, 55, 55}).isEmpty());
+    }
+
+    @Test
+    public void withoutACellSizeEveryLineIsNear() {
+        SegmentGrid grid = new SegmentGrid(Double.NaN);
+        grid.add(0, 0, 1, 1);
+        grid.add(100, 100, 101, 101);
+        assertEquals(Arrays.asList(0, 1), near(grid, new double[]{500, 500, 501, 501}));
+    }
+}
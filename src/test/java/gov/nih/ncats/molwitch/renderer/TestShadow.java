@@ -0,0 +1,191 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestShadow {
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestShadow.class.getResource("/" + name).getFile()));
+    }
+
+    private static BufferedImage overWhite(BufferedImage img) {
+        BufferedImage flat = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = flat.createGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, flat.getWidth(), flat.getHeight());
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return flat;
+    }
+
+    @Test
+    public void shadowAndStructureShareOneLayout() throws Exception {
+        DisplayListCache cache = new DisplayListCache(1 << 20);
+        ChemicalRenderer renderer = new ChemicalRenderer().setShadowVisible(true).setDisplayListCache(cache);
+        renderer.createImage(load("usp_steroid.mol"), 300);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void shadowIsDrawn() throws Exception {
+        Chemical c = load("benzoic_acid.mol");
+        BufferedImage with = overWhite(new ChemicalRenderer().setShadowVisible(true).createImage(c, 300));
+        BufferedImage without = overWhite(new ChemicalRenderer().setShadowVisible(false).createImage(c, 300));
+        long darker = 0;
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 300; x++) {
+                int a = with.getRGB(x, y) & 0xff;
+                int b = without.getRGB(x, y) & 0xff;
+                assertTrue(a <= b);
+                darker += b - a;
+            }
+        }
+        assertTrue(darker > 0);
+    }
+
+    @Test
+    public void reducedResolutionShadowLooksTheSame() throws Exception {
+        Chemical c = load("usp_steroid.mol");
+        BufferedImage full = overWhite(new ChemicalRenderer().createImage(c, 400));
+        BufferedImage half = overWhite(new ChemicalRenderer().setShadowResolution(.5f).createImage(c, 400));
+        long total = 0;
+        for (int y = 0; y < 400; y++) {
+            for (int x = 0; x < 400; x++) {
+                int p = full.getRGB(x, y);
+                int q = half.getRGB(x, y);
+                for (int s = 0; s < 24; s += 8) {
+                    total += Math.abs(((p >> s) & 0xff) - ((q >> s) & 0xff));
+                }
+            }
+        }
+        assertTrue(total / (3.0 * 400 * 400) < 0.5);
+    }
+
+    @Test
+    public void shadowBuffersAreReusedClearAtTheSameSize() throws Exception {
+        ShadowBuffers.keepSpares();
+        try {
+            ShadowBuffers first = ShadowBuffers.acquire(40, 30);
+            first.mask.setRGB(3, 4, 0xff00ff00);
+            first.release();
+
+            ShadowBuffers second = ShadowBuffers.acquire(40, 30);
+            assertSame(first, second);
+            assertEquals(0, second.mask.getRGB(3, 4));
+            assertNotSame(second, ShadowBuffers.acquire(40, 30));
+            second.release();
+
+            assertNotSame(second, ShadowBuffers.acquire(41, 30));
+        } finally {
+            ShadowBuffers.dropSpares();
+        }
+        assertFalse(ShadowBuffers.hasSpare());
+    }
+
+    @Test
+    public void createImageLeavesNoSpareBuffersBehind() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        renderer.setShadowVisible(true);
+        renderer.createImage(load("benzoic_acid.mol"), 200, 200, false);
+        assertFalse(ShadowBuffers.hasSpare());
+
+        ShadowBuffers.acquire(40, 30).release();
+        assertFalse(ShadowBuffers.hasSpare());
+    }
+
+    @Test
+    public void reusedBuffersDrawTheSameShadow() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        Chemical c = load("benzoic_acid.mol");
+        BufferedImage again;
+        ShadowBuffers.keepSpares();
+        try {
+            //leaves this thread's buffers holding another structure's shadow
+            renderer.createImage(load("usp_steroid.mol"), 200, 200, false);
+            assertTrue(ShadowBuffers.hasSpare());
+            again = renderer.createImage(c, 200, 200, false);
+        } finally {
+            ShadowBuffers.dropSpares();
+        }
+        BufferedImage fresh = new ChemicalRenderer().createImage(c, 200, 200, false);
+        assertArrayEquals(fresh.getRGB(0, 0, 200, 200, null, 0, 200), again.getRGB(0, 0, 200, 200, null, 0, 200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolutionMustBePositive() {
+        new ChemicalRenderer().setShadowResolution(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolutionCanNotExceedTheImage() {
+        new ChemicalRenderer().setShadowResolution(1.5f);
+    }
+
+    @Test
+    public void greyMatchesConvertingToTheGreyColorSpace() {
+        BufferedImage src = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(5);
+        for (int y = 0; y < 128; y++) {
+            for (int x = 0; x < 128; x++) {
+                src.setRGB(x, y, random.nextInt() | 0xff000000);
+            }
+        }
+        BufferedImage expected = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null).filter(src, null);
+
+        AbstractChemicalRenderer.greyscale(src);
+        int same = 0;
+        for (int y = 0; y < 128; y++) {
+            for (int x = 0; x < 128; x++) {
+                int p = src.getRGB(x, y);
+                assertEquals(p & 0xff, (p >> 8) & 0xff);
+                assertEquals(p & 0xff, (p >> 16) & 0xff);
+                if ((p & 0xff) == (expected.getRGB(x, y) & 0xff)) {
+                    same++;
+                }
+            }
+        }
+        //only the darkest colours can differ, by the rounding of the op's own tables
+        assertTrue(same >= .99 * 128 * 128);
+    }
+
+    @Test
+    public void greyKeepsAlpha() {
+        BufferedImage img = new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(0, 0, 0x40ffffff);
+        img.setRGB(1, 0, 0x00000000);
+        AbstractChemicalRenderer.greyscale(img);
+        assertEquals(0x40ffffff, img.getRGB(0, 0));
+        assertEquals(0, img.getRGB(1, 0) >>> 24);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.Chirality;
+import gov.nih.ncats.molwitch.Stereocenter;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TestStereoAnnotations {
+
+    private Chemical steroid() throws Exception {
+        return Chemical.parseMol(new File(getClass().getResource("/usp_steroid.mol").getFile()));
+    }
+
+    @Test
+    public void matchesPerceivedStereocenters() throws Exception {
+        Chemical c = steroid();
+        StereoAnnotations stereo = StereoAnnotations.of(c, false);
+
+        Chirality[] expected = new Chirality[c.getAtomCount()];
+        int defined = 0;
+        for (Stereocenter center : c.getAllStereocenters()) {
+            if (center.isDefined()) {
+                Atom atom = center.getCenterAtom();
+                expected[atom.getAtomIndexInParent()] = atom.getChirality();
+                defined++;
+            }
+        }
+        assertTrue(defined > 0);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], stereo.getChirality(i));
+        }
+        assertEquals(c.computeOpticalActivity().orElse(null), stereo.getOpticalActivity());
+        assertEquals(c.computeStereochemistryType().orElse(null), stereo.getStereochemistryType());
+    }
+
+    @Test
+    public void sameStructureIsOnlyPerceivedOnce() throws Exception {
+        StereoAnnotations first = StereoAnnotations.of(steroid(), false);
+        assertSame(first, StereoAnnotations.of(steroid(), false));
+        assertNotSame(first, StereoAnnotations.of(steroid(), true));
+    }
+
+    @Test
+    public void changedStructureIsPerceivedAgain() throws Exception {
+        Chemical c = steroid();
+        StereoAnnotations first = StereoAnnotations.of(c, false);
+        c.getAtom(0).setCharge(1);
+        assertNotSame(first, StereoAnnotations.of(c, false));
+    }
+
+    @Test
+    public void chiralityFromMapTreatsUnsetAsEither() throws Exception {
+        Chemical c = Chemical.parse("[CH3:1]C[OH:2]");
+        c.generateCoordinates();
+        StereoAnnotations stereo = StereoAnnotations.of(c, true);
+        assertEquals(Chirality.valueByParity(1), stereo.getChirality(0));
+        assertEquals(Chirality.valueByParity(3), stereo.getChirality(1));
+        assertEquals(Chirality.valueByParity(2), stereo.getChirality(2));
+    }
+}
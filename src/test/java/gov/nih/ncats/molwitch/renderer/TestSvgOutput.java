@@ -0,0 +1,152 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestSvgOutput {
+
+    private static Chemical load(String name) throws IOException {
+        return Chemical.parseMol(new File(TestSvgOutput.class.getResource("/" + name).getFile()));
+    }
+
+    private static Document parse(String svg) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(svg.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static int count(Document doc, String tag){
+        return doc.getElementsByTagNameNS("http://www.w3.org/2000/svg", tag).getLength();
+    }
+
+    @Test
+    public void documentIsWellFormedAndSized() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        Document doc = parse(renderer.createSvg(load("benzoic_acid.mol"), 320, 240, false));
+        Element root = doc.getDocumentElement();
+        assertEquals("svg", root.getLocalName());
+        assertEquals("320", root.getAttribute("width"));
+        assertEquals("240", root.getAttribute("height"));
+        assertEquals("0 0 320 240", root.getAttribute("viewBox"));
+        assertTrue(count(doc, "path") > 0);
+    }
+
+    @Test
+    public void writerGetsTheSameDocument() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer();
+        Chemical c = load("usp_steroid.mol");
+        StringWriter out = new StringWriter();
+        renderer.writeSvg(c, 300, 300, true, out);
+        assertEquals(renderer.createSvg(c, 300, 300, true), out.toString());
+    }
+
+    @Test
+    public void repeatedLabelsShareOneGlyphOutline() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer().setShadowVisible(false);
+        Document doc = parse(renderer.createSvg(load("usp_steroid.mol"), 400, 400, false));
+
+        Set<String> glyphs = new HashSet<>();
+        NodeList paths = doc.getElementsByTagNameNS("http://www.w3.org/2000/svg", "path");
+        for(int i=0; i< paths.getLength(); i++){
+            String id = ((Element) paths.item(i)).getAttribute("id");
+            if(!id.isEmpty()){
+                assertTrue("glyph defined twice " + id, glyphs.add(id));
+            }
+        }
+        int uses = 0;
+        NodeList refs = doc.getElementsByTagNameNS("http://www.w3.org/2000/svg", "use");
+        for(int i=0; i< refs.getLength(); i++){
+            String href = ((Element) refs.item(i)).getAttributeNS("http://www.w3.org/1999/xlink", "href");
+            assertTrue(href, glyphs.contains(href.substring(1)));
+            uses++;
+        }
+        assertFalse(glyphs.isEmpty());
+        assertTrue(uses + " uses of " + glyphs.size() + " glyphs", uses > glyphs.size());
+    }
+
+    @Test
+    public void captionsAreDrawnAsGlyphs() throws Exception {
+        ChemicalRenderer renderer = new ChemicalRenderer().setShadowVisible(false);
+        Chemical c = load("benzoic_acid.mol");
+        int without = count(parse(renderer.createSvg(c, 300, 300, false)), "use");
+
+        renderer.getOptions().captionBottom(chem -> "ab ab");
+        int with = count(parse(renderer.createSvg(c, 300, 300, false)), "use");
+        //the space has no outline
+        assertEquals(without + 4, with);
+    }
+
+    @Test
+    public void shadowIsAFilterOverTheStructureDrawnTwice() throws Exception {
+        Chemical c = load("benzoic_acid.mol");
+        Document shadowed = parse(new ChemicalRenderer().setShadowVisible(true).createSvg(c, 300, 300, false));
+        assertEquals(1, count(shadowed, "filter"));
+        assertEquals(1, count(shadowed, "feGaussianBlur"));
+
+        Document plain = parse(new ChemicalRenderer().setShadowVisible(false).createSvg(c, 300, 300, false));
+        assertEquals(0, count(plain, "filter"));
+    }
+
+    @Test
+    public void numbersAreRoundedAndTrimmed(){
+        assertEquals("0", number(0));
+        assertEquals("3", number(3.0));
+        assertEquals("1.5", number(1.5));
+        assertEquals(".25", number(0.25));
+        assertEquals(".05", number(0.05));
+        assertEquals("-.5", number(-0.5));
+        assertEquals("12.35", number(12.3456));
+        assertEquals("0", number(-0.001));
+    }
+
+    @Test
+    public void pathDataLeavesOutImplicitCommandsAndSeparators(){
+        StringBuilder sb = new StringBuilder();
+        SvgWriter.pathData(sb, new Line2D.Double(1, 2, -3, 4.5));
+        assertEquals("M1 2-3 4.5", sb.toString());
+
+        sb.setLength(0);
+        SvgWriter.pathData(sb, new Rectangle2D.Double(0, 0, 2, 1));
+        assertEquals("M0 0 2 0 2 1 0 1 0 0Z", sb.toString());
+    }
+
+    private static String number(double v){
+        StringBuilder sb = new StringBuilder();
+        VectorCanvas.number(sb, v);
+        return sb.toString();
+    }
+}
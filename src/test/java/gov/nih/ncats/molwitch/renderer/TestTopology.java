@@ -0,0 +1,75 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Chemical;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestTopology {
+
+    @Test
+    public void matchesTheStructureItWasReadFrom() throws Exception {
+        Chemical c = Chemical.parseMol(new File(getClass().getResource("/usp_steroid.mol").getFile()));
+        Topology topology = Topology.of(c);
+
+        assertEquals(c.getAtomCount(), topology.getAtomCount());
+        assertEquals(c.getBondCount(), topology.getBondCount());
+        boolean sawRing = false;
+        for (int b = 0; b < c.getBondCount(); b++) {
+            Bond bond = c.getBond(b);
+            assertEquals(bond.getAtom1().getAtomIndexInParent(), topology.getAtom1(b));
+            assertEquals(bond.getAtom2().getAtomIndexInParent(), topology.getAtom2(b));
+            assertEquals(bond.getBondType(), topology.getBondType(b));
+            assertEquals(bond.isInRing(), topology.isInRing(b));
+            sawRing |= topology.isInRing(b);
+        }
+        assertTrue(sawRing);
+
+        for (int a = 0; a < c.getAtomCount(); a++) {
+            Atom atom = c.getAtom(a);
+            List<? extends Bond> atomBonds = atom.getBonds();
+            assertEquals(atomBonds.size(), topology.getBondCount(a));
+            int e = topology.firstEdge(a);
+            for (Bond bond : atomBonds) {
+                assertEquals(c.indexOf(bond), topology.edgeBond(e));
+                assertEquals(bond.getOtherAtom(atom).getAtomIndexInParent(), topology.neighbor(e));
+                e++;
+            }
+            assertEquals(topology.endEdge(a), e);
+        }
+    }
+
+    @Test
+    public void atomWithoutBondsHasNoEdges() throws Exception {
+        Chemical c = Chemical.parse("CC.[Na+]");
+        Topology topology = Topology.of(c);
+        assertEquals(3, topology.getAtomCount());
+        assertEquals(1, topology.getBondCount());
+        assertEquals(0, topology.getBondCount(2));
+        assertEquals(topology.firstEdge(2), topology.endEdge(2));
+        assertFalse(topology.isInRing(0));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * NCATS-MOLWITCH-RENDERER
+ *
+ * Copyright 2024 NIH/NCATS
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package gov.nih.ncats.molwitch.renderer;
+
+import gov.nih.ncats.molwitch.Chemical;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The Java 11 flight recorder events.  A classes directory isn't read as
+ * a multi-release jar, so the renderer is loaded with the Java 11
+ * classes ahead of the rest, as the jar would give them on Java 11.
+ */
+public class TestRenderEvents {
+
+    private static final String PACKAGE = RenderEvents.class.getPackage().getName() + ".";
+    private static final String RENDER = PACKAGE + "Render";
+    private static final String PHASE = PACKAGE + "RenderPhase";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Loads the renderer's own classes itself, the Java 11 versions first,
+     * and everything else, tests included, from the usual class path.
+     */
+    private static final class VersionedLoader extends URLClassLoader {
+        VersionedLoader(URL... urls) {
+            super(urls, VersionedLoader.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null && name.startsWith(PACKAGE)) {
+                    try {
+                        c = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        //a test class
+                    }
+                }
+                if (c == null) {
+                    return super.loadClass(name, resolve);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Renders benzoic acid, printing whether render events are enabled;
+     * run by {@link #rendersWithoutTheFlightRecorder()} in a JVM without
+     * {@code jdk.jfr}.
+     */
+    public static final class RenderWithoutFlightRecorder {
+        public static void main(String[] args) throws Exception {
+            Chemical c = Chemical.parseMol(new File(TestRenderEvents.class.getResource("/benzoic_acid.mol").getFile()));
+            BufferedImage image = new ChemicalRenderer().createImage(c, 200);
+            if (image.getWidth() != 200) {
+                throw new AssertionError("rendered " + image.getWidth() + " wide");
+            }
+            System.out.print("enabled=" + RenderEvents.isEnabled());
+        }
+    }
+
+    private static Path versionedClasses() throws Exception {
+        Path classes = Paths.get(RenderEvents.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path versioned = classes.resolve("META-INF/versions/11");
+        assertTrue(versioned.resolve(RenderEvents.class.getName().replace('.', '/') + ".class").toFile().exists());
+        return versioned;
+    }
+
+    @Test
+    public void rendersWithoutTheFlightRecorder() throws Exception {
+        //the Java 11 classes ahead of the usual class path, as on the jar
+        String classPath = versionedClasses() + File.pathSeparator + System.getProperty("java.class.path");
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Path output = tmp.newFile("output.txt").toPath();
+        Process process = new ProcessBuilder(Arrays.asList(java.toString(),
+                "--limit-modules", "java.se,jdk.unsupported,jdk.management,jdk.xml.dom",
+                "-Djava.awt.headless=true",
+                "-cp", classPath,
+                RenderWithoutFlightRecorder.class.getName()))
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile())
+                .start();
+        if (!process.waitFor(2, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            fail("render without jdk.jfr didn't finish");
+        }
+        String out = new String(Files.readAllBytes(output), StandardCharsets.UTF_8).trim();
+        assertEquals(out, 0, process.exitValue());
+        assertTrue(out, out.endsWith("enabled=false"));
+    }
+
+    @Test
+    public void renderAndPhaseEventsAreRecorded() throws Exception {
+        Path classes = Paths.get(RenderEvents.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path versioned = versionedClasses();
+
+        Chemical c = Chemical.parseMol(new File(TestRenderEvents.class.getResource("/benzoic_acid.mol").getFile()));
+        Path file = tmp.getRoot().toPath().resolve("render.jfr");
+        try (VersionedLoader loader = new VersionedLoader(versioned.toUri().toURL(), classes.toUri().toURL());
+             Recording recording = new Recording()) {
+            Class<?> rendererClass = loader.loadClass(ChemicalRenderer.class.getName());
+            assertNotSame(ChemicalRenderer.class, rendererClass);
+            Object renderer = rendererClass.getConstructor().newInstance();
+
+            recording.enable(RENDER).withThreshold(Duration.ZERO);
+            recording.enable(PHASE).withThreshold(Duration.ZERO);
+            recording.start();
+            rendererClass.getMethod("createImage", Chemical.class, int.class).invoke(renderer, c, 200);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> renders = new ArrayList<>();
+        Set<String> phases = new HashSet<>();
+        for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+            String name = e.getEventType().getName();
+            if (name.equals(RENDER)) {
+                renders.add(e);
+            } else if (name.equals(PHASE)) {
+                phases.add(e.getString("phase"));
+                assertEquals(c.getAtomCount(), e.getInt("atomCount"));
+            }
+        }
+        assertEquals(1, renders.size());
+        RecordedEvent render = renders.get(0);
+        assertEquals(c.getAtomCount(), render.getInt("atomCount"));
+        assertEquals(c.getBondCount(), render.getInt("bondCount"));
+        assertEquals(200, render.getInt("width"));
+        assertEquals(200, render.getInt("height"));
+        assertEquals(new ChemicalRenderer().getOptions().fingerprint(), render.getLong("optionsFingerprint"));
+        assertTrue(render.getDuration().toNanos() > 0);
+        assertTrue(phases.toString(), phases.contains("BONDS"));
+        assertTrue(phases.toString(), phases.contains("LABELS"));
+        assertTrue(phases.toString(), phases.contains("PAINT"));
+    }
+}